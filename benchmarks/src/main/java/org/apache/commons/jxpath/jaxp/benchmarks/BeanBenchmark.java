@@ -0,0 +1,123 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.apache.commons.jxpath.jaxp.BeanAccessors;
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the evaluation over Java beans, with and
+ * without the {@link BeanAccessors} of the factory.
+ * @author Michele Vivoda
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BeanBenchmark
+{
+    @Param({"true", "false"})
+    public boolean accessors;
+
+    private Customer customer;
+    private XPathExpression sum;
+    private XPathExpression select;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        final JXPathXPathFactory factory = new JXPathXPathFactory();
+        factory.setFeature(JXPathXPathFactory.FEATURE_BEAN_ACCESSORS, accessors);
+        sum = factory.newXPath().compile("sum(orders[region='r1']/items/qty)");
+        select = factory.newXPath().compile("orders[id=7]/items[2]/sku");
+        customer = new Customer();
+        for(int i=1;i<=20;i++) customer.orders.add(new Order(i));
+    }
+
+    @Benchmark
+    public Object sum() throws Exception
+    {
+        return sum.evaluate(customer, XPathConstants.NUMBER);
+    }
+
+    @Benchmark
+    public Object select() throws Exception
+    {
+        return select.evaluate(customer, XPathConstants.STRING);
+    }
+
+    public static class Customer
+    {
+        final List orders = new ArrayList();
+
+        public List getOrders()
+        {
+            return orders;
+        }
+    }
+
+    public static class Order
+    {
+        private final int id;
+        private final Item[] items = new Item[Documents.ITEMS];
+
+        Order(final int id)
+        {
+            this.id = id;
+            for(int j=0;j<items.length;j++) items[j] = new Item("s" + (j + 1), (id + j) % 5 + 1);
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        public String getRegion()
+        {
+            return "r" + id % Documents.REGIONS;
+        }
+
+        public Item[] getItems()
+        {
+            return items;
+        }
+    }
+
+    public static class Item
+    {
+        private final String sku;
+        private final int qty;
+
+        Item(final String sku, final int qty)
+        {
+            this.sku = sku;
+            this.qty = qty;
+        }
+
+        public String getSku()
+        {
+            return sku;
+        }
+
+        public int getQty()
+        {
+            return qty;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.apache.commons.jxpath.jaxp.CompactDocument;
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Cost of the {@link CompactDocument} model against the DOM:
+ * parsing an {@link InputSource} and evaluating, and evaluating
+ * over an already parsed document. The setup prints the heap
+ * retained by the parsed document, the allocations of each
+ * evaluation are reported by the GC profiler:
+ * <pre>
+ * java -jar target/benchmarks.jar CompactDocumentBenchmark -prof gc
+ * </pre>
+ * @author Michele Vivoda
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CompactDocumentBenchmark
+{
+    @Param({"dom", "compact"})
+    public String model;
+
+    @Param({"medium", "large"})
+    public String size;
+
+    private String xml;
+    private Document document;
+    private XPathExpression count;
+    private XPathExpression nodes;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        xml = Documents.xml(size);
+        final JXPathXPathFactory factory = new JXPathXPathFactory();
+        factory.setFeature(JXPathXPathFactory.FEATURE_COMPACT_DOCUMENT, "compact".equals(model));
+        count = factory.newXPath().compile("count(/orders/order[@region='r1']/item[@qty>2])");
+        nodes = factory.newXPath().compile("/orders/order[@customer='c7']/note");
+        final long before = usedMemory();
+        document = parse();
+        final long after = usedMemory();
+        System.out.println();
+        System.out.println("Retained heap (" + model + ", " + size + "): "
+            + (after - before) / 1024 + " KB");
+    }
+
+    private Document parse() throws Exception
+    {
+        if ("compact".equals(model))
+        {
+            return CompactDocument.parse(new InputSource(new StringReader(xml))).getDocument();
+        }
+        return Documents.parse(xml);
+    }
+
+    private static long usedMemory()
+    {
+        final Runtime runtime = Runtime.getRuntime();
+        for(int i=0;i<3;i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    public Object parseAndCount() throws Exception
+    {
+        return count.evaluate(new InputSource(new StringReader(xml)), XPathConstants.NUMBER);
+    }
+
+    @Benchmark
+    public Object count() throws Exception
+    {
+        return count.evaluate(document, XPathConstants.NUMBER);
+    }
+
+    @Benchmark
+    public Object nodes() throws Exception
+    {
+        return nodes.evaluate(document, XPathConstants.NODESET);
+    }
+}
@@ -0,0 +1,48 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of {@link XPath#compile(String)}.
+ * @author Michele Vivoda
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompileBenchmark
+{
+    @Param({"jxpath", "jdk"})
+    public String impl;
+
+    @Param({
+        "/orders/order",
+        "//order[@customer='c1' and @region='r1']/item[@qty > 2]/@price",
+        "sum(//order[position() < 10]/item/@price) div count(//item)"})
+    public String expression;
+
+    private XPath xpath;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        xpath = Implementations.newFactory(impl).newXPath();
+    }
+
+    @Benchmark
+    public XPathExpression compile() throws Exception
+    {
+        return xpath.compile(expression);
+    }
+}
@@ -0,0 +1,128 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Generated test documents.
+ * <p>A document is a list of orders, each with
+ * a few items, sizes are <code>small</code> (10 orders),
+ * <code>medium</code> (1000 orders),
+ * <code>large</code> (50000 orders) and
+ * <code>huge</code> (550000 orders, about 100MB).
+ * <pre>
+ * &lt;orders&gt;
+ *   &lt;order id="1" customer="c1" region="r1"&gt;
+ *     &lt;item sku="s1" qty="2" price="10.5"/&gt;
+ *     ...
+ *     &lt;note&gt;Order 1&lt;/note&gt;
+ *   &lt;/order&gt;
+ *   ...
+ * &lt;/orders&gt;
+ * </pre>
+ * @author Michele Vivoda
+ */
+public final class Documents
+{
+    /**
+     * Number of customers, region and items
+     * cycle with the order id.
+     */
+    public static final int CUSTOMERS = 50;
+    public static final int REGIONS = 4;
+    public static final int ITEMS = 3;
+
+    private Documents()
+    {
+    }
+
+    /**
+     * Returns the number of orders of a size.
+     * @param size <code>small</code>, <code>medium</code>,
+     * <code>large</code> or <code>huge</code>.
+     * @return the number of orders.
+     */
+    public static int orders(final String size)
+    {
+        if ("small".equals(size)) return 10;
+        if ("medium".equals(size)) return 1000;
+        if ("large".equals(size)) return 50000;
+        if ("huge".equals(size)) return 550000;
+        throw new IllegalArgumentException("Unknown size:" + size);
+    }
+
+    /**
+     * Returns the XML text of a document.
+     * @param size the size, see {@link #orders(String)}.
+     * @return the XML.
+     */
+    public static String xml(final String size)
+    {
+        final int orders = orders(size);
+        final StringBuilder buf = new StringBuilder(orders * 200);
+        buf.append("<orders>");
+        for(int i=1;i<=orders;i++)
+        {
+            buf.append("<order id=\"").append(i)
+                .append("\" customer=\"c").append(i % CUSTOMERS)
+                .append("\" region=\"r").append(i % REGIONS).append("\">");
+            for(int j=1;j<=ITEMS;j++)
+            {
+                buf.append("<item sku=\"s").append(j)
+                    .append("\" qty=\"").append((i + j) % 5 + 1)
+                    .append("\" price=\"").append(j * 10 + 0.5)
+                    .append("\"/>");
+            }
+            buf.append("<note>Order ").append(i).append("</note>");
+            buf.append("</order>");
+        }
+        buf.append("</orders>");
+        return buf.toString();
+    }
+
+    /**
+     * Writes a document to a temporary file,
+     * deleted when the virtual machine exits.
+     * @param size the size, see {@link #orders(String)}.
+     * @return the file.
+     * @throws IOException when fails.
+     */
+    public static File file(final String size) throws IOException
+    {
+        final File file = File.createTempFile("orders-" + size, ".xml");
+        file.deleteOnExit();
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            out.write(xml(size));
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Parses a document with the JDK parser.
+     * @param xml the XML text.
+     * @return the document.
+     * @throws Exception when fails.
+     */
+    public static Document parse(final String xml) throws Exception
+    {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setCoalescing(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+}
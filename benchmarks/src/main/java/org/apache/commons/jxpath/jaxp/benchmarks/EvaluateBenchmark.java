@@ -0,0 +1,91 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Cost of {@link XPathExpression#evaluate(Object, QName)}
+ * on a parsed document, for each return type of
+ * {@link XPathConstants}.
+ * @author Michele Vivoda
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EvaluateBenchmark
+{
+    @Param({"jxpath", "jdk"})
+    public String impl;
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private Document document;
+    private XPathExpression node;
+    private XPathExpression nodeset;
+    private XPathExpression string;
+    private XPathExpression number;
+    private XPathExpression bool;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        document = Documents.parse(Documents.xml(size));
+        final javax.xml.xpath.XPath xpath = Implementations.newFactory(impl).newXPath();
+        node = xpath.compile("/orders/order[3]/item[2]");
+        nodeset = xpath.compile("//order[@region='r1']");
+        string = xpath.compile("/orders/order[@id='5']/note");
+        number = xpath.compile("count(//item[@qty > 2])");
+        bool = xpath.compile("boolean(//order[@customer='c7'])");
+    }
+
+    @Benchmark
+    public Object node() throws Exception
+    {
+        return node.evaluate(document, XPathConstants.NODE);
+    }
+
+    @Benchmark
+    public int nodeset() throws Exception
+    {
+        return ((NodeList) nodeset.evaluate(document, XPathConstants.NODESET)).getLength();
+    }
+
+    @Benchmark
+    public Object nodesetFirst() throws Exception
+    {
+        return ((NodeList) nodeset.evaluate(document, XPathConstants.NODESET)).item(0);
+    }
+
+    @Benchmark
+    public Object string() throws Exception
+    {
+        return string.evaluate(document, XPathConstants.STRING);
+    }
+
+    @Benchmark
+    public Object number() throws Exception
+    {
+        return number.evaluate(document, XPathConstants.NUMBER);
+    }
+
+    @Benchmark
+    public Object bool() throws Exception
+    {
+        return bool.evaluate(document, XPathConstants.BOOLEAN);
+    }
+}
@@ -0,0 +1,141 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionException;
+import javax.xml.xpath.XPathFunctionResolver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Cost of expressions calling an extension function for each node,
+ * with a string and with a node set argument.
+ * @author Michele Vivoda
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExtensionFunctionBenchmark
+{
+    /**
+     * Namespace of the extension functions.
+     */
+    public static final String NS = "urn:benchmark:ext";
+
+    @Param({"jxpath", "jdk"})
+    public String impl;
+
+    @Param({"small", "medium"})
+    public String size;
+
+    private Document document;
+    private XPathExpression scalar;
+    private XPathExpression nodeset;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        document = Documents.parse(Documents.xml(size));
+        final XPath xpath = Implementations.newFactory(impl).newXPath();
+        xpath.setNamespaceContext(new Namespaces());
+        xpath.setXPathFunctionResolver(new Functions());
+        scalar = xpath.compile("count(//order[ext:even(@id)])");
+        nodeset = xpath.compile("count(//order[ext:first(item) = 's1'])");
+    }
+
+    @Benchmark
+    public Object scalarArgument() throws Exception
+    {
+        return scalar.evaluate(document, XPathConstants.NUMBER);
+    }
+
+    @Benchmark
+    public Object nodesetArgument() throws Exception
+    {
+        return nodeset.evaluate(document, XPathConstants.NUMBER);
+    }
+
+    private static final class Namespaces implements NamespaceContext
+    {
+        public String getNamespaceURI(final String prefix)
+        {
+            return "ext".equals(prefix) ? NS : null;
+        }
+
+        public String getPrefix(final String namespaceURI)
+        {
+            return NS.equals(namespaceURI) ? "ext" : null;
+        }
+
+        public Iterator getPrefixes(final String namespaceURI)
+        {
+            return Collections.singleton(getPrefix(namespaceURI)).iterator();
+        }
+    }
+
+    private static final class Functions implements XPathFunctionResolver
+    {
+        public XPathFunction resolveFunction(final QName name, final int arity)
+        {
+            if (!NS.equals(name.getNamespaceURI())) return null;
+            if ("even".equals(name.getLocalPart())) return new Even();
+            if ("first".equals(name.getLocalPart())) return new First();
+            return null;
+        }
+    }
+
+    /**
+     * <code>ext:even(value)</code>, true when the argument is an even number.
+     */
+    private static final class Even implements XPathFunction
+    {
+        public Object evaluate(final List args) throws XPathFunctionException
+        {
+            return Boolean.valueOf(Integer.parseInt(text(args.get(0))) % 2 == 0);
+        }
+    }
+
+    /**
+     * <code>ext:first(nodes)</code>, the <code>sku</code>
+     * of the first node of the argument.
+     */
+    private static final class First implements XPathFunction
+    {
+        public Object evaluate(final List args) throws XPathFunctionException
+        {
+            final NodeList list = (NodeList) args.get(0);
+            return list.getLength()==0 ? ""
+                : ((org.w3c.dom.Element) list.item(0)).getAttribute("sku");
+        }
+    }
+
+    static String text(final Object arg)
+    {
+        if (arg instanceof NodeList)
+        {
+            final NodeList list = (NodeList) arg;
+            return list.getLength()==0 ? "" : list.item(0).getTextContent();
+        }
+        if (arg instanceof Node) return ((Node)arg).getTextContent();
+        return String.valueOf(arg);
+    }
+}
@@ -0,0 +1,41 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory;
+
+/**
+ * The {@link XPathFactory} implementations compared by the benchmarks,
+ * <code>jxpath</code> for {@link JXPathXPathFactory} and
+ * <code>jdk</code> for the built-in factory of the JDK.
+ * @author Michele Vivoda
+ */
+public final class Implementations
+{
+    /**
+     * Class of the XPathFactory built in the JDK.
+     */
+    public static final String JDK_FACTORY =
+        "com.sun.org.apache.xpath.internal.jaxp.XPathFactoryImpl";
+
+    private Implementations()
+    {
+    }
+
+    /**
+     * Creates a factory.
+     * @param impl <code>jxpath</code> or <code>jdk</code>.
+     * @return a new factory.
+     * @throws Exception when fails.
+     */
+    public static XPathFactory newFactory(final String impl) throws Exception
+    {
+        if ("jxpath".equals(impl)) return new JXPathXPathFactory();
+        if ("jdk".equals(impl))
+        {
+            return XPathFactory.newInstance(XPathFactory.DEFAULT_OBJECT_MODEL_URI,
+                JDK_FACTORY, Implementations.class.getClassLoader());
+        }
+        throw new IllegalArgumentException("Unknown implementation:" + impl);
+    }
+}
@@ -0,0 +1,60 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xml.sax.InputSource;
+
+/**
+ * Cost of the evaluation over an {@link InputSource},
+ * that includes the parsing of the document.
+ * @author Michele Vivoda
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InputSourceBenchmark
+{
+    @Param({"jxpath", "jdk"})
+    public String impl;
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private String xml;
+    private XPath xpath;
+    private XPathExpression expression;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        xml = Documents.xml(size);
+        xpath = Implementations.newFactory(impl).newXPath();
+        expression = xpath.compile("/orders/order[1]/@customer");
+    }
+
+    @Benchmark
+    public Object compiled() throws Exception
+    {
+        return expression.evaluate(new InputSource(new StringReader(xml)), XPathConstants.STRING);
+    }
+
+    @Benchmark
+    public Object string() throws Exception
+    {
+        return xpath.evaluate("/orders/order[1]/@customer",
+            new InputSource(new StringReader(xml)), XPathConstants.STRING);
+    }
+}
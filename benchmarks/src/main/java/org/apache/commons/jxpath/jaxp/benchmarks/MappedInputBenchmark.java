@@ -0,0 +1,84 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.apache.commons.jxpath.jaxp.MappedInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+
+/**
+ * Cost of the evaluation over a file read from a stream,
+ * from its system id and mapped in memory with {@link MappedInput},
+ * that includes the parsing of the document. The heap
+ * allocated by each evaluation is reported by the GC profiler:
+ * <pre>
+ * java -jar target/benchmarks.jar MappedInputBenchmark -prof gc
+ * </pre>
+ * @author Michele Vivoda
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MappedInputBenchmark
+{
+    @Param({"jxpath", "jdk"})
+    public String impl;
+
+    @Param({"large", "huge"})
+    public String size;
+
+    private File file;
+    private XPathExpression expression;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        file = Documents.file(size);
+        expression = Implementations.newFactory(impl).newXPath()
+            .compile("/orders/order[1]/@customer");
+    }
+
+    @Benchmark
+    public Object stream() throws Exception
+    {
+        final InputStream in = new FileInputStream(file);
+        try
+        {
+            return expression.evaluate(new InputSource(in), XPathConstants.STRING);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public Object systemId() throws Exception
+    {
+        return expression.evaluate(new InputSource(file.toURI().toString()),
+            XPathConstants.STRING);
+    }
+
+    @Benchmark
+    public Object mapped() throws Exception
+    {
+        return MappedInput.evaluate(expression, file, XPathConstants.STRING);
+    }
+}
@@ -0,0 +1,132 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * Cost of prefixed steps on a namespaced document, like an
+ * UBL invoice, with the prefixes bound by the
+ * {@link NamespaceContext} and resolved at compile time
+ * (<code>context</code>) or resolved by JXPath from the
+ * declarations of the document (<code>document</code>).
+ * @author Michele Vivoda
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class NamespaceBenchmark
+{
+    static final String INVOICE =
+        "urn:oasis:names:specification:ubl:schema:xsd:Invoice-2";
+    static final String CAC =
+        "urn:oasis:names:specification:ubl:schema:xsd:CommonAggregateComponents-2";
+    static final String CBC =
+        "urn:oasis:names:specification:ubl:schema:xsd:CommonBasicComponents-2";
+
+    @Param({"context", "document"})
+    public String resolution;
+
+    @Param({"100", "1000"})
+    public int lines;
+
+    private Document document;
+    private XPathExpression sum;
+    private XPathExpression select;
+    private XPathExpression count;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        document = Documents.parse(xml(lines));
+        final XPath xpath = new JXPathXPathFactory().newXPath();
+        if ("context".equals(resolution)) xpath.setNamespaceContext(new Ubl());
+        sum = xpath.compile("sum(/inv:Invoice/cac:InvoiceLine/cbc:LineExtensionAmount)");
+        select = xpath.compile("/inv:Invoice/cac:InvoiceLine[cbc:ID='7']/cac:Item/cbc:Name");
+        count = xpath.compile("count(/inv:Invoice/cac:InvoiceLine[cac:Item/cbc:Name='n3'])");
+    }
+
+    @Benchmark
+    public Object sum() throws Exception
+    {
+        return sum.evaluate(document, XPathConstants.NUMBER);
+    }
+
+    @Benchmark
+    public Object select() throws Exception
+    {
+        return select.evaluate(document, XPathConstants.STRING);
+    }
+
+    @Benchmark
+    public Object count() throws Exception
+    {
+        return count.evaluate(document, XPathConstants.NUMBER);
+    }
+
+    static String xml(final int lines)
+    {
+        final StringBuilder buf = new StringBuilder(lines * 300);
+        buf.append("<inv:Invoice xmlns:inv=\"").append(INVOICE)
+            .append("\" xmlns:cac=\"").append(CAC)
+            .append("\" xmlns:cbc=\"").append(CBC).append("\">");
+        buf.append("<cbc:ID>INV-1</cbc:ID>");
+        for(int i=1;i<=lines;i++)
+        {
+            buf.append("<cac:InvoiceLine><cbc:ID>").append(i).append("</cbc:ID>")
+                .append("<cbc:LineExtensionAmount currencyID=\"EUR\">")
+                .append(i % 7 * 10 + 0.5).append("</cbc:LineExtensionAmount>")
+                .append("<cac:Item><cbc:Name>n").append(i % 10).append("</cbc:Name></cac:Item>")
+                .append("</cac:InvoiceLine>");
+        }
+        buf.append("</inv:Invoice>");
+        return buf.toString();
+    }
+
+    private static final class Ubl implements NamespaceContext
+    {
+        public String getNamespaceURI(final String prefix)
+        {
+            if ("inv".equals(prefix)) return INVOICE;
+            if ("cac".equals(prefix)) return CAC;
+            if ("cbc".equals(prefix)) return CBC;
+            return XMLConstants.NULL_NS_URI;
+        }
+
+        public String getPrefix(final String uri)
+        {
+            if (INVOICE.equals(uri)) return "inv";
+            if (CAC.equals(uri)) return "cac";
+            if (CBC.equals(uri)) return "cbc";
+            return null;
+        }
+
+        public Iterator getPrefixes(final String uri)
+        {
+            final String prefix = getPrefix(uri);
+            return prefix == null ? Collections.emptyIterator()
+                : Collections.singleton(prefix).iterator();
+        }
+    }
+}
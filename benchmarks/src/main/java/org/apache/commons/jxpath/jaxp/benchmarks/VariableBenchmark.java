@@ -0,0 +1,77 @@
+package org.apache.commons.jxpath.jaxp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathVariableResolver;
+
+import org.apache.commons.jxpath.jaxp.JXPathExpression;
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+
+/**
+ * Cost of parameterized expressions, with variables
+ * from an {@link XPathVariableResolver} and, for JXPath only,
+ * bound with {@link JXPathExpression#evaluate(Object, QName, Object[])}.
+ * @author Michele Vivoda
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VariableBenchmark
+{
+    private static final String EXPRESSION =
+        "count(//order[@customer=$c and @region=$r])";
+
+    @Param({"jxpath", "jdk"})
+    public String impl;
+
+    @Param({"small", "medium"})
+    public String size;
+
+    private Document document;
+    private XPathExpression resolved;
+    private JXPathExpression bound;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        document = Documents.parse(Documents.xml(size));
+        final XPath xpath = Implementations.newFactory(impl).newXPath();
+        xpath.setXPathVariableResolver(new XPathVariableResolver()
+        {
+            public Object resolveVariable(final QName name)
+            {
+                return "c".equals(name.getLocalPart()) ? "c1" : "r1";
+            }
+        });
+        resolved = xpath.compile(EXPRESSION);
+        bound = (JXPathExpression) new JXPathXPathFactory().newXPath().compile(EXPRESSION);
+    }
+
+    @Benchmark
+    public Object resolver() throws Exception
+    {
+        return resolved.evaluate(document, XPathConstants.NUMBER);
+    }
+
+    /**
+     * JXPath only, the <code>impl</code> parameter is ignored.
+     */
+    @Benchmark
+    public Object bound() throws Exception
+    {
+        return bound.evaluate(document, XPathConstants.NUMBER, new Object[]{"c1", "r1"});
+    }
+}
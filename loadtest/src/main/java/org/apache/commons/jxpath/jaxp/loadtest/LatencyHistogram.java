@@ -0,0 +1,108 @@
+package org.apache.commons.jxpath.jaxp.loadtest;
+
+/**
+ * Histogram of latencies in nanoseconds with
+ * log-linear buckets, like HdrHistogram: values up to 255
+ * are exact, larger values are counted in 128 buckets for
+ * each power of two, so percentiles have a relative error
+ * below 1% with a fixed footprint of a few KB.
+ * <p>Not thread safe, each thread records in its own
+ * histogram, merged with {@link #add(LatencyHistogram)}
+ * when the run ends.
+ * @author Michele Vivoda
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int LINEAR = SUB_COUNT * 2;
+    private static final int SIZE = LINEAR + (63 - SUB_BITS) * SUB_COUNT;
+
+    private final long[] counts = new long[SIZE];
+    private long count;
+    private long total;
+    private long max;
+
+    /**
+     * Records a latency.
+     * @param nanos the latency, negative values count as zero.
+     */
+    public void record(final long nanos)
+    {
+        final long value = nanos < 0 ? 0 : nanos;
+        counts[indexOf(value)]++;
+        count++;
+        total += value;
+        if (value > max) max = value;
+    }
+
+    /**
+     * Adds the values recorded by another histogram.
+     * @param other the histogram to add.
+     */
+    public void add(final LatencyHistogram other)
+    {
+        for(int i=0;i<SIZE;i++) counts[i] += other.counts[i];
+        count += other.count;
+        total += other.total;
+        if (other.max > max) max = other.max;
+    }
+
+    /**
+     * @return the number of recorded values.
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the largest recorded value.
+     */
+    public long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * @return the mean of the recorded values, 0 when empty.
+     */
+    public double getMean()
+    {
+        return count == 0 ? 0 : (double)total / count;
+    }
+
+    /**
+     * Returns the value at a percentile, the highest
+     * value of the bucket that contains it.
+     * @param percentile from 0 to 100.
+     * @return the value, 0 when empty.
+     */
+    public long getValueAtPercentile(final double percentile)
+    {
+        if (count == 0) return 0;
+        final long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int i=0;i<SIZE;i++)
+        {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestValueOf(i), max);
+        }
+        return max;
+    }
+
+    private static int indexOf(final long value)
+    {
+        if (value < LINEAR) return (int)value;
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return LINEAR + (shift - 1) * SUB_COUNT + (int)(value >>> shift) - SUB_COUNT;
+    }
+
+    private static long highestValueOf(final int index)
+    {
+        if (index < LINEAR) return index;
+        final int shift = (index - LINEAR) / SUB_COUNT + 1;
+        final long sub = (index - LINEAR) % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,364 @@
+package org.apache.commons.jxpath.jaxp.loadtest;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory;
+
+/**
+ * Multithreaded load test of {@link JXPathXPathFactory}: runs a
+ * weighted mix of the {@link Operation}s across a number of threads
+ * for a fixed duration after a warmup and reports, for each
+ * operation, latency percentiles, allocated bytes measured with
+ * the {@link ThreadMXBean} of the virtual machine, and throughput,
+ * plus the garbage collections of the run.
+ * <pre>
+ * java -jar target/loadtest.jar -threads 8 -duration 60 \
+ *      -mix compile=1,evaluate=4,xpath=4,inputsource=1 \
+ *      -size medium -save baseline.properties
+ * java -jar target/loadtest.jar -threads 8 -duration 60 \
+ *      -mix compile=1,evaluate=4,xpath=4,inputsource=1 \
+ *      -size medium -compare baseline.properties -threshold 10
+ * </pre>
+ * <p>Options are:
+ * <ul>
+ * <li><code>-threads</code>: number of threads, default the processors;</li>
+ * <li><code>-duration</code>, <code>-warmup</code>: seconds measured and
+ * seconds of warmup before, default 30 and 5;</li>
+ * <li><code>-mix</code>: weights of the operations, default
+ * <code>compile=1,evaluate=4,xpath=4,inputsource=1</code>;</li>
+ * <li><code>-size</code>: <code>small</code>, <code>medium</code> or
+ * <code>large</code>, see {@link Workload}, default small;</li>
+ * <li><code>-impl</code>: <code>jxpath</code> or <code>jdk</code>
+ * for the factory of the JDK, default jxpath;</li>
+ * <li><code>-feature</code>: <code>name=true|false</code>, sets a
+ * feature of the factory, the name is the last part of
+ * the URI, like <code>compact-document</code>, repeatable;</li>
+ * <li><code>-alloc</code>: <code>false</code> to not measure the
+ * allocations, that costs a call to the {@link ThreadMXBean} before
+ * and after each operation, outside the measured latency;</li>
+ * <li><code>-save</code>: file where to save the results as a baseline;</li>
+ * <li><code>-compare</code>: baseline to compare with, the exit
+ * status is 1 when there are regressions;</li>
+ * <li><code>-threshold</code>: change in percent tolerated by
+ * the comparison, default 10.</li>
+ * </ul>
+ * @author Michele Vivoda
+ */
+public final class LoadTest
+{
+    private static final String FEATURES = "http://commons.apache.org/jxpath/jaxp/features/";
+    private static final String JDK_FACTORY =
+        "com.sun.org.apache.xpath.internal.jaxp.XPathFactoryImpl";
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int duration = 30;
+    private int warmup = 5;
+    private String mix = "compile=1,evaluate=4,xpath=4,inputsource=1";
+    private String size = "small";
+    private String impl = "jxpath";
+    private final List<String> features = new ArrayList<String>();
+    private boolean alloc = true;
+    private File save;
+    private File compare;
+    private double threshold = 10;
+
+    private LoadTest()
+    {
+    }
+
+    /**
+     * Runs the load test.
+     * @param args the options, see the class comment.
+     * @throws Exception when fails.
+     */
+    public static void main(final String[] args) throws Exception
+    {
+        final LoadTest test = new LoadTest();
+        for(int i=0;i<args.length;i++)
+        {
+            final String arg = args[i];
+            if (i + 1 == args.length) usage("Missing value of " + arg);
+            final String value = args[++i];
+            if ("-threads".equals(arg)) test.threads = Integer.parseInt(value);
+            else if ("-duration".equals(arg)) test.duration = Integer.parseInt(value);
+            else if ("-warmup".equals(arg)) test.warmup = Integer.parseInt(value);
+            else if ("-mix".equals(arg)) test.mix = value;
+            else if ("-size".equals(arg)) test.size = value;
+            else if ("-impl".equals(arg)) test.impl = value;
+            else if ("-feature".equals(arg)) test.features.add(value);
+            else if ("-alloc".equals(arg)) test.alloc = Boolean.valueOf(value).booleanValue();
+            else if ("-save".equals(arg)) test.save = new File(value);
+            else if ("-compare".equals(arg)) test.compare = new File(value);
+            else if ("-threshold".equals(arg)) test.threshold = Double.parseDouble(value);
+            else usage("Unknown option " + arg);
+        }
+        if (test.run() > 0) System.exit(1);
+    }
+
+    private static void usage(final String message)
+    {
+        System.err.println(message);
+        System.err.println("Options: -threads n -duration s -warmup s"
+            + " -mix compile=1,evaluate=4,xpath=4,inputsource=1"
+            + " -size small|medium|large -impl jxpath|jdk -feature name=true|false"
+            + " -alloc true|false -save file -compare file -threshold percent");
+        System.exit(2);
+    }
+
+    /**
+     * Runs the threads and prints the report.
+     * @return the number of regressions from the baseline.
+     * @throws Exception when fails.
+     */
+    private int run() throws Exception
+    {
+        final String[] names = Operation.NAMES;
+        final int[] weights = weights(names);
+        final XPathFactory factory = newFactory();
+        final Workload workload = new Workload(size);
+        final ThreadMXBean mx = alloc ? allocations() : null;
+
+        final Worker[] workers = new Worker[threads];
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        for(int i=0;i<threads;i++)
+        {
+            final Operation[] operations = new Operation[names.length];
+            final Random random = new Random(i);
+            for(int j=0;j<names.length;j++)
+            {
+                if (weights[j] > 0) operations[j] = Operation.create(names[j], factory, workload, random);
+            }
+            workers[i] = new Worker(operations, weights, random, mx, ready, start);
+            workers[i].setName("loadtest-" + i);
+            workers[i].start();
+        }
+        ready.await();
+        System.out.println("Running " + threads + " threads, " + warmup + "s warmup, "
+            + duration + "s, mix " + mix + ", size " + size + ", " + impl
+            + (features.isEmpty() ? "" : " " + features)
+            + (mx == null ? ", allocations not measured" : ""));
+        final long now = System.nanoTime();
+        final long measure = now + warmup * 1000000000L;
+        final long end = measure + duration * 1000000000L;
+        for(int i=0;i<threads;i++) workers[i].schedule(measure, end);
+        start.countDown();
+        Thread.sleep(warmup * 1000L);
+        final long[] gc = gc();
+        for(int i=0;i<threads;i++) workers[i].join();
+        final long[] gcEnd = gc();
+
+        final Properties config = new Properties();
+        config.setProperty("impl", impl);
+        config.setProperty("size", size);
+        config.setProperty("threads", String.valueOf(threads));
+        config.setProperty("duration", String.valueOf(duration));
+        config.setProperty("mix", mix);
+        config.setProperty("features", features.toString());
+        final Report report = new Report(names, config);
+        for(int j=0;j<names.length;j++)
+        {
+            if (weights[j] == 0) continue;
+            final LatencyHistogram latencies = new LatencyHistogram();
+            long bytes = mx == null ? -1 : 0;
+            long errors = 0;
+            for(int i=0;i<threads;i++)
+            {
+                latencies.add(workers[i].latencies[j]);
+                if (mx != null) bytes += workers[i].bytes[j];
+                errors += workers[i].errors[j];
+            }
+            report.add(names[j], latencies, bytes, errors, duration);
+        }
+        report.put("gc.count", gcEnd[0] - gc[0]);
+        report.put("gc.time", gcEnd[1] - gc[1]);
+        report.print(System.out);
+        for(int i=0;i<threads;i++)
+        {
+            if (workers[i].failure != null)
+            {
+                System.out.println("First failure of " + workers[i].getName() + ":");
+                workers[i].failure.printStackTrace(System.out);
+                break;
+            }
+        }
+        if (save != null)
+        {
+            report.save(save);
+            System.out.println("Saved baseline " + save);
+        }
+        if (compare == null) return 0;
+        System.out.println("Compared with " + compare + ", threshold " + threshold + "%");
+        final int regressions = report.compare(Report.load(compare), threshold, System.out);
+        System.out.println(regressions + " regressions");
+        return regressions;
+    }
+
+    private int[] weights(final String[] names)
+    {
+        final int[] weights = new int[names.length];
+        final String[] parts = mix.split(",");
+        for(int i=0;i<parts.length;i++)
+        {
+            final int eq = parts[i].indexOf('=');
+            final String name = (eq < 0 ? parts[i] : parts[i].substring(0, eq)).trim();
+            final int weight = eq < 0 ? 1 : Integer.parseInt(parts[i].substring(eq + 1).trim());
+            int j = 0;
+            while(j < names.length && !names[j].equals(name)) j++;
+            if (j == names.length) throw new IllegalArgumentException("Unknown operation:" + name);
+            weights[j] = weight;
+        }
+        return weights;
+    }
+
+    private XPathFactory newFactory() throws Exception
+    {
+        final XPathFactory factory;
+        if ("jxpath".equals(impl)) factory = new JXPathXPathFactory();
+        else if ("jdk".equals(impl))
+        {
+            factory = XPathFactory.newInstance(XPathFactory.DEFAULT_OBJECT_MODEL_URI,
+                JDK_FACTORY, LoadTest.class.getClassLoader());
+        }
+        else throw new IllegalArgumentException("Unknown implementation:" + impl);
+        for(final String feature : features)
+        {
+            final int eq = feature.indexOf('=');
+            final String name = eq < 0 ? feature : feature.substring(0, eq);
+            final boolean value = eq < 0 || Boolean.valueOf(feature.substring(eq + 1)).booleanValue();
+            factory.setFeature(name.indexOf(':') < 0 ? FEATURES + name : name, value);
+        }
+        return factory;
+    }
+
+    /**
+     * Returns the bean measuring the bytes allocated by
+     * each thread, when supported by the virtual machine.
+     */
+    private static ThreadMXBean allocations()
+    {
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) return null;
+        final com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) mx;
+        if (!sun.isThreadAllocatedMemorySupported()) return null;
+        if (!sun.isThreadAllocatedMemoryEnabled()) sun.setThreadAllocatedMemoryEnabled(true);
+        return mx;
+    }
+
+    /**
+     * @return the collections and the milliseconds
+     * spent collecting of all the collectors.
+     */
+    private static long[] gc()
+    {
+        final long[] gc = new long[2];
+        for(final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            gc[0] += Math.max(0, bean.getCollectionCount());
+            gc[1] += Math.max(0, bean.getCollectionTime());
+        }
+        return gc;
+    }
+
+    /**
+     * Runs the operations in its own histograms
+     * and counters, read after it ends.
+     */
+    private static final class Worker extends Thread
+    {
+        private final Operation[] operations;
+        private final int[] cumulative;
+        private final Random random;
+        private final com.sun.management.ThreadMXBean mx;
+        private final CountDownLatch ready;
+        private final CountDownLatch start;
+        private long measure;
+        private long end;
+        final LatencyHistogram[] latencies;
+        final long[] bytes;
+        final long[] errors;
+        Throwable failure;
+        /**
+         * Consumes the results so they are not optimized away.
+         */
+        int sink;
+
+        Worker(final Operation[] operations, final int[] weights, final Random random,
+            final ThreadMXBean mx, final CountDownLatch ready, final CountDownLatch start)
+        {
+            this.operations = operations;
+            this.random = random;
+            this.mx = (com.sun.management.ThreadMXBean) mx;
+            this.ready = ready;
+            this.start = start;
+            cumulative = new int[weights.length];
+            int total = 0;
+            for(int i=0;i<weights.length;i++) cumulative[i] = total += weights[i];
+            latencies = new LatencyHistogram[weights.length];
+            for(int i=0;i<weights.length;i++) latencies[i] = new LatencyHistogram();
+            bytes = new long[weights.length];
+            errors = new long[weights.length];
+        }
+
+        /**
+         * Sets the start of the measurement and the end,
+         * before the start of the run.
+         */
+        void schedule(final long measure, final long end)
+        {
+            this.measure = measure;
+            this.end = end;
+        }
+
+        public void run()
+        {
+            ready.countDown();
+            try
+            {
+                start.await();
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+            final int total = cumulative[cumulative.length - 1];
+            final long id = getId();
+            long now = System.nanoTime();
+            while(now < end)
+            {
+                final int pick = random.nextInt(total);
+                int i = 0;
+                while(cumulative[i] <= pick) i++;
+                final boolean measured = now >= measure;
+                final long allocated = measured && mx != null ? mx.getThreadAllocatedBytes(id) : 0;
+                final long begin = System.nanoTime();
+                try
+                {
+                    final Object result = operations[i].run();
+                    now = System.nanoTime();
+                    if (result != null) sink += result.hashCode();
+                    if (!measured) continue;
+                    latencies[i].record(now - begin);
+                    if (mx != null) bytes[i] += mx.getThreadAllocatedBytes(id) - allocated;
+                }
+                catch(Exception e)
+                {
+                    now = System.nanoTime();
+                    if (!measured) continue;
+                    errors[i]++;
+                    if (failure == null) failure = e;
+                }
+            }
+        }
+    }
+}
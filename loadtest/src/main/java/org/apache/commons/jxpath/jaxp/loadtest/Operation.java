@@ -0,0 +1,151 @@
+package org.apache.commons.jxpath.jaxp.loadtest;
+
+import java.util.Random;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+
+/**
+ * An operation of the load test, instances are created
+ * for each thread from the shared factory and workload:
+ * <ul>
+ * <li><code>compile</code>: {@link XPath#compile(String)},
+ * that always parses the expression;</li>
+ * <li><code>evaluate</code>: a compiled expression evaluated
+ * over the parsed document of the thread;</li>
+ * <li><code>xpath</code>: the string evaluation of {@link XPath}
+ * over the document of the thread, that uses the expression
+ * cache shared by the factory;</li>
+ * <li><code>inputsource</code>: a compiled expression evaluated
+ * over an {@link org.xml.sax.InputSource}, that parses the
+ * document for each evaluation.</li>
+ * </ul>
+ * @author Michele Vivoda
+ */
+abstract class Operation
+{
+    static final String COMPILE = "compile";
+    static final String EVALUATE = "evaluate";
+    static final String XPATH = "xpath";
+    static final String INPUTSOURCE = "inputsource";
+
+    static final String[] NAMES = {COMPILE, EVALUATE, XPATH, INPUTSOURCE};
+
+    protected final Random random;
+
+    Operation(final Random random)
+    {
+        this.random = random;
+    }
+
+    /**
+     * Runs the operation once with the next expression.
+     * @return the result, to be consumed by the caller.
+     * @throws Exception when fails.
+     */
+    abstract Object run() throws Exception;
+
+    /**
+     * @return the index of the next expression
+     * of the {@link Workload}.
+     */
+    protected final int next()
+    {
+        return random.nextInt(Workload.EXPRESSIONS.length);
+    }
+
+    /**
+     * Creates an operation for a thread.
+     * @param name one of {@link #NAMES}.
+     * @param factory the shared factory.
+     * @param workload the shared workload.
+     * @param random the random of the thread.
+     * @return the operation.
+     * @throws Exception when fails to prepare it.
+     */
+    static Operation create(final String name, final XPathFactory factory,
+        final Workload workload, final Random random) throws Exception
+    {
+        if (COMPILE.equals(name)) return new Compile(factory.newXPath(), random);
+        if (EVALUATE.equals(name)) return new Evaluate(compile(factory.newXPath()),
+            workload.parse(), random);
+        if (XPATH.equals(name)) return new Evaluate(factory.newXPath(), workload.parse(), random);
+        if (INPUTSOURCE.equals(name)) return new Parse(compile(factory.newXPath()), workload, random);
+        throw new IllegalArgumentException("Unknown operation:" + name);
+    }
+
+    private static XPathExpression[] compile(final XPath xpath) throws Exception
+    {
+        final XPathExpression[] compiled = new XPathExpression[Workload.EXPRESSIONS.length];
+        for(int i=0;i<compiled.length;i++) compiled[i] = xpath.compile(Workload.EXPRESSIONS[i]);
+        return compiled;
+    }
+
+    private static final class Compile extends Operation
+    {
+        private final XPath xpath;
+
+        Compile(final XPath xpath, final Random random)
+        {
+            super(random);
+            this.xpath = xpath;
+        }
+        Object run() throws Exception
+        {
+            return xpath.compile(Workload.EXPRESSIONS[next()]);
+        }
+    }
+
+    /**
+     * Evaluates the compiled expressions, or the
+     * string expressions when they are null.
+     */
+    private static final class Evaluate extends Operation
+    {
+        private final XPath xpath;
+        private final XPathExpression[] compiled;
+        private final Document document;
+
+        Evaluate(final XPathExpression[] compiled, final Document document, final Random random)
+        {
+            super(random);
+            this.xpath = null;
+            this.compiled = compiled;
+            this.document = document;
+        }
+        Evaluate(final XPath xpath, final Document document, final Random random)
+        {
+            super(random);
+            this.xpath = xpath;
+            this.compiled = null;
+            this.document = document;
+        }
+        Object run() throws Exception
+        {
+            final int i = next();
+            if (compiled!=null) return compiled[i].evaluate(document, Workload.RETURN_TYPES[i]);
+            return xpath.evaluate(Workload.EXPRESSIONS[i], document, Workload.RETURN_TYPES[i]);
+        }
+    }
+
+    private static final class Parse extends Operation
+    {
+        private final XPathExpression[] compiled;
+        private final Workload workload;
+
+        Parse(final XPathExpression[] compiled, final Workload workload, final Random random)
+        {
+            super(random);
+            this.compiled = compiled;
+            this.workload = workload;
+        }
+        Object run() throws Exception
+        {
+            final int i = next();
+            return compiled[i].evaluate(workload.newSource(), Workload.RETURN_TYPES[i]);
+        }
+    }
+}
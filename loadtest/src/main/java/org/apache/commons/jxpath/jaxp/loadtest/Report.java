@@ -0,0 +1,213 @@
+package org.apache.commons.jxpath.jaxp.loadtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Properties;
+
+/**
+ * Results of a load test run for each operation: latency
+ * percentiles, allocated bytes and throughput, saved as a
+ * properties file to be compared with later runs.
+ * <p>Latencies are in microseconds, throughput in operations
+ * per second, allocations in bytes per operation, -1 when
+ * the virtual machine does not measure them.
+ * @author Michele Vivoda
+ */
+final class Report
+{
+    /**
+     * Metrics compared with a baseline, the
+     * larger value is worse except for throughput.
+     */
+    private static final String[] COMPARED = {"throughput", "p50", "p99", "p999", "bytes"};
+
+    private final Properties values = new Properties();
+    private final String[] operations;
+
+    /**
+     * Creates a report.
+     * @param operations the names of the operations, in order.
+     * @param config the configuration of the run, saved and
+     * compared as is.
+     */
+    Report(final String[] operations, final Properties config)
+    {
+        this.operations = operations;
+        values.putAll(config);
+    }
+
+    /**
+     * Adds the results of an operation.
+     * @param name the operation.
+     * @param latencies the merged latencies in nanoseconds.
+     * @param bytes the allocated bytes, negative when unknown.
+     * @param errors the failed calls.
+     * @param seconds the measured duration.
+     */
+    void add(final String name, final LatencyHistogram latencies,
+        final long bytes, final long errors, final double seconds)
+    {
+        final long count = latencies.getCount();
+        put(name, "count", count);
+        put(name, "errors", errors);
+        put(name, "throughput", count / seconds);
+        put(name, "p50", micros(latencies.getValueAtPercentile(50)));
+        put(name, "p99", micros(latencies.getValueAtPercentile(99)));
+        put(name, "p999", micros(latencies.getValueAtPercentile(99.9)));
+        put(name, "max", micros(latencies.getMax()));
+        put(name, "bytes", bytes < 0 || count == 0 ? -1 : bytes / count);
+    }
+
+    /**
+     * Adds a value of the whole run.
+     * @param key the key.
+     * @param value the value.
+     */
+    void put(final String key, final double value)
+    {
+        values.setProperty(key, format(value));
+    }
+
+    /**
+     * Prints the report as a table.
+     * @param out the stream.
+     */
+    void print(final PrintStream out)
+    {
+        out.println(pad("operation", 12) + pad("count", 10) + pad("errors", 8)
+            + pad("ops/s", 12) + pad("p50 us", 10) + pad("p99 us", 10)
+            + pad("p999 us", 10) + pad("max us", 10) + pad("bytes/op", 10));
+        for(int i=0;i<operations.length;i++)
+        {
+            final String name = operations[i];
+            if (get(name, "count") == null) continue;
+            out.println(pad(name, 12) + pad(get(name, "count"), 10)
+                + pad(get(name, "errors"), 8) + pad(get(name, "throughput"), 12)
+                + pad(get(name, "p50"), 10) + pad(get(name, "p99"), 10)
+                + pad(get(name, "p999"), 10) + pad(get(name, "max"), 10)
+                + pad(get(name, "bytes"), 10));
+        }
+        out.println("gc: " + values.getProperty("gc.count") + " collections, "
+            + values.getProperty("gc.time") + " ms");
+    }
+
+    /**
+     * Saves the report as a baseline.
+     * @param file the file.
+     * @throws IOException when fails.
+     */
+    void save(final File file) throws IOException
+    {
+        final OutputStream out = new FileOutputStream(file);
+        try
+        {
+            values.store(out, "JXPath JAXP load test baseline");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads a baseline.
+     * @param file the file saved by {@link #save(File)}.
+     * @return the values.
+     * @throws IOException when fails.
+     */
+    static Properties load(final File file) throws IOException
+    {
+        final Properties baseline = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try
+        {
+            baseline.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        return baseline;
+    }
+
+    /**
+     * Prints the changes from a baseline and marks as
+     * regressions the ones worse than a threshold.
+     * @param baseline the baseline.
+     * @param threshold the tolerated change in percent.
+     * @param out the stream.
+     * @return the number of regressions.
+     */
+    int compare(final Properties baseline, final double threshold, final PrintStream out)
+    {
+        final String[] config = {"impl", "size", "threads", "mix", "features"};
+        for(int i=0;i<config.length;i++)
+        {
+            final String was = baseline.getProperty(config[i]);
+            final String is = values.getProperty(config[i]);
+            if (was!=null && !was.equals(is))
+            {
+                out.println("warning: " + config[i] + " was " + was + ", is " + is);
+            }
+        }
+        int regressions = 0;
+        for(int i=0;i<operations.length;i++)
+        {
+            final String name = operations[i];
+            if (get(name, "count") == null) continue;
+            for(int j=0;j<COMPARED.length;j++)
+            {
+                final String key = name + "." + COMPARED[j];
+                final String was = baseline.getProperty(key);
+                if (was == null) continue;
+                final double before = Double.parseDouble(was);
+                final double after = Double.parseDouble(values.getProperty(key));
+                if (before <= 0 || after < 0) continue;
+                final double change = (after - before) * 100 / before;
+                final boolean worse = "throughput".equals(COMPARED[j])
+                    ? change < -threshold : change > threshold;
+                if (worse) regressions++;
+                out.println(pad(key, 24) + pad(was, 12) + pad(format(after), 12)
+                    + pad((change > 0 ? "+" : "") + format(change) + "%", 10)
+                    + (worse ? "REGRESSION" : ""));
+            }
+        }
+        return regressions;
+    }
+
+    private void put(final String name, final String metric, final double value)
+    {
+        put(name + "." + metric, value);
+    }
+
+    private String get(final String name, final String metric)
+    {
+        return values.getProperty(name + "." + metric);
+    }
+
+    private static double micros(final long nanos)
+    {
+        return nanos / 1000.0;
+    }
+
+    private static String format(final double value)
+    {
+        if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE)
+        {
+            return Long.toString((long)value);
+        }
+        return Double.toString(Math.round(value * 10) / 10.0);
+    }
+
+    private static String pad(final String s, final int width)
+    {
+        final StringBuilder buf = new StringBuilder(s);
+        while(buf.length() < width) buf.append(' ');
+        return buf.append(' ').toString();
+    }
+}
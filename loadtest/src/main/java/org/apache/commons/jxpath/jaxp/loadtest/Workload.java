@@ -0,0 +1,114 @@
+package org.apache.commons.jxpath.jaxp.loadtest;
+
+import java.io.StringReader;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathConstants;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * The documents and the expressions of the load test.
+ * <p>Documents are the orders of the benchmarks, sizes are
+ * <code>small</code> (10 orders), <code>medium</code>
+ * (1000 orders) and <code>large</code> (50000 orders);
+ * each expression has the return type it is evaluated with.
+ * @author Michele Vivoda
+ */
+final class Workload
+{
+    static final String[] EXPRESSIONS = {
+        "/orders/order[3]/item[2]",
+        "//order[@region='r1']",
+        "/orders/order[@id='5']/note",
+        "count(//item[@qty > 2])",
+        "boolean(//order[@customer='c7'])",
+        "sum(/orders/order[position() < 5]/item/@price)"};
+
+    static final QName[] RETURN_TYPES = {
+        XPathConstants.NODE,
+        XPathConstants.NODESET,
+        XPathConstants.STRING,
+        XPathConstants.NUMBER,
+        XPathConstants.BOOLEAN,
+        XPathConstants.NUMBER};
+
+    private static final int CUSTOMERS = 50;
+    private static final int REGIONS = 4;
+    private static final int ITEMS = 3;
+
+    private final String xml;
+
+    /**
+     * Creates a workload.
+     * @param size the size of the document.
+     */
+    Workload(final String size)
+    {
+        this.xml = xml(orders(size));
+    }
+
+    /**
+     * @return the XML text of the document.
+     */
+    String getXml()
+    {
+        return xml;
+    }
+
+    /**
+     * @return a new source of the document.
+     */
+    InputSource newSource()
+    {
+        return new InputSource(new StringReader(xml));
+    }
+
+    /**
+     * Parses the document with the JDK parser, each
+     * thread evaluates its own document since the DOM
+     * is not thread safe, not even for reading.
+     * @return the document.
+     * @throws Exception when fails.
+     */
+    Document parse() throws Exception
+    {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setCoalescing(true);
+        return factory.newDocumentBuilder().parse(newSource());
+    }
+
+    private static int orders(final String size)
+    {
+        if ("small".equals(size)) return 10;
+        if ("medium".equals(size)) return 1000;
+        if ("large".equals(size)) return 50000;
+        throw new IllegalArgumentException("Unknown size:" + size);
+    }
+
+    private static String xml(final int orders)
+    {
+        final StringBuilder buf = new StringBuilder(orders * 200);
+        buf.append("<orders>");
+        for(int i=1;i<=orders;i++)
+        {
+            buf.append("<order id=\"").append(i)
+                .append("\" customer=\"c").append(i % CUSTOMERS)
+                .append("\" region=\"r").append(i % REGIONS).append("\">");
+            for(int j=1;j<=ITEMS;j++)
+            {
+                buf.append("<item sku=\"s").append(j)
+                    .append("\" qty=\"").append((i + j) % 5 + 1)
+                    .append("\" price=\"").append(j * 10 + 0.5)
+                    .append("\"/>");
+            }
+            buf.append("<note>Order ").append(i).append("</note>");
+            buf.append("</order>");
+        }
+        buf.append("</orders>");
+        return buf.toString();
+    }
+}
@@ -0,0 +1,494 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Evaluates expressions over {@link InputSource}s without
+ * blocking the caller, the parsing and the evaluation of each
+ * input run as two tasks of an {@link Executor}, so that
+ * reading and parsing an input overlap with the evaluation
+ * of the inputs already parsed.
+ * <p>Any executor can be used, on recent JVMs also an executor
+ * that starts a virtual thread per task. The outcome is read
+ * from the returned {@link Future} or received by an
+ * {@link EvaluationCallback}.
+ * <pre>
+ * AsyncEvaluator async = new AsyncEvaluator(executor, 64, 8);
+ * Future total = async.evaluate(expr, new InputSource(in), XPathConstants.NUMBER);
+ * </pre>
+ * <p>With limits, at most <code>maxParsing</code> inputs are
+ * being parsed or parsed and waiting for the evaluation, and at
+ * most <code>maxEvaluating</code> are being evaluated: parsed
+ * documents wait when the evaluations are behind and
+ * {@link #evaluate(XPathExpression, InputSource, QName)} waits when
+ * the parsing is behind, so that the memory held by the
+ * documents stays bounded. Node set results are read fully
+ * by the evaluation task, within the evaluation limit.
+ * <p>Cancelling a future stops the parsing of its input: the
+ * streams of the input source are closed and further reads fail,
+ * and with <code>mayInterruptIfRunning</code> the parsing thread
+ * is interrupted. An input source with only a system id is
+ * opened by the parser, it is not parsed when cancelled before
+ * the parsing starts, otherwise only the interrupt can stop it.
+ * An evaluation already started runs to the end.
+ * <p>Inputs are parsed into documents as in
+ * {@link XPathExpression#evaluate(InputSource, QName)}, also through
+ * the document cache when enabled, the streaming evaluation
+ * is not used. The expressions must be safe
+ * to share between threads, as the expressions compiled by
+ * {@link JXPathXPathFactory} are, and so must be their resolvers.
+ * <p>Instances are thread safe.
+ * @author Michele Vivoda
+ */
+public final class AsyncEvaluator
+{
+    private final Executor executor;
+    /**
+     * Permits of the inputs being parsed or waiting
+     * for the evaluation, null when unbounded.
+     */
+    private final Semaphore parsing;
+    /**
+     * Permits of the evaluations, null when unbounded.
+     */
+    private final Semaphore evaluating;
+    /**
+     * Parsed inputs waiting for an evaluation permit.
+     */
+    private final ConcurrentLinkedQueue parsed = new ConcurrentLinkedQueue();
+
+    /**
+     * Creates an evaluator without limits.
+     * @param executor runs the parsing and the evaluations.
+     */
+    public AsyncEvaluator(final Executor executor)
+    {
+        this(executor, 0, 0);
+    }
+
+    /**
+     * Creates an evaluator.
+     * @param executor runs the parsing and the evaluations.
+     * @param maxParsing the maximum number of inputs being parsed or
+     * waiting for the evaluation, zero for no limit.
+     * @param maxEvaluating the maximum number of evaluations,
+     * zero for no limit.
+     */
+    public AsyncEvaluator(final Executor executor, final int maxParsing,
+        final int maxEvaluating)
+    {
+        if (executor==null) throw new NullPointerException("Null executor");
+        if (maxParsing<0) throw new IllegalArgumentException("Parsing:" + maxParsing);
+        if (maxEvaluating<0) throw new IllegalArgumentException("Evaluating:" + maxEvaluating);
+        this.executor = executor;
+        this.parsing = maxParsing==0 ? null : new Semaphore(maxParsing);
+        this.evaluating = maxEvaluating==0 ? null : new Semaphore(maxEvaluating);
+    }
+
+    /**
+     * Starts an evaluation.
+     * @param expression the expression.
+     * @param source the input.
+     * @param returnType the return type.
+     * @return the future result.
+     * @throws InterruptedException when interrupted while
+     * waiting for the parsing limit.
+     */
+    public Future evaluate(final XPathExpression expression, final InputSource source,
+        final QName returnType) throws InterruptedException
+    {
+        return evaluate(expression, source, returnType, null);
+    }
+
+    /**
+     * Starts an evaluation, waiting while the limit
+     * of inputs being parsed is reached.
+     * <p>When the executor rejects a task the
+     * evaluation fails with the rejection.
+     * @param expression the expression.
+     * @param source the input.
+     * @param returnType the return type.
+     * @param callback receives the outcome, null allowed.
+     * @return the future result.
+     * @throws InterruptedException when interrupted while
+     * waiting for the parsing limit.
+     */
+    public Future evaluate(final XPathExpression expression, final InputSource source,
+        final QName returnType, final EvaluationCallback callback)
+        throws InterruptedException
+    {
+        if (expression==null) throw new NullPointerException("Null expression");
+        if (source==null) throw new NullPointerException("Null source");
+        final Evaluation evaluation = new Evaluation(expression, source, returnType, callback);
+        if (parsing!=null) parsing.acquire();
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    parse(evaluation);
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
+        {
+            if (parsing!=null) parsing.release();
+            evaluation.failed(e);
+        }
+        return evaluation;
+    }
+
+    /**
+     * Returns the number of parsed inputs
+     * waiting for the evaluation.
+     * @return the count.
+     */
+    public int getWaitingCount()
+    {
+        return parsed.size();
+    }
+
+    private void parse(final Evaluation evaluation)
+    {
+        Document document = null;
+        try
+        {
+            document = evaluation.parse();
+        }
+        catch(Throwable t)
+        {
+            evaluation.failed(t);
+        }
+        if (document==null)
+        {
+            if (parsing!=null) parsing.release();
+            return;
+        }
+        evaluation.document = document;
+        parsed.add(evaluation);
+        dispatch();
+    }
+
+    /**
+     * Starts the evaluations of the parsed inputs while there are
+     * permits, called when an input is parsed and when an evaluation
+     * ends, so that no parsed input is left waiting.
+     */
+    private void dispatch()
+    {
+        while(!parsed.isEmpty())
+        {
+            if (evaluating!=null && !evaluating.tryAcquire()) return;
+            final Evaluation evaluation = (Evaluation) parsed.poll();
+            if (evaluation==null)
+            {
+                if (evaluating!=null) evaluating.release();
+                return;
+            }
+            if (parsing!=null) parsing.release();
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        evaluate(evaluation);
+                    }
+                });
+            }
+            catch(RejectedExecutionException e)
+            {
+                evaluation.document = null;
+                if (evaluating!=null) evaluating.release();
+                evaluation.failed(e);
+            }
+        }
+    }
+
+    private void evaluate(final Evaluation evaluation)
+    {
+        try
+        {
+            if (!evaluation.isDone())
+            {
+                final Object result = evaluation.expression.evaluate(
+                    evaluation.document, evaluation.returnType);
+                // lazy node lists are read here and not by the consumer
+                if (result instanceof NodeList) ((NodeList)result).getLength();
+                evaluation.completed(result);
+            }
+        }
+        catch(LazyNodeList.EvaluationException e)
+        {
+            evaluation.failed(e.getXPathException());
+        }
+        catch(Throwable t)
+        {
+            evaluation.failed(t);
+        }
+        finally
+        {
+            evaluation.document = null;
+            if (evaluating!=null) evaluating.release();
+        }
+        dispatch();
+    }
+
+    /**
+     * Parses an input as the evaluations of an expression do.
+     */
+    static Document parse(final XPathExpression expression, final InputSource source)
+        throws XPathExpressionException
+    {
+        if (expression instanceof JXPathXPathFactory.XPathExpressionImpl)
+        {
+            return ((JXPathXPathFactory.XPathExpressionImpl)expression).parse(source);
+        }
+        return JXPathXPathFactory.getDocument(source, false);
+    }
+
+    /**
+     * The future of an evaluation, completed by
+     * the tasks of the evaluator.
+     */
+    private static final class Evaluation extends FutureTask
+    {
+        private static final Callable NONE = new Callable()
+        {
+            public Object call()
+            {
+                return null;
+            }
+        };
+
+        final XPathExpression expression;
+        private final InputSource source;
+        final QName returnType;
+        private final EvaluationCallback callback;
+        volatile Document document;
+        /**
+         * Thread parsing the input and the stream read by
+         * the parser, guarded by this.
+         */
+        private Thread parser;
+        private Object stream;
+        private boolean interrupted;
+
+        Evaluation(final XPathExpression expression, final InputSource source,
+            final QName returnType, final EvaluationCallback callback)
+        {
+            super(NONE);
+            this.expression = expression;
+            this.source = source;
+            this.returnType = returnType;
+            this.callback = callback;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.FutureTask#run()
+         */
+        public void run()
+        {
+            // completed by the evaluator
+        }
+
+        /**
+         * Parses the input, reading its streams through streams
+         * that fail once the evaluation is cancelled.
+         * <p>An input with only a system id is parsed as it is,
+         * so that it is resolved as by the evaluation and
+         * found in the document cache.
+         * @return the document, null when cancelled.
+         */
+        Document parse() throws XPathExpressionException
+        {
+            final InputSource input;
+            if (source.getCharacterStream()==null && source.getByteStream()==null)
+            {
+                input = source;
+            }
+            else
+            {
+                input = new InputSource();
+                input.setSystemId(source.getSystemId());
+                input.setPublicId(source.getPublicId());
+                input.setEncoding(source.getEncoding());
+                if (source.getCharacterStream()!=null)
+                {
+                    input.setCharacterStream(new CancellableReader(source.getCharacterStream()));
+                }
+                else
+                {
+                    input.setByteStream(new CancellableInputStream(source.getByteStream()));
+                }
+            }
+            synchronized(this)
+            {
+                if (isDone()) return null;
+                parser = Thread.currentThread();
+                stream = input.getCharacterStream()!=null
+                    ? (Object) input.getCharacterStream() : input.getByteStream();
+            }
+            try
+            {
+                return AsyncEvaluator.parse(expression, input);
+            }
+            finally
+            {
+                synchronized(this)
+                {
+                    parser = null;
+                    stream = null;
+                    // the interrupt was for the parsing only
+                    if (interrupted) Thread.interrupted();
+                }
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.FutureTask#cancel(boolean)
+         */
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            if (!super.cancel(false)) return false;
+            synchronized(this)
+            {
+                if (stream!=null)
+                {
+                    try
+                    {
+                        if (stream instanceof Reader) ((Reader)stream).close();
+                        else ((InputStream)stream).close();
+                    }
+                    catch(IOException e)
+                    {
+                        // the next read fails anyway
+                    }
+                }
+                if (mayInterruptIfRunning && parser!=null)
+                {
+                    interrupted = true;
+                    parser.interrupt();
+                }
+            }
+            return true;
+        }
+
+        void completed(final Object result)
+        {
+            set(result);
+        }
+
+        void failed(final Throwable error)
+        {
+            setException(error);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.FutureTask#done()
+         */
+        protected void done()
+        {
+            document = null;
+            if (callback==null) return;
+            try
+            {
+                callback.completed(source, get());
+            }
+            catch(ExecutionException e)
+            {
+                callback.failed(source, e.getCause());
+            }
+            catch(CancellationException e)
+            {
+                callback.failed(source, e);
+            }
+            catch(InterruptedException e)
+            {
+                // get() does not wait once done
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void checkCancelled() throws IOException
+        {
+            if (isCancelled()) throw new InterruptedIOException("Evaluation cancelled");
+        }
+
+        /**
+         * Byte stream that fails once the evaluation is cancelled.
+         */
+        private final class CancellableInputStream extends FilterInputStream
+        {
+            CancellableInputStream(final InputStream in)
+            {
+                super(in);
+            }
+
+            public int read() throws IOException
+            {
+                checkCancelled();
+                return super.read();
+            }
+
+            public int read(final byte[] b, final int off, final int len) throws IOException
+            {
+                checkCancelled();
+                final int read = super.read(b, off, len);
+                checkCancelled();
+                return read;
+            }
+        }
+
+        /**
+         * Character stream that fails once the evaluation is cancelled.
+         */
+        private final class CancellableReader extends FilterReader
+        {
+            CancellableReader(final Reader in)
+            {
+                super(in);
+            }
+
+            public int read() throws IOException
+            {
+                checkCancelled();
+                return super.read();
+            }
+
+            public int read(final char[] cbuf, final int off, final int len) throws IOException
+            {
+                checkCancelled();
+                final int read = super.read(cbuf, off, len);
+                checkCancelled();
+                return read;
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.Locale;
+
+import org.apache.commons.jxpath.JXPathContext;
+import org.apache.commons.jxpath.JXPathException;
+import org.apache.commons.jxpath.ri.QName;
+import org.apache.commons.jxpath.ri.model.NodePointer;
+import org.apache.commons.jxpath.ri.model.NodePointerFactory;
+import org.apache.commons.jxpath.ri.model.VariablePointerFactory;
+import org.apache.commons.jxpath.ri.model.beans.BeanPointer;
+import org.apache.commons.jxpath.ri.model.beans.BeanPropertyPointer;
+import org.apache.commons.jxpath.util.ValueUtils;
+
+/**
+ * Pointer to a Java bean navigated with the tables
+ * of {@link BeanAccessors}, in place of the JXPath
+ * {@link BeanPointer} and its introspection.
+ * @author Michele Vivoda
+ */
+final class BeanAccessorPointer extends BeanPointer
+{
+    private static final long serialVersionUID = 1L;
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final BeanAccessors.Table table;
+    private final BeanAccessors accessors;
+
+    BeanAccessorPointer(final QName name, final Object bean,
+        final BeanAccessors.Table table, final BeanAccessors accessors, final Locale locale)
+    {
+        super(name, bean, table, locale);
+        this.table = table;
+        this.accessors = accessors;
+    }
+
+    BeanAccessorPointer(final NodePointer parent, final QName name, final Object bean,
+        final BeanAccessors.Table table, final BeanAccessors accessors)
+    {
+        super(parent, name, bean, table);
+        this.table = table;
+        this.accessors = accessors;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.beans.BeanPointer#getPropertyPointer()
+     */
+    public org.apache.commons.jxpath.ri.model.beans.PropertyPointer getPropertyPointer()
+    {
+        return new PropertyPointer(this, table, accessors);
+    }
+
+    /**
+     * Property of a bean read with the cached accessible method.
+     */
+    private static final class PropertyPointer extends BeanPropertyPointer
+    {
+        private static final long serialVersionUID = 1L;
+        private static final Object UNINITIALIZED = new Object();
+
+        private final BeanAccessors.Table table;
+        private final BeanAccessors accessors;
+        private String propertyName;
+        private Object baseValue = UNINITIALIZED;
+
+        PropertyPointer(final NodePointer parent, final BeanAccessors.Table table,
+            final BeanAccessors accessors)
+        {
+            super(parent, table);
+            this.table = table;
+            this.accessors = accessors;
+        }
+
+        public NodePointer getImmediateValuePointer()
+        {
+            final Object value = getImmediateNode();
+            if (value!=null)
+            {
+                // skips the factories known to decline the value
+                final BeanAccessors.Table valueTable = accessors.findBeanTable(value.getClass());
+                if (valueTable!=null)
+                {
+                    return new BeanAccessorPointer((NodePointer) clone(), getName(),
+                        value, valueTable, accessors);
+                }
+            }
+            return super.getImmediateValuePointer();
+        }
+
+        public int getPropertyCount()
+        {
+            return table.names.length;
+        }
+
+        public String[] getPropertyNames()
+        {
+            return table.names;
+        }
+
+        protected PropertyDescriptor[] getPropertyDescriptors()
+        {
+            return table.descriptors;
+        }
+
+        public void setPropertyName(final String propertyName)
+        {
+            super.setPropertyName(propertyName);
+            this.propertyName = propertyName;
+        }
+
+        public void setPropertyIndex(final int index)
+        {
+            super.setPropertyIndex(index);
+            propertyName = null;
+            baseValue = UNINITIALIZED;
+        }
+
+        public Object getBaseValue()
+        {
+            if (baseValue==UNINITIALIZED)
+            {
+                int index = getPropertyIndex();
+                if (index==UNSPECIFIED_PROPERTY) index = table.indexOf(propertyName);
+                if (index<0 || index>=table.readers.length) return null;
+                final Method reader = table.readers[index];
+                if (reader==null)
+                {
+                    // fails as JXPath
+                    baseValue = ValueUtils.getValue(getBean(), table.descriptors[index]);
+                }
+                else
+                {
+                    try
+                    {
+                        baseValue = reader.invoke(getBean(), NO_ARGS);
+                    }
+                    catch(Exception e)
+                    {
+                        final Object bean = getBean();
+                        throw new JXPathException("Cannot access property: "
+                            + (bean==null ? "null" : bean.getClass().getName())
+                            + "." + table.names[index], e);
+                    }
+                }
+            }
+            return baseValue;
+        }
+
+        public void setValue(final Object value)
+        {
+            super.setValue(value);
+            baseValue = UNINITIALIZED;
+        }
+
+        public NodePointer createPath(final JXPathContext context)
+        {
+            final NodePointer pointer = super.createPath(context);
+            baseValue = UNINITIALIZED;
+            return pointer;
+        }
+    }
+
+    /**
+     * Creates the pointers of the context beans wrapped by
+     * {@link BeanAccessors#wrap(Object)} and of the beans
+     * reached from them, ordered after the factories of the dynamic
+     * beans and before the factory of the JXPath bean pointers.
+     */
+    static final class Factory implements NodePointerFactory
+    {
+        public static final int ORDER = 850;
+
+        public int getOrder()
+        {
+            return ORDER;
+        }
+
+        public NodePointer createNodePointer(final QName name, final Object bean,
+            final Locale locale)
+        {
+            if (!(bean instanceof BeanAccessors.Root)) return null;
+            final BeanAccessors.Root root = (BeanAccessors.Root) bean;
+            final NodePointer pointer = NodePointer.newNodePointer(name, root.bean, locale);
+            if (pointer.getClass()!=BeanPointer.class) return pointer;
+            final BeanAccessors.Table table = root.accessors.getTable(root.bean.getClass());
+            if (table==null) return pointer;
+            table.bean = true;
+            return new BeanAccessorPointer(name, root.bean, table, root.accessors, locale);
+        }
+
+        public NodePointer createNodePointer(final NodePointer parent, final QName name,
+            final Object bean)
+        {
+            if (bean==null || bean instanceof BeanAccessors.Root
+                || bean instanceof VariablePointerFactory.VariableContextWrapper) return null;
+            for(NodePointer p=parent;p!=null;p=p.getImmediateParentPointer())
+            {
+                if (p instanceof BeanAccessorPointer)
+                {
+                    final BeanAccessors accessors = ((BeanAccessorPointer)p).accessors;
+                    final BeanAccessors.Table table = accessors.getTable(bean.getClass());
+                    if (table==null) return null;
+                    table.bean = true;
+                    return new BeanAccessorPointer(parent, name, bean, table, accessors);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.beans.PropertyDescriptor;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.jxpath.JXPathBeanInfo;
+import org.apache.commons.jxpath.JXPathIntrospector;
+import org.apache.commons.jxpath.ri.JXPathContextReferenceImpl;
+import org.apache.commons.jxpath.util.ValueUtils;
+import org.w3c.dom.Node;
+
+/**
+ * Bounded cache of the property tables used to evaluate
+ * over Java beans with the <code>http://commons.apache.org/jxpath</code>
+ * object model.
+ * <p>JXPath introspects the class of a bean for each pointer,
+ * copies its property descriptors for each property step, looks
+ * up an accessible read method at each read and asks each pointer
+ * factory for the pointer of each value; with the accessors
+ * a bean is navigated with a table built once per class, holding
+ * the sorted property names, the descriptors and the accessible
+ * read methods, and the values of the classes already known to be
+ * beans get their pointer directly. The descriptors are those of the
+ * {@link JXPathIntrospector}, so custom {@link JXPathBeanInfo}s
+ * are honoured, dynamic beans, maps, collections and DOM nodes
+ * are navigated as before.
+ * <p>The tables of the classes loaded by the class loader of this
+ * library, or by its parents, are kept until the cache is full, then
+ * the cache is cleared; those of the other classes, for example the
+ * classes of an application deployed in a container, are weakly keyed
+ * and softly referenced, but a table references its class, so they
+ * are dropped only under memory pressure or by
+ * {@link #clear(ClassLoader)}, that drops them at once. Note that
+ * the {@link JXPathIntrospector} keeps the bean info of every
+ * introspected class in a static cache of its own, so these tables
+ * do not make a class loader collectable while JXPath references it.
+ * <p>The accessors of a factory are returned by
+ * {@link JXPathXPathFactory#getBeanAccessors()}, the initial size
+ * is read from the system property {@link #SIZE_PROPERTY}, they can
+ * be disabled with the {@link JXPathXPathFactory#FEATURE_BEAN_ACCESSORS}
+ * feature.
+ * <p>Instances are thread safe.
+ * @author Michele Vivoda
+ */
+public final class BeanAccessors
+{
+    static
+    {
+        JXPathContextReferenceImpl.addNodePointerFactory(new BeanAccessorPointer.Factory());
+    }
+
+    /**
+     * Name of the system property with the default maximum
+     * number of cached classes, <code>512</code> when not set.
+     */
+    public static final String SIZE_PROPERTY =
+        "org.apache.commons.jxpath.jaxp.beanAccessorsSize";
+    private static final int DEFAULT_SIZE = 512;
+
+    /**
+     * Tables of the classes that cannot outlive this library.
+     */
+    private final Map tables = new ConcurrentHashMap();
+    /**
+     * Soft tables of the other classes.
+     */
+    private final Map foreign = new WeakHashMap();
+    private volatile int maxSize;
+    private long evictions;
+
+    /**
+     * Creates accessors with the size configured
+     * by the {@link #SIZE_PROPERTY} system property.
+     */
+    BeanAccessors()
+    {
+        this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE).intValue());
+    }
+
+    /**
+     * Creates accessors with the given size.
+     * @param maxSize the maximum number of classes.
+     */
+    BeanAccessors(final int maxSize)
+    {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the object used as context bean of an evaluation
+     * over an item, so that JXPath navigates it with these accessors.
+     * @param item the context item.
+     * @return the item itself when it is not a bean.
+     */
+    Object wrap(final Object item)
+    {
+        if (item==null || item instanceof Node || item instanceof Map
+            || item instanceof Collection || item.getClass().isArray()) return item;
+        return new Root(item, this);
+    }
+
+    /**
+     * Returns the cached table of a class whose instances are
+     * known to be navigated as beans.
+     * @param beanClass the class.
+     * @return the table or null.
+     */
+    Table findBeanTable(final Class beanClass)
+    {
+        Table table = (Table) tables.get(beanClass);
+        if (table==null && !isCacheSafe(beanClass.getClassLoader()))
+        {
+            synchronized(foreign)
+            {
+                final SoftReference ref = (SoftReference) foreign.get(beanClass);
+                table = ref==null ? null : (Table) ref.get();
+            }
+        }
+        return table!=null && table.bean ? table : null;
+    }
+
+    /**
+     * Returns the table of a class, building it when not cached.
+     * @param beanClass the class.
+     * @return the table, null for the dynamic classes.
+     */
+    Table getTable(final Class beanClass)
+    {
+        Table table = (Table) tables.get(beanClass);
+        if (table!=null) return table;
+        final boolean safe = isCacheSafe(beanClass.getClassLoader());
+        if (!safe)
+        {
+            synchronized(foreign)
+            {
+                final SoftReference ref = (SoftReference) foreign.get(beanClass);
+                table = ref==null ? null : (Table) ref.get();
+            }
+            if (table!=null) return table;
+        }
+        final JXPathBeanInfo info = JXPathIntrospector.getBeanInfo(beanClass);
+        if (info.isDynamic()) return null;
+        table = new Table(beanClass, info);
+        final int max = maxSize;
+        if (max==0) return table;
+        if (safe)
+        {
+            if (tables.size()>=max) evict(tables);
+            tables.put(beanClass, table);
+        }
+        else synchronized(foreign)
+        {
+            if (foreign.size()>=max) evict(foreign);
+            foreign.put(beanClass, new SoftReference(table));
+        }
+        return table;
+    }
+
+    private void evict(final Map map)
+    {
+        synchronized(this)
+        {
+            evictions += map.size();
+        }
+        map.clear();
+    }
+
+    /**
+     * Returns whether a class loader is the loader
+     * of this class or one of its parents.
+     */
+    private static boolean isCacheSafe(final ClassLoader loader)
+    {
+        if (loader==null) return true;
+        for(ClassLoader l=BeanAccessors.class.getClassLoader();l!=null;l=l.getParent())
+        {
+            if (l==loader) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of cached classes.
+     * @return the size.
+     */
+    public int size()
+    {
+        synchronized(foreign)
+        {
+            return tables.size() + foreign.size();
+        }
+    }
+
+    /**
+     * Returns the number of tables removed to respect the size.
+     * <p>There is no least recently used order: when full the
+     * cache is cleared, all the tables count as evicted and
+     * are built again when used.
+     * @return the eviction count.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /**
+     * Returns the maximum number of cached classes.
+     * @return the maximum size.
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of cached classes,
+     * the tables in excess are removed.
+     * @param maxSize the new size, zero disables the cache.
+     */
+    public void setMaxSize(final int maxSize)
+    {
+        if (maxSize<0) throw new IllegalArgumentException("Negative size:" + maxSize);
+        this.maxSize = maxSize;
+        if (tables.size()>maxSize) evict(tables);
+        synchronized(foreign)
+        {
+            if (foreign.size()>maxSize) evict(foreign);
+        }
+    }
+
+    /**
+     * Removes all the cached tables.
+     */
+    public void clear()
+    {
+        tables.clear();
+        synchronized(foreign)
+        {
+            foreign.clear();
+        }
+    }
+
+    /**
+     * Removes the tables of the classes loaded by a class
+     * loader or by its children, for example when an
+     * application is undeployed.
+     * @param loader the class loader.
+     */
+    public void clear(final ClassLoader loader)
+    {
+        clear(tables.keySet().iterator(), loader);
+        synchronized(foreign)
+        {
+            clear(foreign.keySet().iterator(), loader);
+        }
+    }
+
+    private static void clear(final Iterator classes, final ClassLoader loader)
+    {
+        while(classes.hasNext())
+        {
+            for(ClassLoader l=((Class)classes.next()).getClassLoader();l!=null;l=l.getParent())
+            {
+                if (l==loader)
+                {
+                    classes.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString()
+    {
+        return "BeanAccessors[size=" + size() + ", maxSize=" + maxSize + "]";
+    }
+
+    /**
+     * Context bean of an evaluation navigated with accessors.
+     */
+    static final class Root
+    {
+        final Object bean;
+        final BeanAccessors accessors;
+
+        Root(final Object bean, final BeanAccessors accessors)
+        {
+            this.bean = bean;
+            this.accessors = accessors;
+        }
+    }
+
+    /**
+     * Properties of a class, sorted by name as by JXPath,
+     * with their accessible read methods.
+     */
+    static final class Table implements JXPathBeanInfo
+    {
+        private static final long serialVersionUID = 1L;
+        private final Class beanClass;
+        private final boolean atomic;
+        final String[] names;
+        final PropertyDescriptor[] descriptors;
+        final Method[] readers;
+        private final Map indexes;
+        /**
+         * Whether the instances of the class have been declined
+         * by the pointer factories ordered before the bean
+         * pointers, that decide by class, so that the values of
+         * the class can be navigated without asking them again.
+         */
+        volatile boolean bean;
+
+        Table(final Class beanClass, final JXPathBeanInfo info)
+        {
+            this.beanClass = beanClass;
+            this.atomic = info.isAtomic();
+            this.descriptors = atomic ? new PropertyDescriptor[0] : info.getPropertyDescriptors();
+            final int count = descriptors.length;
+            this.names = new String[count];
+            this.readers = new Method[count];
+            this.indexes = new HashMap(count * 2);
+            for(int i=0;i<count;i++)
+            {
+                names[i] = descriptors[i].getName();
+                readers[i] = ValueUtils.getAccessibleMethod(descriptors[i].getReadMethod());
+                indexes.put(names[i], Integer.valueOf(i));
+            }
+        }
+
+        /**
+         * Returns the index of a property.
+         * @param name the property name.
+         * @return the index, -1 when not found.
+         */
+        int indexOf(final String name)
+        {
+            final Integer index = (Integer) indexes.get(name);
+            return index==null ? -1 : index.intValue();
+        }
+
+        public boolean isAtomic()
+        {
+            return atomic;
+        }
+
+        public boolean isDynamic()
+        {
+            return false;
+        }
+
+        public PropertyDescriptor[] getPropertyDescriptors()
+        {
+            return (PropertyDescriptor[]) descriptors.clone();
+        }
+
+        public PropertyDescriptor getPropertyDescriptor(final String propertyName)
+        {
+            final int index = indexOf(propertyName);
+            return index<0 ? null : descriptors[index];
+        }
+
+        public Class getDynamicPropertyHandlerClass()
+        {
+            return null;
+        }
+
+        public String toString()
+        {
+            return "BeanAccessors.Table[" + beanClass.getName() + ", properties="
+                + names.length + "]";
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+
+/**
+ * {@link InputStream} reading the remaining bytes of a
+ * {@link ByteBuffer}, bytes are copied from the buffer directly
+ * into the array of the reader, without intermediate buffers.
+ * <p>The buffer is owned by the stream, callers pass a duplicate
+ * when the position of their buffer must not change.
+ * <p>Instances are not thread safe.
+ * @author Michele Vivoda
+ */
+final class ByteBufferInputStream extends InputStream
+{
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(final ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.InputStream#read()
+     */
+    public int read()
+    {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(final byte[] b, final int off, final int len)
+    {
+        if (off<0 || len<0 || len>b.length - off) throw new IndexOutOfBoundsException();
+        if (len==0) return 0;
+        final int remaining = buffer.remaining();
+        if (remaining==0) return -1;
+        final int n = len<remaining ? len : remaining;
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(final long n)
+    {
+        if (n<=0) return 0;
+        final int skipped = n<buffer.remaining() ? (int) n : buffer.remaining();
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.InputStream#available()
+     */
+    public int available()
+    {
+        return buffer.remaining();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.InputStream#markSupported()
+     */
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.InputStream#mark(int)
+     */
+    public void mark(final int readlimit)
+    {
+        buffer.mark();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.io.InputStream#reset()
+     */
+    public void reset() throws IOException
+    {
+        try
+        {
+            buffer.reset();
+        }
+        catch(InvalidMarkException e)
+        {
+            throw new IOException("Mark not set");
+        }
+    }
+}
@@ -0,0 +1,663 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.jxpath.ri.JXPathContextReferenceImpl;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Read only document stored in arrays, an alternative to the DOM
+ * for the documents that are only queried.
+ * <p>Each node is an index in the arrays of the node type, parent,
+ * first child, next sibling and name, the names are interned in a
+ * table and the text of the nodes is kept in a single character
+ * array. The attributes of an element follow the element, in the
+ * order of the document as the other nodes. A node costs about 30
+ * bytes against the one or more objects of a DOM node.
+ * <p>JXPath navigates the arrays with its own pointers, the
+ * {@link Node}s of the DOM interfaces are created only for the nodes
+ * returned by the evaluations, they are read only views, equal
+ * when of the same node. Text is coalesced as in the documents of
+ * {@link DocumentBuilderPool}, comments are kept only when the SAX
+ * parser reports them, the DTD and the entity references are not.
+ * <pre>
+ * CompactDocument doc = CompactDocument.parse(new InputSource(in));
+ * NodeList orders = (NodeList) expr.evaluate(doc.getDocument(), XPathConstants.NODESET);
+ * </pre>
+ * <p>The evaluations over an {@link InputSource} of a factory parse
+ * a compact document when the
+ * {@link JXPathXPathFactory#FEATURE_COMPACT_DOCUMENT} feature is enabled.
+ * <p>Instances are immutable and thread safe.
+ * @author Michele Vivoda
+ */
+public final class CompactDocument
+{
+    static
+    {
+        // before the DOM factory, the views are also DOM nodes
+        JXPathContextReferenceImpl.addNodePointerFactory(new CompactNodePointer.Factory());
+    }
+
+    private static final String XMLNS = "xmlns";
+
+    final byte[] types;
+    final int[] parents;
+    final int[] firstChildren;
+    final int[] nextSiblings;
+    /**
+     * Name of elements, attributes and processing instructions.
+     */
+    final int[] names;
+    /**
+     * Start of the text of a node in {@link #chars}.
+     */
+    final int[] starts;
+    /**
+     * Length of the text of a node, the number
+     * of attributes for an element.
+     */
+    final int[] lengths;
+    final char[] chars;
+    final String[] namespaces;
+    final String[] localNames;
+    final String[] qNames;
+    private final int size;
+    private final String systemId;
+    private final Document document;
+    private Map userData;
+
+    private CompactDocument(final Builder builder, final String systemId)
+    {
+        this.size = builder.size;
+        this.types = new byte[size];
+        System.arraycopy(builder.types, 0, types, 0, size);
+        this.parents = copy(builder.parents, size);
+        this.firstChildren = copy(builder.firstChildren, size);
+        this.nextSiblings = copy(builder.nextSiblings, size);
+        this.names = copy(builder.names, size);
+        this.starts = copy(builder.starts, size);
+        this.lengths = copy(builder.lengths, size);
+        this.chars = new char[builder.length];
+        System.arraycopy(builder.chars, 0, chars, 0, builder.length);
+        final int count = builder.nameTable.size();
+        this.namespaces = new String[count];
+        this.localNames = new String[count];
+        this.qNames = new String[count];
+        System.arraycopy(builder.namespaces, 0, namespaces, 0, count);
+        System.arraycopy(builder.localNames, 0, localNames, 0, count);
+        System.arraycopy(builder.qNames, 0, qNames, 0, count);
+        this.systemId = systemId;
+        this.document = new CompactNode.DocumentView(this);
+    }
+
+    private static int[] copy(final int[] array, final int size)
+    {
+        final int[] copy = new int[size];
+        System.arraycopy(array, 0, copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * Parses a document, not in secure mode.
+     * @param source the input source.
+     * @return the document.
+     * @throws XPathExpressionException when the parsing fails.
+     */
+    public static CompactDocument parse(final InputSource source)
+        throws XPathExpressionException
+    {
+        final Builder builder = new Builder();
+        try
+        {
+            final XMLReader reader = XMLReaders.newXMLReader();
+            // the namespace declarations are attributes, as in the DOM
+            reader.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+            reader.setContentHandler(builder);
+            reader.setErrorHandler(builder);
+            XMLReaders.setLexicalHandler(reader, builder);
+            reader.parse(source);
+        }
+        catch(SAXException e)
+        {
+            // Also xalan uses XPathExpressionException for these errors
+            throw new XPathExpressionException(e);
+        }
+        catch(IOException e)
+        {
+            throw new XPathExpressionException(e);
+        }
+        return new CompactDocument(builder, source.getSystemId());
+    }
+
+    /**
+     * Returns the read only {@link Document} view of this
+     * document, the context item of the evaluations.
+     * @return the document node, always the same instance.
+     */
+    public Document getDocument()
+    {
+        return document;
+    }
+
+    /**
+     * Returns the number of nodes, including
+     * the document and the attributes.
+     * @return the node count.
+     */
+    public int getNodeCount()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the number of distinct names.
+     * @return the name count.
+     */
+    public int getNameCount()
+    {
+        return qNames.length;
+    }
+
+    /**
+     * Returns the number of characters of the text,
+     * comments, processing instructions and attribute values.
+     * @return the character count.
+     */
+    public int getTextLength()
+    {
+        return chars.length;
+    }
+
+    /**
+     * Returns the system id of the parsed source.
+     * @return the system id, null when not known.
+     */
+    public String getSystemId()
+    {
+        return systemId;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString()
+    {
+        return "CompactDocument[nodes=" + size + ", names=" + qNames.length
+            + ", chars=" + chars.length + "]";
+    }
+
+    /**
+     * Returns the view of a node, a new instance.
+     * @param node the index of the node.
+     * @return the node.
+     */
+    Node getNode(final int node)
+    {
+        if (node<0) return null;
+        if (node==0) return document;
+        switch(types[node])
+        {
+            case Node.ELEMENT_NODE: return new CompactNode.ElementView(this, node);
+            case Node.ATTRIBUTE_NODE: return new CompactNode.AttrView(this, node);
+            case Node.TEXT_NODE: return new CompactNode.TextView(this, node);
+            case Node.COMMENT_NODE: return new CompactNode.CommentView(this, node);
+            default: return new CompactNode.ProcessingInstructionView(this, node);
+        }
+    }
+
+    /**
+     * Returns the text of a node.
+     * @param node the index of the node.
+     * @return the text of a text, comment, processing
+     * instruction or attribute, null for the other nodes.
+     */
+    String getText(final int node)
+    {
+        final int type = types[node];
+        if (type==Node.ELEMENT_NODE || type==Node.DOCUMENT_NODE) return null;
+        return new String(chars, starts[node], lengths[node]);
+    }
+
+    /**
+     * Returns the number of attributes of a node.
+     * @param node the index of the node.
+     * @return the attribute count, zero for the nodes
+     * other than elements.
+     */
+    int getAttributeCount(final int node)
+    {
+        return types[node]==Node.ELEMENT_NODE ? lengths[node] : 0;
+    }
+
+    /**
+     * Returns the end of the descendants of a node, that
+     * are numbered after the node in document order.
+     * @param node the index of the node.
+     * @return the index of the first node that follows
+     * the node and is not a descendant.
+     */
+    int getSubtreeEnd(int node)
+    {
+        while(node>0 && nextSiblings[node]<0) node = parents[node];
+        return node>0 ? nextSiblings[node] : size;
+    }
+
+    /**
+     * Returns the prefix of the name of a node.
+     * @param node the index of the node.
+     * @return the prefix, null when without.
+     */
+    String getPrefix(final int node)
+    {
+        final String qName = qNames[names[node]];
+        final int colon = qName.indexOf(':');
+        return colon<0 ? null : qName.substring(0, colon);
+    }
+
+    /**
+     * Returns the namespace of the name of a node.
+     * @param node the index of the node.
+     * @return the namespace uri, null when without.
+     */
+    String getNamespaceURI(final int node)
+    {
+        final String uri = namespaces[names[node]];
+        return uri.length()==0 ? null : uri;
+    }
+
+    /**
+     * Returns whether an attribute is a namespace declaration.
+     * @param attribute the index of the attribute.
+     * @return true for the xmlns attributes.
+     */
+    boolean isNamespaceDeclaration(final int attribute)
+    {
+        final String qName = qNames[names[attribute]];
+        return qName.startsWith(XMLNS)
+            && (qName.length()==XMLNS.length() || qName.charAt(XMLNS.length())==':');
+    }
+
+    /**
+     * Returns an attribute of an element.
+     * @param element the index of the element.
+     * @param uri the namespace, null for an attribute
+     * looked up by its qualified name.
+     * @param name the local name, or the qualified name.
+     * @return the index of the attribute, -1 when not found.
+     */
+    int getAttribute(final int element, final String uri, final String name)
+    {
+        final int count = getAttributeCount(element);
+        for(int i=element + 1, end=element + count;i<=end;i++)
+        {
+            final int n = names[i];
+            if (uri==null ? qNames[n].equals(name)
+                : localNames[n].equals(name) && namespaces[n].equals(uri)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of the nearest declaration of an
+     * attribute on the element of a node or its ancestors.
+     * @param node the index of the node.
+     * @param qName the qualified name of the attribute.
+     * @return the value, null when not declared.
+     */
+    String findEnclosingAttribute(int node, final String qName)
+    {
+        while(node>0)
+        {
+            final int attribute = getAttribute(node, null, qName);
+            if (attribute>0) return getText(attribute);
+            node = parents[node];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the string value of a node as computed by the JXPath
+     * DOM pointers: the text of each node is trimmed unless
+     * whitespace is preserved with <code>xml:space</code>.
+     * @param node the index of the node.
+     * @return the string value.
+     */
+    String getStringValue(final int node)
+    {
+        final int type = types[node];
+        if (type==Node.ATTRIBUTE_NODE) return getText(node);
+        if (type==Node.COMMENT_NODE) return getText(node).trim();
+        final boolean trim = !"preserve".equals(findEnclosingAttribute(
+            type==Node.ELEMENT_NODE ? node : parents[node], "xml:space"));
+        if (type==Node.TEXT_NODE || type==Node.PROCESSING_INSTRUCTION_NODE)
+        {
+            return trim ? getText(node).trim() : getText(node);
+        }
+        final StringBuffer buf = new StringBuffer();
+        appendStringValue(node, buf, trim);
+        return buf.toString();
+    }
+
+    private void appendStringValue(final int node, final StringBuffer buf, final boolean trim)
+    {
+        for(int child=firstChildren[node];child>0;child=nextSiblings[child])
+        {
+            switch(types[child])
+            {
+                case Node.ELEMENT_NODE:
+                    if (getAttribute(child, null, "xml:space")>0)
+                    {
+                        buf.append(getStringValue(child));
+                    }
+                    else appendStringValue(child, buf, trim);
+                    break;
+                case Node.TEXT_NODE:
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    buf.append(trim ? getText(child).trim() : getText(child));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the text content of a node as defined
+     * by {@link Node#getTextContent()}.
+     * @param node the index of the node.
+     * @return the text, null for the document.
+     */
+    String getTextContent(final int node)
+    {
+        final int type = types[node];
+        if (type==Node.DOCUMENT_NODE) return null;
+        if (type!=Node.ELEMENT_NODE) return getText(node);
+        final StringBuffer buf = new StringBuffer();
+        appendTextContent(node, buf);
+        return buf.toString();
+    }
+
+    private void appendTextContent(final int node, final StringBuffer buf)
+    {
+        for(int child=firstChildren[node];child>0;child=nextSiblings[child])
+        {
+            if (types[child]==Node.TEXT_NODE) buf.append(chars, starts[child], lengths[child]);
+            else if (types[child]==Node.ELEMENT_NODE) appendTextContent(child, buf);
+        }
+    }
+
+    /**
+     * Returns the user data of a node.
+     */
+    synchronized Object getUserData(final int node, final String key)
+    {
+        return userData==null ? null : userData.get(node + ":" + key);
+    }
+
+    /**
+     * Sets the user data of a node, the data is not part
+     * of the document, so can be changed.
+     */
+    synchronized Object setUserData(final int node, final String key, final Object data)
+    {
+        if (userData==null) userData = new HashMap();
+        return data==null ? userData.remove(node + ":" + key)
+            : userData.put(node + ":" + key, data);
+    }
+
+    /**
+     * Builds the arrays from the SAX events.
+     */
+    private static final class Builder extends DefaultHandler implements LexicalHandler
+    {
+        byte[] types = new byte[256];
+        int[] parents = new int[256];
+        int[] firstChildren = new int[256];
+        int[] nextSiblings = new int[256];
+        int[] names = new int[256];
+        int[] starts = new int[256];
+        int[] lengths = new int[256];
+        int size;
+        char[] chars = new char[4096];
+        int length;
+        final Map nameTable = new HashMap();
+        String[] namespaces = new String[16];
+        String[] localNames = new String[16];
+        String[] qNames = new String[16];
+        /**
+         * Last child of each open node, by depth.
+         */
+        private int[] lastChildren = new int[32];
+        private int[] open = new int[32];
+        private int depth;
+        /**
+         * Start of the text not yet added as a node, -1 when none.
+         */
+        private int textStart = -1;
+        private boolean inDTD;
+
+        Builder()
+        {
+            add(Node.DOCUMENT_NODE, -1);
+            parents[0] = -1;
+            open[0] = 0;
+            lastChildren[0] = -1;
+        }
+
+        private int add(final int type, final int name)
+        {
+            if (size==types.length)
+            {
+                final int capacity = size * 2;
+                final byte[] t = new byte[capacity];
+                System.arraycopy(types, 0, t, 0, size);
+                types = t;
+                parents = grow(parents, capacity);
+                firstChildren = grow(firstChildren, capacity);
+                nextSiblings = grow(nextSiblings, capacity);
+                names = grow(names, capacity);
+                starts = grow(starts, capacity);
+                lengths = grow(lengths, capacity);
+            }
+            final int node = size++;
+            types[node] = (byte) type;
+            names[node] = name;
+            firstChildren[node] = -1;
+            nextSiblings[node] = -1;
+            return node;
+        }
+
+        private static int[] grow(final int[] array, final int capacity)
+        {
+            final int[] grown = new int[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        /**
+         * Adds a node as the last child of the current node.
+         */
+        private int addChild(final int type, final int name)
+        {
+            final int node = add(type, name);
+            final int parent = open[depth];
+            parents[node] = parent;
+            final int last = lastChildren[depth];
+            if (last<0) firstChildren[parent] = node;
+            else nextSiblings[last] = node;
+            lastChildren[depth] = node;
+            return node;
+        }
+
+        private void append(final char[] ch, final int start, final int len)
+        {
+            if (length + len>chars.length)
+            {
+                final char[] c = new char[Math.max(chars.length * 2, length + len)];
+                System.arraycopy(chars, 0, c, 0, length);
+                chars = c;
+            }
+            System.arraycopy(ch, start, chars, length, len);
+            length += len;
+        }
+
+        private void append(final String s)
+        {
+            append(s.toCharArray(), 0, s.length());
+        }
+
+        private int name(final String uri, final String localName, final String qName)
+        {
+            final String key = qName + ' ' + uri;
+            final Integer index = (Integer) nameTable.get(key);
+            if (index!=null) return index.intValue();
+            final int n = nameTable.size();
+            if (n==qNames.length)
+            {
+                namespaces = grow(namespaces);
+                localNames = grow(localNames);
+                qNames = grow(qNames);
+            }
+            namespaces[n] = uri.intern();
+            localNames[n] = localName.intern();
+            qNames[n] = qName.intern();
+            nameTable.put(key, Integer.valueOf(n));
+            return n;
+        }
+
+        private static String[] grow(final String[] array)
+        {
+            final String[] grown = new String[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        /**
+         * Adds the pending text as a single node.
+         */
+        private void flush()
+        {
+            if (textStart<0) return;
+            final int node = addChild(Node.TEXT_NODE, -1);
+            starts[node] = textStart;
+            lengths[node] = length - textStart;
+            textStart = -1;
+        }
+
+        public void startElement(final String uri, final String localName,
+            final String qName, final Attributes atts)
+        {
+            flush();
+            final int element = addChild(Node.ELEMENT_NODE, name(uri, local(localName, qName), qName));
+            final int count = atts.getLength();
+            lengths[element] = count;
+            for(int i=0;i<count;i++)
+            {
+                final String attQName = atts.getQName(i);
+                String attUri = atts.getURI(i);
+                if (attQName.startsWith(XMLNS) && (attQName.length()==XMLNS.length()
+                    || attQName.charAt(XMLNS.length())==':'))
+                {
+                    attUri = XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+                }
+                final int attribute = add(Node.ATTRIBUTE_NODE,
+                    name(attUri, local(atts.getLocalName(i), attQName), attQName));
+                parents[attribute] = element;
+                starts[attribute] = length;
+                append(atts.getValue(i));
+                lengths[attribute] = length - starts[attribute];
+            }
+            if (++depth==open.length)
+            {
+                final int[] o = new int[depth * 2];
+                System.arraycopy(open, 0, o, 0, depth);
+                open = o;
+                lastChildren = grow(lastChildren, depth * 2);
+            }
+            open[depth] = element;
+            lastChildren[depth] = -1;
+        }
+
+        private static String local(final String localName, final String qName)
+        {
+            if (localName!=null && localName.length()>0) return localName;
+            return qName.substring(qName.indexOf(':') + 1);
+        }
+
+        public void endElement(final String uri, final String localName, final String qName)
+        {
+            flush();
+            depth--;
+        }
+
+        public void characters(final char[] ch, final int start, final int len)
+        {
+            if (textStart<0) textStart = length;
+            append(ch, start, len);
+        }
+
+        public void ignorableWhitespace(final char[] ch, final int start, final int len)
+        {
+            characters(ch, start, len);
+        }
+
+        public void processingInstruction(final String target, final String data)
+        {
+            flush();
+            final int node = addChild(Node.PROCESSING_INSTRUCTION_NODE, name("", target, target));
+            starts[node] = length;
+            append(data==null ? "" : data);
+            lengths[node] = length - starts[node];
+        }
+
+        public void comment(final char[] ch, final int start, final int len)
+        {
+            if (inDTD) return;
+            flush();
+            final int node = addChild(Node.COMMENT_NODE, -1);
+            starts[node] = length;
+            append(ch, start, len);
+            lengths[node] = len;
+        }
+
+        public void startDTD(final String name, final String publicId, final String systemId)
+        {
+            inDTD = true;
+        }
+
+        public void endDTD()
+        {
+            inDTD = false;
+        }
+
+        public void startEntity(final String name)
+        {
+        }
+
+        public void endEntity(final String name)
+        {
+        }
+
+        public void startCDATA()
+        {
+            // coalesced with the adjacent text
+        }
+
+        public void endCDATA()
+        {
+        }
+    }
+}
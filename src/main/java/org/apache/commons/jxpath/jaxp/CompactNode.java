@@ -0,0 +1,1111 @@
+package org.apache.commons.jxpath.jaxp;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Comment;
+import org.w3c.dom.DOMConfiguration;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.EntityReference;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+import org.w3c.dom.Text;
+import org.w3c.dom.TypeInfo;
+import org.w3c.dom.UserDataHandler;
+
+/**
+ * Read only {@link Node} view of a node of a {@link CompactDocument},
+ * created when a node is returned by an evaluation or navigated
+ * with the DOM methods. Views of the same node are equal and
+ * {@link #isSameNode(Node) the same node}, methods that change the
+ * document throw a {@link DOMException}.
+ * @author Michele Vivoda
+ */
+abstract class CompactNode implements Node
+{
+    final CompactDocument doc;
+    final int node;
+
+    CompactNode(final CompactDocument doc, final int node)
+    {
+        this.doc = doc;
+        this.node = node;
+    }
+
+    static DOMException readOnly()
+    {
+        return new DOMException(DOMException.NO_MODIFICATION_ALLOWED_ERR, "Read only document");
+    }
+
+    public short getNodeType()
+    {
+        return doc.types[node];
+    }
+
+    public String getNodeName()
+    {
+        return doc.qNames[doc.names[node]];
+    }
+
+    public String getNodeValue()
+    {
+        return doc.getText(node);
+    }
+
+    public void setNodeValue(final String nodeValue)
+    {
+        throw readOnly();
+    }
+
+    public Node getParentNode()
+    {
+        return doc.getNode(doc.parents[node]);
+    }
+
+    public NodeList getChildNodes()
+    {
+        return new ChildList(doc, node);
+    }
+
+    public Node getFirstChild()
+    {
+        return doc.getNode(doc.firstChildren[node]);
+    }
+
+    public Node getLastChild()
+    {
+        int last = -1;
+        for(int n=doc.firstChildren[node];n>0;n=doc.nextSiblings[n]) last = n;
+        return doc.getNode(last);
+    }
+
+    public Node getPreviousSibling()
+    {
+        final int parent = doc.parents[node];
+        if (parent<0) return null;
+        int previous = -1;
+        for(int n=doc.firstChildren[parent];n>0 && n!=node;n=doc.nextSiblings[n]) previous = n;
+        return doc.getNode(previous);
+    }
+
+    public Node getNextSibling()
+    {
+        return doc.getNode(doc.nextSiblings[node]);
+    }
+
+    public NamedNodeMap getAttributes()
+    {
+        return null;
+    }
+
+    public Document getOwnerDocument()
+    {
+        return doc.getDocument();
+    }
+
+    public Node insertBefore(final Node newChild, final Node refChild)
+    {
+        throw readOnly();
+    }
+
+    public Node replaceChild(final Node newChild, final Node oldChild)
+    {
+        throw readOnly();
+    }
+
+    public Node removeChild(final Node oldChild)
+    {
+        throw readOnly();
+    }
+
+    public Node appendChild(final Node newChild)
+    {
+        throw readOnly();
+    }
+
+    public boolean hasChildNodes()
+    {
+        return doc.firstChildren[node]>0;
+    }
+
+    public Node cloneNode(final boolean deep)
+    {
+        throw new DOMException(DOMException.NOT_SUPPORTED_ERR, "Read only document");
+    }
+
+    public void normalize()
+    {
+        // text is already coalesced
+    }
+
+    public boolean isSupported(final String feature, final String version)
+    {
+        return false;
+    }
+
+    public String getNamespaceURI()
+    {
+        return null;
+    }
+
+    public String getPrefix()
+    {
+        return null;
+    }
+
+    public void setPrefix(final String prefix)
+    {
+        throw readOnly();
+    }
+
+    public String getLocalName()
+    {
+        return null;
+    }
+
+    public boolean hasAttributes()
+    {
+        return false;
+    }
+
+    public String getBaseURI()
+    {
+        return doc.getSystemId();
+    }
+
+    public short compareDocumentPosition(final Node other)
+    {
+        if (!(other instanceof CompactNode) || ((CompactNode)other).doc!=doc)
+        {
+            return (short) (DOCUMENT_POSITION_DISCONNECTED
+                | DOCUMENT_POSITION_IMPLEMENTATION_SPECIFIC
+                | (System.identityHashCode(doc)<System.identityHashCode(other)
+                    ? DOCUMENT_POSITION_FOLLOWING : DOCUMENT_POSITION_PRECEDING));
+        }
+        final int otherNode = ((CompactNode)other).node;
+        if (otherNode==node) return 0;
+        if (isAncestor(otherNode, node))
+        {
+            return DOCUMENT_POSITION_CONTAINS | DOCUMENT_POSITION_PRECEDING;
+        }
+        if (isAncestor(node, otherNode))
+        {
+            return DOCUMENT_POSITION_CONTAINED_BY | DOCUMENT_POSITION_FOLLOWING;
+        }
+        // nodes are numbered in document order
+        return otherNode<node ? DOCUMENT_POSITION_PRECEDING : DOCUMENT_POSITION_FOLLOWING;
+    }
+
+    private boolean isAncestor(final int ancestor, int n)
+    {
+        while(n>0)
+        {
+            n = doc.parents[n];
+            if (n==ancestor) return true;
+        }
+        return false;
+    }
+
+    public String getTextContent()
+    {
+        return doc.getTextContent(node);
+    }
+
+    public void setTextContent(final String textContent)
+    {
+        throw readOnly();
+    }
+
+    public boolean isSameNode(final Node other)
+    {
+        return equals(other);
+    }
+
+    public String lookupPrefix(final String namespaceURI)
+    {
+        if (namespaceURI==null) return null;
+        for(int n=getElement();n>0;n=doc.parents[n])
+        {
+            if (namespaceURI.equals(doc.namespaces[doc.names[n]]) && doc.getPrefix(n)!=null)
+            {
+                return doc.getPrefix(n);
+            }
+            for(int a=n + 1, end=n + doc.getAttributeCount(n);a<=end;a++)
+            {
+                if (doc.isNamespaceDeclaration(a) && doc.getPrefix(a)!=null
+                    && namespaceURI.equals(doc.getText(a)))
+                {
+                    return doc.localNames[doc.names[a]];
+                }
+            }
+        }
+        return null;
+    }
+
+    public boolean isDefaultNamespace(final String namespaceURI)
+    {
+        final String uri = lookupNamespaceURI(null);
+        return uri==null ? namespaceURI==null : uri.equals(namespaceURI);
+    }
+
+    public String lookupNamespaceURI(final String prefix)
+    {
+        final String qName = prefix==null ? "xmlns" : "xmlns:" + prefix;
+        for(int n=getElement();n>0;n=doc.parents[n])
+        {
+            final String p = doc.getPrefix(n);
+            if (doc.getNamespaceURI(n)!=null && (prefix==null ? p==null : prefix.equals(p)))
+            {
+                return doc.getNamespaceURI(n);
+            }
+            final int a = doc.getAttribute(n, null, qName);
+            if (a>0)
+            {
+                final String uri = doc.getText(a);
+                return uri.length()==0 ? null : uri;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the element used for the namespace lookups.
+     */
+    int getElement()
+    {
+        return doc.parents[node];
+    }
+
+    public boolean isEqualNode(final Node arg)
+    {
+        if (arg==null || arg.getNodeType()!=getNodeType()) return false;
+        if (!equal(getNodeName(), arg.getNodeName())
+            || !equal(getLocalName(), arg.getLocalName())
+            || !equal(getNamespaceURI(), arg.getNamespaceURI())
+            || !equal(getPrefix(), arg.getPrefix())
+            || !equal(getNodeValue(), arg.getNodeValue())) return false;
+        final NamedNodeMap attributes = getAttributes();
+        final NamedNodeMap otherAttributes = arg.getAttributes();
+        if (attributes!=null)
+        {
+            if (otherAttributes==null
+                || attributes.getLength()!=otherAttributes.getLength()) return false;
+            for(int i=0, len=attributes.getLength();i<len;i++)
+            {
+                final Node a = attributes.item(i);
+                final Node o = a.getLocalName()==null
+                    ? otherAttributes.getNamedItem(a.getNodeName())
+                    : otherAttributes.getNamedItemNS(a.getNamespaceURI(), a.getLocalName());
+                if (!a.isEqualNode(o)) return false;
+            }
+        }
+        // the value of an attribute is compared, not its text children
+        if (getNodeType()==ATTRIBUTE_NODE) return true;
+        Node child = getFirstChild();
+        Node otherChild = arg.getFirstChild();
+        while(child!=null && otherChild!=null)
+        {
+            if (!child.isEqualNode(otherChild)) return false;
+            child = child.getNextSibling();
+            otherChild = otherChild.getNextSibling();
+        }
+        return child==null && otherChild==null;
+    }
+
+    private static boolean equal(final String s1, final String s2)
+    {
+        return s1==null ? s2==null : s1.equals(s2);
+    }
+
+    public Object getFeature(final String feature, final String version)
+    {
+        return null;
+    }
+
+    public Object setUserData(final String key, final Object data, final UserDataHandler handler)
+    {
+        return doc.setUserData(node, key, data);
+    }
+
+    public Object getUserData(final String key)
+    {
+        return doc.getUserData(node, key);
+    }
+
+    public int hashCode()
+    {
+        return System.identityHashCode(doc) + node;
+    }
+
+    public boolean equals(final Object obj)
+    {
+        if (!(obj instanceof CompactNode)) return false;
+        final CompactNode other = (CompactNode) obj;
+        return doc==other.doc && node==other.node;
+    }
+
+    public String toString()
+    {
+        return "[" + getNodeName() + ": " + getNodeValue() + "]";
+    }
+
+    /**
+     * Returns the elements with a name among the descendants of a node.
+     */
+    NodeList getElementsByName(final String uri, final String name)
+    {
+        final int end = doc.getSubtreeEnd(node);
+        int count = 0;
+        final int[] found = new int[end - node];
+        for(int n=node + 1;n<end;n++)
+        {
+            if (doc.types[n]!=ELEMENT_NODE) continue;
+            final int nameIndex = doc.names[n];
+            final boolean matches = uri==null
+                ? "*".equals(name) || name.equals(doc.qNames[nameIndex])
+                : ("*".equals(uri) || uri.equals(doc.namespaces[nameIndex]))
+                    && ("*".equals(name) || name.equals(doc.localNames[nameIndex]));
+            if (matches) found[count++] = n;
+        }
+        return new ArrayNodeList(doc, found, count);
+    }
+
+    /**
+     * View of the document node.
+     */
+    static final class DocumentView extends CompactNode implements Document
+    {
+        DocumentView(final CompactDocument doc)
+        {
+            super(doc, 0);
+        }
+
+        public String getNodeName()
+        {
+            return "#document";
+        }
+
+        public Document getOwnerDocument()
+        {
+            return null;
+        }
+
+        public String getTextContent()
+        {
+            return null;
+        }
+
+        int getElement()
+        {
+            final Element root = getDocumentElement();
+            return root==null ? -1 : ((CompactNode)root).node;
+        }
+
+        public DocumentType getDoctype()
+        {
+            return null;
+        }
+
+        public DOMImplementation getImplementation()
+        {
+            return Implementation.INSTANCE;
+        }
+
+        public Element getDocumentElement()
+        {
+            for(int n=doc.firstChildren[0];n>0;n=doc.nextSiblings[n])
+            {
+                if (doc.types[n]==ELEMENT_NODE) return (Element) doc.getNode(n);
+            }
+            return null;
+        }
+
+        public Element createElement(final String tagName)
+        {
+            throw readOnly();
+        }
+
+        public DocumentFragment createDocumentFragment()
+        {
+            throw readOnly();
+        }
+
+        public Text createTextNode(final String data)
+        {
+            throw readOnly();
+        }
+
+        public Comment createComment(final String data)
+        {
+            throw readOnly();
+        }
+
+        public CDATASection createCDATASection(final String data)
+        {
+            throw readOnly();
+        }
+
+        public ProcessingInstruction createProcessingInstruction(final String target,
+            final String data)
+        {
+            throw readOnly();
+        }
+
+        public Attr createAttribute(final String name)
+        {
+            throw readOnly();
+        }
+
+        public EntityReference createEntityReference(final String name)
+        {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagName(final String tagname)
+        {
+            return getElementsByName(null, tagname);
+        }
+
+        public Node importNode(final Node importedNode, final boolean deep)
+        {
+            throw readOnly();
+        }
+
+        public Element createElementNS(final String namespaceURI, final String qualifiedName)
+        {
+            throw readOnly();
+        }
+
+        public Attr createAttributeNS(final String namespaceURI, final String qualifiedName)
+        {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagNameNS(final String namespaceURI, final String localName)
+        {
+            return getElementsByName(namespaceURI==null ? "" : namespaceURI, localName);
+        }
+
+        public Element getElementById(final String elementId)
+        {
+            // no DTD, so no ID attributes
+            return null;
+        }
+
+        public String getInputEncoding()
+        {
+            return null;
+        }
+
+        public String getXmlEncoding()
+        {
+            return null;
+        }
+
+        public boolean getXmlStandalone()
+        {
+            return false;
+        }
+
+        public void setXmlStandalone(final boolean xmlStandalone)
+        {
+            throw readOnly();
+        }
+
+        public String getXmlVersion()
+        {
+            return "1.0";
+        }
+
+        public void setXmlVersion(final String xmlVersion)
+        {
+            throw readOnly();
+        }
+
+        public boolean getStrictErrorChecking()
+        {
+            return true;
+        }
+
+        public void setStrictErrorChecking(final boolean strictErrorChecking)
+        {
+            // always strict
+        }
+
+        public String getDocumentURI()
+        {
+            return doc.getSystemId();
+        }
+
+        public void setDocumentURI(final String documentURI)
+        {
+            throw readOnly();
+        }
+
+        public Node adoptNode(final Node source)
+        {
+            throw readOnly();
+        }
+
+        public DOMConfiguration getDomConfig()
+        {
+            return null;
+        }
+
+        public void normalizeDocument()
+        {
+            // text is already coalesced
+        }
+
+        public Node renameNode(final Node n, final String namespaceURI, final String qualifiedName)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * View of an element.
+     */
+    static final class ElementView extends CompactNode implements Element
+    {
+        ElementView(final CompactDocument doc, final int node)
+        {
+            super(doc, node);
+        }
+
+        public String getNodeValue()
+        {
+            return null;
+        }
+
+        public NamedNodeMap getAttributes()
+        {
+            return new AttributeMap(doc, node);
+        }
+
+        public boolean hasAttributes()
+        {
+            return doc.getAttributeCount(node)>0;
+        }
+
+        public String getNamespaceURI()
+        {
+            return doc.getNamespaceURI(node);
+        }
+
+        public String getPrefix()
+        {
+            return doc.getPrefix(node);
+        }
+
+        public String getLocalName()
+        {
+            return doc.localNames[doc.names[node]];
+        }
+
+        int getElement()
+        {
+            return node;
+        }
+
+        public String getTagName()
+        {
+            return getNodeName();
+        }
+
+        public String getAttribute(final String name)
+        {
+            final int a = doc.getAttribute(node, null, name);
+            return a<0 ? "" : doc.getText(a);
+        }
+
+        public void setAttribute(final String name, final String value)
+        {
+            throw readOnly();
+        }
+
+        public void removeAttribute(final String name)
+        {
+            throw readOnly();
+        }
+
+        public Attr getAttributeNode(final String name)
+        {
+            return (Attr) doc.getNode(doc.getAttribute(node, null, name));
+        }
+
+        public Attr setAttributeNode(final Attr newAttr)
+        {
+            throw readOnly();
+        }
+
+        public Attr removeAttributeNode(final Attr oldAttr)
+        {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagName(final String name)
+        {
+            return getElementsByName(null, name);
+        }
+
+        public String getAttributeNS(final String namespaceURI, final String localName)
+        {
+            final int a = doc.getAttribute(node, namespaceURI==null ? "" : namespaceURI, localName);
+            return a<0 ? "" : doc.getText(a);
+        }
+
+        public void setAttributeNS(final String namespaceURI, final String qualifiedName,
+            final String value)
+        {
+            throw readOnly();
+        }
+
+        public void removeAttributeNS(final String namespaceURI, final String localName)
+        {
+            throw readOnly();
+        }
+
+        public Attr getAttributeNodeNS(final String namespaceURI, final String localName)
+        {
+            return (Attr) doc.getNode(doc.getAttribute(node,
+                namespaceURI==null ? "" : namespaceURI, localName));
+        }
+
+        public Attr setAttributeNodeNS(final Attr newAttr)
+        {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagNameNS(final String namespaceURI, final String localName)
+        {
+            return getElementsByName(namespaceURI==null ? "" : namespaceURI, localName);
+        }
+
+        public boolean hasAttribute(final String name)
+        {
+            return doc.getAttribute(node, null, name)>0;
+        }
+
+        public boolean hasAttributeNS(final String namespaceURI, final String localName)
+        {
+            return doc.getAttribute(node, namespaceURI==null ? "" : namespaceURI, localName)>0;
+        }
+
+        public TypeInfo getSchemaTypeInfo()
+        {
+            return null;
+        }
+
+        public void setIdAttribute(final String name, final boolean isId)
+        {
+            throw readOnly();
+        }
+
+        public void setIdAttributeNS(final String namespaceURI, final String localName,
+            final boolean isId)
+        {
+            throw readOnly();
+        }
+
+        public void setIdAttributeNode(final Attr idAttr, final boolean isId)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * View of an attribute, its children are not
+     * exposed as text nodes.
+     */
+    static final class AttrView extends CompactNode implements Attr
+    {
+        AttrView(final CompactDocument doc, final int node)
+        {
+            super(doc, node);
+        }
+
+        public Node getParentNode()
+        {
+            return null;
+        }
+
+        public Node getPreviousSibling()
+        {
+            return null;
+        }
+
+        public Node getNextSibling()
+        {
+            return null;
+        }
+
+        public Node getFirstChild()
+        {
+            return null;
+        }
+
+        public Node getLastChild()
+        {
+            return null;
+        }
+
+        public boolean hasChildNodes()
+        {
+            return false;
+        }
+
+        public NodeList getChildNodes()
+        {
+            return new ArrayNodeList(doc, new int[0], 0);
+        }
+
+        public String getNamespaceURI()
+        {
+            return doc.getNamespaceURI(node);
+        }
+
+        public String getPrefix()
+        {
+            return doc.getPrefix(node);
+        }
+
+        public String getLocalName()
+        {
+            return doc.localNames[doc.names[node]];
+        }
+
+        public String getName()
+        {
+            return getNodeName();
+        }
+
+        public boolean getSpecified()
+        {
+            return true;
+        }
+
+        public String getValue()
+        {
+            return doc.getText(node);
+        }
+
+        public void setValue(final String value)
+        {
+            throw readOnly();
+        }
+
+        public Element getOwnerElement()
+        {
+            return (Element) doc.getNode(doc.parents[node]);
+        }
+
+        public TypeInfo getSchemaTypeInfo()
+        {
+            return null;
+        }
+
+        public boolean isId()
+        {
+            return false;
+        }
+    }
+
+    /**
+     * View of a text or of a comment.
+     */
+    abstract static class CharacterDataView extends CompactNode implements CharacterData
+    {
+        CharacterDataView(final CompactDocument doc, final int node)
+        {
+            super(doc, node);
+        }
+
+        public String getData()
+        {
+            return doc.getText(node);
+        }
+
+        public void setData(final String data)
+        {
+            throw readOnly();
+        }
+
+        public int getLength()
+        {
+            return doc.lengths[node];
+        }
+
+        public String substringData(final int offset, final int count)
+        {
+            final int length = doc.lengths[node];
+            if (offset<0 || count<0 || offset>length)
+            {
+                throw new DOMException(DOMException.INDEX_SIZE_ERR, "Offset:" + offset);
+            }
+            return new String(doc.chars, doc.starts[node] + offset, Math.min(count, length - offset));
+        }
+
+        public void appendData(final String arg)
+        {
+            throw readOnly();
+        }
+
+        public void insertData(final int offset, final String arg)
+        {
+            throw readOnly();
+        }
+
+        public void deleteData(final int offset, final int count)
+        {
+            throw readOnly();
+        }
+
+        public void replaceData(final int offset, final int count, final String arg)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * View of a text.
+     */
+    static final class TextView extends CharacterDataView implements Text
+    {
+        TextView(final CompactDocument doc, final int node)
+        {
+            super(doc, node);
+        }
+
+        public String getNodeName()
+        {
+            return "#text";
+        }
+
+        public Text splitText(final int offset)
+        {
+            throw readOnly();
+        }
+
+        public boolean isElementContentWhitespace()
+        {
+            return false;
+        }
+
+        public String getWholeText()
+        {
+            // adjacent text is coalesced
+            return getData();
+        }
+
+        public Text replaceWholeText(final String content)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * View of a comment.
+     */
+    static final class CommentView extends CharacterDataView implements Comment
+    {
+        CommentView(final CompactDocument doc, final int node)
+        {
+            super(doc, node);
+        }
+
+        public String getNodeName()
+        {
+            return "#comment";
+        }
+    }
+
+    /**
+     * View of a processing instruction.
+     */
+    static final class ProcessingInstructionView extends CompactNode
+        implements ProcessingInstruction
+    {
+        ProcessingInstructionView(final CompactDocument doc, final int node)
+        {
+            super(doc, node);
+        }
+
+        public String getTarget()
+        {
+            return getNodeName();
+        }
+
+        public String getData()
+        {
+            return doc.getText(node);
+        }
+
+        public void setData(final String data)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Children of a node.
+     */
+    private static final class ChildList implements NodeList
+    {
+        private final CompactDocument doc;
+        private final int parent;
+        private int[] children;
+
+        ChildList(final CompactDocument doc, final int parent)
+        {
+            this.doc = doc;
+            this.parent = parent;
+        }
+
+        private int[] getChildren()
+        {
+            if (children==null)
+            {
+                int count = 0;
+                for(int n=doc.firstChildren[parent];n>0;n=doc.nextSiblings[n]) count++;
+                final int[] array = new int[count];
+                count = 0;
+                for(int n=doc.firstChildren[parent];n>0;n=doc.nextSiblings[n]) array[count++] = n;
+                children = array;
+            }
+            return children;
+        }
+
+        public Node item(final int index)
+        {
+            final int[] array = getChildren();
+            return index<0 || index>=array.length ? null : doc.getNode(array[index]);
+        }
+
+        public int getLength()
+        {
+            return getChildren().length;
+        }
+    }
+
+    /**
+     * List of nodes found by a lookup.
+     */
+    private static final class ArrayNodeList implements NodeList
+    {
+        private final CompactDocument doc;
+        private final int[] nodes;
+        private final int count;
+
+        ArrayNodeList(final CompactDocument doc, final int[] nodes, final int count)
+        {
+            this.doc = doc;
+            this.nodes = nodes;
+            this.count = count;
+        }
+
+        public Node item(final int index)
+        {
+            return index<0 || index>=count ? null : doc.getNode(nodes[index]);
+        }
+
+        public int getLength()
+        {
+            return count;
+        }
+    }
+
+    /**
+     * Attributes of an element.
+     */
+    private static final class AttributeMap implements NamedNodeMap
+    {
+        private final CompactDocument doc;
+        private final int element;
+
+        AttributeMap(final CompactDocument doc, final int element)
+        {
+            this.doc = doc;
+            this.element = element;
+        }
+
+        public Node getNamedItem(final String name)
+        {
+            return doc.getNode(doc.getAttribute(element, null, name));
+        }
+
+        public Node setNamedItem(final Node arg)
+        {
+            throw readOnly();
+        }
+
+        public Node removeNamedItem(final String name)
+        {
+            throw readOnly();
+        }
+
+        public Node item(final int index)
+        {
+            return index<0 || index>=getLength() ? null : doc.getNode(element + 1 + index);
+        }
+
+        public int getLength()
+        {
+            return doc.getAttributeCount(element);
+        }
+
+        public Node getNamedItemNS(final String namespaceURI, final String localName)
+        {
+            return doc.getNode(doc.getAttribute(element,
+                namespaceURI==null ? "" : namespaceURI, localName));
+        }
+
+        public Node setNamedItemNS(final Node arg)
+        {
+            throw readOnly();
+        }
+
+        public Node removeNamedItemNS(final String namespaceURI, final String localName)
+        {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Implementation of the compact documents,
+     * without features and factory methods.
+     */
+    private static final class Implementation implements DOMImplementation
+    {
+        static final Implementation INSTANCE = new Implementation();
+
+        public boolean hasFeature(final String feature, final String version)
+        {
+            return false;
+        }
+
+        public DocumentType createDocumentType(final String qualifiedName,
+            final String publicId, final String systemId)
+        {
+            throw new DOMException(DOMException.NOT_SUPPORTED_ERR, "Read only document");
+        }
+
+        public Document createDocument(final String namespaceURI,
+            final String qualifiedName, final DocumentType doctype)
+        {
+            throw new DOMException(DOMException.NOT_SUPPORTED_ERR, "Read only document");
+        }
+
+        public Object getFeature(final String feature, final String version)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,693 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.jxpath.JXPathContext;
+import org.apache.commons.jxpath.JXPathException;
+import org.apache.commons.jxpath.Pointer;
+import org.apache.commons.jxpath.ri.Compiler;
+import org.apache.commons.jxpath.ri.NamespaceResolver;
+import org.apache.commons.jxpath.ri.QName;
+import org.apache.commons.jxpath.ri.compiler.NodeNameTest;
+import org.apache.commons.jxpath.ri.compiler.NodeTest;
+import org.apache.commons.jxpath.ri.compiler.NodeTypeTest;
+import org.apache.commons.jxpath.ri.compiler.ProcessingInstructionTest;
+import org.apache.commons.jxpath.ri.model.NodeIterator;
+import org.apache.commons.jxpath.ri.model.NodePointer;
+import org.apache.commons.jxpath.ri.model.NodePointerFactory;
+import org.apache.commons.jxpath.ri.model.beans.NullPointer;
+import org.apache.commons.jxpath.ri.model.dom.DOMNodePointer;
+import org.apache.commons.jxpath.ri.model.dom.NamespacePointer;
+import org.w3c.dom.Node;
+
+/**
+ * JXPath pointer to a node of a {@link CompactDocument}, navigates
+ * the arrays of the document as the DOM pointer navigates the DOM,
+ * with the same results, and creates the {@link Node} view only
+ * when the node is requested.
+ * @author Michele Vivoda
+ */
+final class CompactNodePointer extends NodePointer
+{
+    private static final long serialVersionUID = 1L;
+
+    private final CompactDocument doc;
+    private final int node;
+    private Node view;
+    private NamespaceResolver localNamespaceResolver;
+
+    CompactNodePointer(final CompactDocument doc, final int node, final Locale locale)
+    {
+        super(null, locale);
+        this.doc = doc;
+        this.node = node;
+    }
+
+    CompactNodePointer(final NodePointer parent, final CompactDocument doc, final int node)
+    {
+        super(parent);
+        this.doc = doc;
+        this.node = node;
+    }
+
+    private int getType()
+    {
+        return doc.types[node];
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#testNode(org.apache.commons.jxpath.ri.compiler.NodeTest)
+     */
+    public boolean testNode(final NodeTest test)
+    {
+        if (getType()==Node.ATTRIBUTE_NODE)
+        {
+            return test==null || test instanceof NodeTypeTest
+                && ((NodeTypeTest)test).getNodeType()==Compiler.NODE_TYPE_NODE;
+        }
+        return testNode(doc, node, test);
+    }
+
+    /**
+     * Tests a node as {@link DOMNodePointer#testNode(Node, NodeTest)}.
+     */
+    static boolean testNode(final CompactDocument doc, final int node, final NodeTest test)
+    {
+        if (test==null) return true;
+        final int type = doc.types[node];
+        if (test instanceof NodeNameTest)
+        {
+            if (type!=Node.ELEMENT_NODE) return false;
+            final NodeNameTest nodeNameTest = (NodeNameTest) test;
+            final QName testName = nodeNameTest.getNodeName();
+            final String testPrefix = testName.getPrefix();
+            if (nodeNameTest.isWildcard() && testPrefix==null) return true;
+            if (nodeNameTest.isWildcard()
+                || testName.getName().equals(doc.localNames[doc.names[node]]))
+            {
+                final String nodeNS = doc.getNamespaceURI(node);
+                return equalStrings(nodeNameTest.getNamespaceURI(), nodeNS)
+                    || nodeNS==null && equalStrings(testPrefix, doc.getPrefix(node));
+            }
+            return false;
+        }
+        if (test instanceof NodeTypeTest)
+        {
+            switch(((NodeTypeTest)test).getNodeType())
+            {
+                case Compiler.NODE_TYPE_NODE: return true;
+                case Compiler.NODE_TYPE_TEXT: return type==Node.TEXT_NODE;
+                case Compiler.NODE_TYPE_COMMENT: return type==Node.COMMENT_NODE;
+                case Compiler.NODE_TYPE_PI: return type==Node.PROCESSING_INSTRUCTION_NODE;
+                default: return false;
+            }
+        }
+        if (test instanceof ProcessingInstructionTest && type==Node.PROCESSING_INSTRUCTION_NODE)
+        {
+            return ((ProcessingInstructionTest)test).getTarget()
+                .equals(doc.qNames[doc.names[node]]);
+        }
+        return false;
+    }
+
+    private static boolean equalStrings(String s1, String s2)
+    {
+        if (s1==s2) return true;
+        s1 = s1==null ? "" : s1.trim();
+        s2 = s2==null ? "" : s2.trim();
+        return s1.equals(s2);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#getName()
+     */
+    public QName getName()
+    {
+        switch(getType())
+        {
+            case Node.ELEMENT_NODE:
+            case Node.ATTRIBUTE_NODE:
+                return new QName(doc.getPrefix(node), doc.localNames[doc.names[node]]);
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                return new QName(null, doc.qNames[doc.names[node]]);
+            default:
+                return new QName(null, null);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#getNamespaceURI()
+     */
+    public String getNamespaceURI()
+    {
+        final int type = getType();
+        if (type==Node.DOCUMENT_NODE)
+        {
+            final int root = getDocumentElement();
+            return root<0 ? null : doc.getNamespaceURI(root);
+        }
+        return type==Node.ELEMENT_NODE || type==Node.ATTRIBUTE_NODE
+            ? doc.getNamespaceURI(node) : null;
+    }
+
+    private int getDocumentElement()
+    {
+        int child = doc.firstChildren[0];
+        while(child>0 && doc.types[child]!=Node.ELEMENT_NODE) child = doc.nextSiblings[child];
+        return child;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#getNamespaceResolver()
+     */
+    public synchronized NamespaceResolver getNamespaceResolver()
+    {
+        if (localNamespaceResolver==null)
+        {
+            localNamespaceResolver = new NamespaceResolver(super.getNamespaceResolver());
+            localNamespaceResolver.setNamespaceContextPointer(this);
+        }
+        return localNamespaceResolver;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#getNamespaceURI(java.lang.String)
+     */
+    public String getNamespaceURI(final String prefix)
+    {
+        if (prefix==null || prefix.length()==0) return getDefaultNamespaceURI();
+        if (prefix.equals("xml")) return DOMNodePointer.XML_NAMESPACE_URI;
+        if (prefix.equals("xmlns")) return DOMNodePointer.XMLNS_NAMESPACE_URI;
+        final String uri = doc.findEnclosingAttribute(getElement(), "xmlns:" + prefix);
+        return uri==null || uri.length()==0 ? null : uri;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#getDefaultNamespaceURI()
+     */
+    public String getDefaultNamespaceURI()
+    {
+        final String uri = doc.findEnclosingAttribute(getElement(), "xmlns");
+        return uri==null || uri.length()==0 ? null : uri;
+    }
+
+    /**
+     * Returns the node where to look for the namespace declarations.
+     */
+    private int getElement()
+    {
+        switch(getType())
+        {
+            case Node.DOCUMENT_NODE: return getDocumentElement();
+            case Node.ELEMENT_NODE: return node;
+            default: return doc.parents[node];
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#childIterator(org.apache.commons.jxpath.ri.compiler.NodeTest, boolean, org.apache.commons.jxpath.ri.model.NodePointer)
+     */
+    public NodeIterator childIterator(final NodeTest test, final boolean reverse,
+        final NodePointer startWith)
+    {
+        final int start = startWith instanceof CompactNodePointer
+            ? ((CompactNodePointer)startWith).node : -1;
+        return new ChildIterator(this, test, reverse, start);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#attributeIterator(org.apache.commons.jxpath.ri.QName)
+     */
+    public NodeIterator attributeIterator(final QName name)
+    {
+        return new AttributeIterator(this, name);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#namespaceIterator()
+     */
+    public NodeIterator namespaceIterator()
+    {
+        return new NamespaceIterator(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#namespacePointer(java.lang.String)
+     */
+    public NodePointer namespacePointer(final String prefix)
+    {
+        return new NamespacePointer(this, prefix);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#getBaseValue()
+     */
+    public Object getBaseValue()
+    {
+        return getImmediateNode();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#getImmediateNode()
+     */
+    public Object getImmediateNode()
+    {
+        if (view==null) view = doc.getNode(node);
+        return view;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#getValue()
+     */
+    public Object getValue()
+    {
+        return doc.getStringValue(node);
+    }
+
+    public boolean isActual()
+    {
+        return true;
+    }
+
+    public boolean isCollection()
+    {
+        return false;
+    }
+
+    public int getLength()
+    {
+        return 1;
+    }
+
+    public boolean isLeaf()
+    {
+        return doc.firstChildren[node]<0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#isLanguage(java.lang.String)
+     */
+    public boolean isLanguage(final String lang)
+    {
+        final String current = doc.findEnclosingAttribute(getElement(), "xml:lang");
+        return current==null ? super.isLanguage(lang)
+            : current.toUpperCase(Locale.ENGLISH).startsWith(lang.toUpperCase(Locale.ENGLISH));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#setValue(java.lang.Object)
+     */
+    public void setValue(final Object value)
+    {
+        throw new JXPathException("Read only document");
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#remove()
+     */
+    public void remove()
+    {
+        throw new JXPathException("Read only document");
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#createChild(org.apache.commons.jxpath.JXPathContext, org.apache.commons.jxpath.ri.QName, int)
+     */
+    public NodePointer createChild(final JXPathContext context, final QName name, final int index)
+    {
+        throw new JXPathException("Read only document");
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#createAttribute(org.apache.commons.jxpath.JXPathContext, org.apache.commons.jxpath.ri.QName)
+     */
+    public NodePointer createAttribute(final JXPathContext context, final QName name)
+    {
+        throw new JXPathException("Read only document");
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#getPointerByID(org.apache.commons.jxpath.JXPathContext, java.lang.String)
+     */
+    public Pointer getPointerByID(final JXPathContext context, final String id)
+    {
+        // no DTD, so no ID attributes
+        return new NullPointer(getLocale(), id);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#compareChildNodePointers(org.apache.commons.jxpath.ri.model.NodePointer, org.apache.commons.jxpath.ri.model.NodePointer)
+     */
+    public int compareChildNodePointers(final NodePointer pointer1, final NodePointer pointer2)
+    {
+        // namespaces come first, attributes follow the
+        // element, nodes are numbered in document order
+        final boolean namespace1 = !(pointer1 instanceof CompactNodePointer);
+        final boolean namespace2 = !(pointer2 instanceof CompactNodePointer);
+        if (namespace1 || namespace2) return namespace1==namespace2 ? 0 : namespace1 ? -1 : 1;
+        final int node1 = ((CompactNodePointer)pointer1).node;
+        final int node2 = ((CompactNodePointer)pointer2).node;
+        return node1<node2 ? -1 : node1==node2 ? 0 : 1;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.model.NodePointer#asPath()
+     */
+    public String asPath()
+    {
+        final StringBuffer buffer = new StringBuffer();
+        if (parent!=null) buffer.append(parent.asPath());
+        final int type = getType();
+        if (type==Node.DOCUMENT_NODE) return buffer.toString();
+        if (buffer.length()==0 || buffer.charAt(buffer.length() - 1)!='/') buffer.append('/');
+        switch(type)
+        {
+            case Node.ATTRIBUTE_NODE:
+                return buffer.append('@').append(doc.qNames[doc.names[node]]).toString();
+            case Node.ELEMENT_NODE:
+                buffer.append(doc.qNames[doc.names[node]]);
+                break;
+            case Node.TEXT_NODE:
+                buffer.append("text()");
+                break;
+            case Node.COMMENT_NODE:
+                buffer.append("comment()");
+                break;
+            default:
+                buffer.append("processing-instruction('")
+                    .append(doc.qNames[doc.names[node]]).append("')");
+                break;
+        }
+        return buffer.append('[').append(getPosition()).append(']').toString();
+    }
+
+    /**
+     * Returns the position of this node among the
+     * preceding siblings of the same type and name.
+     */
+    private int getPosition()
+    {
+        final int parentNode = doc.parents[node];
+        int position = 1;
+        for(int n=doc.firstChildren[parentNode];n!=node && n>0;n=doc.nextSiblings[n])
+        {
+            if (doc.types[n]==doc.types[node] && doc.names[n]==doc.names[node]) position++;
+        }
+        return position;
+    }
+
+    public int hashCode()
+    {
+        return System.identityHashCode(doc) + node;
+    }
+
+    public boolean equals(final Object object)
+    {
+        if (!(object instanceof CompactNodePointer)) return false;
+        final CompactNodePointer other = (CompactNodePointer) object;
+        return doc==other.doc && node==other.node;
+    }
+
+    /**
+     * Iterator of the children of a node matching a test,
+     * after a child when requested.
+     */
+    private static final class ChildIterator implements NodeIterator
+    {
+        private final CompactNodePointer parent;
+        private final NodeTest test;
+        private final boolean reverse;
+        private final int startWith;
+        private final CompactDocument doc;
+        private int child = -1;
+        private int position;
+
+        ChildIterator(final CompactNodePointer parent, final NodeTest test,
+            final boolean reverse, final int startWith)
+        {
+            this.parent = parent;
+            this.doc = parent.doc;
+            this.test = test;
+            this.reverse = reverse;
+            this.startWith = startWith;
+        }
+
+        public NodePointer getNodePointer()
+        {
+            if (position==0) setPosition(1);
+            return child<0 ? null : new CompactNodePointer(parent, doc, child);
+        }
+
+        public int getPosition()
+        {
+            return position;
+        }
+
+        public boolean setPosition(final int position)
+        {
+            if (position<this.position)
+            {
+                // restart, the siblings are not linked backwards
+                this.position = 0;
+                child = -1;
+            }
+            while(this.position<position)
+            {
+                if (!next()) return false;
+            }
+            return true;
+        }
+
+        private boolean next()
+        {
+            position++;
+            if (!reverse)
+            {
+                child = position==1
+                    ? (startWith<0 ? doc.firstChildren[parent.node] : doc.nextSiblings[startWith])
+                    : doc.nextSiblings[child];
+                while(child>0 && !testNode(doc, child, test)) child = doc.nextSiblings[child];
+            }
+            else
+            {
+                child = previous(position==1 ? startWith : child);
+            }
+            if (child<=0) child = -1;
+            return child>=0;
+        }
+
+        /**
+         * Returns the previous matching sibling of
+         * a child, the last child for -1.
+         */
+        private int previous(final int before)
+        {
+            int found = -1;
+            for(int n=doc.firstChildren[parent.node];n>0 && n!=before;n=doc.nextSiblings[n])
+            {
+                if (testNode(doc, n, test)) found = n;
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Iterator of the attributes of an element matching
+     * a name, namespace declarations excluded.
+     */
+    private static final class AttributeIterator implements NodeIterator
+    {
+        private final CompactNodePointer parent;
+        private final int[] attributes;
+        private final int count;
+        private int position;
+
+        AttributeIterator(final CompactNodePointer parent, final QName name)
+        {
+            this.parent = parent;
+            final CompactDocument doc = parent.doc;
+            final int element = parent.node;
+            final int total = doc.getAttributeCount(element);
+            this.attributes = new int[total];
+            int found = 0;
+            if (total>0)
+            {
+                final String localName = name.getName();
+                final String prefix = name.getPrefix();
+                if (!localName.equals("*"))
+                {
+                    final int attribute = getAttribute(doc, element, name);
+                    if (attribute>0) attributes[found++] = attribute;
+                }
+                else
+                {
+                    for(int i=element + 1;i<=element + total;i++)
+                    {
+                        if (!doc.isNamespaceDeclaration(i) && test(doc, i, prefix, localName))
+                        {
+                            attributes[found++] = i;
+                        }
+                    }
+                }
+            }
+            this.count = found;
+        }
+
+        private int getAttribute(final CompactDocument doc, final int element, final QName name)
+        {
+            final String prefix = name.getPrefix();
+            final String uri = prefix==null ? null
+                : parent.getNamespaceResolver().getNamespaceURI(prefix);
+            if (uri==null) return doc.getAttribute(element, null, name.getName());
+            final int attribute = doc.getAttribute(element, uri, name.getName());
+            if (attribute>0) return attribute;
+            for(int i=element + 1, end=element + doc.getAttributeCount(element);i<=end;i++)
+            {
+                if (!doc.isNamespaceDeclaration(i) && test(doc, i, prefix, name.getName()))
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean test(final CompactDocument doc, final int attribute,
+            final String testPrefix, final String testLocalName)
+        {
+            final String nodeLocalName = doc.localNames[doc.names[attribute]];
+            if (!testLocalName.equals("*") && !testLocalName.equals(nodeLocalName)) return false;
+            final String nodePrefix = doc.getPrefix(attribute);
+            if (testPrefix==null || testPrefix.equals(nodePrefix)) return true;
+            if (nodePrefix==null) return false;
+            final String testNS = parent.getNamespaceURI(testPrefix);
+            final String nodeNS = parent.getNamespaceURI(nodePrefix);
+            return testNS==null ? nodeNS==null : testNS.equals(nodeNS);
+        }
+
+        public NodePointer getNodePointer()
+        {
+            if (count==0) return null;
+            final int index = position<1 ? 0 : position - 1;
+            return new CompactNodePointer(parent, parent.doc, attributes[index]);
+        }
+
+        public int getPosition()
+        {
+            return position;
+        }
+
+        public boolean setPosition(final int position)
+        {
+            this.position = position;
+            return position>=1 && position<=count;
+        }
+    }
+
+    /**
+     * Iterator of the namespace declarations in scope, collected
+     * as the DOM namespace iterator of JXPath does, so with the
+     * same results: from the document element down to the node,
+     * the overridden and repeated declarations included, none
+     * for an attribute.
+     */
+    private static final class NamespaceIterator implements NodeIterator
+    {
+        private final CompactNodePointer parent;
+        private final List declarations = new ArrayList();
+        private int position;
+
+        NamespaceIterator(final CompactNodePointer parent)
+        {
+            this.parent = parent;
+            if (parent.getType()!=Node.ATTRIBUTE_NODE) collect(parent.node);
+        }
+
+        private void collect(final int node)
+        {
+            final CompactDocument doc = parent.doc;
+            if (doc.parents[node]>=0) collect(doc.parents[node]);
+            final int element = doc.types[node]==Node.DOCUMENT_NODE
+                ? parent.getDocumentElement() : node;
+            if (element<0 || doc.types[element]!=Node.ELEMENT_NODE) return;
+            for(int i=element + 1, end=element + doc.getAttributeCount(element);i<=end;i++)
+            {
+                if (doc.isNamespaceDeclaration(i)) declarations.add(Integer.valueOf(i));
+            }
+        }
+
+        public NodePointer getNodePointer()
+        {
+            if (declarations.isEmpty()) return null;
+            final int index = position<1 ? 0 : position - 1;
+            final int attribute = ((Integer)declarations.get(index)).intValue();
+            final CompactDocument doc = parent.doc;
+            final String prefix = doc.getPrefix(attribute)==null ? ""
+                : doc.localNames[doc.names[attribute]];
+            return new NamespacePointer(parent, prefix, doc.getText(attribute));
+        }
+
+        public int getPosition()
+        {
+            return position;
+        }
+
+        public boolean setPosition(final int position)
+        {
+            this.position = position;
+            return position>=1 && position<=declarations.size();
+        }
+    }
+
+    /**
+     * Creates the pointers of the {@link CompactNode} views, before
+     * the DOM factory that would accept them as {@link Node}s.
+     */
+    static final class Factory implements NodePointerFactory
+    {
+        static final int ORDER = 90;
+
+        public int getOrder()
+        {
+            return ORDER;
+        }
+
+        public NodePointer createNodePointer(final QName name, final Object bean,
+            final Locale locale)
+        {
+            if (!(bean instanceof CompactNode)) return null;
+            final CompactNode view = (CompactNode) bean;
+            return new CompactNodePointer(view.doc, view.node, locale);
+        }
+
+        public NodePointer createNodePointer(final NodePointer parent, final QName name,
+            final Object bean)
+        {
+            if (!(bean instanceof CompactNode)) return null;
+            final CompactNode view = (CompactNode) bean;
+            return new CompactNodePointer(parent, view.doc, view.node);
+        }
+    }
+}
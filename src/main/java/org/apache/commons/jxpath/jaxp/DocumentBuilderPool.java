@@ -0,0 +1,189 @@
+package org.apache.commons.jxpath.jaxp;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Pool of {@link DocumentBuilder}s used to parse
+ * {@link org.xml.sax.InputSource}s before evaluation.
+ * <p>Looking up a {@link DocumentBuilderFactory} and creating
+ * a builder is a BIG performance hit compared to the evaluation
+ * of a simple expression over a small document, so builders
+ * are created from a single factory per mode and kept idle
+ * between calls. A builder is {@link DocumentBuilder#reset() reset}
+ * before going back to the pool.
+ * <p>There are two pools, one for the secure mode
+ * (entity references not expanded) and one for the normal mode,
+ * see {@link #getInstance(boolean)}.
+ * <p>Instances are thread safe.
+ * @author Michele Vivoda
+ */
+public final class DocumentBuilderPool
+{
+    private static final DocumentBuilderPool SECURE =
+        new DocumentBuilderPool(true);
+    private static final DocumentBuilderPool DEFAULT =
+        new DocumentBuilderPool(false);
+
+    /**
+     * Returns the pool for the given mode.
+     * @param secure secure mode flag.
+     * @return the pool, never null.
+     */
+    public static DocumentBuilderPool getInstance(final boolean secure)
+    {
+        return secure ? SECURE : DEFAULT;
+    }
+
+    private final boolean secure;
+    private DocumentBuilderFactory factory;
+    private DocumentBuilder[] idle;
+    private int idleCount;
+    private long hits;
+    private long misses;
+
+    private DocumentBuilderPool(final boolean secure)
+    {
+        this.secure = secure;
+        this.idle = new DocumentBuilder[
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2)];
+    }
+
+    /**
+     * Takes a builder from the pool, creating
+     * a new one when no one is idle.
+     * <p>The builder must be given back
+     * with {@link #release(DocumentBuilder)}.
+     * @return a DocumentBuilder, never null.
+     */
+    synchronized DocumentBuilder acquire()
+    {
+        if (idleCount>0)
+        {
+            hits++;
+            final DocumentBuilder builder = idle[--idleCount];
+            idle[idleCount] = null;
+            return builder;
+        }
+        misses++;
+        return newDocumentBuilder();
+    }
+
+    /**
+     * Gives back a builder taken with {@link #acquire()}.
+     * <p>The builder is reset out of the lock, it is
+     * discarded when the pool is full or when the
+     * parser implementation does not support reset.
+     * @param builder the builder.
+     */
+    void release(final DocumentBuilder builder)
+    {
+        try
+        {
+            builder.reset();
+        }
+        catch(UnsupportedOperationException e)
+        {
+            // JAXP 1.2 parser, cannot be reused.
+            return;
+        }
+        synchronized(this)
+        {
+            if (idleCount<idle.length) idle[idleCount++] = builder;
+        }
+    }
+
+    /**
+     * Returns whether this pool is the one for the secure mode.
+     * @return the secure mode flag.
+     */
+    public boolean isSecure()
+    {
+        return secure;
+    }
+
+    /**
+     * Returns the number of times a builder
+     * has been taken from the pool.
+     * @return the hit count.
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of times a builder
+     * has been created because the pool was empty.
+     * @return the miss count.
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of idle builders.
+     * @return the number of builders in the pool.
+     */
+    public synchronized int getIdleCount()
+    {
+        return idleCount;
+    }
+
+    /**
+     * Returns the maximum number of idle builders.
+     * @return the capacity of the pool.
+     */
+    public synchronized int getMaxIdle()
+    {
+        return idle.length;
+    }
+
+    /**
+     * Changes the maximum number of idle builders,
+     * builders in excess are discarded.
+     * @param max the new capacity, zero disables pooling.
+     */
+    public synchronized void setMaxIdle(final int max)
+    {
+        if (max<0) throw new IllegalArgumentException("Negative size:" + max);
+        final DocumentBuilder[] newIdle = new DocumentBuilder[max];
+        idleCount = Math.min(idleCount, max);
+        System.arraycopy(idle, 0, newIdle, 0, idleCount);
+        idle = newIdle;
+    }
+
+    /**
+     * Creates a builder, caller must hold the lock
+     * because the factory is not thread safe.
+     */
+    private DocumentBuilder newDocumentBuilder()
+    {
+        try
+        {
+            if (factory==null)
+            {
+                // This lookup is the BIG performance hit,
+                // see also org.apache.xpath.jaxp.XPathImpl#getParser()
+                // code-documentation for the same issue.
+                // http://svn.apache.org/repos/asf/xalan/java/trunk/src/org/apache/xpath/jaxp/XPathImpl.java
+                final DocumentBuilderFactory f =
+                    DocumentBuilderFactory.newInstance();
+                f.setValidating(false);
+                f.setNamespaceAware(true);
+                // Very important..otherwise fails in counting text() nodes,
+                // considering a CData and an adjacent text as two distinct nodes
+                f.setCoalescing(true);
+                f.setExpandEntityReferences(!secure);
+                factory = f;
+            }
+            return factory.newDocumentBuilder();
+        }
+        catch (ParserConfigurationException e) {
+            e.printStackTrace();
+            throw new Error("JAXP config error:" + e.getMessage());
+        }
+    }
+}
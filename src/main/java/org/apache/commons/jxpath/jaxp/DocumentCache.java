@@ -0,0 +1,384 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+/**
+ * Bounded, least recently used, cache of the documents parsed
+ * by the evaluations over an {@link InputSource}, like
+ * {@link javax.xml.xpath.XPath#evaluate(String, InputSource)}.
+ * <p>Only input sources with just a system id naming a local file
+ * (a <code>file:</code> URI or a path) are cached, an entry is keyed
+ * by the file and by the secure flag of the evaluation, because
+ * secure parsing is configured differently. An entry is used only
+ * while the modification time and the length of the file are those
+ * seen when it was parsed, otherwise the file is parsed again.
+ * <p>The size of the cache is limited by the number of entries
+ * and by the sum of the lengths of the cached files, an estimate
+ * of the memory used by the documents. The initial limits are read
+ * from the system properties {@link #SIZE_PROPERTY} and
+ * {@link #BYTES_PROPERTY}.
+ * <p>The cache of a factory is returned by
+ * {@link JXPathXPathFactory#getDocumentCache()} and is enabled with
+ * the {@link JXPathXPathFactory#FEATURE_DOCUMENT_CACHE} feature.
+ * Cached documents are shared by all the evaluations, they are
+ * expanded when parsed so that they can be read concurrently,
+ * and must not be changed.
+ * <p>Instances are thread safe.
+ * @author Michele Vivoda
+ */
+public final class DocumentCache
+{
+    /**
+     * Name of the system property with the default
+     * maximum number of entries, <code>32</code> when not set.
+     */
+    public static final String SIZE_PROPERTY =
+        "org.apache.commons.jxpath.jaxp.documentCacheSize";
+
+    /**
+     * Name of the system property with the default
+     * maximum sum of the lengths of the cached files,
+     * <code>16777216</code> (16MB) when not set.
+     */
+    public static final String BYTES_PROPERTY =
+        "org.apache.commons.jxpath.jaxp.documentCacheBytes";
+
+    private static final int DEFAULT_SIZE = 32;
+    private static final long DEFAULT_BYTES = 16 * 1024 * 1024;
+
+    private final LinkedHashMap map = new LinkedHashMap(16, 0.75f, true);
+    private int maxSize;
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Creates a cache with the limits configured by the
+     * {@link #SIZE_PROPERTY} and {@link #BYTES_PROPERTY} system properties.
+     */
+    DocumentCache()
+    {
+        this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE).intValue(),
+            Long.getLong(BYTES_PROPERTY, DEFAULT_BYTES).longValue());
+    }
+
+    /**
+     * Creates a cache with the given limits.
+     * @param maxSize the maximum number of entries.
+     * @param maxBytes the maximum sum of the lengths of the files.
+     */
+    DocumentCache(final int maxSize, final long maxBytes)
+    {
+        if (maxSize<0) throw new IllegalArgumentException("Negative size:" + maxSize);
+        if (maxBytes<0) throw new IllegalArgumentException("Negative bytes:" + maxBytes);
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the document of an input source,
+     * from the cache when possible.
+     * @param source the input source.
+     * @param secure true to parse in secure mode.
+     * @param listener notified of the parsing, null allowed.
+     * @return the document, null when the source cannot be
+     * cached and must be parsed by the caller.
+     * @throws XPathExpressionException when the parsing fails.
+     */
+    Document getDocument(final InputSource source, final boolean secure,
+        final EvaluationListener listener) throws XPathExpressionException
+    {
+        final File file = getFile(source);
+        if (file==null) return null;
+        final Key key = new Key(file.getPath(), secure);
+        // read before parsing, a change while parsing
+        // is seen by the next lookup.
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        synchronized(this)
+        {
+            final Entry entry = (Entry) map.get(key);
+            if (entry!=null && entry.lastModified==lastModified && entry.length==length)
+            {
+                hits++;
+                return entry.document;
+            }
+            misses++;
+            if (entry!=null)
+            {
+                remove(key);
+                invalidations++;
+            }
+        }
+        final long start = listener==null ? 0 : System.nanoTime();
+        final Document document = JXPathXPathFactory.getDocument(source, secure);
+        if (listener!=null)
+        {
+            listener.parsed(source.getSystemId(), length, System.nanoTime() - start);
+        }
+        expand(document);
+        synchronized(this)
+        {
+            if (maxSize>0 && length<=maxBytes)
+            {
+                final Entry old = (Entry) map.put(key, new Entry(document, lastModified, length));
+                if (old!=null) bytes -= old.length;
+                bytes += length;
+                trim();
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Returns the local file of an input source with
+     * only a system id, null otherwise.
+     */
+    private static File getFile(final InputSource source)
+    {
+        final String systemId = source.getSystemId();
+        if (systemId==null || source.getByteStream()!=null
+            || source.getCharacterStream()!=null) return null;
+        File file;
+        if (systemId.startsWith("file:"))
+        {
+            try
+            {
+                file = new File(new URI(systemId));
+            }
+            catch(Exception e)
+            {
+                // not hierarchical, with authority or query..
+                return null;
+            }
+        }
+        else if (systemId.indexOf(':')>1)
+        {
+            // other schemes, not a windows drive
+            return null;
+        }
+        else file = new File(systemId);
+        file = file.getAbsoluteFile();
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Visits all the nodes of a document, so that a deferred
+     * DOM is fully built before it is shared.
+     */
+    private static void expand(final Document document)
+    {
+        Node node = document.getFirstChild();
+        while(node!=null)
+        {
+            final NamedNodeMap attributes = node.getAttributes();
+            if (attributes!=null)
+            {
+                for(int i=0, len=attributes.getLength();i<len;i++)
+                {
+                    attributes.item(i).getFirstChild();
+                }
+            }
+            Node next = node.getFirstChild();
+            while(next==null && node!=null)
+            {
+                next = node.getNextSibling();
+                if (next==null) node = node.getParentNode();
+            }
+            node = next;
+        }
+    }
+
+    private void remove(final Object key)
+    {
+        final Entry entry = (Entry) map.remove(key);
+        if (entry!=null) bytes -= entry.length;
+    }
+
+    /**
+     * Evicts the least recently used entries
+     * until the limits are respected.
+     */
+    private void trim()
+    {
+        final Iterator iter = map.values().iterator();
+        while(map.size()>maxSize || bytes>maxBytes)
+        {
+            final Entry entry = (Entry) iter.next();
+            iter.remove();
+            bytes -= entry.length;
+            evictions++;
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found a valid entry.
+     * @return the hit count.
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that parsed the file.
+     * @return the miss count.
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries removed to respect the limits.
+     * @return the eviction count.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of entries removed
+     * because the file was changed.
+     * @return the invalidation count.
+     */
+    public synchronized long getInvalidationCount()
+    {
+        return invalidations;
+    }
+
+    /**
+     * Returns the number of cached documents.
+     * @return the size.
+     */
+    public synchronized int size()
+    {
+        return map.size();
+    }
+
+    /**
+     * Returns the sum of the lengths of the cached files.
+     * @return the size in bytes.
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns the maximum number of entries.
+     * @return the maximum size.
+     */
+    public synchronized int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of entries,
+     * least recently used entries in excess are evicted.
+     * @param maxSize the new size, zero disables the cache.
+     */
+    public synchronized void setMaxSize(final int maxSize)
+    {
+        if (maxSize<0) throw new IllegalArgumentException("Negative size:" + maxSize);
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    /**
+     * Returns the maximum sum of the lengths of the cached files.
+     * @return the maximum bytes.
+     */
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Changes the maximum sum of the lengths of the cached files,
+     * least recently used entries in excess are evicted.
+     * @param maxBytes the new limit, files longer
+     * than the limit are never cached.
+     */
+    public synchronized void setMaxBytes(final long maxBytes)
+    {
+        if (maxBytes<0) throw new IllegalArgumentException("Negative bytes:" + maxBytes);
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * Removes all the entries, statistics are not reset.
+     */
+    public synchronized void clear()
+    {
+        map.clear();
+        bytes = 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public synchronized String toString()
+    {
+        return "DocumentCache[size=" + map.size() + ", maxSize=" + maxSize
+            + ", bytes=" + bytes + ", maxBytes=" + maxBytes
+            + ", hits=" + hits + ", misses=" + misses
+            + ", evictions=" + evictions + ", invalidations=" + invalidations + "]";
+    }
+
+    private static final class Entry
+    {
+        final Document document;
+        final long lastModified;
+        final long length;
+
+        Entry(final Document document, final long lastModified, final long length)
+        {
+            this.document = document;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private static final class Key
+    {
+        private final String path;
+        private final boolean secure;
+
+        Key(final String path, final boolean secure)
+        {
+            this.path = path;
+            this.secure = secure;
+        }
+
+        public int hashCode()
+        {
+            return secure ? ~path.hashCode() : path.hashCode();
+        }
+
+        public boolean equals(final Object obj)
+        {
+            if (obj==this) return true;
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            return secure==other.secure && path.equals(other.path);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.jxpath.ri.model.dom.DOMNodePointer;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Index of the elements of a {@link Document} by name and
+ * by the values of some attributes, used by the expressions
+ * compiled by {@link JXPathXPathFactory} to select
+ * <code>//name</code> and <code>//name[&#64;attr='value']</code>
+ * without walking the whole document.
+ * <p>An index is created for a document with {@link #attach(Document, String[])}
+ * and is kept in the user data of the document, so it lives as long
+ * as the document. Expressions use it when evaluated with the document
+ * as the context item.
+ * <p>Changes of the document are detected with DOM mutation events,
+ * the index is rebuilt when used after a change. Documents whose DOM
+ * implementation does not support mutation events cannot be indexed.
+ * <pre>
+ * DocumentIndex.attach(doc, new String[]{"id"});
+ * // served by the index
+ * xpath.evaluate("//item[&#64;id='x']/price", doc);
+ * </pre>
+ * <p>Instances are thread safe, the document must not be
+ * changed while it is evaluated.
+ * @author Michele Vivoda
+ */
+public final class DocumentIndex
+{
+    private static final String KEY = DocumentIndex.class.getName();
+
+    private final Document document;
+    private final String[] attributes;
+    private final DocumentVersion version;
+    private long builtVersion = -1;
+    private int builds;
+    /**
+     * QName to list of elements.
+     */
+    private HashMap byName;
+    /**
+     * Attribute name to map of value to list of elements.
+     */
+    private HashMap byAttribute;
+
+    private DocumentIndex(final Document document, final String[] attributes,
+        final DocumentVersion version)
+    {
+        this.document = document;
+        this.attributes = attributes;
+        this.version = version;
+    }
+
+    /**
+     * Creates the index of a document, replacing
+     * the existing one. The index is built when used.
+     * @param document the document.
+     * @param attributes names of the attributes whose values
+     * are indexed, like <code>id</code>, null allowed.
+     * @return the index.
+     * @throws IllegalArgumentException when the DOM implementation
+     * does not support mutation events.
+     */
+    public static DocumentIndex attach(final Document document, final String[] attributes)
+    {
+        final DocumentVersion version = DocumentVersion.get(document);
+        if (version==null)
+        {
+            throw new IllegalArgumentException("Mutation events not supported by "
+                + document.getClass().getName());
+        }
+        final DocumentIndex index = new DocumentIndex(document,
+            attributes==null ? new String[0] : (String[]) attributes.clone(), version);
+        document.setUserData(KEY, index, null);
+        return index;
+    }
+
+    /**
+     * Returns the index of a document.
+     * @param document the document.
+     * @return the index or null.
+     */
+    public static DocumentIndex get(final Document document)
+    {
+        return (DocumentIndex) document.getUserData(KEY);
+    }
+
+    /**
+     * Removes the index of a document.
+     * @param document the document.
+     */
+    public static void detach(final Document document)
+    {
+        document.setUserData(KEY, null, null);
+    }
+
+    /**
+     * Returns the names of the indexed attributes.
+     * @return a new array.
+     */
+    public String[] getAttributes()
+    {
+        return (String[]) attributes.clone();
+    }
+
+    /**
+     * Returns whether the index is built and
+     * the document has not changed since.
+     * @return true when up to date.
+     */
+    public synchronized boolean isValid()
+    {
+        return builtVersion==version.getVersion();
+    }
+
+    /**
+     * Returns how many times the index has been built.
+     * @return the number of builds.
+     */
+    public synchronized int getBuildCount()
+    {
+        return builds;
+    }
+
+    /**
+     * Returns the elements with a name, in document order,
+     * matched as by an unprefixed JXPath name test when
+     * <code>namespaceURI</code> is null.
+     * @param namespaceURI the namespace, null for none.
+     * @param localName the local name.
+     * @return a read only list, never null.
+     */
+    synchronized List getElements(final String namespaceURI, final String localName)
+    {
+        build();
+        final List list = (List) byName.get(new QName(namespaceURI, localName));
+        return list==null ? Collections.EMPTY_LIST : list;
+    }
+
+    /**
+     * Returns the elements with an attribute value, in document order.
+     * @param attribute the attribute name.
+     * @param value the value.
+     * @return a read only list, null when the
+     * attribute is not indexed.
+     */
+    synchronized List getElementsByAttribute(final String attribute, final String value)
+    {
+        build();
+        final HashMap values = (HashMap) byAttribute.get(attribute);
+        if (values==null) return null;
+        final List list = (List) values.get(value);
+        return list==null ? Collections.EMPTY_LIST : list;
+    }
+
+    /**
+     * Builds the index if the document has changed,
+     * lists already returned are not changed.
+     */
+    private void build()
+    {
+        final long current = version.getVersion();
+        if (builtVersion==current) return;
+        final HashMap names = new HashMap();
+        final HashMap values = new HashMap();
+        for(int i=0;i<attributes.length;i++) values.put(attributes[i], new HashMap());
+        Node node = document.getDocumentElement();
+        while(node!=null)
+        {
+            if (node.getNodeType()==Node.ELEMENT_NODE)
+            {
+                add(names, new QName(DOMNodePointer.getNamespaceURI(node),
+                    DOMNodePointer.getLocalName(node)), node);
+                for(int i=0;i<attributes.length;i++)
+                {
+                    final Attr attr = ((Element)node).getAttributeNode(attributes[i]);
+                    // as the value of DOMAttributePointer
+                    if (attr==null || attr.getValue().length()==0 && !attr.getSpecified()) continue;
+                    add((HashMap) values.get(attributes[i]), attr.getValue(), node);
+                }
+            }
+            // next in document order
+            Node next = node.getFirstChild();
+            while(next==null && node!=null)
+            {
+                next = node.getNextSibling();
+                if (next==null)
+                {
+                    node = node.getParentNode();
+                    if (node==document) node = null;
+                }
+            }
+            node = next;
+        }
+        byName = names;
+        byAttribute = values;
+        builtVersion = current;
+        builds++;
+    }
+
+    private static void add(final HashMap map, final Object key, final Node node)
+    {
+        List list = (List) map.get(key);
+        if (list==null)
+        {
+            list = new ArrayList();
+            map.put(key, list);
+        }
+        list.add(node);
+    }
+}
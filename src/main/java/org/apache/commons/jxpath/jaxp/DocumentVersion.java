@@ -0,0 +1,84 @@
+package org.apache.commons.jxpath.jaxp;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+
+/**
+ * Counter of the changes of a {@link Document}, incremented
+ * by DOM mutation events, used to invalidate the informations
+ * computed from a document, like the {@link DocumentIndex}.
+ * <p>The counter is kept in the user data of the document,
+ * so it lives as long as the document. Mutation listeners
+ * slow down the changes of the document, so a counter is
+ * created only by the features that need it.
+ * @author Michele Vivoda
+ */
+final class DocumentVersion implements EventListener
+{
+    private static final String KEY = DocumentVersion.class.getName();
+
+    /**
+     * Mutation events that bubble up to the document.
+     */
+    private static final String[] EVENTS = {
+        "DOMSubtreeModified", "DOMNodeInserted", "DOMNodeRemoved",
+        "DOMAttrModified", "DOMCharacterDataModified"};
+
+    private volatile long version;
+
+    private DocumentVersion()
+    {
+    }
+
+    /**
+     * Returns the counter of a document, creating it
+     * and registering the listeners when needed.
+     * @param document the document.
+     * @return the counter, null when the DOM implementation
+     * does not support mutation events.
+     */
+    static DocumentVersion get(final Document document)
+    {
+        synchronized(document)
+        {
+            DocumentVersion counter = (DocumentVersion) document.getUserData(KEY);
+            if (counter==null)
+            {
+                if (!(document instanceof EventTarget)
+                    || !document.getImplementation().hasFeature("MutationEvents", "2.0"))
+                {
+                    return null;
+                }
+                counter = new DocumentVersion();
+                final EventTarget target = (EventTarget) document;
+                for(int i=0;i<EVENTS.length;i++)
+                {
+                    target.addEventListener(EVENTS[i], counter, false);
+                }
+                document.setUserData(KEY, counter, null);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * Returns the number of changes seen.
+     * @return the version.
+     */
+    long getVersion()
+    {
+        return version;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.w3c.dom.events.EventListener#handleEvent(org.w3c.dom.events.Event)
+     */
+    public void handleEvent(final Event evt)
+    {
+        // single writer, the DOM is not changed concurrently
+        version++;
+    }
+}
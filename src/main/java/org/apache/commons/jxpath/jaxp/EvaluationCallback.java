@@ -0,0 +1,32 @@
+package org.apache.commons.jxpath.jaxp;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Receives the outcome of the evaluations
+ * started with {@link AsyncEvaluator}.
+ * <p>Methods are called by the thread that completes the
+ * evaluation, a thread of the executor or the thread that
+ * cancels it, so implementations must be thread safe and
+ * should not block.
+ * @author Michele Vivoda
+ */
+public interface EvaluationCallback
+{
+    /**
+     * Called when an evaluation succeeds.
+     * @param source the evaluated input source.
+     * @param result the result, of the requested return type.
+     */
+    void completed(InputSource source, Object result);
+
+    /**
+     * Called when the parsing or the evaluation fails
+     * or when the evaluation is cancelled.
+     * @param source the evaluated input source.
+     * @param error the cause, a
+     * {@link java.util.concurrent.CancellationException}
+     * when cancelled.
+     */
+    void failed(InputSource source, Throwable error);
+}
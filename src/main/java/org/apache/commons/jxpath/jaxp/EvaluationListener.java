@@ -0,0 +1,76 @@
+package org.apache.commons.jxpath.jaxp;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Receives the events of the {@link javax.xml.xpath.XPath}s
+ * of a {@link JXPathXPathFactory}, set with
+ * {@link JXPathXPathFactory#setEvaluationListener(EvaluationListener)}.
+ * <p>Methods are called in the evaluating threads, so
+ * implementations must be thread safe and fast, see
+ * {@link EvaluationMetrics}. Without a listener no
+ * event is created.
+ * @author Michele Vivoda
+ */
+public interface EvaluationListener
+{
+    /**
+     * Kind of resolver call: a function resolved
+     * by the {@link javax.xml.xpath.XPathFunctionResolver},
+     * once for each function and resolvers setup.
+     */
+    int FUNCTION_RESOLVED = 0;
+    /**
+     * Kind of resolver call: an extension function called.
+     */
+    int FUNCTION_INVOKED = 1;
+    /**
+     * Kind of resolver call: a variable resolved by the
+     * {@link javax.xml.xpath.XPathVariableResolver},
+     * at most once for each evaluation.
+     */
+    int VARIABLE_RESOLVED = 2;
+
+    /**
+     * Called when an expression has been compiled.
+     * @param expression the expression.
+     * @param nanos the time taken.
+     */
+    void compiled(String expression, long nanos);
+
+    /**
+     * Called when a document has been parsed
+     * for an evaluation over an input source.
+     * @param systemId the system id, null allowed.
+     * @param bytes the bytes read from the byte stream
+     * of the input source, -1 when not known.
+     * @param nanos the time taken.
+     */
+    void parsed(String systemId, long bytes, long nanos);
+
+    /**
+     * Called when an evaluation ends, also for each expression
+     * of an {@link XPathBatch} and for the streaming evaluations,
+     * not for those of an {@link ExpressionProfiler}.
+     * <p>A node set result is read fully before the time is
+     * taken; the time of a streaming evaluation includes the
+     * reading of the input, that is not reported by
+     * {@link #parsed(String, long, long)}.
+     * @param expression the expression.
+     * @param returnType the return type.
+     * @param nanos the time taken.
+     * @param nodes the length of a node set result, -1 for
+     * other results and failures.
+     * @param failed true when the evaluation failed.
+     */
+    void evaluated(String expression, QName returnType, long nanos,
+        int nodes, boolean failed);
+
+    /**
+     * Called when a resolver is used.
+     * @param kind {@link #FUNCTION_RESOLVED}, {@link #FUNCTION_INVOKED}
+     * or {@link #VARIABLE_RESOLVED}.
+     * @param name the name of the function or variable.
+     */
+    void resolverCalled(int kind, QName name);
+}
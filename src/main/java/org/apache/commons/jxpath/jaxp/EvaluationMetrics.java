@@ -0,0 +1,328 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.xml.namespace.QName;
+
+/**
+ * {@link EvaluationListener} that collects counts and times
+ * of the compilations, parsing and evaluations, and the
+ * latency histogram of each expression.
+ * <pre>
+ * EvaluationMetrics metrics = new EvaluationMetrics();
+ * factory.setEvaluationListener(metrics);
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+ *     new ObjectName("org.apache.commons.jxpath.jaxp:type=EvaluationMetrics"));
+ * </pre>
+ * <p>At most {@link #MAX_EXPRESSIONS} expressions are tracked one
+ * by one, the others are counted together as {@link #OTHER}.
+ * <p>Instances are thread safe.
+ * @author Michele Vivoda
+ */
+public final class EvaluationMetrics implements EvaluationListener, EvaluationMetricsMBean
+{
+    /**
+     * Maximum number of expressions with their own statistics.
+     */
+    public static final int MAX_EXPRESSIONS = 1000;
+    /**
+     * Name of the statistics of the expressions
+     * beyond {@link #MAX_EXPRESSIONS}.
+     */
+    public static final String OTHER = "(other)";
+
+    /**
+     * Upper bounds of the histogram buckets, in nanoseconds,
+     * from 1 microsecond to 1 second.
+     */
+    private static final long[] BOUNDS = {
+        1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L};
+
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong evaluationTime = new AtomicLong();
+    private final AtomicLong compiles = new AtomicLong();
+    private final AtomicLong compileTime = new AtomicLong();
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong parseTime = new AtomicLong();
+    private final AtomicLong parsedBytes = new AtomicLong();
+    private final AtomicLong functionResolutions = new AtomicLong();
+    private final AtomicLong functionInvocations = new AtomicLong();
+    private final AtomicLong variableResolutions = new AtomicLong();
+    private final AtomicLong nodeSets = new AtomicLong();
+    private final AtomicLong nodeSetNodes = new AtomicLong();
+    private final AtomicLong maxNodeSet = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BOUNDS.length + 1);
+    private final ConcurrentHashMap expressions = new ConcurrentHashMap();
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.jaxp.EvaluationListener#compiled(java.lang.String, long)
+     */
+    public void compiled(final String expression, final long nanos)
+    {
+        compiles.incrementAndGet();
+        compileTime.addAndGet(nanos);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.jaxp.EvaluationListener#parsed(java.lang.String, long, long)
+     */
+    public void parsed(final String systemId, final long bytes, final long nanos)
+    {
+        parses.incrementAndGet();
+        parseTime.addAndGet(nanos);
+        if (bytes>0) parsedBytes.addAndGet(bytes);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.jaxp.EvaluationListener#evaluated(java.lang.String, javax.xml.namespace.QName, long, int, boolean)
+     */
+    public void evaluated(final String expression, final QName returnType,
+        final long nanos, final int nodes, final boolean failed)
+    {
+        evaluations.incrementAndGet();
+        evaluationTime.addAndGet(nanos);
+        if (failed) failures.incrementAndGet();
+        final int bucket = bucket(nanos);
+        histogram.incrementAndGet(bucket);
+        if (nodes>=0)
+        {
+            nodeSets.incrementAndGet();
+            nodeSetNodes.addAndGet(nodes);
+            long max = maxNodeSet.get();
+            while(nodes>max && !maxNodeSet.compareAndSet(max, nodes)) max = maxNodeSet.get();
+        }
+        getStats(expression).add(nanos, bucket);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.jaxp.EvaluationListener#resolverCalled(int, javax.xml.namespace.QName)
+     */
+    public void resolverCalled(final int kind, final QName name)
+    {
+        switch(kind)
+        {
+            case FUNCTION_RESOLVED: functionResolutions.incrementAndGet(); break;
+            case FUNCTION_INVOKED: functionInvocations.incrementAndGet(); break;
+            case VARIABLE_RESOLVED: variableResolutions.incrementAndGet(); break;
+            default: break;
+        }
+    }
+
+    private static int bucket(final long nanos)
+    {
+        int i = 0;
+        while(i<BOUNDS.length && nanos>BOUNDS[i]) i++;
+        return i;
+    }
+
+    private Stats getStats(final String expression)
+    {
+        Stats stats = (Stats) expressions.get(expression);
+        if (stats==null)
+        {
+            final String key = expressions.size()<MAX_EXPRESSIONS ? expression : OTHER;
+            stats = (Stats) expressions.get(key);
+            if (stats==null)
+            {
+                final Stats created = new Stats(key);
+                stats = (Stats) expressions.putIfAbsent(key, created);
+                if (stats==null) stats = created;
+            }
+        }
+        return stats;
+    }
+
+    public long getEvaluationCount()
+    {
+        return evaluations.get();
+    }
+
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    public long getEvaluationTime()
+    {
+        return evaluationTime.get();
+    }
+
+    public long getCompileCount()
+    {
+        return compiles.get();
+    }
+
+    public long getCompileTime()
+    {
+        return compileTime.get();
+    }
+
+    public long getParseCount()
+    {
+        return parses.get();
+    }
+
+    public long getParseTime()
+    {
+        return parseTime.get();
+    }
+
+    public long getParsedBytes()
+    {
+        return parsedBytes.get();
+    }
+
+    public long getFunctionResolutions()
+    {
+        return functionResolutions.get();
+    }
+
+    public long getFunctionInvocations()
+    {
+        return functionInvocations.get();
+    }
+
+    public long getVariableResolutions()
+    {
+        return variableResolutions.get();
+    }
+
+    public long getNodeSetCount()
+    {
+        return nodeSets.get();
+    }
+
+    public long getNodeSetNodes()
+    {
+        return nodeSetNodes.get();
+    }
+
+    public int getMaxNodeSetSize()
+    {
+        return (int) maxNodeSet.get();
+    }
+
+    public long[] getHistogramBounds()
+    {
+        return (long[]) BOUNDS.clone();
+    }
+
+    public long[] getLatencyHistogram()
+    {
+        final long[] counts = new long[histogram.length()];
+        for(int i=0;i<counts.length;i++) counts[i] = histogram.get(i);
+        return counts;
+    }
+
+    public String[] getExpressionStatistics()
+    {
+        final List list = new ArrayList();
+        for(final Iterator iter = expressions.values().iterator();iter.hasNext();)
+        {
+            list.add(((Stats)iter.next()).snapshot());
+        }
+        Collections.sort(list, new Comparator()
+        {
+            public int compare(final Object o1, final Object o2)
+            {
+                final long t1 = ((Stats)o1).total;
+                final long t2 = ((Stats)o2).total;
+                return t1>t2 ? -1 : t1<t2 ? 1 : 0;
+            }
+        });
+        final String[] lines = new String[list.size()];
+        for(int i=0;i<lines.length;i++) lines[i] = list.get(i).toString();
+        return lines;
+    }
+
+    public long[] getExpressionHistogram(final String expression)
+    {
+        final Stats stats = (Stats) expressions.get(expression);
+        return stats==null ? null : stats.snapshot().histogram;
+    }
+
+    public void reset()
+    {
+        final AtomicLong[] counters = {evaluations, failures, evaluationTime,
+            compiles, compileTime, parses, parseTime, parsedBytes,
+            functionResolutions, functionInvocations, variableResolutions,
+            nodeSets, nodeSetNodes, maxNodeSet};
+        for(int i=0;i<counters.length;i++) counters[i].set(0);
+        for(int i=0;i<histogram.length();i++) histogram.set(i, 0);
+        expressions.clear();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString()
+    {
+        return "EvaluationMetrics[evaluations=" + evaluations + ", failures=" + failures
+            + ", evaluationTime=" + evaluationTime.get() / 1000000 + "ms"
+            + ", compiles=" + compiles + ", parses=" + parses
+            + ", parseTime=" + parseTime.get() / 1000000 + "ms"
+            + ", expressions=" + expressions.size() + "]";
+    }
+
+    /**
+     * Statistics of an expression.
+     */
+    private static final class Stats
+    {
+        final String expression;
+        long count;
+        long total;
+        long max;
+        final long[] histogram = new long[BOUNDS.length + 1];
+
+        Stats(final String expression)
+        {
+            this.expression = expression;
+        }
+
+        synchronized void add(final long nanos, final int bucket)
+        {
+            count++;
+            total += nanos;
+            if (nanos>max) max = nanos;
+            histogram[bucket]++;
+        }
+
+        synchronized Stats snapshot()
+        {
+            final Stats copy = new Stats(expression);
+            copy.count = count;
+            copy.total = total;
+            copy.max = max;
+            System.arraycopy(histogram, 0, copy.histogram, 0, histogram.length);
+            return copy;
+        }
+
+        public String toString()
+        {
+            final StringBuffer buf = new StringBuffer();
+            buf.append("count=").append(count)
+                .append(" mean=").append(count==0 ? 0 : total / count / 1000).append("us")
+                .append(" max=").append(max / 1000).append("us histogram=");
+            for(int i=0;i<histogram.length;i++)
+            {
+                if (i>0) buf.append(',');
+                buf.append(histogram[i]);
+            }
+            return buf.append(' ').append(expression).toString();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.apache.commons.jxpath.jaxp;
+
+/**
+ * JMX management interface of {@link EvaluationMetrics}.
+ * <p>Times are in nanoseconds, histograms count the
+ * evaluations with a time up to each bound of
+ * {@link #getHistogramBounds()}, the last element
+ * counts the slower ones.
+ * @author Michele Vivoda
+ */
+public interface EvaluationMetricsMBean
+{
+    long getEvaluationCount();
+
+    long getFailureCount();
+
+    long getEvaluationTime();
+
+    long getCompileCount();
+
+    long getCompileTime();
+
+    long getParseCount();
+
+    long getParseTime();
+
+    long getParsedBytes();
+
+    long getFunctionResolutions();
+
+    long getFunctionInvocations();
+
+    long getVariableResolutions();
+
+    long getNodeSetCount();
+
+    long getNodeSetNodes();
+
+    int getMaxNodeSetSize();
+
+    long[] getHistogramBounds();
+
+    long[] getLatencyHistogram();
+
+    /**
+     * Returns a line for each expression, slowest first
+     * by total time, with count, mean, max and histogram.
+     * @return the statistics.
+     */
+    String[] getExpressionStatistics();
+
+    /**
+     * Returns the histogram of an expression.
+     * @param expression the expression.
+     * @return the histogram, null when not evaluated.
+     */
+    long[] getExpressionHistogram(String expression);
+
+    /**
+     * Clears all the statistics.
+     */
+    void reset();
+}
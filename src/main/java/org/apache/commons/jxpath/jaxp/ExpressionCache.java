@@ -0,0 +1,231 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least recently used, cache of compiled expressions
+ * used by {@link javax.xml.xpath.XPath#evaluate(String, Object, javax.xml.namespace.QName)}
+ * and the other string evaluation methods.
+ * <p>An entry is keyed by the expression text together with
+ * the resolvers, the namespace context and the secure flag
+ * of the evaluating {@link javax.xml.xpath.XPath}, so a compiled
+ * expression is never reused with a different setup.
+ * Resolvers and namespace contexts are compared by identity.
+ * <p>The cache of a factory is returned by
+ * {@link JXPathXPathFactory#getExpressionCache()},
+ * the initial size is read from the system property
+ * {@link #SIZE_PROPERTY}, the cache can be disabled with
+ * the {@link JXPathXPathFactory#FEATURE_EXPRESSION_CACHE} feature
+ * or with a size of zero.
+ * <p>Instances are thread safe.
+ * @author Michele Vivoda
+ */
+public final class ExpressionCache
+{
+    /**
+     * Name of the system property with the default size
+     * of the cache, <code>256</code> when not set.
+     */
+    public static final String SIZE_PROPERTY =
+        "org.apache.commons.jxpath.jaxp.expressionCacheSize";
+
+    private static final int DEFAULT_SIZE = 256;
+
+    private final LinkedHashMap map;
+    private int maxSize;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a cache with the size configured
+     * by the {@link #SIZE_PROPERTY} system property.
+     */
+    ExpressionCache()
+    {
+        this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE).intValue());
+    }
+
+    /**
+     * Creates a cache with the given size.
+     * @param maxSize the maximum number of entries.
+     */
+    ExpressionCache(final int maxSize)
+    {
+        if (maxSize<0) throw new IllegalArgumentException("Negative size:" + maxSize);
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(final Map.Entry eldest)
+            {
+                if (size()>ExpressionCache.this.maxSize)
+                {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value for the key.
+     * @param key a key created with {@link #newKey}.
+     * @return the cached value or null.
+     */
+    synchronized Object get(final Object key)
+    {
+        final Object value = map.get(key);
+        if (value==null) misses++;
+        else hits++;
+        return value;
+    }
+
+    /**
+     * Adds a value to the cache, evicting
+     * the least recently used entry when full.
+     * @param key a key created with {@link #newKey}.
+     * @param value the value.
+     */
+    synchronized void put(final Object key, final Object value)
+    {
+        if (maxSize>0) map.put(key, value);
+    }
+
+    /**
+     * Creates a cache key.
+     * @param expression the expression text.
+     * @param setup the objects that affect the compiled
+     * expression, compared by identity, null allowed.
+     * @return a new key.
+     */
+    static Object newKey(final String expression, final Object[] setup)
+    {
+        return new Key(expression, setup);
+    }
+
+    /**
+     * Returns the number of lookups that found an entry.
+     * @return the hit count.
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that did not find an entry.
+     * @return the miss count.
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries removed to respect the size.
+     * @return the eviction count.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of cached entries.
+     * @return the size.
+     */
+    public synchronized int size()
+    {
+        return map.size();
+    }
+
+    /**
+     * Returns the maximum number of entries.
+     * @return the maximum size.
+     */
+    public synchronized int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of entries,
+     * least recently used entries in excess are evicted.
+     * @param maxSize the new size, zero disables the cache.
+     */
+    public synchronized void setMaxSize(final int maxSize)
+    {
+        if (maxSize<0) throw new IllegalArgumentException("Negative size:" + maxSize);
+        this.maxSize = maxSize;
+        final Iterator iter = map.keySet().iterator();
+        while(map.size()>maxSize)
+        {
+            iter.next();
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes all the entries, statistics are not reset.
+     */
+    public synchronized void clear()
+    {
+        map.clear();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public synchronized String toString()
+    {
+        return "ExpressionCache[size=" + map.size() + ", maxSize=" + maxSize
+            + ", hits=" + hits + ", misses=" + misses
+            + ", evictions=" + evictions + "]";
+    }
+
+    private static final class Key
+    {
+        private final String expression;
+        private final Object[] setup;
+        private final int hash;
+
+        Key(final String expression, final Object[] setup)
+        {
+            this.expression = expression;
+            this.setup = setup;
+            int h = expression.hashCode();
+            for(int i=0, len=setup.length;i<len;i++)
+            {
+                h = 31 * h + System.identityHashCode(setup[i]);
+            }
+            this.hash = h;
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(final Object obj)
+        {
+            if (obj==this) return true;
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            if (hash!=other.hash
+                || !expression.equals(other.expression)
+                || setup.length!=other.setup.length) return false;
+            for(int i=0, len=setup.length;i<len;i++)
+            {
+                if (setup[i]!=other.setup[i]) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Result of an evaluation profiled by {@link ExpressionProfiler}:
+ * the result of the expression, its times and an {@link Entry} for
+ * each location step, predicate, extension function and variable,
+ * in the order of the text of the expression.
+ * <p>The text returned by {@link #toString()} is a table with
+ * a row for each entry, the time column is the self time:
+ * the time of a step does not include the time of the steps
+ * before it nor of the paths in its predicates.
+ * <p>Instances are immutable.
+ * @author Michele Vivoda
+ */
+public final class ExpressionProfile
+{
+    private final String expression;
+    private final QName returnType;
+    private final Object result;
+    private final long parseTime;
+    private final long evaluationTime;
+    private final List entries;
+
+    ExpressionProfile(final String expression, final QName returnType,
+        final Object result, final long parseTime, final long evaluationTime,
+        final List counters)
+    {
+        this.expression = expression;
+        this.returnType = returnType;
+        this.result = result;
+        this.parseTime = parseTime;
+        this.evaluationTime = evaluationTime;
+        final List list = new ArrayList(counters.size());
+        for(int i=0, len=counters.size();i<len;i++)
+        {
+            final ProfilingCompiler.Counter counter = (ProfilingCompiler.Counter) counters.get(i);
+            if (counter.kind!=null) list.add(new Entry(counter));
+        }
+        this.entries = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return the text of the expression.
+     */
+    public String getExpression()
+    {
+        return expression;
+    }
+
+    /**
+     * @return the return type of the evaluation.
+     */
+    public QName getReturnType()
+    {
+        return returnType;
+    }
+
+    /**
+     * @return the result of the evaluation, of the return type.
+     */
+    public Object getResult()
+    {
+        return result;
+    }
+
+    /**
+     * @return the nanoseconds spent parsing the input
+     * source, 0 when the evaluated item was not an input source.
+     */
+    public long getParseTime()
+    {
+        return parseTime;
+    }
+
+    /**
+     * @return the nanoseconds of the evaluation, node
+     * sets are read fully.
+     */
+    public long getEvaluationTime()
+    {
+        return evaluationTime;
+    }
+
+    /**
+     * @return the unmodifiable list of the {@link Entry}s.
+     */
+    public List getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * Returns the nanoseconds of the evaluation not
+     * spent in the entries, like core functions and operations.
+     * @return the nanoseconds, never negative.
+     */
+    public long getOtherTime()
+    {
+        long time = evaluationTime;
+        for(int i=0, len=entries.size();i<len;i++) time -= ((Entry)entries.get(i)).getTime();
+        return Math.max(0, time);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString()
+    {
+        final StringBuffer buf = new StringBuffer();
+        buf.append(expression).append(" as ").append(returnType.getLocalPart())
+            .append(", evaluation ").append(micros(evaluationTime)).append("us");
+        if (parseTime>0) buf.append(", parse ").append(micros(parseTime)).append("us");
+        buf.append('\n');
+        row(buf, "kind", "visited", "passed", "calls", "self us", "%", "");
+        String path = null;
+        for(int i=0, len=entries.size();i<len;i++)
+        {
+            final Entry entry = (Entry) entries.get(i);
+            if (entry.getPath()!=null && !entry.getPath().equals(path))
+            {
+                path = entry.getPath();
+                row(buf, "path", "", "", "", "", "", indent(entry.getDepth()) + path);
+            }
+            final boolean calls = Entry.FUNCTION.equals(entry.getKind())
+                || Entry.VARIABLE.equals(entry.getKind());
+            row(buf, entry.getKind(),
+                calls ? "" : String.valueOf(entry.getVisited()),
+                calls ? "" : String.valueOf(entry.getPassed()),
+                calls ? String.valueOf(entry.getCalls()) : "",
+                micros(entry.getTime()), percent(entry.getTime()),
+                indent(entry.getDepth() + (Entry.PREDICATE.equals(entry.getKind()) ? 0 : 1))
+                    + entry.getText());
+        }
+        row(buf, "other", "", "", "", micros(getOtherTime()), percent(getOtherTime()), "");
+        return buf.toString();
+    }
+
+    private String percent(final long nanos)
+    {
+        if (evaluationTime<=0) return "";
+        return String.valueOf(Math.round(nanos * 1000.0 / evaluationTime) / 10.0);
+    }
+
+    private static String micros(final long nanos)
+    {
+        return String.valueOf(Math.round(nanos / 100.0) / 10.0);
+    }
+
+    private static String indent(final int depth)
+    {
+        final StringBuffer buf = new StringBuffer();
+        for(int i=0;i<depth;i++) buf.append("  ");
+        return buf.toString();
+    }
+
+    private static void row(final StringBuffer buf, final String kind, final String visited,
+        final String passed, final String calls, final String time, final String percent,
+        final String text)
+    {
+        pad(buf, kind, 10, false);
+        pad(buf, visited, 10, true);
+        pad(buf, passed, 10, true);
+        pad(buf, calls, 8, true);
+        pad(buf, time, 12, true);
+        pad(buf, percent, 7, true);
+        buf.append("  ").append(text).append('\n');
+    }
+
+    private static void pad(final StringBuffer buf, final String s, final int width,
+        final boolean right)
+    {
+        if (!right) buf.append(s);
+        for(int i=s.length();i<width;i++) buf.append(' ');
+        if (right) buf.append(s);
+    }
+
+    /**
+     * Profile of a location step, a predicate,
+     * an extension function or a variable.
+     */
+    public static final class Entry
+    {
+        /**
+         * Kind of a location step: visited nodes are the context
+         * nodes of the step, passed nodes are the selected nodes.
+         */
+        public static final String STEP = "step";
+        /**
+         * Kind of a predicate: visited nodes are the tested
+         * nodes, passed nodes are those for which it is true.
+         */
+        public static final String PREDICATE = "predicate";
+        /**
+         * Kind of an extension function, counts its calls.
+         */
+        public static final String FUNCTION = "function";
+        /**
+         * Kind of a variable reference, counts its calls.
+         */
+        public static final String VARIABLE = "variable";
+
+        private final String kind;
+        private final String path;
+        private final String text;
+        private final int depth;
+        private final long visited;
+        private final long passed;
+        private final long calls;
+        private final long time;
+
+        Entry(final ProfilingCompiler.Counter counter)
+        {
+            this.kind = counter.kind;
+            this.path = counter.path;
+            this.text = counter.text;
+            this.depth = counter.depth;
+            this.visited = counter.getVisited();
+            this.passed = counter.passed;
+            this.calls = counter.calls;
+            this.time = counter.nanos;
+        }
+
+        /**
+         * @return {@link #STEP}, {@link #PREDICATE},
+         * {@link #FUNCTION} or {@link #VARIABLE}.
+         */
+        public String getKind()
+        {
+            return kind;
+        }
+
+        /**
+         * @return the text of the path of a step or of a
+         * predicate, null for functions and variables.
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        /**
+         * @return the step, like <code>child::item</code>, the
+         * predicate, the function call or the variable.
+         */
+        public String getText()
+        {
+            return text;
+        }
+
+        /**
+         * @return the nesting in predicates and
+         * function arguments, 0 at the top level.
+         */
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        /**
+         * @return the visited nodes, see the kinds.
+         */
+        public long getVisited()
+        {
+            return visited;
+        }
+
+        /**
+         * @return the passed nodes, see the kinds.
+         */
+        public long getPassed()
+        {
+            return passed;
+        }
+
+        /**
+         * @return the calls of a function or of a variable.
+         */
+        public long getCalls()
+        {
+            return calls;
+        }
+
+        /**
+         * @return the self time in nanoseconds.
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        public String toString()
+        {
+            return kind + "[" + text + ", visited=" + visited + ", passed=" + passed
+                + ", calls=" + calls + ", time=" + time + "ns]";
+        }
+    }
+}
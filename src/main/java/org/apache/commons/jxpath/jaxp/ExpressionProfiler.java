@@ -0,0 +1,125 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.jxpath.JXPathException;
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory.XPathExpressionImpl;
+import org.apache.commons.jxpath.ri.Parser;
+import org.apache.commons.jxpath.ri.compiler.Expression;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Profiles the evaluations of an expression compiled by
+ * {@link JXPathXPathFactory}: counts, for each location step
+ * and predicate, the visited nodes and the nodes that passed,
+ * the calls of the extension functions and of the variables,
+ * and the time spent in each one.
+ * <pre>
+ * ExpressionProfiler profiler = new ExpressionProfiler(expr);
+ * ExpressionProfile profile = profiler.profile(document, XPathConstants.NODESET);
+ * System.out.println(profile);
+ * </pre>
+ * <p>The expression is compiled again into a tree that counts
+ * its work, evaluated with the resolvers and the namespace prefixes
+ * of the expression but without the shortcuts of the normal
+ * evaluation, like the simple paths of JXPath, the
+ * {@link DocumentIndex}, the {@link ResultCache} and the streaming
+ * evaluation, and without notifying the {@link EvaluationListener}:
+ * times are meant to compare the parts of an expression, not to
+ * measure the normal evaluation.
+ * <p>Instances are thread safe, profiled evaluations
+ * are serialized.
+ * @author Michele Vivoda
+ */
+public final class ExpressionProfiler
+{
+    private final XPathExpressionImpl expression;
+    private final Expression tree;
+    private final List counters = new ArrayList();
+
+    /**
+     * Creates a profiler.
+     * @param expression an expression compiled
+     * by {@link JXPathXPathFactory}.
+     * @throws XPathExpressionException when fails to compile it.
+     * @throws IllegalArgumentException when the expression was not
+     * compiled by {@link JXPathXPathFactory}.
+     */
+    public ExpressionProfiler(final XPathExpression expression) throws XPathExpressionException
+    {
+        if (!(expression instanceof XPathExpressionImpl))
+        {
+            throw new IllegalArgumentException("Not compiled by JXPathXPathFactory:" + expression);
+        }
+        this.expression = (XPathExpressionImpl) expression;
+        try
+        {
+            this.tree = (Expression) Parser.parseExpression(
+                this.expression.getXPathString(), new ProfilingCompiler());
+        }
+        catch(JXPathException e)
+        {
+            throw new XPathExpressionException(e);
+        }
+        ProfilingCompiler.collect(tree, counters);
+    }
+
+    /**
+     * Evaluates the expression on an item and returns its profile.
+     * @param item the context item.
+     * @param returnType the return type.
+     * @return the profile, with the result.
+     * @throws XPathExpressionException when the evaluation fails.
+     */
+    public synchronized ExpressionProfile profile(final Object item, final QName returnType)
+        throws XPathExpressionException
+    {
+        return profile(item, returnType, 0);
+    }
+
+    /**
+     * Parses an input source, like {@link XPathExpression#evaluate(InputSource, QName)}
+     * without the streaming evaluation, then evaluates the expression on the
+     * document and returns its profile.
+     * @param source the input source.
+     * @param returnType the return type.
+     * @return the profile, with the result and the parse time.
+     * @throws XPathExpressionException when the parsing or the evaluation fails.
+     */
+    public synchronized ExpressionProfile profile(final InputSource source, final QName returnType)
+        throws XPathExpressionException
+    {
+        final long start = System.nanoTime();
+        final Object document = expression.parse(source);
+        return profile(document, returnType, System.nanoTime() - start);
+    }
+
+    private ExpressionProfile profile(final Object item, final QName returnType,
+        final long parseTime) throws XPathExpressionException
+    {
+        for(int i=0, len=counters.size();i<len;i++)
+        {
+            ((ProfilingCompiler.Counter)counters.get(i)).reset();
+        }
+        final long start = System.nanoTime();
+        final Object result = expression.evaluateTree(tree, item, returnType);
+        try
+        {
+            // node sets are read lazily
+            if (result instanceof NodeList) ((NodeList)result).getLength();
+        }
+        catch(LazyNodeList.EvaluationException e)
+        {
+            throw e.getXPathException();
+        }
+        final long time = System.nanoTime() - start;
+        return new ExpressionProfile(expression.getXPathString(), returnType,
+            result, parseTime, time, counters);
+    }
+}
@@ -0,0 +1,334 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Named expressions compiled and warmed up once, at startup,
+ * so that the first evaluations do not pay for the compilation,
+ * the loading of the classes and the setup of the parsers.
+ * <p>A registry is created by
+ * {@link JXPathXPathFactory#newExpressionRegistry(Properties)}
+ * from properties, usually read from a configuration file:
+ * <pre>
+ * # namespace bindings
+ * ns.o=urn:orders
+ * # expressions, with optional return type
+ * expr.total=sum(//o:order/&#64;amount)
+ * type.total=number
+ * expr.first=//o:order[1]
+ * type.first=node
+ * # sample documents, a file, an URI or the XML text
+ * sample.1=conf/orders-sample.xml
+ * sample.2=&lt;o:orders xmlns:o='urn:orders'/&gt;
+ * </pre>
+ * <p>The return types are <code>string</code> (the default),
+ * <code>number</code>, <code>boolean</code>, <code>node</code>
+ * and <code>nodeset</code>. Each expression is compiled and
+ * evaluated once with its return type on each sample document,
+ * node sets are read fully, the time taken is reported by
+ * {@link #getWarmupTime()}.
+ * <pre>
+ * JXPathExpression total = registry.get("total");
+ * Double sum = (Double) registry.evaluate("total", doc);
+ * </pre>
+ * <p>Instances are immutable and thread safe.
+ * @author Michele Vivoda
+ */
+public final class ExpressionRegistry
+{
+    /**
+     * Prefix of the properties with an expression.
+     */
+    public static final String EXPRESSION_PREFIX = "expr.";
+    /**
+     * Prefix of the properties with the return type of an expression.
+     */
+    public static final String TYPE_PREFIX = "type.";
+    /**
+     * Prefix of the properties with a namespace binding.
+     */
+    public static final String NAMESPACE_PREFIX = "ns.";
+    /**
+     * Prefix of the properties with a sample document.
+     */
+    public static final String SAMPLE_PREFIX = "sample.";
+
+    private static final Map TYPES = new HashMap();
+    static
+    {
+        TYPES.put("string", XPathConstants.STRING);
+        TYPES.put("number", XPathConstants.NUMBER);
+        TYPES.put("boolean", XPathConstants.BOOLEAN);
+        TYPES.put("node", XPathConstants.NODE);
+        TYPES.put("nodeset", XPathConstants.NODESET);
+    }
+
+    private final Map expressions;
+    private final Map returnTypes;
+    private final String[] names;
+    private final long compileTime;
+    private final long warmupTime;
+    private final int evaluations;
+
+    /**
+     * Compiles and warms up the expressions of the properties.
+     * @param xpath an XPath of the factory, its namespace
+     * context is replaced.
+     * @param secure the secure mode of the factory, used to
+     * parse the sample documents.
+     * @param props the properties.
+     * @throws XPathExpressionException when an expression does not
+     * compile or fails on a sample, or a sample cannot be parsed.
+     */
+    ExpressionRegistry(final XPath xpath, final boolean secure, final Properties props)
+        throws XPathExpressionException
+    {
+        final long start = System.nanoTime();
+        final Map namespaces = new HashMap();
+        final TreeMap sources = new TreeMap();
+        final TreeMap texts = new TreeMap();
+        for(final Enumeration e = props.propertyNames();e.hasMoreElements();)
+        {
+            final String key = (String) e.nextElement();
+            final String value = props.getProperty(key);
+            if (key.startsWith(NAMESPACE_PREFIX))
+            {
+                namespaces.put(key.substring(NAMESPACE_PREFIX.length()), value);
+            }
+            else if (key.startsWith(SAMPLE_PREFIX))
+            {
+                sources.put(key.substring(SAMPLE_PREFIX.length()), value);
+            }
+            else if (key.startsWith(EXPRESSION_PREFIX))
+            {
+                texts.put(key.substring(EXPRESSION_PREFIX.length()), value);
+            }
+            else if (!key.startsWith(TYPE_PREFIX))
+            {
+                throw new IllegalArgumentException("Unknown property:" + key);
+            }
+        }
+        xpath.setNamespaceContext(new Namespaces(namespaces));
+        final Map compiledMap = new HashMap();
+        final Map typeMap = new HashMap();
+        for(final Iterator iter = texts.entrySet().iterator();iter.hasNext();)
+        {
+            final Map.Entry entry = (Map.Entry) iter.next();
+            final String name = (String) entry.getKey();
+            final String type = props.getProperty(TYPE_PREFIX + name, "string");
+            final QName returnType = (QName) TYPES.get(type);
+            if (returnType==null)
+            {
+                throw new IllegalArgumentException("Unknown type " + type + " of " + name);
+            }
+            try
+            {
+                compiledMap.put(name, xpath.compile((String)entry.getValue()));
+            }
+            catch(XPathExpressionException e)
+            {
+                throw error("Cannot compile " + name, e);
+            }
+            typeMap.put(name, returnType);
+        }
+        this.expressions = compiledMap;
+        this.returnTypes = typeMap;
+        this.names = (String[]) texts.keySet().toArray(new String[texts.size()]);
+        this.compileTime = System.nanoTime() - start;
+        int count = 0;
+        for(final Iterator iter = sources.entrySet().iterator();iter.hasNext();)
+        {
+            final Map.Entry entry = (Map.Entry) iter.next();
+            final String source = (String) entry.getValue();
+            final Document document;
+            try
+            {
+                document = JXPathXPathFactory.getDocument(source.startsWith("<")
+                    ? new InputSource(new StringReader(source))
+                    : new InputSource(source), secure);
+            }
+            catch(XPathExpressionException e)
+            {
+                throw error("Cannot parse sample " + entry.getKey(), e);
+            }
+            for(int i=0;i<names.length;i++)
+            {
+                try
+                {
+                    final Object result = evaluate(names[i], document);
+                    // node sets are read lazily
+                    if (result instanceof NodeList) ((NodeList)result).getLength();
+                }
+                catch(XPathExpressionException e)
+                {
+                    throw error("Cannot evaluate " + names[i]
+                        + " on sample " + entry.getKey(), e);
+                }
+                catch(LazyNodeList.EvaluationException e)
+                {
+                    throw error("Cannot evaluate " + names[i]
+                        + " on sample " + entry.getKey(), e.getXPathException());
+                }
+                count++;
+            }
+        }
+        if (sources.isEmpty())
+        {
+            // at least the setup of the parser
+            JXPathXPathFactory.getDocument(new InputSource(new StringReader("<warmup/>")), secure);
+        }
+        this.evaluations = count;
+        this.warmupTime = System.nanoTime() - start;
+    }
+
+    private static XPathExpressionException error(final String msg,
+        final XPathExpressionException cause)
+    {
+        final XPathExpressionException e = new XPathExpressionException(msg);
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * Returns an expression.
+     * @param name the name of the expression.
+     * @return the expression, null when not registered.
+     */
+    public JXPathExpression get(final String name)
+    {
+        return (JXPathExpression) expressions.get(name);
+    }
+
+    /**
+     * Returns the return type of an expression.
+     * @param name the name of the expression.
+     * @return the return type, null when not registered.
+     */
+    public QName getReturnType(final String name)
+    {
+        return (QName) returnTypes.get(name);
+    }
+
+    /**
+     * Evaluates an expression with its return type.
+     * @param name the name of the expression.
+     * @param item the context item.
+     * @return the result.
+     * @throws XPathExpressionException when fails.
+     * @throws IllegalArgumentException when the
+     * expression is not registered.
+     */
+    public Object evaluate(final String name, final Object item)
+        throws XPathExpressionException
+    {
+        final JXPathExpression expr = get(name);
+        if (expr==null) throw new IllegalArgumentException("Unknown expression:" + name);
+        return expr.evaluate(item, getReturnType(name));
+    }
+
+    /**
+     * Returns the names of the expressions, sorted.
+     * @return a new array.
+     */
+    public String[] getNames()
+    {
+        return (String[]) names.clone();
+    }
+
+    /**
+     * Returns the time taken to compile the expressions.
+     * @return the time in nanoseconds.
+     */
+    public long getCompileTime()
+    {
+        return compileTime;
+    }
+
+    /**
+     * Returns the time taken to compile the expressions
+     * and evaluate them on the sample documents.
+     * @return the time in nanoseconds.
+     */
+    public long getWarmupTime()
+    {
+        return warmupTime;
+    }
+
+    /**
+     * Returns the number of evaluations done on the sample documents.
+     * @return the evaluation count.
+     */
+    public int getWarmupEvaluations()
+    {
+        return evaluations;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString()
+    {
+        return "ExpressionRegistry[expressions=" + names.length
+            + ", compileTime=" + compileTime / 1000000 + "ms"
+            + ", warmupTime=" + warmupTime / 1000000 + "ms"
+            + ", evaluations=" + evaluations + "]";
+    }
+
+    /**
+     * Namespace bindings of the properties.
+     */
+    private static final class Namespaces implements NamespaceContext
+    {
+        private final Map uris;
+
+        Namespaces(final Map uris)
+        {
+            this.uris = uris;
+        }
+
+        public String getNamespaceURI(final String prefix)
+        {
+            if (prefix==null) throw new IllegalArgumentException("Null prefix");
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix)) return XMLConstants.XML_NS_URI;
+            final String uri = (String) uris.get(prefix);
+            return uri==null ? XMLConstants.NULL_NS_URI : uri;
+        }
+
+        public String getPrefix(final String namespaceURI)
+        {
+            final Iterator iter = getPrefixes(namespaceURI);
+            return iter.hasNext() ? (String) iter.next() : null;
+        }
+
+        public Iterator getPrefixes(final String namespaceURI)
+        {
+            if (namespaceURI==null) throw new IllegalArgumentException("Null namespace");
+            final TreeMap prefixes = new TreeMap();
+            for(final Iterator iter = uris.entrySet().iterator();iter.hasNext();)
+            {
+                final Map.Entry entry = (Map.Entry) iter.next();
+                if (namespaceURI.equals(entry.getValue())) prefixes.put(entry.getKey(), null);
+            }
+            return Collections.unmodifiableSet(prefixes.keySet()).iterator();
+        }
+    }
+}
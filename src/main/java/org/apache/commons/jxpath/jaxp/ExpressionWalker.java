@@ -0,0 +1,73 @@
+package org.apache.commons.jxpath.jaxp;
+
+import org.apache.commons.jxpath.ri.compiler.Expression;
+import org.apache.commons.jxpath.ri.compiler.ExpressionPath;
+import org.apache.commons.jxpath.ri.compiler.Operation;
+import org.apache.commons.jxpath.ri.compiler.Path;
+import org.apache.commons.jxpath.ri.compiler.Step;
+
+/**
+ * Walks the tree of a compiled JXPath {@link Expression},
+ * used to collect at compile time the informations needed
+ * by the evaluation, like the variables used by an expression.
+ * <p>Subclasses override the <code>visit</code> methods.
+ * @author Michele Vivoda
+ */
+abstract class ExpressionWalker
+{
+    /**
+     * Visits an expression and all its sub expressions,
+     * steps and predicates.
+     * @param expression the expression, null allowed.
+     */
+    final void walk(final Expression expression)
+    {
+        if (expression==null) return;
+        visitExpression(expression);
+        if (expression instanceof Operation)
+        {
+            walk(((Operation)expression).getArguments());
+        }
+        else if (expression instanceof Path)
+        {
+            if (expression instanceof ExpressionPath)
+            {
+                final ExpressionPath path = (ExpressionPath) expression;
+                walk(path.getExpression());
+                walk(path.getPredicates());
+            }
+            final Step[] steps = ((Path)expression).getSteps();
+            if (steps!=null)
+            {
+                for(int i=0;i<steps.length;i++)
+                {
+                    visitStep(steps[i]);
+                    walk(steps[i].getPredicates());
+                }
+            }
+        }
+    }
+
+    private void walk(final Expression[] expressions)
+    {
+        if (expressions==null) return;
+        for(int i=0;i<expressions.length;i++) walk(expressions[i]);
+    }
+
+    /**
+     * Called for each expression.
+     * @param expression the expression.
+     */
+    protected void visitExpression(final Expression expression)
+    {
+    }
+
+    /**
+     * Called for each step of a path,
+     * before the predicates of the step.
+     * @param step the step.
+     */
+    protected void visitStep(final Step step)
+    {
+    }
+}
@@ -0,0 +1,125 @@
+package org.apache.commons.jxpath.jaxp;
+
+/**
+ * Small open addressing map from
+ * (namespace, local name, arity) to a resolved function,
+ * used to resolve each extension function once.
+ * <p>Lookups do not lock and do not allocate: the table
+ * is copied on write and published through a volatile field,
+ * that is cheap because the number of distinct functions
+ * used by expressions is small.
+ * @author Michele Vivoda
+ */
+final class FunctionCache
+{
+    /**
+     * Value stored for functions not found by the resolver.
+     */
+    static final Object NOT_FOUND = new Object();
+
+    /**
+     * Entries after which new functions are not cached anymore.
+     */
+    private static final int MAX_SIZE = 1024;
+
+    private volatile Table table = new Table(16);
+
+    /**
+     * Returns the value for the key.
+     * @param namespace namespace of the function, null allowed.
+     * @param name local name of the function.
+     * @param arity number of arguments.
+     * @return the value, {@link #NOT_FOUND} or null when not cached.
+     */
+    Object get(final String namespace, final String name, final int arity)
+    {
+        final Table t = table;
+        final int mask = t.values.length - 1;
+        int i = hash(namespace, name, arity) & mask;
+        Object value;
+        while((value = t.values[i])!=null)
+        {
+            if (t.arities[i]==arity
+                && name.equals(t.names[i])
+                && (namespace==null ? t.namespaces[i]==null : namespace.equals(t.namespaces[i])))
+            {
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Adds a value.
+     * @param namespace namespace of the function, null allowed.
+     * @param name local name of the function.
+     * @param arity number of arguments.
+     * @param value the function or {@link #NOT_FOUND}.
+     */
+    synchronized void put(final String namespace, final String name,
+        final int arity, final Object value)
+    {
+        final Table current = table;
+        if (current.size>=MAX_SIZE || get(namespace, name, arity)!=null) return;
+        final int capacity = (current.size + 1) * 2 > current.values.length
+            ? current.values.length * 2 : current.values.length;
+        final Table t = new Table(capacity);
+        for(int i=0, len=current.values.length;i<len;i++)
+        {
+            if (current.values[i]!=null)
+            {
+                t.add(current.namespaces[i], current.names[i],
+                    current.arities[i], current.values[i]);
+            }
+        }
+        t.add(namespace, name, arity, value);
+        table = t;
+    }
+
+    /**
+     * Returns the number of cached entries.
+     * @return the size.
+     */
+    int size()
+    {
+        return table.size;
+    }
+
+    private static int hash(final String namespace, final String name, final int arity)
+    {
+        int h = name.hashCode() * 31 + arity;
+        if (namespace!=null) h = h * 31 + namespace.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Table
+    {
+        final String[] namespaces;
+        final String[] names;
+        final int[] arities;
+        final Object[] values;
+        int size;
+
+        Table(final int capacity)
+        {
+            namespaces = new String[capacity];
+            names = new String[capacity];
+            arities = new int[capacity];
+            values = new Object[capacity];
+        }
+
+        void add(final String namespace, final String name,
+            final int arity, final Object value)
+        {
+            final int mask = values.length - 1;
+            int i = hash(namespace, name, arity) & mask;
+            while(values[i]!=null) i = (i + 1) & mask;
+            namespaces[i] = namespace;
+            names[i] = name;
+            arities[i] = arity;
+            values[i] = value;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.jxpath.CompiledExpression;
+import org.apache.commons.jxpath.JXPathContext;
+import org.apache.commons.jxpath.ri.Compiler;
+import org.apache.commons.jxpath.ri.JXPathCompiledExpression;
+import org.apache.commons.jxpath.ri.compiler.Constant;
+import org.apache.commons.jxpath.ri.compiler.CoreFunction;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationEqual;
+import org.apache.commons.jxpath.ri.compiler.Expression;
+import org.apache.commons.jxpath.ri.compiler.LocationPath;
+import org.apache.commons.jxpath.ri.compiler.NodeNameTest;
+import org.apache.commons.jxpath.ri.compiler.NodeTypeTest;
+import org.apache.commons.jxpath.ri.compiler.Step;
+import org.apache.commons.jxpath.ri.model.NodePointer;
+import org.apache.commons.jxpath.ri.model.dom.DOMNodePointer;
+import org.eleusoft.jaxp.common.NodeListImpl;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Evaluation of an expression with the {@link DocumentIndex}
+ * of the context document, without walking the document.
+ * <p>Expressions are checked by {@link #compile(Expression)},
+ * the supported ones are <code>//name</code> and
+ * <code>/descendant::name</code> with an unprefixed element name,
+ * optionally with a predicate <code>[&#64;a='literal']</code>,
+ * followed by any relative path, optionally as the argument
+ * of <code>count</code>.
+ * <p>The relative path is evaluated by JXPath from the
+ * selected element when only one element is selected,
+ * otherwise the expression is left to JXPath.
+ * <p>Instances are immutable and thread safe.
+ * @author Michele Vivoda
+ */
+final class IndexedPath
+{
+    /**
+     * Returned by {@link #evaluate} when
+     * the index cannot be used.
+     */
+    static final Object NOT_INDEXED = new Object();
+
+    private final boolean count;
+    /**
+     * True for <code>//name</code>, false for <code>/descendant::name</code>.
+     */
+    private final boolean byParent;
+    private final String name;
+    private final String attribute;
+    private final String value;
+    private final CompiledExpression remainder;
+
+    private IndexedPath(final boolean count, final boolean byParent, final String name,
+        final String attribute, final String value, final CompiledExpression remainder)
+    {
+        this.count = count;
+        this.byParent = byParent;
+        this.name = name;
+        this.attribute = attribute;
+        this.value = value;
+        this.remainder = remainder;
+    }
+
+    /**
+     * Checks whether an expression can be evaluated
+     * with an index and prepares its evaluation.
+     * @param expression the parsed expression.
+     * @return the indexed path or null
+     * when the expression is not supported.
+     */
+    static IndexedPath compile(final Expression expression)
+    {
+        boolean count = false;
+        Expression path = expression;
+        if (expression instanceof CoreFunction)
+        {
+            final CoreFunction function = (CoreFunction) expression;
+            if (function.getFunctionCode()!=Compiler.FUNCTION_COUNT
+                || function.getArgumentCount()!=1) return null;
+            count = true;
+            path = function.getArg1();
+        }
+        if (!(path instanceof LocationPath) || !((LocationPath)path).isAbsolute()) return null;
+        final Step[] steps = ((LocationPath)path).getSteps();
+        if (steps==null || steps.length==0) return null;
+        int first = 0;
+        if (steps[0].getAxis()==Compiler.AXIS_DESCENDANT_OR_SELF)
+        {
+            // the node() step of //
+            if (steps.length<2 || hasPredicates(steps[0])
+                || !(steps[0].getNodeTest() instanceof NodeTypeTest)
+                || ((NodeTypeTest)steps[0].getNodeTest()).getNodeType()!=Compiler.NODE_TYPE_NODE
+                || steps[1].getAxis()!=Compiler.AXIS_CHILD) return null;
+            first = 1;
+        }
+        else if (steps[0].getAxis()!=Compiler.AXIS_DESCENDANT) return null;
+        final Step step = steps[first];
+        final String name = getName(step);
+        if (name==null || name.equals("*")) return null;
+        String attribute = null;
+        String value = null;
+        if (hasPredicates(step))
+        {
+            final Expression[] preds = step.getPredicates();
+            if (preds.length!=1 || !(preds[0] instanceof CoreOperationEqual)) return null;
+            final Expression[] args = ((CoreOperationEqual)preds[0]).getArguments();
+            for(int i=0;i<2 && attribute==null;i++)
+            {
+                final Expression other = args[1 - i];
+                if (other instanceof Constant && other.computeValue(null) instanceof String)
+                {
+                    attribute = getAttribute(args[i]);
+                    value = (String) other.computeValue(null);
+                }
+            }
+            if (attribute==null) return null;
+        }
+        CompiledExpression remainder = null;
+        if (first + 1<steps.length)
+        {
+            // counting the nodes of the relative path needs
+            // them all, left to JXPath.
+            if (count) return null;
+            final Step[] rest = new Step[steps.length - first - 1];
+            System.arraycopy(steps, first + 1, rest, 0, rest.length);
+            final LocationPath relative = new LocationPath(false, rest);
+            remainder = new JXPathCompiledExpression(relative.toString(), relative);
+        }
+        return new IndexedPath(count, first==1, name, attribute, value, remainder);
+    }
+
+    /**
+     * Evaluates this path with an index.
+     * @param index the index of the context document.
+     * @param ctx the context of the document, used
+     * for the relative path.
+     * @param xpathString the text of the expression, for errors.
+     * @param returnType the return type.
+     * @return the result or {@link #NOT_INDEXED}.
+     * @throws XPathExpressionException when fails.
+     */
+    Object evaluate(final DocumentIndex index, final JXPathContext ctx,
+        final String xpathString, final QName returnType) throws XPathExpressionException
+    {
+        final List nodes = select(index);
+        if (count)
+        {
+            if (XPathConstants.NODE.equals(returnType)
+                || XPathConstants.NODESET.equals(returnType)) return NOT_INDEXED;
+            return JXPathXPathFactory.convertValue(Double.valueOf(nodes.size()), returnType);
+        }
+        if (remainder!=null)
+        {
+            if (nodes.size()==0)
+            {
+                return XPathConstants.NODESET.equals(returnType)
+                    ? new NodeListImpl(Collections.EMPTY_LIST)
+                    : JXPathXPathFactory.convertValue(null, returnType);
+            }
+            if (nodes.size()!=1) return NOT_INDEXED;
+            final JXPathContext relative = ctx.getRelativeContext(
+                getPointer((NodePointer)ctx.getContextPointer(), (Node)nodes.get(0)));
+            return JXPathXPathFactory.XPathExpressionImpl.evaluateCompiled(
+                remainder, xpathString, relative, returnType);
+        }
+        if (XPathConstants.NODESET.equals(returnType)) return new NodeListImpl(nodes);
+        final Object first = first(nodes);
+        if (XPathConstants.NODE.equals(returnType)) return first;
+        return JXPathXPathFactory.convertValue(first, returnType);
+    }
+
+    /**
+     * Returns the node selected by JXPath as the first one,
+     * the children of <code>//</code> are found parent by parent
+     * in document order, so a child of an ancestor comes before
+     * a deeper node that precedes it.
+     */
+    private Object first(final List nodes)
+    {
+        if (nodes.size()==0) return null;
+        Node first = (Node) nodes.get(0);
+        if (!byParent) return first;
+        for(int i=1;i<nodes.size();i++)
+        {
+            final Node node = (Node) nodes.get(i);
+            final Node parent = node.getParentNode();
+            if (parent!=first.getParentNode()
+                && (parent.compareDocumentPosition(first.getParentNode())
+                    & Node.DOCUMENT_POSITION_FOLLOWING)!=0) first = node;
+        }
+        return first;
+    }
+
+    /**
+     * Returns the selected elements, in document order.
+     */
+    private List select(final DocumentIndex index)
+    {
+        if (attribute==null) return index.getElements(null, name);
+        List candidates = index.getElementsByAttribute(attribute, value);
+        final boolean byAttribute = candidates!=null;
+        if (!byAttribute) candidates = index.getElements(null, name);
+        final List selected = new ArrayList();
+        for(int i=0;i<candidates.size();i++)
+        {
+            final Element element = (Element) candidates.get(i);
+            if (byAttribute ? isNamed(element) : hasValue(element)) selected.add(element);
+        }
+        return selected;
+    }
+
+    private boolean isNamed(final Element element)
+    {
+        return DOMNodePointer.getNamespaceURI(element)==null
+            && name.equals(DOMNodePointer.getLocalName(element));
+    }
+
+    private boolean hasValue(final Element element)
+    {
+        final Attr attr = element.getAttributeNode(attribute);
+        // as the value of DOMAttributePointer
+        if (attr==null || attr.getValue().length()==0 && !attr.getSpecified()) return false;
+        return value.equals(attr.getValue());
+    }
+
+    /**
+     * Returns the pointer of a node built from the
+     * pointer of its document, as JXPath does when
+     * it walks the document.
+     */
+    private static NodePointer getPointer(final NodePointer root, final Node node)
+    {
+        if (node==null || node instanceof Document) return root;
+        return new DOMNodePointer(getPointer(root, node.getParentNode()), node);
+    }
+
+    private static boolean hasPredicates(final Step step)
+    {
+        return step.getPredicates()!=null && step.getPredicates().length>0;
+    }
+
+    /**
+     * Returns the unprefixed name tested by a step,
+     * <code>*</code> for the wildcard.
+     */
+    private static String getName(final Step step)
+    {
+        if (!(step.getNodeTest() instanceof NodeNameTest)) return null;
+        final org.apache.commons.jxpath.ri.QName name =
+            ((NodeNameTest)step.getNodeTest()).getNodeName();
+        return name.getPrefix()==null ? name.getName() : null;
+    }
+
+    /**
+     * Returns the attribute name of a relative
+     * <code>&#64;name</code> path, null otherwise.
+     */
+    private static String getAttribute(final Expression e)
+    {
+        if (!(e instanceof LocationPath) || ((LocationPath)e).isAbsolute()) return null;
+        final Step[] steps = ((LocationPath)e).getSteps();
+        if (steps.length!=1 || steps[0].getAxis()!=Compiler.AXIS_ATTRIBUTE
+            || hasPredicates(steps[0])) return null;
+        final String name = getName(steps[0]);
+        return name==null || name.equals("*") ? null : name;
+    }
+}
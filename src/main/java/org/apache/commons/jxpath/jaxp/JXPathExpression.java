@@ -0,0 +1,79 @@
+package org.apache.commons.jxpath.jaxp;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+/**
+ * Extension of {@link XPathExpression} implemented by the
+ * expressions compiled by the {@link javax.xml.xpath.XPath}s
+ * of {@link JXPathXPathFactory}.
+ * <p>Variables can be bound when calling evaluate, without
+ * going through the {@link javax.xml.xpath.XPathVariableResolver}:
+ * values are passed in the order of {@link #getVariableNames()},
+ * computed when the expression is compiled.
+ * <pre>
+ * JXPathExpression expr = (JXPathExpression) xpath.compile(
+ *     "//order[&#64;customer=$c and &#64;region=$r]");
+ * // expr.getVariableNames() is {"c", "r"}
+ * NodeList orders = (NodeList) expr.evaluate(doc,
+ *     XPathConstants.NODESET, new Object[]{"ACME", "EU"});
+ * </pre>
+ * <p>Expressions are immutable and can be shared between threads:
+ * the resolvers and the namespace context are those of the
+ * {@link javax.xml.xpath.XPath} at compile time, later changes
+ * to the XPath do not affect them, and each evaluation has its
+ * own state. Resolvers must be thread safe when the expression is
+ * shared, and a context item must not be read by another thread
+ * while it is evaluated, see {@link ParallelEvaluator}.
+ * @author Michele Vivoda
+ */
+public interface JXPathExpression extends XPathExpression
+{
+    /**
+     * Returns the names of the variables used by this expression,
+     * in order of first appearance.
+     * @return a new array of names, never null.
+     */
+    String[] getVariableNames();
+
+    /**
+     * Evaluates this expression with the given variable values.
+     * <p>A null value, or a null array, means that the variable
+     * is resolved by the {@link javax.xml.xpath.XPathVariableResolver},
+     * as in {@link #evaluate(Object, QName)}.
+     * @param item the context item.
+     * @param returnType the return type, one of the
+     * {@link javax.xml.xpath.XPathConstants}.
+     * @param variables the values, one for each
+     * name in {@link #getVariableNames()}.
+     * @return the result.
+     * @throws XPathExpressionException when fails.
+     * @throws IllegalArgumentException when the number
+     * of values is wrong.
+     */
+    Object evaluate(Object item, QName returnType, Object[] variables)
+        throws XPathExpressionException;
+
+    /**
+     * Evaluates this expression as a boolean, like
+     * {@link #evaluate(Object, QName)} with
+     * {@link javax.xml.xpath.XPathConstants#BOOLEAN},
+     * without creating a Boolean for the result.
+     * @param item the context item.
+     * @return the result.
+     * @throws XPathExpressionException when fails.
+     */
+    boolean evaluateBoolean(Object item) throws XPathExpressionException;
+
+    /**
+     * Evaluates this expression as a number, like
+     * {@link #evaluate(Object, QName)} with
+     * {@link javax.xml.xpath.XPathConstants#NUMBER},
+     * without creating a Double for the result.
+     * @param item the context item.
+     * @return the result.
+     * @throws XPathExpressionException when fails.
+     */
+    double evaluateDouble(Object item) throws XPathExpressionException;
+}
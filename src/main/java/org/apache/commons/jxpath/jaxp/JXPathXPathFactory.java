@@ -1,17 +1,19 @@
 package org.apache.commons.jxpath.jaxp;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Properties;
+import java.util.RandomAccess;
 import java.util.Set;
 
 import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
@@ -32,11 +34,25 @@ import org.apache.commons.jxpath.JXPathException;
 import org.apache.commons.jxpath.NodeSet;
 import org.apache.commons.jxpath.Pointer;
 import org.apache.commons.jxpath.Variables;
+import org.apache.commons.jxpath.ri.Compiler;
+import org.apache.commons.jxpath.ri.JXPathCompiledExpression;
+import org.apache.commons.jxpath.ri.JXPathContextReferenceImpl;
+import org.apache.commons.jxpath.ri.Parser;
+import org.apache.commons.jxpath.ri.compiler.Constant;
+import org.apache.commons.jxpath.ri.compiler.CoreFunction;
+import org.apache.commons.jxpath.ri.compiler.CoreOperation;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationUnion;
+import org.apache.commons.jxpath.ri.compiler.Expression;
+import org.apache.commons.jxpath.ri.compiler.ExtensionFunction;
+import org.apache.commons.jxpath.ri.compiler.NodeNameTest;
+import org.apache.commons.jxpath.ri.compiler.Step;
+import org.apache.commons.jxpath.ri.compiler.TreeCompiler;
+import org.apache.commons.jxpath.ri.compiler.VariableReference;
 import org.eleusoft.jaxp.common.AbstractResolvers;
 import org.eleusoft.jaxp.common.AbstractXPathFactory;
-import org.eleusoft.jaxp.common.NodeListImpl;
 import org.eleusoft.jaxp.common.XPathValues;
 import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
@@ -61,6 +77,73 @@ public class JXPathXPathFactory extends AbstractXPathFactory
      */
     public static final String URI =
         "http://commons.apache.org/jxpath";
+
+    /**
+     * Feature to enable the {@link ExpressionCache} used
+     * by the string evaluation methods of {@link XPath},
+     * enabled by default.
+     */
+    public static final String FEATURE_EXPRESSION_CACHE =
+        "http://commons.apache.org/jxpath/jaxp/features/expression-cache";
+
+    /**
+     * Feature to evaluate over the SAX events of an
+     * {@link InputSource}, without building a DOM, the expressions
+     * supported by the streaming evaluation when the return type is
+     * a string, a number or a boolean; other expressions, and all
+     * expressions in secure mode, are evaluated over a DOM.
+     * Disabled by default because evaluations that need only the
+     * first selected node do not read the rest of the document.
+     */
+    public static final String FEATURE_STREAMING =
+        "http://commons.apache.org/jxpath/jaxp/features/streaming";
+
+    /**
+     * Feature to enable the {@link DocumentCache} used by
+     * the evaluations over an {@link InputSource} naming a local
+     * file, disabled by default because the cached documents
+     * are shared and must not be changed.
+     */
+    public static final String FEATURE_DOCUMENT_CACHE =
+        "http://commons.apache.org/jxpath/jaxp/features/document-cache";
+
+    /**
+     * Feature to enable the {@link ResultCache} used by the
+     * compiled expressions evaluated over DOM nodes, disabled by
+     * default because cached node sets are read fully and the
+     * documents are watched by mutation listeners.
+     */
+    public static final String FEATURE_RESULT_CACHE =
+        "http://commons.apache.org/jxpath/jaxp/features/result-cache";
+
+    /**
+     * Feature to parse the {@link InputSource}s evaluated by the
+     * compiled expressions into a read only {@link CompactDocument}
+     * instead of a DOM, not in secure mode. Disabled by default
+     * because the returned nodes are read only views.
+     */
+    public static final String FEATURE_COMPACT_DOCUMENT =
+        "http://commons.apache.org/jxpath/jaxp/features/compact-document";
+
+    /**
+     * Feature to navigate the Java beans evaluated with the
+     * {@link #URI} object model using the {@link BeanAccessors}
+     * of this factory, enabled by default.
+     */
+    public static final String FEATURE_BEAN_ACCESSORS =
+        "http://commons.apache.org/jxpath/jaxp/features/bean-accessors";
+
+    private final ExpressionCache expressionCache = new ExpressionCache();
+    private boolean expressionCacheEnabled = true;
+    private boolean streaming;
+    private final DocumentCache documentCache = new DocumentCache();
+    private boolean documentCacheEnabled;
+    private final ResultCache resultCache = new ResultCache();
+    private boolean resultCacheEnabled;
+    private boolean compact;
+    private final BeanAccessors beanAccessors = new BeanAccessors();
+    private boolean beanAccessorsEnabled = true;
+    private EvaluationListener evaluationListener;
  
     /*
      * (non-Javadoc)
@@ -77,26 +160,210 @@ public class JXPathXPathFactory extends AbstractXPathFactory
      */
     public XPath newXPath()
     {
-        return new XPathImpl(variableResolver, functionResolver, secure);
+        return new XPathImpl(variableResolver, functionResolver, secure,
+            expressionCacheEnabled ? expressionCache : null, streaming,
+            documentCacheEnabled ? documentCache : null,
+            resultCacheEnabled ? resultCache : null, compact, evaluationListener,
+            beanAccessorsEnabled ? beanAccessors : null);
+    }
+    /*
+     * (non-Javadoc)
+     * @see javax.xml.xpath.XPathFactory#setFeature(java.lang.String, boolean)
+     */
+    public void setFeature(final String name, final boolean value)
+        throws XPathFactoryConfigurationException
+    {
+        if (FEATURE_EXPRESSION_CACHE.equals(name))
+        {
+            expressionCacheEnabled = value;
+        }
+        else if (FEATURE_STREAMING.equals(name))
+        {
+            streaming = value;
+        }
+        else if (FEATURE_DOCUMENT_CACHE.equals(name))
+        {
+            documentCacheEnabled = value;
+        }
+        else if (FEATURE_RESULT_CACHE.equals(name))
+        {
+            resultCacheEnabled = value;
+        }
+        else if (FEATURE_COMPACT_DOCUMENT.equals(name))
+        {
+            compact = value;
+        }
+        else if (FEATURE_BEAN_ACCESSORS.equals(name))
+        {
+            beanAccessorsEnabled = value;
+        }
+        else super.setFeature(name, value);
+    }
+    /*
+     * (non-Javadoc)
+     * @see javax.xml.xpath.XPathFactory#getFeature(java.lang.String)
+     */
+    public boolean getFeature(final String name)
+        throws XPathFactoryConfigurationException
+    {
+        if (FEATURE_EXPRESSION_CACHE.equals(name))
+        {
+            return expressionCacheEnabled;
+        }
+        if (FEATURE_STREAMING.equals(name))
+        {
+            return streaming;
+        }
+        if (FEATURE_DOCUMENT_CACHE.equals(name))
+        {
+            return documentCacheEnabled;
+        }
+        if (FEATURE_RESULT_CACHE.equals(name))
+        {
+            return resultCacheEnabled;
+        }
+        if (FEATURE_COMPACT_DOCUMENT.equals(name))
+        {
+            return compact;
+        }
+        if (FEATURE_BEAN_ACCESSORS.equals(name))
+        {
+            return beanAccessorsEnabled;
+        }
+        return super.getFeature(name);
+    }
+    /**
+     * Returns the cache of compiled expressions shared by
+     * the {@link XPath}s created by this factory.
+     * @return the cache, never null.
+     */
+    public ExpressionCache getExpressionCache()
+    {
+        return expressionCache;
+    }
+    /**
+     * Creates a registry of named expressions compiled by a new
+     * {@link XPath} of this factory, and warms them up on the
+     * sample documents of the properties.
+     * @param props the expressions, namespaces and samples,
+     * see {@link ExpressionRegistry}.
+     * @return the registry.
+     * @throws XPathExpressionException when an expression does not
+     * compile or fails on a sample, or a sample cannot be parsed.
+     */
+    public ExpressionRegistry newExpressionRegistry(final Properties props)
+        throws XPathExpressionException
+    {
+        return new ExpressionRegistry(newXPath(), secure, props);
+    }
+    /**
+     * Returns the cache of parsed documents shared by
+     * the {@link XPath}s created by this factory.
+     * @return the cache, never null.
+     */
+    public DocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+    /**
+     * Returns the cache of results shared by
+     * the {@link XPath}s created by this factory.
+     * @return the cache, never null.
+     */
+    public ResultCache getResultCache()
+    {
+        return resultCache;
+    }
+    /**
+     * Returns the property tables of the Java beans
+     * navigated by the {@link XPath}s created by this factory.
+     * @return the accessors, never null.
+     */
+    public BeanAccessors getBeanAccessors()
+    {
+        return beanAccessors;
+    }
+    /**
+     * Sets the listener notified of the compilations, parsing,
+     * evaluations and resolver calls of the {@link XPath}s
+     * created afterwards by this factory, see {@link EvaluationMetrics}.
+     * Without a listener the only cost is a null check.
+     * @param listener the listener, null to disable.
+     */
+    public void setEvaluationListener(final EvaluationListener listener)
+    {
+        this.evaluationListener = listener;
+    }
+    /**
+     * Returns the listener of the evaluations.
+     * @return the listener, null when not set.
+     */
+    public EvaluationListener getEvaluationListener()
+    {
+        return evaluationListener;
     }
     
     /**
-     * Baseclass for {@link XPathImpl} and {@link XPathExpressionImpl}.
+     * Baseclass for {@link XPathImpl}, holds the resolvers
+     * and the helpers used by the evaluation.
      */
-    private static class ResolversSupport extends AbstractResolvers
+    static class ResolversSupport extends AbstractResolvers
     {
-        
+        /**
+         * The template for the current resolvers,
+         * null when not yet created or when the
+         * resolvers have been changed.
+         */
+        private ContextTemplate template;
+        /**
+         * Listener of the evaluations, null allowed.
+         */
+        protected final EvaluationListener listener;
+        /**
+         * Accessors of the Java beans, null allowed.
+         */
+        protected final BeanAccessors accessors;
+
         /**
          * Constructor for subclasses.
          * @param vr optional {@link XPathVariableResolver}
          * @param fr optional {@link XPathFunctionResolver}
          * @param secure secure mode flag.
+         * @param listener optional {@link EvaluationListener}
+         * @param accessors optional {@link BeanAccessors}
          */
         protected ResolversSupport(final XPathVariableResolver vr,
                                    final XPathFunctionResolver fr,
-                                   final boolean secure)
+                                   final boolean secure,
+                                   final EvaluationListener listener,
+                                   final BeanAccessors accessors)
         {
             super(vr,fr,secure);
+            this.listener = listener;
+            this.accessors = accessors;
+        }
+        /**
+         * Returns the {@link ContextTemplate} for the
+         * current resolvers and namespace context.
+         * @return a ContextTemplate, never null.
+         */
+        protected ContextTemplate getTemplate()
+        {
+            if (template==null)
+            {
+                template = new ContextTemplate(functionResolver,
+                    variableResolver, nsContext, secure, listener, accessors);
+            }
+            return template;
+        }
+        /**
+         * Sets the template.
+         * @param template the template, null to create
+         * it again from the current resolvers.
+         */
+        protected void setTemplate(final ContextTemplate template)
+        {
+            this.template = template;
         }
         /**
          * Returns a new, configured, instance of JXPathContext
@@ -105,37 +372,67 @@ public class JXPathXPathFactory extends AbstractXPathFactory
          */
         protected JXPathContext newContext(final Object obj)
         {
-            final JXPathContext ctx = JXPathContext.newContext(obj);
-            ctx.setLenient(true);
-            // Functions
-            if (secure)
-            {
-                ctx.setFunctions(SECUREFUNCTIONS);
-            }
-            else if (functionResolver!=null)
-            {
-                ctx.setFunctions(new FunctionsImpl(functionResolver, nsContext));
-            }
-            // Variables
-            if (variableResolver!=null)
-            {
-                ctx.setVariables(new VariablesImpl(variableResolver, nsContext));
-            }
-            return ctx;
+            return getTemplate().newContext(obj);
+        }
+        /*
+         * (non-Javadoc)
+         * @see javax.xml.xpath.XPath#setXPathVariableResolver(javax.xml.xpath.XPathVariableResolver)
+         */
+        public void setXPathVariableResolver(final XPathVariableResolver resolver)
+        {
+            super.setXPathVariableResolver(resolver);
+            this.template = null;
+        }
+        /*
+         * (non-Javadoc)
+         * @see javax.xml.xpath.XPath#setXPathFunctionResolver(javax.xml.xpath.XPathFunctionResolver)
+         */
+        public void setXPathFunctionResolver(final XPathFunctionResolver resolver)
+        {
+            super.setXPathFunctionResolver(resolver);
+            this.template = null;
+        }
+        /*
+         * (non-Javadoc)
+         * @see javax.xml.xpath.XPath#setNamespaceContext(javax.xml.namespace.NamespaceContext)
+         */
+        public void setNamespaceContext(final NamespaceContext nsContext)
+        {
+            super.setNamespaceContext(nsContext);
+            this.template = null;
         }
-        
+
+        /**
+         * Variables of an evaluation, each variable is
+         * resolved at most once and only when used.
+         */
         private static class VariablesImpl implements Variables
         {
             /**
              * 
              */
             private static final long serialVersionUID = 1L;
+            /**
+             * Marker for values not yet resolved.
+             */
+            private static final Object UNRESOLVED = new Object();
             final XPathVariableResolver variableResolver;
-            //final NamespaceContext nsContext;
-            VariablesImpl(final XPathVariableResolver resolver, final NamespaceContext ns)
+            private final VariableNames names;
+            private final Object[] values;
+            private final EvaluationListener listener;
+            VariablesImpl(final VariableNames names,
+                final XPathVariableResolver resolver,
+                final Object[] bound,
+                final EvaluationListener listener)
             {
                 this.variableResolver = resolver;
-                //this.nsContext = ns;
+                this.listener = listener;
+                this.names = names;
+                this.values = new Object[names.size()];
+                for(int i=0;i<values.length;i++)
+                {
+                    values[i] = bound==null || bound[i]==null ? UNRESOLVED : bound[i];
+                }
             }
 
             public void declareVariable(String varName, Object value)
@@ -145,8 +442,25 @@ public class JXPathXPathFactory extends AbstractXPathFactory
 
             public Object getVariable(String varName)
             {
-                // TODO issue: JXPath does not use qnames for variables ?
-                return variableResolver.resolveVariable(new QName(XMLConstants.NULL_NS_URI, varName));
+                final int index = names.indexOf(varName);
+                if (index<0) return resolve(names.getQName(varName));
+                Object value = values[index];
+                if (value==UNRESOLVED)
+                {
+                    value = resolve(names.getQName(index));
+                    values[index] = value;
+                }
+                return value;
+            }
+
+            private Object resolve(final QName name)
+            {
+                if (variableResolver==null) return null;
+                if (listener!=null)
+                {
+                    listener.resolverCalled(EvaluationListener.VARIABLE_RESOLVED, name);
+                }
+                return variableResolver.resolveVariable(name);
             }
 
             public boolean isDeclaredVariable(String varName)
@@ -160,6 +474,221 @@ public class JXPathXPathFactory extends AbstractXPathFactory
             }
 
         }
+        /**
+         * Immutable table of the variables used by
+         * an expression, collected at compile time.
+         */
+        static final class VariableNames
+        {
+            /**
+             * Table for expressions without variables.
+             */
+            static final VariableNames EMPTY = new VariableNames(new String[0]);
+
+            private final String[] names;
+            private final QName[] qnames;
+
+            private VariableNames(final String[] names)
+            {
+                this.names = names;
+                this.qnames = new QName[names.length];
+                for(int i=0;i<names.length;i++) qnames[i] = getQName(names[i]);
+            }
+            /**
+             * Collects the variables of an expression,
+             * in order of appearance.
+             * @param expression the expression.
+             * @return the table, never null.
+             */
+            static VariableNames collect(final Expression expression)
+            {
+                final ArrayList list = new ArrayList();
+                new ExpressionWalker()
+                {
+                    protected void visitExpression(final Expression e)
+                    {
+                        if (e instanceof VariableReference)
+                        {
+                            final String name = ((VariableReference)e).getVariableName().toString();
+                            if (!list.contains(name)) list.add(name);
+                        }
+                    }
+                }.walk(expression);
+                return list.isEmpty() ? EMPTY
+                    : new VariableNames((String[]) list.toArray(new String[list.size()]));
+            }
+            /**
+             * Returns the union of some tables, used when
+             * expressions share an evaluation context.
+             * @param tables the tables.
+             * @return the table, never null.
+             */
+            static VariableNames union(final VariableNames[] tables)
+            {
+                final ArrayList list = new ArrayList();
+                for(int i=0;i<tables.length;i++)
+                {
+                    for(int j=0, len=tables[i].size();j<len;j++)
+                    {
+                        final String name = tables[i].getName(j);
+                        if (!list.contains(name)) list.add(name);
+                    }
+                }
+                return list.isEmpty() ? EMPTY
+                    : new VariableNames((String[]) list.toArray(new String[list.size()]));
+            }
+            int size()
+            {
+                return names.length;
+            }
+            int indexOf(final String name)
+            {
+                for(int i=0;i<names.length;i++)
+                {
+                    if (names[i].equals(name)) return i;
+                }
+                return -1;
+            }
+            String getName(final int index)
+            {
+                return names[index];
+            }
+            QName getQName(final int index)
+            {
+                return qnames[index];
+            }
+            QName getQName(final String name)
+            {
+                // TODO issue: JXPath does not use qnames for variables ?
+                return new QName(XMLConstants.NULL_NS_URI, name);
+            }
+        }
+        /**
+         * Immutable table of the namespace prefixes used by
+         * the steps and the extension functions of an expression,
+         * resolved at compile time with the {@link NamespaceContext}.
+         * <p>The table is registered once on the parent context
+         * of the expression, see {@link ContextTemplate#withNamespaces},
+         * so JXPath finds the prefixes in its namespace resolver without
+         * calling the namespace context or looking up the declarations
+         * in scope in the document; prefixes not bound by the namespace
+         * context are not in the table and are still resolved
+         * from the document.
+         */
+        static final class NamespaceTable
+        {
+            /**
+             * Table for expressions without bound prefixes.
+             */
+            static final NamespaceTable EMPTY = new NamespaceTable(new String[0], new String[0]);
+
+            private final String[] prefixes;
+            private final String[] uris;
+
+            private NamespaceTable(final String[] prefixes, final String[] uris)
+            {
+                this.prefixes = prefixes;
+                this.uris = uris;
+            }
+            /**
+             * Collects and resolves the prefixes of an expression.
+             * @param expression the expression.
+             * @param nsContext the namespace context, null allowed.
+             * @return the table, never null.
+             */
+            static NamespaceTable collect(final Expression expression,
+                final NamespaceContext nsContext)
+            {
+                if (nsContext==null) return EMPTY;
+                final ArrayList prefixList = new ArrayList();
+                new ExpressionWalker()
+                {
+                    protected void visitExpression(final Expression e)
+                    {
+                        if (e instanceof ExtensionFunction)
+                        {
+                            add(((ExtensionFunction)e).getFunctionName().getPrefix());
+                        }
+                    }
+                    protected void visitStep(final Step step)
+                    {
+                        if (step.getNodeTest() instanceof NodeNameTest)
+                        {
+                            add(((NodeNameTest)step.getNodeTest()).getNodeName().getPrefix());
+                        }
+                    }
+                    private void add(final String prefix)
+                    {
+                        if (prefix!=null && !prefixList.contains(prefix)) prefixList.add(prefix);
+                    }
+                }.walk(expression);
+                final ArrayList list = new ArrayList();
+                final ArrayList uriList = new ArrayList();
+                for(int i=0, len=prefixList.size();i<len;i++)
+                {
+                    final String prefix = (String) prefixList.get(i);
+                    final String uri = nsContext.getNamespaceURI(prefix);
+                    if (uri==null || uri.length()==0) continue;
+                    list.add(prefix);
+                    uriList.add(uri);
+                }
+                return newTable(list, uriList);
+            }
+            /**
+             * Returns the union of some tables resolved with
+             * the same namespace context, used when expressions
+             * share an evaluation context.
+             * @param tables the tables.
+             * @return the table, never null.
+             */
+            static NamespaceTable union(final NamespaceTable[] tables)
+            {
+                final ArrayList list = new ArrayList();
+                final ArrayList uriList = new ArrayList();
+                for(int i=0;i<tables.length;i++)
+                {
+                    for(int j=0, len=tables[i].size();j<len;j++)
+                    {
+                        final String prefix = tables[i].getPrefix(j);
+                        if (list.contains(prefix)) continue;
+                        list.add(prefix);
+                        uriList.add(tables[i].getURI(j));
+                    }
+                }
+                return newTable(list, uriList);
+            }
+            private static NamespaceTable newTable(final ArrayList list, final ArrayList uriList)
+            {
+                return list.isEmpty() ? EMPTY
+                    : new NamespaceTable((String[]) list.toArray(new String[list.size()]),
+                        (String[]) uriList.toArray(new String[uriList.size()]));
+            }
+            int size()
+            {
+                return prefixes.length;
+            }
+            String getPrefix(final int index)
+            {
+                return prefixes[index];
+            }
+            String getURI(final int index)
+            {
+                return uris[index];
+            }
+            /**
+             * Returns the URI of a prefix.
+             * @param prefix the prefix, null allowed.
+             * @return the URI, null when not in the table.
+             */
+            String getURI(final String prefix)
+            {
+                for(int i=0;i<prefixes.length;i++)
+                {
+                    if (prefixes[i].equals(prefix)) return uris[i];
+                }
+                return null;
+            }
+        }
         /**
          * Singleton instance of SecureFunctions
          */
@@ -213,21 +742,71 @@ public class JXPathXPathFactory extends AbstractXPathFactory
         {
             final XPathFunctionResolver functionResolver;
             final NamespaceContext nsContext;
-            FunctionsImpl(final XPathFunctionResolver resolver, final NamespaceContext ns)
+            private final EvaluationListener listener;
+            /**
+             * Prefixes resolved at compile time.
+             */
+            private final NamespaceTable namespaces;
+            /**
+             * Resolved functions, keyed by the namespace as passed
+             * by JXPath: since this instance lives as long as
+             * its namespace context, the key identifies the
+             * namespace uri, local name and arity of the function.
+             */
+            private final FunctionCache cache;
+            FunctionsImpl(final XPathFunctionResolver resolver, final NamespaceContext ns,
+                final EvaluationListener listener)
+            {
+                this(resolver, ns, listener, NamespaceTable.EMPTY, new FunctionCache());
+            }
+            private FunctionsImpl(final XPathFunctionResolver resolver, final NamespaceContext ns,
+                final EvaluationListener listener, final NamespaceTable namespaces,
+                final FunctionCache cache)
             {
                 this.functionResolver = resolver;
                 this.nsContext = ns;
+                this.listener = listener;
+                this.namespaces = namespaces;
+                this.cache = cache;
             }
-            public Function getFunction(String namespace,
-                                        String name,
-                                        Object[] parameters)
+            /**
+             * Returns functions that resolve the prefixes with
+             * a table, sharing the resolved functions since the
+             * table comes from the same namespace context.
+             * @param table the prefixes of an expression.
+             * @return the functions.
+             */
+            FunctionsImpl withNamespaces(final NamespaceTable table)
             {
-                // TODO JXPath uses prefixes as uris ?
-                if (nsContext!=null) namespace = nsContext.getNamespaceURI(namespace);
-                //System.out.println("getFunction(" + namespace + ", " + name + ")");
-                final XPathFunction function = functionResolver.resolveFunction(
-                    new QName(namespace, name), parameters.length);
-                return function==null ? null : new FunctionImpl(function);
+                return new FunctionsImpl(functionResolver, nsContext, listener, table, cache);
+            }
+            public Function getFunction(final String namespace,
+                                        final String name,
+                                        final Object[] parameters)
+            {
+                final int arity = parameters==null ? 0 : parameters.length;
+                final Object cached = cache.get(namespace, name, arity);
+                if (cached!=null)
+                {
+                    return cached==FunctionCache.NOT_FOUND ? null : (Function) cached;
+                }
+                // JXPath passes the prefix
+                String uri = namespaces.getURI(namespace);
+                if (uri==null)
+                {
+                    uri = nsContext==null ? namespace : nsContext.getNamespaceURI(namespace);
+                }
+                final QName qname = new QName(uri, name);
+                if (listener!=null)
+                {
+                    listener.resolverCalled(EvaluationListener.FUNCTION_RESOLVED, qname);
+                }
+                final XPathFunction function = functionResolver.resolveFunction(qname, arity);
+                final Function result = function==null ? null
+                    : new FunctionImpl(function, qname, listener);
+                cache.put(namespace, name, arity,
+                    result==null ? FunctionCache.NOT_FOUND : result);
+                return result;
             }
 
             public Set getUsedNamespaces()
@@ -237,32 +816,47 @@ public class JXPathXPathFactory extends AbstractXPathFactory
 
             private static class FunctionImpl implements Function
             {
+                private static final Object[] NO_PARAMETERS = new Object[0];
+
                 private final XPathFunction function;
+                private final RawXPathFunction rawFunction;
+                private final QName name;
+                private final EvaluationListener listener;
 
-                private FunctionImpl(XPathFunction f)
+                private FunctionImpl(XPathFunction f, QName name, EvaluationListener listener)
                 {
                     this.function = f;
+                    this.rawFunction = f instanceof RawXPathFunction
+                        ? (RawXPathFunction) f : null;
+                    this.name = name;
+                    this.listener = listener;
                 }
 
 
                 public Object invoke(ExpressionContext context,
                                      Object[] parameters)
                 {
-                    final ArrayList list = new ArrayList();
-                    for(int i=0, len=parameters.length;i<len;i++)
+                    // JXPath allocates the array for each call,
+                    // arguments are converted in place.
+                    if (parameters==null) parameters = NO_PARAMETERS;
+                    if (listener!=null)
                     {
-                        final Object jxpathParam = parameters[i];
-                        final Object xpathParam;
-                        if (jxpathParam instanceof NodeSet)
-                        {
-                            xpathParam = new NodeListImpl( ((NodeSet)jxpathParam).getNodes());
-                        }
-                        else xpathParam = jxpathParam;
-                        list.add(xpathParam);
+                        listener.resolverCalled(EvaluationListener.FUNCTION_INVOKED, name);
                     }
                     try
                     {
-                        return function.evaluate(list);
+                        if (rawFunction!=null)
+                        {
+                            return rawFunction.evaluateRaw(parameters);
+                        }
+                        for(int i=0, len=parameters.length;i<len;i++)
+                        {
+                            if (parameters[i] instanceof NodeSet)
+                            {
+                                parameters[i] = new NodeSetNodeList((NodeSet)parameters[i]);
+                            }
+                        }
+                        return function.evaluate(new ArgumentList(parameters));
                     }
                     catch(XPathFunctionException e)
                     {
@@ -271,11 +865,157 @@ public class JXPathXPathFactory extends AbstractXPathFactory
                 }
 
             }
+
+            /**
+             * Fixed size list over the arguments array.
+             */
+            private static final class ArgumentList extends AbstractList implements RandomAccess
+            {
+                private final Object[] args;
+
+                ArgumentList(final Object[] args)
+                {
+                    this.args = args;
+                }
+
+                public Object get(final int index)
+                {
+                    return args[index];
+                }
+
+                public int size()
+                {
+                    return args.length;
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Parent {@link JXPathContext} configured once with
+     * lenient mode, functions and variables for a set of
+     * resolvers and namespace context, each evaluation
+     * creates only a child context for the context item.
+     * <p>Instances are immutable and thread safe.
+     */
+    static final class ContextTemplate
+    {
+        final XPathFunctionResolver functionResolver;
+        final XPathVariableResolver variableResolver;
+        final NamespaceContext nsContext;
+        final boolean secure;
+        final EvaluationListener listener;
+        final BeanAccessors accessors;
+        /**
+         * Prefixes registered on the parent context.
+         */
+        final ResolversSupport.NamespaceTable namespaces;
+        private final Functions functions;
+        private final JXPathContext parent;
+
+        ContextTemplate(final XPathFunctionResolver fr,
+            final XPathVariableResolver vr,
+            final NamespaceContext nsContext,
+            final boolean secure,
+            final EvaluationListener listener,
+            final BeanAccessors accessors)
+        {
+            this.functionResolver = fr;
+            this.variableResolver = vr;
+            this.nsContext = nsContext;
+            this.secure = secure;
+            this.listener = listener;
+            this.accessors = accessors;
+            this.namespaces = ResolversSupport.NamespaceTable.EMPTY;
+            // Functions
+            if (secure) this.functions = ResolversSupport.SECUREFUNCTIONS;
+            else if (fr!=null) this.functions = new ResolversSupport.FunctionsImpl(fr, nsContext, listener);
+            else this.functions = null;
+            this.parent = newParent(functions, namespaces);
+        }
+        private ContextTemplate(final ContextTemplate template,
+            final ResolversSupport.NamespaceTable namespaces)
+        {
+            this.functionResolver = template.functionResolver;
+            this.variableResolver = template.variableResolver;
+            this.nsContext = template.nsContext;
+            this.secure = template.secure;
+            this.listener = template.listener;
+            this.accessors = template.accessors;
+            this.namespaces = namespaces;
+            this.functions = template.functions instanceof ResolversSupport.FunctionsImpl
+                ? ((ResolversSupport.FunctionsImpl)template.functions).withNamespaces(namespaces)
+                : template.functions;
+            this.parent = newParent(functions, namespaces);
+        }
+        private static JXPathContext newParent(final Functions functions,
+            final ResolversSupport.NamespaceTable namespaces)
+        {
+            final JXPathContext ctx = JXPathContext.newContext(null);
+            ctx.setLenient(true);
+            if (functions!=null) ctx.setFunctions(functions);
+            // Variables are set on each child context,
+            // see XPathExpressionImpl.
+            for(int i=0, len=namespaces.size();i<len;i++)
+            {
+                ctx.registerNamespace(namespaces.getPrefix(i), namespaces.getURI(i));
+            }
+            if (ctx instanceof JXPathContextReferenceImpl)
+            {
+                // sealed by the first child context anyway,
+                // done here so that the parent is not
+                // changed once shared between threads.
+                ((JXPathContextReferenceImpl)ctx).getNamespaceResolver();
+            }
+            return ctx;
+        }
+        /**
+         * Returns a template with the same resolvers whose parent
+         * context has the prefixes of a table registered.
+         * @param table the prefixes.
+         * @return the template, this one when the table is empty.
+         */
+        ContextTemplate withNamespaces(final ResolversSupport.NamespaceTable table)
+        {
+            return table.size()==0 ? this : new ContextTemplate(this, table);
+        }
+        /**
+         * Returns a new child context, lenient mode
+         * and functions are inherited from the parent context.
+         * @param obj the value
+         * @return a JXPathContext, never null.
+         */
+        JXPathContext newContext(final Object obj)
+        {
+            return JXPathContext.newContext(parent,
+                accessors==null ? obj : accessors.wrap(obj));
+        }
+        /**
+         * Returns a new child context with the variables
+         * used by an expression.
+         * @param obj the value
+         * @param names the variables used by the expression.
+         * @param bound values of the variables bound by the caller,
+         * null or with null values for those to resolve.
+         * @return a JXPathContext, never null.
+         */
+        JXPathContext newContext(final Object obj,
+            final ResolversSupport.VariableNames names,
+            final Object[] bound)
+        {
+            final JXPathContext ctx = JXPathContext.newContext(parent,
+                accessors==null ? obj : accessors.wrap(obj));
+            if (names.size()>0)
+            {
+                ctx.setVariables(new ResolversSupport.VariablesImpl(
+                    names, variableResolver, bound, listener));
+            }
+            return ctx;
         }
-
     }
 
-
     /**
      * Implementation of XPath.
      */
@@ -284,26 +1024,74 @@ public class JXPathXPathFactory extends AbstractXPathFactory
 
         private final XPathVariableResolver origVariableResolver;
         private final XPathFunctionResolver origFunctionResolver;
+        private final ExpressionCache cache;
+        private final boolean streaming;
+        private final DocumentCache documents;
+        private final ResultCache results;
+        private final boolean compact;
 
         XPathImpl (final XPathVariableResolver vr,
             final XPathFunctionResolver fr,
-            final boolean secure)
+            final boolean secure,
+            final ExpressionCache cache,
+            final boolean streaming,
+            final DocumentCache documents,
+            final ResultCache results,
+            final boolean compact,
+            final EvaluationListener listener,
+            final BeanAccessors accessors)
         {
-            super(vr, fr, secure);
+            super(vr, fr, secure, listener, accessors);
+            this.results = results;
+            this.compact = compact;
             this.origVariableResolver = vr;
             this.origFunctionResolver = fr;
+            this.cache = cache;
+            this.streaming = streaming;
+            this.documents = documents;
 
         }
+        /**
+         * Returns the compiled expression for a string
+         * evaluation, from the cache when enabled.
+         * @param expression the expression.
+         * @return the compiled expression, never null.
+         * @throws XPathExpressionException when fails to compile.
+         */
+        private XPathExpressionImpl getExpression(final String expression)
+            throws XPathExpressionException
+        {
+            if (cache==null) return (XPathExpressionImpl) compile(expression);
+            final Object key = ExpressionCache.newKey(expression, new Object[]{
+                functionResolver, variableResolver, nsContext,
+                secure ? Boolean.TRUE : Boolean.FALSE,
+                streaming ? Boolean.TRUE : Boolean.FALSE, documents, results,
+                compact ? Boolean.TRUE : Boolean.FALSE, listener, accessors});
+            XPathExpressionImpl compiled = (XPathExpressionImpl) cache.get(key);
+            if (compiled==null)
+            {
+                compiled = (XPathExpressionImpl) compile(expression);
+                cache.put(key, compiled);
+            }
+            return compiled;
+        }
         /*
          * (non-Javadoc)
          * @see javax.xml.xpath.XPath#compile(java.lang.String)
          */
         public XPathExpression compile(final String expression) throws XPathExpressionException
         {
+            final long start = listener==null ? 0 : System.nanoTime();
             try
             {
-                final CompiledExpression ce = JXPathContext.compile(expression);
-                return new XPathExpressionImpl(ce, expression, this.functionResolver, this.variableResolver, nsContext, this.secure);
+                final Expression expr = (Expression) Parser.parseExpression(
+                    expression, new TreeCompiler());
+                final XPathExpressionImpl compiled = new XPathExpressionImpl(expr,
+                    expression, getTemplate(),
+                    streaming && !secure ? StreamingExpression.compile(expr) : null,
+                    documents, results, compact && !secure);
+                if (listener!=null) listener.compiled(expression, System.nanoTime() - start);
+                return compiled;
             }
             catch(JXPathException e)
             {
@@ -332,29 +1120,7 @@ public class JXPathXPathFactory extends AbstractXPathFactory
          */
         public Object evaluate(final String expression, final Object item, final QName returnType) throws XPathExpressionException
         {
-            final JXPathContext jxPathContext = newContext(item);
-            try
-            {
-                if (XPathConstants.NODE.equals(returnType))
-                {
-                    return jxPathContext.selectSingleNode(expression);
-                }
-                else if (XPathConstants.NODESET.equals(returnType))
-                {
-                    return new NodeListImpl(jxPathContext.selectNodes(expression));
-                }
-                else
-                {
-                    final Object value = jxPathContext.selectSingleNode(expression);
-                    return convertValue(value, returnType);
-                }
-            }
-            catch(SecureFunctionException e) {
-                throw new XPathFunctionException(e);
-            }
-            catch (JXPathException e) {
-                throw new XPathExpressionException(e);
-            }
+            return getExpression(expression).evaluateItem(item, returnType);
         }
         /*
          * (non-Javadoc)
@@ -364,7 +1130,7 @@ public class JXPathXPathFactory extends AbstractXPathFactory
                                final InputSource source,
                                final QName returnType) throws XPathExpressionException
         {
-            return evaluate(expression, getDocument(source, this.secure), returnType);
+            return getExpression(expression).evaluate(source, returnType);
         }
         /*
          * (non-Javadoc)
@@ -386,6 +1152,7 @@ public class JXPathXPathFactory extends AbstractXPathFactory
             this.variableResolver = this.origVariableResolver;
             this.functionResolver = this.origFunctionResolver;
             this.nsContext = null;
+            setTemplate(null);
 
 
 
@@ -395,22 +1162,196 @@ public class JXPathXPathFactory extends AbstractXPathFactory
     }
     /**
      * Implementation of a compiled expression.
+     * <p>Instances are immutable: the resolvers and the namespace
+     * context are those of the {@link ContextTemplate} captured
+     * at compile time, each evaluation works on its own child
+     * context, so an instance can be shared between threads.
      */
-    private static class XPathExpressionImpl extends ResolversSupport implements XPathExpression
+    static final class XPathExpressionImpl implements JXPathExpression
     {
+        private final Expression expression;
         private final CompiledExpression compiled;
         private final String xpathString;
-        XPathExpressionImpl(final CompiledExpression ce,
+        private final ResolversSupport.VariableNames variables;
+        private final ContextTemplate template;
+        /**
+         * The template with the prefixes of this
+         * expression, used by the evaluation.
+         */
+        private final ContextTemplate context;
+        private final StreamingExpression streaming;
+        private final IndexedPath indexed;
+        private final DocumentCache documents;
+        private final ResultCache results;
+        private final boolean compact;
+        private final boolean scalar;
+        XPathExpressionImpl(final Expression expression,
             final String xpath,
-            final XPathFunctionResolver fr,
-            final XPathVariableResolver vr,
-            final NamespaceContext nsContext,
-            final boolean secure)
+            final ContextTemplate template,
+            final StreamingExpression streaming,
+            final DocumentCache documents,
+            final ResultCache results,
+            final boolean compact)
         {
-            super(vr, fr, secure);
-            this.compiled = ce;
-            this.nsContext = nsContext;
+            this.expression = expression;
+            this.compiled = new JXPathCompiledExpression(xpath, expression);
             this.xpathString = xpath;
+            this.variables = ResolversSupport.VariableNames.collect(expression);
+            this.template = template;
+            this.context = template.withNamespaces(
+                ResolversSupport.NamespaceTable.collect(expression, template.nsContext));
+            this.streaming = streaming;
+            this.indexed = IndexedPath.compile(expression);
+            this.documents = documents;
+            this.results = results;
+            this.compact = compact;
+            this.scalar = isScalar(expression);
+        }
+        /**
+         * Returns the template of the resolvers
+         * used when this expression was compiled.
+         * @return the template.
+         */
+        ContextTemplate getTemplate()
+        {
+            return template;
+        }
+        /**
+         * Returns the prefixes of this expression resolved
+         * at compile time.
+         * @return the table of prefixes.
+         */
+        ResolversSupport.NamespaceTable getNamespaces()
+        {
+            return context.namespaces;
+        }
+        /**
+         * Returns the parsed expression, used by {@link XPathBatch}.
+         * @return the expression tree.
+         */
+        Expression getParsedExpression()
+        {
+            return expression;
+        }
+        /**
+         * Returns the variables used by this expression.
+         * @return the table of variables.
+         */
+        ResolversSupport.VariableNames getVariables()
+        {
+            return variables;
+        }
+        /**
+         * Returns the text of this expression.
+         * @return the expression as compiled.
+         */
+        String getXPathString()
+        {
+            return xpathString;
+        }
+        /**
+         * Evaluates this expression in a context created by the caller
+         * for the context item, like {@link #evaluate(Object, QName)}:
+         * with the {@link DocumentIndex}, the {@link ResultCache}
+         * and the listener.
+         * @param obj the context item.
+         * @param ctx the context.
+         * @param returnType the return type.
+         * @return the result.
+         * @throws XPathExpressionException when fails.
+         */
+        Object evaluateInContext(final Object obj, final JXPathContext ctx,
+            final QName returnType) throws XPathExpressionException
+        {
+            return evaluateItem(obj, returnType, null, ctx);
+        }
+        /**
+         * Returns whether this expression is evaluated with
+         * the {@link DocumentIndex} of an indexed document.
+         * @return true for an indexed path.
+         */
+        boolean isIndexed()
+        {
+            return indexed!=null;
+        }
+        /**
+         * Evaluates a path relative to a node selected by the caller,
+         * in place of this expression, notifying the listener
+         * as an evaluation of this expression.
+         * @param path the compiled path.
+         * @param pathString the text of the path, for errors.
+         * @param relative the context of the node.
+         * @param returnType the return type.
+         * @return the result.
+         * @throws XPathExpressionException when fails.
+         */
+        Object evaluateRelative(final CompiledExpression path, final String pathString,
+            final JXPathContext relative, final QName returnType) throws XPathExpressionException
+        {
+            if (template.listener==null)
+            {
+                return evaluateCompiled(path, pathString, relative, returnType);
+            }
+            final long start = System.nanoTime();
+            boolean failed = true;
+            int nodes = -1;
+            try
+            {
+                final Object result = evaluateCompiled(path, pathString, relative, returnType);
+                nodes = read(result);
+                failed = false;
+                return result;
+            }
+            catch(LazyNodeList.EvaluationException e)
+            {
+                throw e.getXPathException();
+            }
+            finally
+            {
+                evaluated(returnType, start, nodes, failed);
+            }
+        }
+        /**
+         * Evaluates another tree of this expression, like the
+         * one built by {@link ProfilingCompiler}, with the resolvers
+         * and the prefixes of this expression.
+         * @param tree the tree.
+         * @param obj the value.
+         * @param returnType the return type.
+         * @return the result.
+         * @throws XPathExpressionException when fails.
+         */
+        Object evaluateTree(final Expression tree, final Object obj, final QName returnType)
+            throws XPathExpressionException
+        {
+            final JXPathContext ctx = context.newContext(obj, variables, null);
+            return evaluateCompiled(new JXPathCompiledExpression(xpathString, tree),
+                xpathString, ctx, returnType, isScalar(tree));
+        }
+        /*
+         * (non-Javadoc)
+         * @see org.apache.commons.jxpath.jaxp.JXPathExpression#getVariableNames()
+         */
+        public String[] getVariableNames()
+        {
+            final String[] names = new String[variables.size()];
+            for(int i=0;i<names.length;i++) names[i] = variables.getName(i);
+            return names;
+        }
+        /*
+         * (non-Javadoc)
+         * @see org.apache.commons.jxpath.jaxp.JXPathExpression#evaluate(java.lang.Object, javax.xml.namespace.QName, java.lang.Object[])
+         */
+        public Object evaluate(final Object obj, final QName returnType,
+            final Object[] values) throws XPathExpressionException
+        {
+            if (obj==null) throw new NullPointerException("Null object");
+            if (values!=null && values.length!=variables.size())
+            {
+                throw new IllegalArgumentException("Expected " + variables.size()
+                    + " variable values, got " + values.length);
+            }
+            return evaluateItem(obj, returnType, values, null);
         }
         /*
          * (non-Javadoc)
@@ -435,8 +1376,230 @@ public class JXPathXPathFactory extends AbstractXPathFactory
         public Object evaluate(final Object obj, final QName returnType) throws XPathExpressionException
         {
             if (obj==null) throw new NullPointerException("Null object");
-
-            final JXPathContext jxPathContext = newContext(obj);
+            return evaluateItem(obj, returnType);
+        }
+        /**
+         * Evaluates this expression, used also by the
+         * string evaluation methods of {@link XPathImpl}.
+         * @param obj the context item, null allowed.
+         * @param returnType the return type.
+         * @return the result.
+         * @throws XPathExpressionException when fails.
+         */
+        Object evaluateItem(final Object obj, final QName returnType) throws XPathExpressionException
+        {
+            return evaluateItem(obj, returnType, null, null);
+        }
+        /**
+         * Evaluates this expression with bound variables.
+         * @param obj the context item, null allowed.
+         * @param returnType the return type.
+         * @param values values of the variables, null allowed.
+         * @param ctx the context, null to create it.
+         * @return the result.
+         * @throws XPathExpressionException when fails.
+         */
+        private Object evaluateItem(final Object obj, final QName returnType,
+            final Object[] values, final JXPathContext ctx) throws XPathExpressionException
+        {
+            if (template.listener==null) return evaluateItemUnobserved(obj, returnType, values, ctx);
+            final long start = System.nanoTime();
+            boolean failed = true;
+            int nodes = -1;
+            try
+            {
+                final Object result = evaluateItemUnobserved(obj, returnType, values, ctx);
+                nodes = read(result);
+                failed = false;
+                return result;
+            }
+            catch(LazyNodeList.EvaluationException e)
+            {
+                throw e.getXPathException();
+            }
+            finally
+            {
+                evaluated(returnType, start, nodes, failed);
+            }
+        }
+        /**
+         * Evaluates this expression with bound variables,
+         * without notifying the listener.
+         */
+        private Object evaluateItemUnobserved(final Object obj, final QName returnType,
+            final Object[] values, final JXPathContext ctx) throws XPathExpressionException
+        {
+            if (results!=null)
+            {
+                final Object cached = results.get(this, obj, returnType, values, variables.size());
+                if (cached instanceof ResultCache.Miss)
+                {
+                    final Object result = evaluateUncached(obj, returnType, values, ctx);
+                    try
+                    {
+                        // node lists are read fully to be cached
+                        return ((ResultCache.Miss)cached).put(result);
+                    }
+                    catch(LazyNodeList.EvaluationException e)
+                    {
+                        throw e.getXPathException();
+                    }
+                }
+                if (cached!=ResultCache.NOT_CACHED) return cached;
+            }
+            return evaluateUncached(obj, returnType, values, ctx);
+        }
+        private Object evaluateUncached(final Object obj, final QName returnType,
+            final Object[] values, final JXPathContext shared) throws XPathExpressionException
+        {
+            final JXPathContext ctx = shared!=null ? shared
+                : context.newContext(obj, variables, values);
+            final Object result = evaluateIndexed(obj, ctx, returnType);
+            if (result!=IndexedPath.NOT_INDEXED) return result;
+            return evaluateCompiled(compiled, xpathString, ctx, returnType, scalar);
+        }
+        /**
+         * Evaluates this expression with the {@link DocumentIndex}
+         * of the context item, when it has one.
+         * @return the result or {@link IndexedPath#NOT_INDEXED}.
+         */
+        private Object evaluateIndexed(final Object obj, final JXPathContext ctx,
+            final QName returnType) throws XPathExpressionException
+        {
+            if (indexed!=null && obj instanceof Document)
+            {
+                final DocumentIndex index = DocumentIndex.get((Document)obj);
+                if (index!=null) return indexed.evaluate(index, ctx, xpathString, returnType);
+            }
+            return IndexedPath.NOT_INDEXED;
+        }
+        /*
+         * (non-Javadoc)
+         * @see org.apache.commons.jxpath.jaxp.JXPathExpression#evaluateBoolean(java.lang.Object)
+         */
+        public boolean evaluateBoolean(final Object obj) throws XPathExpressionException
+        {
+            final Object value = evaluateValue(obj, XPathConstants.BOOLEAN);
+            if (value instanceof Boolean) return ((Boolean)value).booleanValue();
+            return ((Boolean)convertValue(value, XPathConstants.BOOLEAN)).booleanValue();
+        }
+        /*
+         * (non-Javadoc)
+         * @see org.apache.commons.jxpath.jaxp.JXPathExpression#evaluateDouble(java.lang.Object)
+         */
+        public double evaluateDouble(final Object obj) throws XPathExpressionException
+        {
+            final Object value = evaluateValue(obj, XPathConstants.NUMBER);
+            if (value instanceof Double) return ((Double)value).doubleValue();
+            return ((Double)convertValue(value, XPathConstants.NUMBER)).doubleValue();
+        }
+        /**
+         * Returns the value of a scalar expression as computed by
+         * JXPath, otherwise the result converted to the return type.
+         */
+        private Object evaluateValue(final Object obj, final QName returnType)
+            throws XPathExpressionException
+        {
+            if (obj==null) throw new NullPointerException("Null object");
+            if (template.listener==null) return evaluateValueUnobserved(obj, returnType);
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try
+            {
+                final Object result = evaluateValueUnobserved(obj, returnType);
+                failed = false;
+                return result;
+            }
+            finally
+            {
+                evaluated(returnType, start, -1, failed);
+            }
+        }
+        private Object evaluateValueUnobserved(final Object obj, final QName returnType)
+            throws XPathExpressionException
+        {
+            // cached results are those converted to the return type
+            if (results!=null) return evaluateItemUnobserved(obj, returnType, null, null);
+            final JXPathContext ctx = context.newContext(obj, variables, null);
+            final Object result = evaluateIndexed(obj, ctx, returnType);
+            if (result!=IndexedPath.NOT_INDEXED) return result;
+            if (scalar) return getValue(compiled, xpathString, ctx);
+            return evaluateCompiled(compiled, xpathString, ctx, returnType, false);
+        }
+        /**
+         * Reads fully a node list result, so that the time of
+         * an observed evaluation includes the evaluation of
+         * a lazy list.
+         * @return the length of a node list, otherwise -1.
+         */
+        private static int read(final Object result)
+        {
+            return result instanceof NodeList ? ((NodeList)result).getLength() : -1;
+        }
+        /**
+         * Notifies the listener of an evaluation.
+         */
+        private void evaluated(final QName returnType, final long start,
+            final int nodes, final boolean failed)
+        {
+            template.listener.evaluated(xpathString, returnType,
+                System.nanoTime() - start, nodes, failed);
+        }
+        /**
+         * Returns whether an expression always computes a string,
+         * a number or a boolean, so that its value can be read
+         * without a pointer: literals, operations other than the
+         * union and core functions that do not return nodes.
+         * @param expression the parsed expression.
+         * @return true for a scalar expression.
+         */
+        static boolean isScalar(final Expression expression)
+        {
+            if (expression instanceof Constant) return true;
+            if (expression instanceof CoreOperation)
+            {
+                return !(expression instanceof CoreOperationUnion);
+            }
+            if (expression instanceof CoreFunction)
+            {
+                final int code = ((CoreFunction)expression).getFunctionCode();
+                return code!=Compiler.FUNCTION_ID && code!=Compiler.FUNCTION_KEY;
+            }
+            return false;
+        }
+        /**
+         * Evaluates a compiled expression in a context.
+         * @param compiled the compiled expression.
+         * @param xpathString the text of the expression, for errors.
+         * @param jxPathContext the context.
+         * @param returnType the return type.
+         * @return the result.
+         * @throws XPathExpressionException when fails.
+         */
+        static Object evaluateCompiled(final CompiledExpression compiled,
+            final String xpathString,
+            final JXPathContext jxPathContext,
+            final QName returnType) throws XPathExpressionException
+        {
+            return evaluateCompiled(compiled, xpathString, jxPathContext, returnType, false);
+        }
+        /**
+         * Evaluates a compiled expression in a context.
+         * @param compiled the compiled expression.
+         * @param xpathString the text of the expression, for errors.
+         * @param jxPathContext the context.
+         * @param returnType the return type.
+         * @param scalar true when the expression is scalar,
+         * see {@link #isScalar(Expression)}.
+         * @return the result.
+         * @throws XPathExpressionException when fails.
+         */
+        static Object evaluateCompiled(final CompiledExpression compiled,
+            final String xpathString,
+            final JXPathContext jxPathContext,
+            final QName returnType,
+            final boolean scalar) throws XPathExpressionException
+        {
             try
             {
                 if (XPathConstants.NODE.equals(returnType))
@@ -448,39 +1611,120 @@ public class JXPathXPathFactory extends AbstractXPathFactory
                 }
                 else if (XPathConstants.NODESET.equals(returnType))
                 {
-                    // TODO here there is a difference because
-                    // selectNodes does not exist on CompiledExpression
-                    final ArrayList list = new ArrayList();
-                    final Iterator iter = compiled.iteratePointers(jxPathContext);
-                    while(iter.hasNext())
-                    {
-                        list.add(((Pointer)iter.next()).getNode());
-                    }
-                    return new NodeListImpl(list);
+                    // selectNodes does not exist on CompiledExpression,
+                    // nodes are read from the pointers when requested,
+                    // the first one here so that early errors are thrown.
+                    final LazyNodeList nodes = new LazyNodeList(compiled.iteratePointers(jxPathContext));
+                    nodes.item(0);
+                    return nodes;
+                }
+                else if (scalar)
+                {
+                    // no pointer around the computed value
+                    return convertValue(compiled.getValue(jxPathContext), returnType);
                 }
                 else
                 {
+                    // the single node pointer of a path stops at the
+                    // first match, its node is converted and not its
+                    // JXPath value, that trims the text.
                     final Pointer p = compiled.getPointer(jxPathContext, xpathString);
                     return convertValue(p==null ? null : p.getNode(),
                         returnType);
                 }
 
             }
-            catch(SecureFunctionException e) {
+            catch(ResolversSupport.SecureFunctionException e) {
                 throw new XPathFunctionException(e);
             }
             catch (JXPathException e) {
                 throw new XPathExpressionException(e);
             }
+            catch (LazyNodeList.EvaluationException e) {
+                throw e.getXPathException();
+            }
 
         }
+        /**
+         * Returns the value computed by a scalar expression.
+         * @param compiled the compiled expression.
+         * @param xpathString the text of the expression, for errors.
+         * @param jxPathContext the context.
+         * @return the value, a String, a Double, a Boolean or null.
+         * @throws XPathExpressionException when fails.
+         */
+        private static Object getValue(final CompiledExpression compiled,
+            final String xpathString,
+            final JXPathContext jxPathContext) throws XPathExpressionException
+        {
+            try
+            {
+                return compiled.getValue(jxPathContext);
+            }
+            catch(ResolversSupport.SecureFunctionException e) {
+                throw new XPathFunctionException(e);
+            }
+            catch (JXPathException e) {
+                throw new XPathExpressionException(e);
+            }
+        }
         /*
          * (non-Javadoc)
          * @see javax.xml.xpath.XPathExpression#evaluate(org.xml.sax.InputSource, javax.xml.namespace.QName)
          */
         public Object evaluate(final InputSource inputsource, final QName qname) throws XPathExpressionException
         {
-            return evaluate(getDocument(inputsource, this.secure), qname);
+            if (documents!=null)
+            {
+                final Document cached = documents.getDocument(inputsource,
+                    template.secure, template.listener);
+                if (cached!=null) return evaluate(cached, qname);
+            }
+            if (streaming!=null && StreamingExpression.supports(qname))
+            {
+                return evaluateStreaming(inputsource, qname);
+            }
+            return evaluate(getDocument(inputsource, template.secure,
+                compact, template.listener), qname);
+        }
+        /**
+         * Evaluates this expression while reading an input source,
+         * the listener receives the evaluation and not the parsing.
+         */
+        private Object evaluateStreaming(final InputSource inputsource, final QName qname)
+            throws XPathExpressionException
+        {
+            if (template.listener==null) return streaming.evaluate(inputsource, qname);
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try
+            {
+                final Object result = streaming.evaluate(inputsource, qname);
+                failed = false;
+                return result;
+            }
+            finally
+            {
+                evaluated(qname, start, -1, failed);
+            }
+        }
+        /**
+         * Parses an input source into the document evaluated by
+         * {@link #evaluate(InputSource, QName)}, without the
+         * streaming evaluation, used by {@link AsyncEvaluator}.
+         * @param inputsource the input source.
+         * @return the document, never null.
+         * @throws XPathExpressionException when fails.
+         */
+        Document parse(final InputSource inputsource) throws XPathExpressionException
+        {
+            if (documents!=null)
+            {
+                final Document cached = documents.getDocument(inputsource,
+                    template.secure, template.listener);
+                if (cached!=null) return cached;
+            }
+            return getDocument(inputsource, template.secure, compact, template.listener);
         }
 
     }
@@ -512,7 +1756,64 @@ public class JXPathXPathFactory extends AbstractXPathFactory
     static Document getDocument(final InputSource is, boolean secure)
         throws XPathExpressionException
     {
-        final DocumentBuilder builder = getDocumentBuilder(secure);
+        return getDocument(is, secure, null);
+    }
+
+    /**
+     * Retrieves a DOM document from an input source,
+     * notifying a listener of the time taken and of the
+     * bytes read from the byte stream, when there is one.
+     * @param is a required input source.
+     * @param secure true to parse in secure mode.
+     * @param listener the listener, null allowed.
+     * @return a Document, never null.
+     * @throws XPathExpressionException when fails.
+     */
+    static Document getDocument(final InputSource is, boolean secure,
+        final EvaluationListener listener) throws XPathExpressionException
+    {
+        return getDocument(is, secure, false, listener);
+    }
+
+    /**
+     * Retrieves a DOM or a {@link CompactDocument} from an input
+     * source, notifying a listener as {@link
+     * #getDocument(InputSource, boolean, EvaluationListener)}.
+     * @param is a required input source.
+     * @param secure true to parse in secure mode.
+     * @param compact true to parse a compact document.
+     * @param listener the listener, null allowed.
+     * @return a Document, never null.
+     * @throws XPathExpressionException when fails.
+     */
+    static Document getDocument(final InputSource is, boolean secure,
+        final boolean compact, final EvaluationListener listener)
+        throws XPathExpressionException
+    {
+        if (listener==null) return parse(is, secure, compact);
+        final long start = System.nanoTime();
+        CountingInputStream counter = null;
+        InputSource source = is;
+        if (is.getByteStream()!=null && is.getCharacterStream()==null)
+        {
+            counter = new CountingInputStream(is.getByteStream());
+            source = new InputSource(counter);
+            source.setSystemId(is.getSystemId());
+            source.setPublicId(is.getPublicId());
+            source.setEncoding(is.getEncoding());
+        }
+        final Document document = parse(source, secure, compact);
+        listener.parsed(is.getSystemId(), counter==null ? -1 : counter.count,
+            System.nanoTime() - start);
+        return document;
+    }
+
+    private static Document parse(final InputSource is, boolean secure,
+        final boolean compact) throws XPathExpressionException
+    {
+        if (compact) return CompactDocument.parse(is).getDocument();
+        final DocumentBuilderPool pool = DocumentBuilderPool.getInstance(secure);
+        final DocumentBuilder builder = pool.acquire();
         try
         {
             return builder.parse(is);
@@ -527,32 +1828,49 @@ public class JXPathXPathFactory extends AbstractXPathFactory
             // Also xalan uses XPathExpressionException for these errors
             throw new XPathExpressionException(ioe);
         }
+        finally
+        {
+            pool.release(builder);
+        }
     }
 
-    private static DocumentBuilder getDocumentBuilder(boolean secure)
+
+    /**
+     * Counts the bytes read by the parser.
+     */
+    private static final class CountingInputStream extends FilterInputStream
     {
-        try
+        long count;
+
+        CountingInputStream(final InputStream in)
         {
-            // This is a BIG performance hit..
-            // but it looks like is inevitable,
-            // see also org.apache.xpath.jaxp.XPathImpl#getParser()
-            // code-documentation for the same issue.
-            // http://svn.apache.org/repos/asf/xalan/java/trunk/src/org/apache/xpath/jaxp/XPathImpl.java
-            DocumentBuilderFactory factory =
-                DocumentBuilderFactory.newInstance();
-            factory.setValidating(false);
-            factory.setNamespaceAware(true);
-            // Very important..otherwise fails in counting text() nodes,
-            // considering a CData and an adjacent text as two distinct nodes
-            factory.setCoalescing(true);
-            factory.setExpandEntityReferences(!secure);
-            return factory.newDocumentBuilder();
-        }
-        catch (ParserConfigurationException e) {
-            e.printStackTrace();
-            throw new Error("JAXP config error:" + e.getMessage());
+            super(in);
         }
 
-    }
+        public int read() throws IOException
+        {
+            final int b = super.read();
+            if (b>=0) count++;
+            return b;
+        }
+
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            final int n = super.read(b, off, len);
+            if (n>0) count += n;
+            return n;
+        }
+
+        public long skip(final long n) throws IOException
+        {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
 
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
 }
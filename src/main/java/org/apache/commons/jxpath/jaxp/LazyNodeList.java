@@ -0,0 +1,197 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFunctionException;
+
+import org.apache.commons.jxpath.JXPathException;
+import org.apache.commons.jxpath.Pointer;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * {@link NodeList} returned for {@link javax.xml.xpath.XPathConstants#NODESET}
+ * results, backed by the JXPath pointer iterator.
+ * <p>Nodes are pulled from the iterator only up to the highest
+ * index requested with {@link #item(int)}, so reading the first
+ * items of a big result does not evaluate the whole expression;
+ * {@link #getLength()} evaluates it fully.
+ * <p>Consumers that read each node once can use {@link #iterator()},
+ * that does not keep the nodes in memory.
+ * <p>The first node is read by the evaluation, so errors raised
+ * before the first match are thrown by
+ * {@link javax.xml.xpath.XPathExpression#evaluate(Object, javax.xml.namespace.QName)}.
+ * Since the rest of the expression is evaluated while the list is
+ * read, later errors are thrown from the methods of the list as
+ * {@link EvaluationException}s, and the document should not be
+ * changed before the list is read.
+ * <p>Instances are not thread safe.
+ * @author Michele Vivoda
+ */
+public final class LazyNodeList implements NodeList
+{
+    private final ArrayList nodes = new ArrayList();
+    private Iterator pointers;
+    private boolean consumed;
+
+    /**
+     * Constructor.
+     * @param pointers iterator of {@link Pointer}s.
+     */
+    LazyNodeList(final Iterator pointers)
+    {
+        this.pointers = pointers;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.w3c.dom.NodeList#item(int)
+     */
+    public Node item(final int index)
+    {
+        if (index<0) return null;
+        if (index>=nodes.size()) fill(index + 1);
+        return index<nodes.size() ? (Node) nodes.get(index) : null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.w3c.dom.NodeList#getLength()
+     */
+    public int getLength()
+    {
+        fill(Integer.MAX_VALUE);
+        return nodes.size();
+    }
+
+    /**
+     * Returns whether all the nodes have been read
+     * from the pointer iterator.
+     * @return true when the result is fully evaluated.
+     */
+    public boolean isComplete()
+    {
+        return pointers==null;
+    }
+
+    /**
+     * Returns a one pass iterator over the {@link Node}s,
+     * nodes not yet read are not kept by this list.
+     * <p>After this method is called the list can
+     * be read only up to the nodes already read.
+     * @return an iterator of nodes.
+     * @throws IllegalStateException when called twice.
+     */
+    public Iterator iterator()
+    {
+        checkNotConsumed();
+        consumed = true;
+        return new Iterator()
+        {
+            private int index;
+
+            public boolean hasNext()
+            {
+                return index<nodes.size() || pointers!=null && hasNextPointer();
+            }
+
+            public Object next()
+            {
+                if (index<nodes.size()) return nodes.get(index++);
+                if (pointers==null || !hasNextPointer()) throw new NoSuchElementException();
+                return nextNode();
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void fill(final int size)
+    {
+        if (pointers==null) return;
+        checkNotConsumed();
+        while(nodes.size()<size && hasNextPointer())
+        {
+            nodes.add(nextNode());
+        }
+        if (!hasNextPointer()) pointers = null;
+    }
+
+    private boolean hasNextPointer()
+    {
+        try
+        {
+            return pointers.hasNext();
+        }
+        catch(RuntimeException e)
+        {
+            throw wrap(e);
+        }
+    }
+
+    private Object nextNode()
+    {
+        try
+        {
+            return ((Pointer)pointers.next()).getNode();
+        }
+        catch(RuntimeException e)
+        {
+            throw wrap(e);
+        }
+    }
+
+    /**
+     * Wraps the errors of the evaluation as done by
+     * {@link JXPathXPathFactory}, other exceptions
+     * are returned as they are.
+     */
+    private static RuntimeException wrap(final RuntimeException e)
+    {
+        if (e instanceof JXPathXPathFactory.ResolversSupport.SecureFunctionException)
+        {
+            return new EvaluationException(new XPathFunctionException(e));
+        }
+        if (e instanceof JXPathException)
+        {
+            return new EvaluationException(new XPathExpressionException(e));
+        }
+        return e;
+    }
+
+    private void checkNotConsumed()
+    {
+        if (consumed) throw new IllegalStateException("Nodes already consumed by iterator()");
+    }
+
+    /**
+     * Thrown by the methods of a {@link LazyNodeList} when the
+     * evaluation fails while the list is read, the cause is
+     * the exception that the evaluation would have thrown.
+     */
+    public static final class EvaluationException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        EvaluationException(final XPathExpressionException cause)
+        {
+            super(cause.getMessage(), cause);
+        }
+
+        /**
+         * @return the error of the evaluation, a
+         * {@link XPathFunctionException} when a function
+         * is called in secure mode.
+         */
+        public XPathExpressionException getXPathException()
+        {
+            return (XPathExpressionException) getCause();
+        }
+    }
+}
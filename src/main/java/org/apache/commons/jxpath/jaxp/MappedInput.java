@@ -0,0 +1,137 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Evaluation over files mapped in memory and over
+ * {@link ByteBuffer}s, the parser reads the bytes directly
+ * from the buffer instead of a file stream.
+ * <pre>
+ * XPathExpression expr = xpath.compile("count(//order)");
+ * Double count = (Double) MappedInput.evaluate(expr,
+ *     new File("orders.xml"), XPathConstants.NUMBER);
+ * </pre>
+ * <p>The encoding of a document is detected by the parser
+ * from the byte order mark and the XML declaration, as for
+ * any byte stream, unless it is given to
+ * {@link #newInputSource(ByteBuffer, String)}.
+ * <p>A mapped file is released when the buffer is garbage
+ * collected, on some platforms the file cannot be deleted
+ * or truncated before.
+ * @author Michele Vivoda
+ */
+public final class MappedInput
+{
+    private MappedInput()
+    {
+    }
+
+    /**
+     * Maps a file in memory, read only.
+     * @param file the file.
+     * @return the mapped bytes.
+     * @throws IOException when the file cannot be read,
+     * or is longer than <code>Integer.MAX_VALUE</code> bytes.
+     */
+    public static MappedByteBuffer map(final File file) throws IOException
+    {
+        final FileInputStream in = new FileInputStream(file);
+        try
+        {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size>Integer.MAX_VALUE)
+            {
+                throw new IOException("File too large to map:" + file);
+            }
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns an input source reading a file mapped in memory,
+     * the system id is the URI of the file so that relative
+     * entities and DTDs are resolved.
+     * @param file the file.
+     * @return a new input source.
+     * @throws IOException when the file cannot be mapped.
+     */
+    public static InputSource newInputSource(final File file) throws IOException
+    {
+        final InputSource source = newInputSource(map(file), null);
+        source.setSystemId(file.toURI().toString());
+        return source;
+    }
+
+    /**
+     * Returns an input source reading the remaining
+     * bytes of a buffer, the position of the buffer
+     * does not change.
+     * @param buffer the bytes of the document.
+     * @param encoding the encoding, null to detect it.
+     * @return a new input source.
+     */
+    public static InputSource newInputSource(final ByteBuffer buffer, final String encoding)
+    {
+        final InputSource source = new InputSource(
+            new ByteBufferInputStream(buffer.duplicate()));
+        if (encoding!=null) source.setEncoding(encoding);
+        return source;
+    }
+
+    /**
+     * Evaluates an expression over a file mapped in memory.
+     * @param expression the expression.
+     * @param file the file.
+     * @param returnType the return type.
+     * @return the result.
+     * @throws XPathExpressionException when the file cannot
+     * be mapped, parsed or the evaluation fails.
+     */
+    public static Object evaluate(final XPathExpression expression,
+        final File file, final QName returnType) throws XPathExpressionException
+    {
+        final InputSource source;
+        try
+        {
+            source = newInputSource(file);
+        }
+        catch(IOException e)
+        {
+            throw new XPathExpressionException(e);
+        }
+        return expression.evaluate(source, returnType);
+    }
+
+    /**
+     * Evaluates an expression over the remaining bytes
+     * of a buffer, the encoding is detected.
+     * @param expression the expression.
+     * @param buffer the bytes of the document.
+     * @param returnType the return type.
+     * @return the result.
+     * @throws XPathExpressionException when the parsing
+     * or the evaluation fails.
+     */
+    public static Object evaluate(final XPathExpression expression,
+        final ByteBuffer buffer, final QName returnType) throws XPathExpressionException
+    {
+        return expression.evaluate(newInputSource(buffer, null), returnType);
+    }
+}
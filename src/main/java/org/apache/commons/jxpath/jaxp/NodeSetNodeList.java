@@ -0,0 +1,48 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.List;
+
+import org.apache.commons.jxpath.NodeSet;
+import org.apache.commons.jxpath.Pointer;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * {@link NodeList} view of a JXPath {@link NodeSet}
+ * passed as argument to an extension function.
+ * <p>Nothing is copied: a node is read from its
+ * pointer when requested.
+ * @author Michele Vivoda
+ */
+final class NodeSetNodeList implements NodeList
+{
+    private final List pointers;
+
+    /**
+     * Constructor.
+     * @param nodeSet the node set.
+     */
+    NodeSetNodeList(final NodeSet nodeSet)
+    {
+        this.pointers = nodeSet.getPointers();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.w3c.dom.NodeList#item(int)
+     */
+    public Node item(final int index)
+    {
+        if (index<0 || index>=pointers.size()) return null;
+        return (Node) ((Pointer) pointers.get(index)).getNode();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.w3c.dom.NodeList#getLength()
+     */
+    public int getLength()
+    {
+        return pointers.size();
+    }
+}
@@ -0,0 +1,192 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Evaluates one expression over many context items
+ * using the threads of an {@link Executor}.
+ * <p>Any executor can be used: a fixed thread pool,
+ * a <code>ForkJoinPool</code> or, on recent JVMs,
+ * an executor that starts a virtual thread per task.
+ * Up to <code>parallelism</code> tasks are submitted,
+ * each one takes the next item not yet evaluated until
+ * all are done, so slow items do not stall the others.
+ * <p>Each item is evaluated by a single thread. The expression
+ * must be safe to share between threads, as the expressions
+ * compiled by {@link JXPathXPathFactory} are, and so must be its
+ * resolvers. Items should not be shared with other threads
+ * during the call, since DOM implementations are usually not
+ * thread safe even for reading.
+ * <p>Items that are {@link InputSource}s are parsed
+ * by the evaluating thread.
+ * <pre>
+ * XPathExpression expr = xpath.compile("sum(//line/@amount)");
+ * Object[] totals = ParallelEvaluator.evaluate(expr, documents,
+ *     XPathConstants.NUMBER, executor);
+ * </pre>
+ * @author Michele Vivoda
+ */
+public final class ParallelEvaluator
+{
+    private ParallelEvaluator()
+    {
+    }
+
+    /**
+     * Evaluates an expression over all the items, with
+     * one task for each available processor.
+     * @param expression the expression.
+     * @param items the context items.
+     * @param returnType the return type.
+     * @param executor the executor that runs the tasks.
+     * @return the results, in the order of the items.
+     * @throws XPathExpressionException the first error
+     * of an evaluation, the others are not evaluated.
+     * @throws InterruptedException when interrupted while
+     * waiting, the tasks are stopped.
+     */
+    public static Object[] evaluate(final XPathExpression expression,
+        final List items, final QName returnType, final Executor executor)
+        throws XPathExpressionException, InterruptedException
+    {
+        return evaluate(expression, items, returnType, executor,
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Evaluates an expression over all the items.
+     * <p>When the executor rejects a task
+     * the task is run by the calling thread.
+     * @param expression the expression.
+     * @param items the context items.
+     * @param returnType the return type.
+     * @param executor the executor that runs the tasks.
+     * @param parallelism the maximum number of tasks.
+     * @return the results, in the order of the items.
+     * @throws XPathExpressionException the first error
+     * of an evaluation, the others are not evaluated.
+     * @throws InterruptedException when interrupted while
+     * waiting, the tasks are stopped.
+     */
+    public static Object[] evaluate(final XPathExpression expression,
+        final List items, final QName returnType, final Executor executor,
+        final int parallelism)
+        throws XPathExpressionException, InterruptedException
+    {
+        if (expression==null) throw new NullPointerException("Null expression");
+        if (executor==null) throw new NullPointerException("Null executor");
+        if (parallelism<1) throw new IllegalArgumentException("Parallelism:" + parallelism);
+        final Object[] input = items.toArray();
+        final Work work = new Work(expression, input, returnType);
+        final int tasks = Math.min(parallelism, input.length);
+        final CountDownLatch done = new CountDownLatch(tasks);
+        for(int i=0;i<tasks;i++)
+        {
+            final Runnable task = new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        work.run();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            };
+            try
+            {
+                executor.execute(task);
+            }
+            catch(RejectedExecutionException e)
+            {
+                task.run();
+            }
+        }
+        try
+        {
+            done.await();
+        }
+        catch(InterruptedException e)
+        {
+            work.stop();
+            throw e;
+        }
+        return work.getResults();
+    }
+
+    /**
+     * State shared by the tasks of a call.
+     */
+    private static final class Work
+    {
+        private final XPathExpression expression;
+        private final Object[] items;
+        private final QName returnType;
+        private final Object[] results;
+        private final AtomicInteger next = new AtomicInteger();
+        private volatile Throwable error;
+        private volatile boolean stopped;
+
+        Work(final XPathExpression expression, final Object[] items, final QName returnType)
+        {
+            this.expression = expression;
+            this.items = items;
+            this.returnType = returnType;
+            this.results = new Object[items.length];
+        }
+
+        void run()
+        {
+            int index;
+            while(!stopped && error==null && (index = next.getAndIncrement())<items.length)
+            {
+                try
+                {
+                    final Object item = items[index];
+                    results[index] = item instanceof InputSource
+                        ? expression.evaluate((InputSource) item, returnType)
+                        : expression.evaluate(item, returnType);
+                }
+                catch(Throwable t)
+                {
+                    synchronized(this)
+                    {
+                        if (error==null) error = t;
+                    }
+                }
+            }
+        }
+
+        void stop()
+        {
+            stopped = true;
+        }
+
+        /**
+         * Returns the results, the latch of the
+         * tasks makes their writes visible.
+         */
+        Object[] getResults() throws XPathExpressionException
+        {
+            final Throwable t = error;
+            if (t==null) return results;
+            if (t instanceof XPathExpressionException) throw (XPathExpressionException) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            throw new XPathExpressionException(t);
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.List;
+
+import org.apache.commons.jxpath.ri.EvalContext;
+import org.apache.commons.jxpath.ri.QName;
+import org.apache.commons.jxpath.ri.axes.InitialContext;
+import org.apache.commons.jxpath.ri.axes.PredicateContext;
+import org.apache.commons.jxpath.ri.axes.UnionContext;
+import org.apache.commons.jxpath.ri.compiler.Expression;
+import org.apache.commons.jxpath.ri.compiler.ExpressionPath;
+import org.apache.commons.jxpath.ri.compiler.ExtensionFunction;
+import org.apache.commons.jxpath.ri.compiler.LocationPath;
+import org.apache.commons.jxpath.ri.compiler.Operation;
+import org.apache.commons.jxpath.ri.compiler.Path;
+import org.apache.commons.jxpath.ri.compiler.Step;
+import org.apache.commons.jxpath.ri.compiler.TreeCompiler;
+import org.apache.commons.jxpath.ri.compiler.VariableReference;
+import org.apache.commons.jxpath.ri.model.NodePointer;
+
+/**
+ * {@link TreeCompiler} that builds an expression tree
+ * counting its work, used by {@link ExpressionProfiler}.
+ * <p>Paths evaluate each step and predicate through a
+ * {@link ProfiledContext} that counts the nodes in and out and
+ * the time spent in the step, without the simple path shortcut
+ * of JXPath, extension functions and variables count their calls.
+ * Times are self times: the time of a step does not include the
+ * time of the steps before it nor of the paths in its predicates.
+ * <p>The counters of a tree are not thread safe, a tree
+ * is evaluated by one thread at a time.
+ * @author Michele Vivoda
+ */
+final class ProfilingCompiler extends TreeCompiler
+{
+    private final Clock clock = new Clock();
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.compiler.TreeCompiler#locationPath(boolean, java.lang.Object[])
+     */
+    public Object locationPath(final boolean absolute, final Object[] steps)
+    {
+        final LocationPath path = (LocationPath) super.locationPath(absolute, steps);
+        return new ProfiledLocationPath(path.isAbsolute(), path.getSteps(), clock);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.compiler.TreeCompiler#expressionPath(java.lang.Object, java.lang.Object[], java.lang.Object[])
+     */
+    public Object expressionPath(final Object expression, final Object[] predicates,
+        final Object[] steps)
+    {
+        final ExpressionPath path = (ExpressionPath) super.expressionPath(expression,
+            predicates, steps);
+        return new ProfiledExpressionPath(path.getExpression(), path.getPredicates(),
+            path.getSteps(), clock);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.compiler.TreeCompiler#function(java.lang.Object, java.lang.Object[])
+     */
+    public Object function(final Object name, final Object[] args)
+    {
+        final ExtensionFunction function = (ExtensionFunction) super.function(name, args);
+        return new ProfiledFunction(function.getFunctionName(), function.getArguments(), clock);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.commons.jxpath.ri.compiler.TreeCompiler#variableReference(java.lang.Object)
+     */
+    public Object variableReference(final Object qName)
+    {
+        return new ProfiledVariable((QName) qName, clock);
+    }
+
+    /**
+     * Collects the counters of a tree built by this
+     * compiler, in the order of the text of the expression.
+     * @param expression the tree.
+     * @param counters the list that receives the {@link Counter}s.
+     */
+    static void collect(final Expression expression, final List counters)
+    {
+        collect(expression, counters, 0);
+    }
+
+    private static void collect(final Expression expression, final List counters,
+        final int depth)
+    {
+        if (expression==null) return;
+        if (expression instanceof ProfiledFunction)
+        {
+            final Counter counter = ((ProfiledFunction)expression).counter;
+            counter.depth = depth;
+            counters.add(counter);
+            collect(((Operation)expression).getArguments(), counters, depth + 1);
+        }
+        else if (expression instanceof Operation)
+        {
+            collect(((Operation)expression).getArguments(), counters, depth);
+        }
+        else if (expression instanceof ProfiledVariable)
+        {
+            final Counter counter = ((ProfiledVariable)expression).counter;
+            counter.depth = depth;
+            counters.add(counter);
+        }
+        else if (expression instanceof Path)
+        {
+            final Counters path = ((Profiled)expression).getCounters();
+            if (expression instanceof ExpressionPath)
+            {
+                final ExpressionPath expressionPath = (ExpressionPath) expression;
+                collect(expressionPath.getExpression(), counters, depth);
+                counters.add(path.value);
+                collect(path.filters, expressionPath.getPredicates(), counters, depth);
+            }
+            final Step[] steps = ((Path)expression).getSteps();
+            for(int i=0;i<path.steps.length;i++)
+            {
+                path.steps[i].depth = depth;
+                counters.add(path.steps[i]);
+                collect(path.predicates[i], steps[i].getPredicates(), counters, depth);
+            }
+        }
+    }
+
+    private static void collect(final Expression[] expressions, final List counters,
+        final int depth)
+    {
+        if (expressions==null) return;
+        for(int i=0;i<expressions.length;i++) collect(expressions[i], counters, depth);
+    }
+
+    private static void collect(final Counter[] predicates, final Expression[] expressions,
+        final List counters, final int depth)
+    {
+        for(int i=0;i<predicates.length;i++)
+        {
+            predicates[i].depth = depth + 1;
+            counters.add(predicates[i]);
+            collect(expressions[i], counters, depth + 2);
+        }
+    }
+
+    /**
+     * Counts of a step, a predicate, a function or a variable.
+     */
+    static final class Counter
+    {
+        final String kind;
+        final String path;
+        final String text;
+        /**
+         * Counter of the nodes tested by a predicate,
+         * null for the other kinds.
+         */
+        final Counter input;
+        int depth;
+        long visited;
+        long passed;
+        long calls;
+        long nanos;
+
+        Counter(final String kind, final String path, final String text, final Counter input)
+        {
+            this.kind = kind;
+            this.path = path;
+            this.text = text;
+            this.input = input;
+        }
+        long getVisited()
+        {
+            return input==null ? visited : input.passed;
+        }
+        void reset()
+        {
+            visited = 0;
+            passed = 0;
+            calls = 0;
+            nanos = 0;
+        }
+    }
+
+    /**
+     * The counters of a path.
+     */
+    static final class Counters
+    {
+        final Counter[] steps;
+        final Counter[][] predicates;
+        /**
+         * Predicates of an expression path, applied
+         * to the value of its expression.
+         */
+        final Counter[] filters;
+        /**
+         * Counts the nodes of the value of an expression path,
+         * tested by the first filter, not reported: its kind is null.
+         */
+        final Counter value;
+
+        Counters(final Path path, final Expression[] filters)
+        {
+            final String text = path.toString();
+            final Step[] pathSteps = path.getSteps()==null ? new Step[0] : path.getSteps();
+            this.value = new Counter(null, text, "", null);
+            this.filters = predicates(text, filters, value);
+            this.steps = new Counter[pathSteps.length];
+            this.predicates = new Counter[pathSteps.length][];
+            for(int i=0;i<pathSteps.length;i++)
+            {
+                steps[i] = new Counter(ExpressionProfile.Entry.STEP, text,
+                    Step.axisToString(pathSteps[i].getAxis()) + "::" + pathSteps[i].getNodeTest(),
+                    null);
+                predicates[i] = predicates(text, pathSteps[i].getPredicates(), steps[i]);
+            }
+        }
+
+        private static Counter[] predicates(final String text, final Expression[] expressions,
+            final Counter step)
+        {
+            if (expressions==null) return new Counter[0];
+            final Counter[] counters = new Counter[expressions.length];
+            for(int i=0;i<expressions.length;i++)
+            {
+                counters[i] = new Counter(ExpressionProfile.Entry.PREDICATE, text,
+                    "[" + expressions[i] + "]", i==0 ? step : counters[i - 1]);
+            }
+            return counters;
+        }
+    }
+
+    /**
+     * Measures the self time of the counters: the time of
+     * the calls nested in a measured call is subtracted
+     * from the time of the outer call.
+     */
+    static final class Clock
+    {
+        private long[] nested = new long[16];
+        private int depth;
+
+        long enter()
+        {
+            if (depth==nested.length)
+            {
+                final long[] grown = new long[depth * 2];
+                System.arraycopy(nested, 0, grown, 0, depth);
+                nested = grown;
+            }
+            nested[depth++] = 0;
+            return System.nanoTime();
+        }
+        void exit(final Counter counter, final long start)
+        {
+            final long elapsed = System.nanoTime() - start;
+            counter.nanos += elapsed - nested[--depth];
+            if (depth>0) nested[depth - 1] += elapsed;
+        }
+    }
+
+    /**
+     * Implemented by the profiled paths.
+     */
+    interface Profiled
+    {
+        Counters getCounters();
+    }
+
+    /**
+     * Builds the chain of contexts of the steps and predicates
+     * of a path with a {@link ProfiledContext} around each one.
+     */
+    private static EvalContext buildChain(final Path path, final Counters counters,
+        final Clock clock, EvalContext context, final int stepCount,
+        final boolean createInitialContext)
+    {
+        if (createInitialContext) context = new InitialContext(context);
+        final Step[] steps = path.getSteps();
+        if (steps==null) return context;
+        for(int i=0;i<stepCount;i++)
+        {
+            context = new ProfiledContext(context,
+                ((PathAccess)path).createContext(context, steps[i]),
+                counters.steps[i], clock);
+            context = predicates(context, steps[i].getPredicates(),
+                counters.predicates[i], clock);
+        }
+        return context;
+    }
+
+    private static EvalContext predicates(EvalContext context, final Expression[] predicates,
+        final Counter[] counters, final Clock clock)
+    {
+        if (predicates==null) return context;
+        for(int j=0;j<predicates.length;j++)
+        {
+            if (j!=0) context = new UnionContext(context, new EvalContext[]{context});
+            context = new ProfiledContext(context, new PredicateContext(context, predicates[j]),
+                counters[j], clock);
+        }
+        return context;
+    }
+
+    /**
+     * Access to the context of a step, protected in {@link Path}.
+     */
+    private interface PathAccess
+    {
+        EvalContext createContext(EvalContext context, Step step);
+    }
+
+    private static final class ProfiledLocationPath extends LocationPath
+        implements Profiled, PathAccess
+    {
+        private final Counters counters;
+        private final Clock clock;
+
+        ProfiledLocationPath(final boolean absolute, final Step[] steps, final Clock clock)
+        {
+            super(absolute, steps);
+            this.counters = new Counters(this, null);
+            this.clock = clock;
+        }
+        public Counters getCounters()
+        {
+            return counters;
+        }
+        public boolean isSimplePath()
+        {
+            // the simple path interpreter does not use contexts
+            return false;
+        }
+        protected EvalContext buildContextChain(final EvalContext context,
+            final int stepCount, final boolean createInitialContext)
+        {
+            return buildChain(this, counters, clock, context, stepCount, createInitialContext);
+        }
+        public EvalContext createContext(final EvalContext context, final Step step)
+        {
+            return createContextForStep(context, step.getAxis(), step.getNodeTest());
+        }
+    }
+
+    private static final class ProfiledExpressionPath extends ExpressionPath
+        implements Profiled, PathAccess
+    {
+        private final Counters counters;
+        private final Clock clock;
+
+        ProfiledExpressionPath(final Expression expression, final Expression[] predicates,
+            final Step[] steps, final Clock clock)
+        {
+            super(expression, predicates, steps);
+            this.counters = new Counters(this, predicates);
+            this.clock = clock;
+        }
+        public Counters getCounters()
+        {
+            return counters;
+        }
+        public boolean isSimplePath()
+        {
+            return false;
+        }
+        public synchronized boolean isSimpleExpressionPath()
+        {
+            return false;
+        }
+        protected Object expressionPath(final EvalContext evalContext, final boolean firstMatch)
+        {
+            final Object value = getExpression().compute(evalContext);
+            EvalContext context;
+            if (value instanceof InitialContext) context = (InitialContext) value;
+            else if (value instanceof EvalContext)
+            {
+                context = new UnionContext(evalContext, new EvalContext[]{(EvalContext) value});
+            }
+            else context = evalContext.getRootContext().getConstantContext(value);
+            if (getPredicates()!=null && getPredicates().length>0)
+            {
+                context = new ProfiledContext(context, context, counters.value, clock);
+                context = predicates(context, getPredicates(), counters.filters, clock);
+            }
+            return firstMatch ? (Object) getSingleNodePointerForSteps(context)
+                : evalSteps(context);
+        }
+        protected EvalContext buildContextChain(final EvalContext context,
+            final int stepCount, final boolean createInitialContext)
+        {
+            return buildChain(this, counters, clock, context, stepCount, createInitialContext);
+        }
+        public EvalContext createContext(final EvalContext context, final Step step)
+        {
+            return createContextForStep(context, step.getAxis(), step.getNodeTest());
+        }
+    }
+
+    private static final class ProfiledFunction extends ExtensionFunction
+    {
+        final Counter counter;
+        private final Clock clock;
+
+        ProfiledFunction(final QName name, final Expression[] args, final Clock clock)
+        {
+            super(name, args);
+            this.counter = new Counter(ExpressionProfile.Entry.FUNCTION, null,
+                toString(), null);
+            this.clock = clock;
+        }
+        public Object computeValue(final EvalContext context)
+        {
+            counter.calls++;
+            final long start = clock.enter();
+            try
+            {
+                return super.computeValue(context);
+            }
+            finally
+            {
+                clock.exit(counter, start);
+            }
+        }
+    }
+
+    private static final class ProfiledVariable extends VariableReference
+    {
+        final Counter counter;
+        private final Clock clock;
+
+        ProfiledVariable(final QName name, final Clock clock)
+        {
+            super(name);
+            this.counter = new Counter(ExpressionProfile.Entry.VARIABLE, null,
+                toString(), null);
+            this.clock = clock;
+        }
+        public Object computeValue(final EvalContext context)
+        {
+            counter.calls++;
+            final long start = clock.enter();
+            try
+            {
+                return super.computeValue(context);
+            }
+            finally
+            {
+                clock.exit(counter, start);
+            }
+        }
+    }
+
+    /**
+     * Context around the context of a step or of a predicate:
+     * counts the context nodes as visited by a step, the returned
+     * nodes as passed and the time of the calls, the iteration is
+     * done by the wrapped context.
+     */
+    private static final class ProfiledContext extends EvalContext
+    {
+        private final EvalContext context;
+        private final Counter counter;
+        private final Clock clock;
+
+        ProfiledContext(final EvalContext parent, final EvalContext context,
+            final Counter counter, final Clock clock)
+        {
+            super(parent);
+            this.context = context;
+            this.counter = counter;
+            this.clock = clock;
+        }
+        public NodePointer getCurrentNodePointer()
+        {
+            if (position>0) return context.getCurrentNodePointer();
+            // a predicate read without iterating, like by the
+            // first match of a path, moves to its first node
+            final long start = clock.enter();
+            try
+            {
+                final NodePointer pointer = context.getCurrentNodePointer();
+                position = context.getCurrentPosition();
+                if (pointer!=null && position>0) counter.passed++;
+                return pointer;
+            }
+            finally
+            {
+                clock.exit(counter, start);
+            }
+        }
+        public int getCurrentPosition()
+        {
+            return context.getCurrentPosition();
+        }
+        public int getPosition()
+        {
+            return context.getPosition();
+        }
+        public int getDocumentOrder()
+        {
+            return context.getDocumentOrder();
+        }
+        public boolean isChildOrderingRequired()
+        {
+            return context.isChildOrderingRequired();
+        }
+        public boolean nextSet()
+        {
+            final long start = clock.enter();
+            try
+            {
+                final boolean next = context.nextSet();
+                position = 0;
+                if (next) counter.visited++;
+                return next;
+            }
+            finally
+            {
+                clock.exit(counter, start);
+            }
+        }
+        public boolean nextNode()
+        {
+            final long start = clock.enter();
+            try
+            {
+                final boolean next = context.nextNode();
+                position = context.getCurrentPosition();
+                if (next) counter.passed++;
+                return next;
+            }
+            finally
+            {
+                clock.exit(counter, start);
+            }
+        }
+        public boolean setPosition(final int index)
+        {
+            final long start = clock.enter();
+            try
+            {
+                final boolean found = context.setPosition(index);
+                position = context.getCurrentPosition();
+                if (found && index>0) counter.passed++;
+                return found;
+            }
+            finally
+            {
+                clock.exit(counter, start);
+            }
+        }
+        public void reset()
+        {
+            context.reset();
+            position = 0;
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package org.apache.commons.jxpath.jaxp;
+
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionException;
+
+/**
+ * Optional interface for {@link XPathFunction}s returned by
+ * an {@link javax.xml.xpath.XPathFunctionResolver} that want
+ * the arguments as computed by JXPath, without conversion.
+ * <p>When a resolved function implements this interface
+ * {@link #evaluateRaw(Object[])} is called instead of
+ * {@link XPathFunction#evaluate(java.util.List)}, node sets
+ * are passed as {@link org.apache.commons.jxpath.NodeSet}s,
+ * so a function that only tests whether a node set is empty
+ * or reads its first node does not pay for a node list.
+ * @author Michele Vivoda
+ */
+public interface RawXPathFunction extends XPathFunction
+{
+    /**
+     * Evaluates the function.
+     * @param args the arguments as computed by JXPath, never null,
+     * the array must not be kept after the call.
+     * @return the result of the function.
+     * @throws XPathFunctionException when fails.
+     */
+    Object evaluateRaw(Object[] args) throws XPathFunctionException;
+}
@@ -0,0 +1,27 @@
+package org.apache.commons.jxpath.jaxp;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Element;
+
+/**
+ * Receives the results of a {@link RecordPipeline}
+ * for each record of a document.
+ * @author Michele Vivoda
+ */
+public interface RecordHandler
+{
+    /**
+     * Called for each record, in document order when the
+     * pipeline runs in the parsing thread, otherwise from
+     * the worker threads in any order.
+     * @param index the position of the record, from zero.
+     * @param record the record element, in a document
+     * that contains only the record.
+     * @param results the results of the expressions of
+     * the pipeline, see {@link XPathBatch#evaluate(Object)}.
+     * @throws XPathExpressionException to stop the pipeline.
+     */
+    void record(long index, Element record, Object[] results)
+        throws XPathExpressionException;
+}
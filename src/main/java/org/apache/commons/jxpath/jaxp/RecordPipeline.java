@@ -0,0 +1,552 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Evaluates the expressions of an {@link XPathBatch} on each
+ * repeated record element of a document, keeping in memory only
+ * the records being evaluated.
+ * <p>The document is read with SAX, each record is copied to a
+ * small DOM of its own, with the namespace declarations in scope,
+ * and the expressions are evaluated with the record element as the
+ * context item: relative paths start from the record, absolute
+ * paths from the root of its document, that is the record itself.
+ * <p>Records are selected by a path of local names from the root,
+ * like <code>/feed/records/record</code>, or by a local name, like
+ * <code>record</code>, matching elements at any depth that are not
+ * inside another record.
+ * <pre>
+ * RecordPipeline pipeline = new RecordPipeline("/feed/record", batch);
+ * pipeline.run(new InputSource(in), new RecordHandler()
+ * {
+ *     public void record(long index, Element record, Object[] results)
+ *     {
+ *         ...
+ *     }
+ * });
+ * </pre>
+ * <p>With {@link #run(InputSource, RecordHandler, Executor, int, int)}
+ * records are queued to worker threads, so that parsing and
+ * evaluation overlap; the bounded queue makes the parsing
+ * wait when the workers are behind.
+ * <p>When any expression of the batch is secure the document is
+ * read in secure mode: external entities and the external DTD are
+ * not read and the expansion of the entities is limited, see
+ * {@link javax.xml.XMLConstants#FEATURE_SECURE_PROCESSING}.
+ * <p>Instances are immutable and thread safe.
+ * @author Michele Vivoda
+ */
+public final class RecordPipeline
+{
+    /**
+     * Time a worker waits for a record before checking
+     * whether the parsing is over.
+     */
+    private static final long POLL_MILLIS = 50;
+
+    private final String recordPath;
+    private final String[] path;
+    private final XPathBatch batch;
+
+    /**
+     * Constructor.
+     * @param recordPath absolute path of local names
+     * or local name of the record elements.
+     * @param batch the expressions evaluated for each record.
+     */
+    public RecordPipeline(final String recordPath, final XPathBatch batch)
+    {
+        if (batch==null) throw new NullPointerException("Null batch");
+        final StringTokenizer tokens = new StringTokenizer(recordPath, "/");
+        if (tokens.countTokens()==0) throw new IllegalArgumentException("Empty path:" + recordPath);
+        this.recordPath = recordPath;
+        this.path = new String[tokens.countTokens()];
+        for(int i=0;i<path.length;i++) path[i] = tokens.nextToken();
+        this.batch = batch;
+    }
+
+    /**
+     * Returns the path of the record elements.
+     * @return the path as passed to the constructor.
+     */
+    public String getRecordPath()
+    {
+        return recordPath;
+    }
+
+    /**
+     * Returns the expressions evaluated for each record.
+     * @return the batch.
+     */
+    public XPathBatch getBatch()
+    {
+        return batch;
+    }
+
+    /**
+     * Reads a document evaluating each record in the calling thread.
+     * @param source the document.
+     * @param handler receives the results, in document order.
+     * @return the number of records.
+     * @throws XPathExpressionException when the parsing or an evaluation
+     * fails or when thrown by the handler, the rest of the input is not read.
+     */
+    public long run(final InputSource source, final RecordHandler handler)
+        throws XPathExpressionException
+    {
+        return parse(source, new Sink()
+        {
+            public void accept(final long index, final Element record) throws SAXException
+            {
+                try
+                {
+                    handler.record(index, record, batch.evaluate(record));
+                }
+                catch(XPathExpressionException e)
+                {
+                    throw new Stop(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a document in the calling thread and evaluates
+     * the records in worker threads.
+     * @param source the document.
+     * @param handler receives the results, from the worker
+     * threads and in any order, must be thread safe.
+     * @param executor runs the workers, must be able to run
+     * them all at the same time.
+     * @param workers the number of workers.
+     * @param capacity the maximum number of records waiting
+     * for a worker.
+     * @return the number of records.
+     * @throws XPathExpressionException when the parsing or an evaluation
+     * fails or when thrown by the handler, the rest of the input is not read.
+     * @throws InterruptedException when interrupted, the workers are stopped.
+     */
+    public long run(final InputSource source, final RecordHandler handler,
+        final Executor executor, final int workers, final int capacity)
+        throws XPathExpressionException, InterruptedException
+    {
+        if (workers<1) throw new IllegalArgumentException("Workers:" + workers);
+        final Queue queue = new Queue(handler, capacity, workers);
+        for(int i=0;i<workers;i++)
+        {
+            try
+            {
+                executor.execute(queue);
+            }
+            catch(RuntimeException e)
+            {
+                queue.stop();
+                throw e;
+            }
+        }
+        long count = 0;
+        try
+        {
+            count = parse(source, queue);
+        }
+        catch(XPathExpressionException e)
+        {
+            queue.stop();
+            queue.await();
+            if (queue.interrupted) throw new InterruptedException();
+            throw queue.error!=null ? queue.getError() : e;
+        }
+        catch(RuntimeException e)
+        {
+            // also failures of the stream or of the DOM building,
+            // the workers would wait for records forever
+            queue.stop();
+            queue.await();
+            throw e;
+        }
+        catch(Error e)
+        {
+            queue.stop();
+            queue.await();
+            throw e;
+        }
+        queue.finish();
+        queue.await();
+        if (queue.error!=null) throw queue.getError();
+        return count;
+    }
+
+    private long parse(final InputSource source, final Sink sink)
+        throws XPathExpressionException
+    {
+        final boolean secure = batch.isSecure();
+        final DocumentBuilderPool pool = DocumentBuilderPool.getInstance(secure);
+        final DocumentBuilder builder = pool.acquire();
+        final Splitter splitter = new Splitter(builder, sink);
+        try
+        {
+            final XMLReader reader = XMLReaders.newXMLReader(secure);
+            reader.setContentHandler(splitter);
+            reader.setErrorHandler(splitter);
+            XMLReaders.setLexicalHandler(reader, splitter);
+            reader.parse(source);
+            return splitter.count;
+        }
+        catch(Stop e)
+        {
+            throw e.error;
+        }
+        catch(SAXException e)
+        {
+            // Also xalan uses XPathExpressionException for these errors
+            throw new XPathExpressionException(e);
+        }
+        catch(IOException e)
+        {
+            throw new XPathExpressionException(e);
+        }
+        finally
+        {
+            pool.release(builder);
+        }
+    }
+
+    /**
+     * Receives the records from the parsing thread.
+     */
+    private interface Sink
+    {
+        void accept(long index, Element record) throws SAXException;
+    }
+
+    /**
+     * Thrown to stop the parsing, carries the cause.
+     */
+    private static final class Stop extends SAXException
+    {
+        private static final long serialVersionUID = 1L;
+        private final XPathExpressionException error;
+
+        Stop(final XPathExpressionException error)
+        {
+            super(error.getMessage());
+            this.error = error;
+        }
+    }
+
+    /**
+     * Bounded queue of records and worker loop.
+     */
+    private final class Queue implements Sink, Runnable
+    {
+        private final RecordHandler handler;
+        private final ArrayBlockingQueue records;
+        private final CountDownLatch done;
+        private volatile boolean finished;
+        private volatile boolean stopped;
+        volatile Throwable error;
+        volatile boolean interrupted;
+
+        Queue(final RecordHandler handler, final int capacity, final int workers)
+        {
+            this.handler = handler;
+            this.records = new ArrayBlockingQueue(capacity);
+            this.done = new CountDownLatch(workers);
+        }
+
+        public void accept(final long index, final Element record) throws SAXException
+        {
+            final Object[] item = new Object[]{Long.valueOf(index), record};
+            try
+            {
+                // the workers may all be gone after an error
+                // or a stop, the queue would stay full
+                do
+                {
+                    if (error!=null) throw new Stop(new XPathExpressionException("Worker failed"));
+                    if (stopped) throw new Stop(new XPathExpressionException("Stopped"));
+                }
+                while(!records.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS));
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+                throw new Stop(new XPathExpressionException(e));
+            }
+        }
+
+        public void run()
+        {
+            try
+            {
+                while(!stopped)
+                {
+                    final Object[] item = (Object[]) records.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (item==null)
+                    {
+                        if (finished) break;
+                        continue;
+                    }
+                    if (error!=null) continue;
+                    final Element record = (Element) item[1];
+                    handler.record(((Long)item[0]).longValue(), record, batch.evaluate(record));
+                }
+            }
+            catch(Throwable t)
+            {
+                synchronized(this)
+                {
+                    if (error==null) error = t;
+                }
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+
+        void finish()
+        {
+            finished = true;
+        }
+
+        void stop()
+        {
+            stopped = true;
+            records.clear();
+        }
+
+        void await() throws InterruptedException
+        {
+            try
+            {
+                done.await();
+            }
+            catch(InterruptedException e)
+            {
+                stop();
+                throw e;
+            }
+        }
+
+        XPathExpressionException getError()
+        {
+            final Throwable t = error;
+            if (t instanceof XPathExpressionException) return (XPathExpressionException) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            return new XPathExpressionException(t);
+        }
+    }
+
+    /**
+     * Copies each record to a new document, as done by the
+     * builders of {@link DocumentBuilderPool}: text is coalesced,
+     * entity references are expanded, in secure mode only
+     * the internal ones.
+     */
+    private final class Splitter extends DefaultHandler implements LexicalHandler
+    {
+        private final DocumentBuilder builder;
+        private final Sink sink;
+        private final NamespaceSupport namespaces = new NamespaceSupport();
+        private boolean contextPushed;
+        private final StringBuffer text = new StringBuffer();
+        /**
+         * Local names of the open elements outside records.
+         */
+        private String[] names = new String[16];
+        private int depth;
+        private Document document;
+        private Node current;
+        private int recordDepth;
+        long count;
+
+        Splitter(final DocumentBuilder builder, final Sink sink)
+        {
+            this.builder = builder;
+            this.sink = sink;
+        }
+
+        public void startPrefixMapping(final String prefix, final String uri)
+        {
+            if (!contextPushed)
+            {
+                namespaces.pushContext();
+                contextPushed = true;
+            }
+            namespaces.declarePrefix(prefix, uri);
+        }
+
+        public void startElement(final String uri, final String localName,
+            final String qName, final Attributes attrs) throws SAXException
+        {
+            final boolean declares = contextPushed;
+            if (!contextPushed) namespaces.pushContext();
+            contextPushed = false;
+            depth++;
+            if (document==null)
+            {
+                if (depth==names.length)
+                {
+                    final String[] n = new String[names.length * 2];
+                    System.arraycopy(names, 0, n, 0, names.length);
+                    names = n;
+                }
+                names[depth] = localName;
+                if (!isRecord()) return;
+                document = builder.newDocument();
+                current = document;
+                recordDepth = depth;
+            }
+            flush();
+            final Element element = document.createElementNS(
+                uri.length()==0 ? null : uri, qName);
+            if (depth==recordDepth)
+            {
+                // all the declarations in scope
+                declare(element, namespaces.getPrefixes());
+                if (namespaces.getURI("")!=null) declare(element, "", namespaces.getURI(""));
+            }
+            else if (declares)
+            {
+                declare(element, namespaces.getDeclaredPrefixes());
+            }
+            for(int i=0, len=attrs.getLength();i<len;i++)
+            {
+                final String attrUri = attrs.getURI(i);
+                element.setAttributeNS(attrUri.length()==0 ? null : attrUri,
+                    attrs.getQName(i), attrs.getValue(i));
+            }
+            current.appendChild(element);
+            current = element;
+        }
+
+        public void endElement(final String uri, final String localName,
+            final String qName) throws SAXException
+        {
+            namespaces.popContext();
+            if (document!=null)
+            {
+                flush();
+                current = current.getParentNode();
+                if (depth==recordDepth)
+                {
+                    final Element record = document.getDocumentElement();
+                    document = null;
+                    current = null;
+                    sink.accept(count++, record);
+                }
+            }
+            depth--;
+        }
+
+        public void characters(final char[] ch, final int start, final int length)
+        {
+            if (document!=null) text.append(ch, start, length);
+        }
+
+        public void ignorableWhitespace(final char[] ch, final int start, final int length)
+        {
+            characters(ch, start, length);
+        }
+
+        public void processingInstruction(final String target, final String data)
+        {
+            if (document==null) return;
+            flush();
+            current.appendChild(document.createProcessingInstruction(target, data));
+        }
+
+        public void comment(final char[] ch, final int start, final int length)
+        {
+            if (document==null) return;
+            flush();
+            current.appendChild(document.createComment(new String(ch, start, length)));
+        }
+
+        public void startDTD(final String name, final String publicId, final String systemId)
+        {
+        }
+
+        public void endDTD()
+        {
+        }
+
+        public void startEntity(final String name)
+        {
+        }
+
+        public void endEntity(final String name)
+        {
+        }
+
+        public void startCDATA()
+        {
+        }
+
+        public void endCDATA()
+        {
+        }
+
+        private boolean isRecord()
+        {
+            if (path.length==1 && recordPath.charAt(0)!='/')
+            {
+                return path[0].equals(names[depth]);
+            }
+            if (depth!=path.length) return false;
+            for(int i=0;i<path.length;i++)
+            {
+                if (!path[i].equals(names[i + 1])) return false;
+            }
+            return true;
+        }
+
+        private void flush()
+        {
+            if (text.length()==0) return;
+            current.appendChild(document.createTextNode(text.toString()));
+            text.setLength(0);
+        }
+
+        private void declare(final Element element, final Enumeration prefixes)
+        {
+            while(prefixes.hasMoreElements())
+            {
+                final String prefix = (String) prefixes.nextElement();
+                final String uri = namespaces.getURI(prefix);
+                if (uri!=null) declare(element, prefix, uri);
+            }
+        }
+
+        private void declare(final Element element, final String prefix, final String uri)
+        {
+            if (prefix.equals("xml")) return;
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                prefix.length()==0 ? XMLConstants.XMLNS_ATTRIBUTE
+                    : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, uri);
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.namespace.QName;
+
+import org.eleusoft.jaxp.common.NodeListImpl;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Cache of the results of the compiled expressions evaluated
+ * over the nodes of in memory documents, keyed by the expression,
+ * the context node, the return type and the values of the variables.
+ * <p>A result is used only while its document is not changed: the
+ * document is either versioned by the caller with
+ * {@link #setVersion(Document, long)}, or its changes are seen by
+ * DOM mutation listeners registered at the first evaluation. The
+ * results of documents without a version, when the DOM implementation
+ * does not support mutation events, are not cached.
+ * <p>The results of a document are kept in its user data, so they
+ * live no longer than the document, and are limited by
+ * {@link #getMaxSize()}, initially read from the system property
+ * {@link #SIZE_PROPERTY}; the cache references the documents
+ * only weakly, to {@link #clear()} them.
+ * <p>Only the evaluations of expressions without variables, or with
+ * the values of all the variables given by the caller, are cached;
+ * extension functions are expected to return the same result
+ * for the same arguments. Node set results are read fully and
+ * returned as read only lists shared by the evaluations.
+ * <p>The cache of a factory is returned by
+ * {@link JXPathXPathFactory#getResultCache()} and is enabled with
+ * the {@link JXPathXPathFactory#FEATURE_RESULT_CACHE} feature.
+ * <p>Instances are thread safe.
+ * @author Michele Vivoda
+ */
+public final class ResultCache
+{
+    /**
+     * Name of the system property with the default maximum
+     * number of results of a document, <code>256</code> when not set.
+     */
+    public static final String SIZE_PROPERTY =
+        "org.apache.commons.jxpath.jaxp.resultCacheSize";
+
+    private static final int DEFAULT_SIZE = 256;
+
+    /**
+     * Returned by {@link #get(Object, Object, QName, Object[], int)}
+     * when the evaluation cannot be cached.
+     */
+    static final Object NOT_CACHED = new Object();
+    /**
+     * Cached null result.
+     */
+    private static final Object NULL = new Object();
+
+    private static int instances;
+
+    private final String key;
+    private final WeakHashMap documents = new WeakHashMap();
+    private volatile int maxSize;
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    /**
+     * Creates a cache with the size configured
+     * by the {@link #SIZE_PROPERTY} system property.
+     */
+    ResultCache()
+    {
+        this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE).intValue());
+    }
+
+    /**
+     * Creates a cache with the given size.
+     * @param maxSize the maximum number of results of a document.
+     */
+    ResultCache(final int maxSize)
+    {
+        if (maxSize<0) throw new IllegalArgumentException("Negative size:" + maxSize);
+        this.maxSize = maxSize;
+        synchronized(ResultCache.class)
+        {
+            this.key = ResultCache.class.getName() + '#' + instances++;
+        }
+    }
+
+    /**
+     * Sets the version of a document, the results computed
+     * with another version are not used. Once a document has
+     * a version, its mutation events are ignored.
+     * @param document the document.
+     * @param version the version, for example a counter
+     * incremented by the caller at each change.
+     */
+    public void setVersion(final Document document, final long version)
+    {
+        final Store store = getStore(document);
+        synchronized(store)
+        {
+            store.stamp = version;
+            store.stamped = true;
+        }
+    }
+
+    /**
+     * Removes the results of a document.
+     * @param document the document.
+     */
+    public void invalidate(final Document document)
+    {
+        final Store store = (Store) document.getUserData(key);
+        if (store==null) return;
+        synchronized(store)
+        {
+            invalidated(store.results.size());
+            store.results.clear();
+        }
+    }
+
+    /**
+     * Returns the result of an evaluation.
+     * @param expression the compiled expression.
+     * @param item the context item.
+     * @param returnType the return type.
+     * @param values the values of the variables, null allowed.
+     * @param variables the number of variables of the expression.
+     * @return the result, {@link #NOT_CACHED} when the evaluation
+     * cannot be cached, or a {@link Miss} to store the result.
+     */
+    Object get(final Object expression, final Object item, final QName returnType,
+        final Object[] values, final int variables)
+    {
+        if (maxSize==0 || !(item instanceof Node)) return NOT_CACHED;
+        if (variables>0)
+        {
+            if (values==null) return NOT_CACHED;
+            for(int i=0;i<values.length;i++) if (values[i]==null) return NOT_CACHED;
+        }
+        final Node node = (Node) item;
+        final Document document = node instanceof Document
+            ? (Document) node : node.getOwnerDocument();
+        if (document==null) return NOT_CACHED;
+        final Store store = getStore(document);
+        final Key k = new Key(expression, node, returnType, values);
+        final long version;
+        synchronized(store)
+        {
+            if (store.stamped) version = store.stamp;
+            else
+            {
+                if (store.counter==null)
+                {
+                    store.counter = DocumentVersion.get(document);
+                    if (store.counter==null) return NOT_CACHED;
+                }
+                version = store.counter.getVersion();
+            }
+            final Entry entry = (Entry) store.results.get(k);
+            if (entry!=null)
+            {
+                if (entry.version==version)
+                {
+                    hit();
+                    return entry.result==NULL ? null : entry.result;
+                }
+                store.results.remove(k);
+                invalidated(1);
+            }
+        }
+        missed();
+        return new Miss(store, k, version);
+    }
+
+    private Store getStore(final Document document)
+    {
+        synchronized(document)
+        {
+            Store store = (Store) document.getUserData(key);
+            if (store==null)
+            {
+                store = new Store();
+                document.setUserData(key, store, null);
+                synchronized(this)
+                {
+                    documents.put(document, null);
+                }
+            }
+            return store;
+        }
+    }
+
+    private synchronized void hit()
+    {
+        hits++;
+    }
+
+    private synchronized void missed()
+    {
+        misses++;
+    }
+
+    private synchronized void invalidated(final int count)
+    {
+        invalidations += count;
+    }
+
+    /**
+     * Returns the number of evaluations that used a cached result.
+     * @return the hit count.
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of cacheable evaluations
+     * without a valid result.
+     * @return the miss count.
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of results removed because
+     * the document was changed or invalidated.
+     * @return the invalidation count.
+     */
+    public synchronized long getInvalidationCount()
+    {
+        return invalidations;
+    }
+
+    /**
+     * Returns the number of live documents with results.
+     * @return the document count.
+     */
+    public synchronized int getDocumentCount()
+    {
+        return documents.size();
+    }
+
+    /**
+     * Returns the maximum number of results of a document.
+     * @return the maximum size.
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of results of a document,
+     * results in excess are evicted at the next evaluation.
+     * @param maxSize the new size, zero disables the cache.
+     */
+    public void setMaxSize(final int maxSize)
+    {
+        if (maxSize<0) throw new IllegalArgumentException("Negative size:" + maxSize);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Removes the results and the versions of all the documents,
+     * statistics are not reset.
+     */
+    public void clear()
+    {
+        final ArrayList list;
+        synchronized(this)
+        {
+            list = new ArrayList(documents.keySet());
+            documents.clear();
+        }
+        for(final Iterator iter = list.iterator();iter.hasNext();)
+        {
+            final Document document = (Document) iter.next();
+            synchronized(document)
+            {
+                document.setUserData(key, null, null);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public synchronized String toString()
+    {
+        return "ResultCache[documents=" + documents.size() + ", maxSize=" + maxSize
+            + ", hits=" + hits + ", misses=" + misses
+            + ", invalidations=" + invalidations + "]";
+    }
+
+    /**
+     * A cacheable evaluation without a valid result,
+     * the result is stored with {@link #put(Object)}.
+     */
+    final class Miss
+    {
+        private final Store store;
+        private final Key key;
+        private final long version;
+
+        Miss(final Store store, final Key key, final long version)
+        {
+            this.store = store;
+            this.key = key;
+            this.version = version;
+        }
+
+        /**
+         * Stores the result of the evaluation.
+         * @param result the result.
+         * @return the result to return to the caller, the nodes
+         * of a node list are read in a list that can be shared.
+         */
+        Object put(final Object result)
+        {
+            Object value = result;
+            if (result instanceof NodeList && !(result instanceof NodeListImpl))
+            {
+                final NodeList list = (NodeList) result;
+                final Node[] nodes = new Node[list.getLength()];
+                for(int i=0;i<nodes.length;i++) nodes[i] = list.item(i);
+                value = new NodeListImpl(Arrays.asList(nodes));
+            }
+            synchronized(store)
+            {
+                store.results.put(key, new Entry(value==null ? NULL : value, version));
+                final int size = maxSize;
+                final Iterator iter = store.results.values().iterator();
+                while(store.results.size()>size)
+                {
+                    iter.next();
+                    iter.remove();
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Results of a document, least recently used first.
+     */
+    private static final class Store
+    {
+        final Map results = new LinkedHashMap(16, 0.75f, true);
+        DocumentVersion counter;
+        long stamp;
+        boolean stamped;
+    }
+
+    private static final class Entry
+    {
+        final Object result;
+        final long version;
+
+        Entry(final Object result, final long version)
+        {
+            this.result = result;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Key of a result, expression and node
+     * compared by identity.
+     */
+    private static final class Key
+    {
+        private final Object expression;
+        private final Node node;
+        private final QName returnType;
+        private final Object[] values;
+        private final int hash;
+
+        Key(final Object expression, final Node node, final QName returnType,
+            final Object[] values)
+        {
+            this.expression = expression;
+            this.node = node;
+            this.returnType = returnType;
+            this.values = values==null || values.length==0 ? null : (Object[]) values.clone();
+            int h = System.identityHashCode(expression);
+            h = h * 31 + System.identityHashCode(node);
+            h = h * 31 + (returnType==null ? 0 : returnType.hashCode());
+            if (this.values!=null)
+            {
+                for(int i=0;i<this.values.length;i++) h = h * 31 + this.values[i].hashCode();
+            }
+            this.hash = h;
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(final Object obj)
+        {
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            return expression==other.expression && node==other.node
+                && (returnType==null ? other.returnType==null : returnType.equals(other.returnType))
+                && Arrays.equals(values, other.values);
+        }
+    }
+}
@@ -0,0 +1,624 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.jxpath.ri.Compiler;
+import org.apache.commons.jxpath.ri.InfoSetUtil;
+import org.apache.commons.jxpath.ri.compiler.Constant;
+import org.apache.commons.jxpath.ri.compiler.CoreFunction;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationAnd;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationEqual;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationGreaterThan;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationGreaterThanOrEqual;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationLessThan;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationLessThanOrEqual;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationNotEqual;
+import org.apache.commons.jxpath.ri.compiler.CoreOperationOr;
+import org.apache.commons.jxpath.ri.compiler.Expression;
+import org.apache.commons.jxpath.ri.compiler.LocationPath;
+import org.apache.commons.jxpath.ri.compiler.NodeNameTest;
+import org.apache.commons.jxpath.ri.compiler.NodeTypeTest;
+import org.apache.commons.jxpath.ri.compiler.Operation;
+import org.apache.commons.jxpath.ri.compiler.Step;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Forward only evaluation of an expression over
+ * the SAX events of an {@link InputSource}, without
+ * building a DOM.
+ * <p>Expressions are checked by {@link #compile(Expression)},
+ * the supported subset is:
+ * <ul>
+ * <li>an absolute location path, or one of the functions
+ * <code>count</code>, <code>sum</code>, <code>string</code>
+ * and <code>boolean</code> with an absolute location path argument;</li>
+ * <li>steps on the child and descendant axes (also abbreviated with
+ * <code>//</code>) with an unprefixed element name or <code>*</code>,
+ * optionally followed by a last step selecting an unprefixed attribute;</li>
+ * <li>predicates testing attributes of the element: <code>[&#64;a]</code>,
+ * comparisons of an attribute with a string or number literal,
+ * and <code>and</code> / <code>or</code> of them.</li>
+ * </ul>
+ * <p>Results follow the JXPath evaluation over the DOM, results
+ * that need only the first selected node stop reading the input
+ * when it is complete, so errors after that point are not reported.
+ * <p>Instances are immutable and thread safe.
+ * @author Michele Vivoda
+ */
+final class StreamingExpression
+{
+    private static final int PATH = 0;
+    private static final int COUNT = 1;
+    private static final int SUM = 2;
+    private static final int STRING = 3;
+    private static final int BOOLEAN = 4;
+
+    /**
+     * Maximum number of steps, the states
+     * of the evaluation are bits of a long.
+     */
+    private static final int MAX_STEPS = 62;
+
+    private final int kind;
+    private final String[] names;
+    private final Predicate[] predicates;
+    private final long deepMask;
+    private final String attribute;
+
+    private StreamingExpression(final int kind, final String[] names,
+        final Predicate[] predicates, final long deepMask, final String attribute)
+    {
+        this.kind = kind;
+        this.names = names;
+        this.predicates = predicates;
+        this.deepMask = deepMask;
+        this.attribute = attribute;
+    }
+
+    /**
+     * Checks whether an expression can be evaluated
+     * by streaming and prepares its evaluation.
+     * @param expression the parsed expression.
+     * @return the streaming expression or null
+     * when the expression is not supported.
+     */
+    static StreamingExpression compile(final Expression expression)
+    {
+        int kind = PATH;
+        Expression path = expression;
+        if (expression instanceof CoreFunction)
+        {
+            final CoreFunction function = (CoreFunction) expression;
+            if (function.getArgumentCount()!=1) return null;
+            switch(function.getFunctionCode())
+            {
+                case Compiler.FUNCTION_COUNT: kind = COUNT; break;
+                case Compiler.FUNCTION_SUM: kind = SUM; break;
+                case Compiler.FUNCTION_STRING: kind = STRING; break;
+                case Compiler.FUNCTION_BOOLEAN: kind = BOOLEAN; break;
+                default: return null;
+            }
+            path = function.getArg1();
+        }
+        if (!(path instanceof LocationPath) || !((LocationPath)path).isAbsolute()) return null;
+        final Step[] steps = ((LocationPath)path).getSteps();
+        if (steps==null || steps.length==0) return null;
+        final ArrayList names = new ArrayList();
+        final ArrayList predicates = new ArrayList();
+        long deepMask = 0;
+        boolean deep = false;
+        String attribute = null;
+        for(int i=0;i<steps.length;i++)
+        {
+            final Step step = steps[i];
+            final Expression[] preds = step.getPredicates();
+            final boolean hasPredicates = preds!=null && preds.length>0;
+            if (attribute!=null || names.size()>=MAX_STEPS) return null;
+            switch(step.getAxis())
+            {
+                case Compiler.AXIS_DESCENDANT_OR_SELF:
+                    // the node() step of //
+                    if (hasPredicates || !(step.getNodeTest() instanceof NodeTypeTest)
+                        || ((NodeTypeTest)step.getNodeTest()).getNodeType()!=Compiler.NODE_TYPE_NODE
+                        || i==steps.length - 1) return null;
+                    deep = true;
+                    break;
+                case Compiler.AXIS_DESCENDANT:
+                    deep = true;
+                    // falls through
+                case Compiler.AXIS_CHILD:
+                {
+                    final String name = getName(step);
+                    if (name==null) return null;
+                    final Predicate predicate = hasPredicates ? Predicate.compile(preds) : Predicate.TRUE;
+                    if (predicate==null) return null;
+                    if (deep) deepMask |= 1L << names.size();
+                    names.add(name.equals("*") ? null : name);
+                    predicates.add(predicate);
+                    deep = false;
+                    break;
+                }
+                case Compiler.AXIS_ATTRIBUTE:
+                {
+                    final String name = getName(step);
+                    if (name==null || name.equals("*") || hasPredicates) return null;
+                    if (deep) deepMask |= 1L << names.size();
+                    attribute = name;
+                    break;
+                }
+                default:
+                    return null;
+            }
+        }
+        return new StreamingExpression(kind,
+            (String[]) names.toArray(new String[names.size()]),
+            (Predicate[]) predicates.toArray(new Predicate[predicates.size()]),
+            deepMask, attribute);
+    }
+
+    /**
+     * Returns the unprefixed name tested by a step,
+     * <code>*</code> for the wildcard.
+     */
+    private static String getName(final Step step)
+    {
+        if (!(step.getNodeTest() instanceof NodeNameTest)) return null;
+        final org.apache.commons.jxpath.ri.QName name =
+            ((NodeNameTest)step.getNodeTest()).getNodeName();
+        return name.getPrefix()==null ? name.getName() : null;
+    }
+
+    /**
+     * Returns whether the result can be computed by streaming.
+     * @param returnType the return type.
+     * @return false for nodes and node sets.
+     */
+    static boolean supports(final QName returnType)
+    {
+        return XPathConstants.STRING.equals(returnType)
+            || XPathConstants.NUMBER.equals(returnType)
+            || XPathConstants.BOOLEAN.equals(returnType);
+    }
+
+    /**
+     * Evaluates this expression over a document.
+     * @param source the document.
+     * @param returnType one of the types accepted by {@link #supports(QName)}.
+     * @return the result.
+     * @throws XPathExpressionException when the parsing fails.
+     */
+    Object evaluate(final InputSource source, final QName returnType)
+        throws XPathExpressionException
+    {
+        final Handler handler = new Handler();
+        try
+        {
+            final XMLReader reader = XMLReaders.newXMLReader();
+            reader.setContentHandler(handler);
+            reader.setErrorHandler(handler);
+            // when not supported text around comments is joined
+            XMLReaders.setLexicalHandler(reader, handler);
+            reader.parse(source);
+        }
+        catch(Done e)
+        {
+            // first node found
+        }
+        catch(SAXException e)
+        {
+            // Also xalan uses XPathExpressionException for these errors
+            throw new XPathExpressionException(e);
+        }
+        catch(IOException e)
+        {
+            throw new XPathExpressionException(e);
+        }
+        return handler.getResult(returnType);
+    }
+
+    /**
+     * Thrown to stop the parsing when the result is known.
+     */
+    private static final class Done extends SAXException
+    {
+        private static final long serialVersionUID = 1L;
+
+        Done()
+        {
+            super("Done");
+        }
+    }
+
+    /**
+     * State of an evaluation.
+     * <p>For each open element the handler keeps the steps matched,
+     * bit <code>k</code> set meaning that the element is selected by
+     * the first <code>k</code> steps, and the steps on the descendant
+     * axis matched by an ancestor.
+     */
+    private final class Handler extends DefaultHandler implements LexicalHandler
+    {
+        private long[] matched = new long[32];
+        private long[] reached = new long[32];
+        private boolean[] preserve = new boolean[32];
+        private int depth;
+
+        private final StringBuffer text = new StringBuffer();
+        /**
+         * String values of the selected elements still open,
+         * by depth, null where no element is selected.
+         */
+        private StringBuffer[] values = new StringBuffer[32];
+        private int open;
+
+        private int count;
+        private double sum;
+        private String first;
+
+        Handler()
+        {
+            // the document node, context of the first step
+            matched[0] = 1;
+        }
+
+        public void startElement(final String uri, final String localName,
+            final String qName, final Attributes attrs) throws SAXException
+        {
+            flush();
+            final int parent = depth++;
+            if (depth==matched.length) grow();
+            final long reach = reached[parent] | (matched[parent] & deepMask);
+            long match = 0;
+            for(int k=0;k<names.length;k++)
+            {
+                final long bit = 1L << k;
+                final long from = (deepMask & bit)!=0 ? reach : matched[parent];
+                if ((from & bit)==0) continue;
+                if (names[k]!=null && (uri.length()>0 || !names[k].equals(localName))) continue;
+                if (!predicates[k].test(attrs)) continue;
+                match |= bit << 1;
+            }
+            matched[depth] = match;
+            reached[depth] = reach;
+            final String space = attrs.getValue("xml:space");
+            preserve[depth] = space==null || space.length()==0
+                ? preserve[parent] : "preserve".equals(space);
+            values[depth] = null;
+            final long last = 1L << names.length;
+            if (attribute==null)
+            {
+                if ((match & last)!=0) select();
+            }
+            else
+            {
+                // on the descendant-or-self axis also the element itself
+                final long from = (deepMask & last)!=0 ? match | reach : match;
+                final String value = (from & last)!=0 ? attrs.getValue(attribute) : null;
+                if (value!=null) selected(value);
+            }
+        }
+
+        public void endElement(final String uri, final String localName,
+            final String qName) throws SAXException
+        {
+            flush();
+            final StringBuffer value = values[depth];
+            if (value!=null)
+            {
+                values[depth] = null;
+                open--;
+                selected(value.toString());
+            }
+            depth--;
+        }
+
+        public void characters(final char[] ch, final int start, final int length)
+        {
+            if (open>0) text.append(ch, start, length);
+        }
+
+        public void ignorableWhitespace(final char[] ch, final int start, final int length)
+        {
+            characters(ch, start, length);
+        }
+
+        public void processingInstruction(final String target, final String data)
+        {
+            flush();
+        }
+
+        public void comment(final char[] ch, final int start, final int length)
+        {
+            flush();
+        }
+
+        public void startDTD(final String name, final String publicId, final String systemId)
+        {
+        }
+
+        public void endDTD()
+        {
+        }
+
+        public void startEntity(final String name)
+        {
+        }
+
+        public void endEntity(final String name)
+        {
+        }
+
+        public void startCDATA()
+        {
+        }
+
+        public void endCDATA()
+        {
+        }
+
+        /**
+         * Starts collecting the string value of the current element.
+         */
+        private void select() throws SAXException
+        {
+            if (kind==COUNT || kind==BOOLEAN)
+            {
+                // the value is not needed
+                selected(null);
+                return;
+            }
+            // the first selected element in document order is
+            // the outermost, nested ones are not needed
+            if (open>0 && kind!=SUM) return;
+            values[depth] = new StringBuffer();
+            open++;
+        }
+
+        /**
+         * Adds the text of a node to the selected elements,
+         * JXPath trims the text of each node for the functions,
+         * the XPath API converts the DOM node.
+         */
+        private void flush()
+        {
+            if (text.length()==0) return;
+            String s = text.toString();
+            text.setLength(0);
+            if (kind!=PATH && !preserve[depth]) s = s.trim();
+            for(int i=1;i<=depth;i++)
+            {
+                if (values[i]!=null) values[i].append(s);
+            }
+        }
+
+        private void selected(final String value) throws SAXException
+        {
+            count++;
+            if (kind==SUM)
+            {
+                sum += InfoSetUtil.doubleValue(value);
+                return;
+            }
+            if (kind==COUNT) return;
+            if (first==null) first = value==null ? "" : value;
+            throw new Done();
+        }
+
+        private void grow()
+        {
+            final int size = matched.length * 2;
+            final long[] m = new long[size];
+            System.arraycopy(matched, 0, m, 0, matched.length);
+            matched = m;
+            final long[] r = new long[size];
+            System.arraycopy(reached, 0, r, 0, reached.length);
+            reached = r;
+            final boolean[] p = new boolean[size];
+            System.arraycopy(preserve, 0, p, 0, preserve.length);
+            preserve = p;
+            final StringBuffer[] v = new StringBuffer[size];
+            System.arraycopy(values, 0, v, 0, values.length);
+            values = v;
+        }
+
+        Object getResult(final QName returnType) throws XPathExpressionException
+        {
+            switch(kind)
+            {
+                case COUNT:
+                    return JXPathXPathFactory.convertValue(Double.valueOf(count), returnType);
+                case SUM:
+                    return JXPathXPathFactory.convertValue(Double.valueOf(sum), returnType);
+                case STRING:
+                    return JXPathXPathFactory.convertValue(first==null ? "" : first, returnType);
+                case BOOLEAN:
+                    return JXPathXPathFactory.convertValue(Boolean.valueOf(count>0), returnType);
+                default:
+                    if (XPathConstants.BOOLEAN.equals(returnType)) return Boolean.valueOf(count>0);
+                    return JXPathXPathFactory.convertValue(first, returnType);
+            }
+        }
+    }
+
+    /**
+     * Test of the attributes of an element.
+     */
+    private abstract static class Predicate
+    {
+        static final Predicate TRUE = new Predicate()
+        {
+            boolean test(final Attributes attrs)
+            {
+                return true;
+            }
+        };
+
+        abstract boolean test(Attributes attrs);
+
+        /**
+         * Compiles the predicates of a step.
+         * @return the predicate or null when not supported.
+         */
+        static Predicate compile(final Expression[] expressions)
+        {
+            final Predicate[] all = new Predicate[expressions.length];
+            for(int i=0;i<all.length;i++)
+            {
+                all[i] = compile(expressions[i]);
+                if (all[i]==null) return null;
+            }
+            return all.length==1 ? all[0] : new Junction(all, true);
+        }
+
+        private static Predicate compile(final Expression e)
+        {
+            final String attribute = getAttribute(e);
+            if (attribute!=null) return new Exists(attribute);
+            if (e instanceof CoreOperationAnd || e instanceof CoreOperationOr)
+            {
+                final Expression[] args = ((Operation)e).getArguments();
+                final Predicate[] all = new Predicate[args.length];
+                for(int i=0;i<all.length;i++)
+                {
+                    all[i] = compile(args[i]);
+                    if (all[i]==null) return null;
+                }
+                return new Junction(all, e instanceof CoreOperationAnd);
+            }
+            final int op = getOperator(e);
+            if (op<0) return null;
+            final Expression[] args = ((Operation)e).getArguments();
+            if (getAttribute(args[0])!=null && args[1] instanceof Constant)
+            {
+                return new Compare(getAttribute(args[0]), op, args[1].computeValue(null));
+            }
+            if (getAttribute(args[1])!=null && args[0] instanceof Constant)
+            {
+                // JXPath compares the nodes of a node set on the right
+                // as if they were on the left, the operator is not swapped
+                return new Compare(getAttribute(args[1]), op, args[0].computeValue(null));
+            }
+            return null;
+        }
+
+        private static int getOperator(final Expression e)
+        {
+            if (e instanceof CoreOperationEqual) return Compare.EQ;
+            if (e instanceof CoreOperationNotEqual) return Compare.NE;
+            if (e instanceof CoreOperationLessThan) return Compare.LT;
+            if (e instanceof CoreOperationLessThanOrEqual) return Compare.LE;
+            if (e instanceof CoreOperationGreaterThan) return Compare.GT;
+            if (e instanceof CoreOperationGreaterThanOrEqual) return Compare.GE;
+            return -1;
+        }
+
+        /**
+         * Returns the attribute name of a relative
+         * <code>&#64;name</code> path, null otherwise.
+         */
+        private static String getAttribute(final Expression e)
+        {
+            if (!(e instanceof LocationPath) || ((LocationPath)e).isAbsolute()) return null;
+            final Step[] steps = ((LocationPath)e).getSteps();
+            if (steps.length!=1 || steps[0].getAxis()!=Compiler.AXIS_ATTRIBUTE
+                || steps[0].getPredicates()!=null && steps[0].getPredicates().length>0) return null;
+            final String name = getName(steps[0]);
+            return name==null || name.equals("*") ? null : name;
+        }
+    }
+
+    private static final class Exists extends Predicate
+    {
+        private final String attribute;
+
+        Exists(final String attribute)
+        {
+            this.attribute = attribute;
+        }
+
+        boolean test(final Attributes attrs)
+        {
+            return attrs.getIndex(attribute)>=0;
+        }
+    }
+
+    private static final class Junction extends Predicate
+    {
+        private final Predicate[] predicates;
+        private final boolean and;
+
+        Junction(final Predicate[] predicates, final boolean and)
+        {
+            this.predicates = predicates;
+            this.and = and;
+        }
+
+        boolean test(final Attributes attrs)
+        {
+            for(int i=0;i<predicates.length;i++)
+            {
+                if (predicates[i].test(attrs)!=and) return !and;
+            }
+            return and;
+        }
+    }
+
+    /**
+     * Comparison of an attribute with a literal, as done by
+     * JXPath: false when the attribute is missing or when a
+     * number is NaN.
+     */
+    private static final class Compare extends Predicate
+    {
+        static final int EQ = 0;
+        static final int NE = 1;
+        static final int LT = 2;
+        static final int LE = 3;
+        static final int GT = 4;
+        static final int GE = 5;
+
+        private final String attribute;
+        private final int op;
+        private final Object literal;
+        private final double number;
+
+        Compare(final String attribute, final int op, final Object literal)
+        {
+            this.attribute = attribute;
+            this.op = op;
+            this.literal = literal;
+            this.number = InfoSetUtil.doubleValue(literal);
+        }
+
+        boolean test(final Attributes attrs)
+        {
+            final String value = attrs.getValue(attribute);
+            if (value==null) return false;
+            if ((op==EQ || op==NE) && !(literal instanceof Number))
+            {
+                return value.equals(literal) ^ op==NE;
+            }
+            final double d = InfoSetUtil.doubleValue(value);
+            if (Double.isNaN(d) || Double.isNaN(number)) return false;
+            switch(op)
+            {
+                case EQ: return d==number;
+                case NE: return d!=number;
+                case LT: return d<number;
+                case LE: return d<=number;
+                case GT: return d>number;
+                default: return d>=number;
+            }
+        }
+    }
+}
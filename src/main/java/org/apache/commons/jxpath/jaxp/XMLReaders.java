@@ -0,0 +1,127 @@
+package org.apache.commons.jxpath.jaxp;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Creates the namespace aware SAX readers used
+ * when the input is read without building a DOM.
+ * @author Michele Vivoda
+ */
+final class XMLReaders
+{
+    private static SAXParserFactory factory;
+    private static SAXParserFactory secureFactory;
+
+    private XMLReaders()
+    {
+    }
+
+    /**
+     * Creates a reader, not validating and namespace aware
+     * as the builders of {@link DocumentBuilderPool}.
+     * @return a new XMLReader.
+     * @throws SAXException when fails.
+     */
+    static XMLReader newXMLReader() throws SAXException
+    {
+        return newXMLReader(false);
+    }
+
+    /**
+     * Creates a reader, not validating and namespace aware
+     * as the builders of {@link DocumentBuilderPool}.
+     * <p>In secure mode the reader does not read external
+     * entities nor the external DTD, and the expansion of the
+     * entities is limited by the secure processing of the parser.
+     * @param secure secure mode flag.
+     * @return a new XMLReader.
+     * @throws SAXException when fails.
+     */
+    static synchronized XMLReader newXMLReader(final boolean secure) throws SAXException
+    {
+        try
+        {
+            if (secure)
+            {
+                if (secureFactory==null)
+                {
+                    final SAXParserFactory f = newFactory();
+                    f.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                    secureFactory = f;
+                }
+                final XMLReader reader = secureFactory.newSAXParser().getXMLReader();
+                reader.setFeature("http://xml.org/sax/features/external-general-entities", false);
+                reader.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+                setFeature(reader, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+                return reader;
+            }
+            if (factory==null) factory = newFactory();
+            return factory.newSAXParser().getXMLReader();
+        }
+        catch(ParserConfigurationException e)
+        {
+            e.printStackTrace();
+            throw new Error("JAXP config error:" + e.getMessage());
+        }
+    }
+
+    private static SAXParserFactory newFactory()
+    {
+        final SAXParserFactory f = SAXParserFactory.newInstance();
+        f.setValidating(false);
+        f.setNamespaceAware(true);
+        return f;
+    }
+
+    /**
+     * Sets a feature that not all the parsers support.
+     */
+    private static void setFeature(final XMLReader reader, final String name,
+        final boolean value)
+    {
+        try
+        {
+            reader.setFeature(name, value);
+        }
+        catch(SAXNotRecognizedException e)
+        {
+            // not a Xerces parser
+        }
+        catch(SAXNotSupportedException e)
+        {
+            // not a Xerces parser
+        }
+    }
+
+    /**
+     * Sets the handler of comments and CDATA sections,
+     * that split text nodes in the DOM.
+     * @param reader the reader.
+     * @param handler the handler.
+     * @return false when the reader does not support it.
+     */
+    static boolean setLexicalHandler(final XMLReader reader, final LexicalHandler handler)
+    {
+        try
+        {
+            reader.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+            return true;
+        }
+        catch(SAXNotRecognizedException e)
+        {
+            return false;
+        }
+        catch(SAXNotSupportedException e)
+        {
+            return false;
+        }
+    }
+}
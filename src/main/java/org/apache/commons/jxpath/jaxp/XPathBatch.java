@@ -0,0 +1,409 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.jxpath.CompiledExpression;
+import org.apache.commons.jxpath.JXPathContext;
+import org.apache.commons.jxpath.JXPathException;
+import org.apache.commons.jxpath.Pointer;
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory.ContextTemplate;
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory.XPathExpressionImpl;
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory.ResolversSupport.NamespaceTable;
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory.ResolversSupport.VariableNames;
+import org.apache.commons.jxpath.ri.JXPathCompiledExpression;
+import org.apache.commons.jxpath.ri.compiler.Expression;
+import org.apache.commons.jxpath.ri.compiler.LocationPath;
+import org.apache.commons.jxpath.ri.compiler.NodeNameTest;
+import org.apache.commons.jxpath.ri.compiler.Step;
+import org.xml.sax.InputSource;
+
+/**
+ * Evaluates a fixed list of compiled expressions
+ * against the same context item in one call.
+ * <p>Expressions compiled by {@link JXPathXPathFactory} with the same
+ * resolvers and namespace context share a single {@link JXPathContext}
+ * and root pointer, each variable is resolved once per call.
+ * Each expression is otherwise evaluated as by
+ * {@link XPathExpression#evaluate(Object, QName)}: with the
+ * {@link DocumentIndex} of an indexed document, the {@link ResultCache}
+ * and the {@link EvaluationListener} of its factory.
+ * <p>When grouping by prefix is enabled, absolute location paths
+ * with the same parent path, like <code>/order/id</code> and
+ * <code>/order/total</code>, navigate the parent path once: if it selects
+ * exactly one node the last step of each path is evaluated relative
+ * to that node, without the result cache, otherwise each path is
+ * evaluated as usual. Paths that can use the document index
+ * are not grouped.
+ * <p>Expressions of other implementations are evaluated
+ * one by one with {@link XPathExpression#evaluate(Object, QName)}.
+ * <p>Instances are immutable and thread safe if the expressions are.
+ * @author Michele Vivoda
+ */
+public final class XPathBatch
+{
+    private final XPathExpression[] expressions;
+    private final QName[] returnTypes;
+    private final boolean groupByPrefix;
+    /**
+     * Expression that parses the input sources, null
+     * when none is compiled by {@link JXPathXPathFactory}.
+     */
+    private final XPathExpressionImpl parser;
+    private final Group[] groups;
+    private final int[] others;
+
+    /**
+     * Creates a batch without grouping by prefix.
+     * @param expressions the expressions.
+     * @param returnTypes the return type of each expression.
+     */
+    public XPathBatch(final XPathExpression[] expressions, final QName[] returnTypes)
+    {
+        this(expressions, returnTypes, false);
+    }
+
+    /**
+     * Creates a batch.
+     * @param expressions the expressions.
+     * @param returnTypes the return type of each expression.
+     * @param groupByPrefix whether absolute location paths
+     * with the same parent path share its navigation.
+     */
+    public XPathBatch(final XPathExpression[] expressions, final QName[] returnTypes,
+        final boolean groupByPrefix)
+    {
+        if (expressions.length!=returnTypes.length)
+        {
+            throw new IllegalArgumentException("Expected " + expressions.length
+                + " return types, got " + returnTypes.length);
+        }
+        this.expressions = (XPathExpression[]) expressions.clone();
+        this.returnTypes = (QName[]) returnTypes.clone();
+        this.groupByPrefix = groupByPrefix;
+        // one group for each template, in order of appearance
+        final LinkedHashMap byTemplate = new LinkedHashMap();
+        final ArrayList otherList = new ArrayList();
+        XPathExpressionImpl parserImpl = null;
+        for(int i=0;i<expressions.length;i++)
+        {
+            if (expressions[i]==null) throw new NullPointerException("Null expression at " + i);
+            if (returnTypes[i]==null) throw new NullPointerException("Null return type at " + i);
+            if (expressions[i] instanceof XPathExpressionImpl)
+            {
+                final XPathExpressionImpl impl = (XPathExpressionImpl)expressions[i];
+                final ContextTemplate template = impl.getTemplate();
+                if (parserImpl==null || template.secure && !parserImpl.getTemplate().secure)
+                {
+                    parserImpl = impl;
+                }
+                List members = (List) byTemplate.get(template);
+                if (members==null)
+                {
+                    members = new ArrayList();
+                    byTemplate.put(template, members);
+                }
+                members.add(Integer.valueOf(i));
+            }
+            else otherList.add(Integer.valueOf(i));
+        }
+        this.parser = parserImpl;
+        this.others = toArray(otherList);
+        this.groups = new Group[byTemplate.size()];
+        int g = 0;
+        for(Iterator iter = byTemplate.keySet().iterator();iter.hasNext();)
+        {
+            final ContextTemplate template = (ContextTemplate) iter.next();
+            groups[g++] = new Group(template, toArray((List) byTemplate.get(template)));
+        }
+    }
+
+    /**
+     * Returns the number of expressions.
+     * @return the size of the batch.
+     */
+    public int size()
+    {
+        return expressions.length;
+    }
+
+    /**
+     * Returns an expression.
+     * @param index the index of the expression.
+     * @return the expression.
+     */
+    public XPathExpression getExpression(final int index)
+    {
+        return expressions[index];
+    }
+
+    /**
+     * Returns the return type of an expression.
+     * @param index the index of the expression.
+     * @return the return type.
+     */
+    public QName getReturnType(final int index)
+    {
+        return returnTypes[index];
+    }
+
+    /**
+     * Returns whether location paths are grouped by parent path.
+     * @return the grouping flag.
+     */
+    public boolean isGroupByPrefix()
+    {
+        return groupByPrefix;
+    }
+
+    /**
+     * Evaluates all the expressions.
+     * @param item the context item.
+     * @return the results, in the order of the expressions,
+     * each one of the type requested for the expression.
+     * @throws XPathExpressionException when an evaluation fails.
+     */
+    public Object[] evaluate(final Object item) throws XPathExpressionException
+    {
+        if (item==null) throw new NullPointerException("Null object");
+        final Object[] results = new Object[expressions.length];
+        for(int i=0;i<groups.length;i++)
+        {
+            groups[i].evaluate(item, results);
+        }
+        for(int i=0;i<others.length;i++)
+        {
+            final int index = others[i];
+            results[index] = expressions[index].evaluate(item, returnTypes[index]);
+        }
+        return results;
+    }
+
+    /**
+     * Parses a document and evaluates all the expressions.
+     * <p>The document is parsed as by
+     * {@link XPathExpression#evaluate(InputSource, QName)} of the first
+     * secure expression compiled by {@link JXPathXPathFactory}, or
+     * of the first one when none is secure: with the document cache
+     * and the compact model when enabled for it, but without the
+     * streaming evaluation.
+     * @param source the document.
+     * @return the results, see {@link #evaluate(Object)}.
+     * @throws XPathExpressionException when the parsing
+     * or an evaluation fails.
+     */
+    public Object[] evaluate(final InputSource source) throws XPathExpressionException
+    {
+        return evaluate(parser!=null ? parser.parse(source)
+            : JXPathXPathFactory.getDocument(source, false));
+    }
+
+    /**
+     * Returns whether the documents are read in secure
+     * mode, that is when any of the expressions is secure.
+     * @return the secure mode flag.
+     */
+    boolean isSecure()
+    {
+        return parser!=null && parser.getTemplate().secure;
+    }
+
+    private static int[] toArray(final List list)
+    {
+        final int[] array = new int[list.size()];
+        for(int i=0;i<array.length;i++) array[i] = ((Integer)list.get(i)).intValue();
+        return array;
+    }
+
+    /**
+     * Expressions that share a {@link ContextTemplate}.
+     */
+    private final class Group
+    {
+        private final ContextTemplate template;
+        private final VariableNames variables;
+        private final int[] direct;
+        private final Prefix[] prefixes;
+
+        Group(final ContextTemplate template, final int[] members)
+        {
+            final VariableNames[] tables = new VariableNames[members.length];
+            final NamespaceTable[] namespaces = new NamespaceTable[members.length];
+            for(int i=0;i<members.length;i++)
+            {
+                tables[i] = impl(members[i]).getVariables();
+                namespaces[i] = impl(members[i]).getNamespaces();
+            }
+            this.variables = VariableNames.union(tables);
+            this.template = template.withNamespaces(NamespaceTable.union(namespaces));
+            final ArrayList directList = new ArrayList();
+            final ArrayList prefixList = new ArrayList();
+            if (groupByPrefix)
+            {
+                // parent path text -> indexes of the paths
+                final LinkedHashMap byPrefix = new LinkedHashMap();
+                for(int i=0;i<members.length;i++)
+                {
+                    final String prefix = impl(members[i]).isIndexed() ? null
+                        : getPrefix(impl(members[i]).getParsedExpression());
+                    if (prefix==null)
+                    {
+                        directList.add(Integer.valueOf(members[i]));
+                        continue;
+                    }
+                    List list = (List) byPrefix.get(prefix);
+                    if (list==null)
+                    {
+                        list = new ArrayList();
+                        byPrefix.put(prefix, list);
+                    }
+                    list.add(Integer.valueOf(members[i]));
+                }
+                for(Iterator iter = byPrefix.values().iterator();iter.hasNext();)
+                {
+                    final List list = (List) iter.next();
+                    if (list.size()==1) directList.addAll(list);
+                    else prefixList.add(new Prefix(toArray(list)));
+                }
+            }
+            else
+            {
+                for(int i=0;i<members.length;i++) directList.add(Integer.valueOf(members[i]));
+            }
+            this.direct = toArray(directList);
+            this.prefixes = (Prefix[]) prefixList.toArray(new Prefix[prefixList.size()]);
+        }
+
+        void evaluate(final Object item, final Object[] results)
+            throws XPathExpressionException
+        {
+            final JXPathContext ctx = template.newContext(item, variables, null);
+            for(int i=0;i<direct.length;i++)
+            {
+                final int index = direct[i];
+                results[index] = impl(index).evaluateInContext(item, ctx, returnTypes[index]);
+            }
+            for(int i=0;i<prefixes.length;i++)
+            {
+                prefixes[i].evaluate(item, ctx, results);
+            }
+        }
+    }
+
+    /**
+     * Location paths with the same parent path.
+     */
+    private final class Prefix
+    {
+        private final CompiledExpression compiled;
+        private final String xpathString;
+        private final int[] members;
+        private final CompiledExpression[] lastSteps;
+        private final String[] lastStepStrings;
+
+        Prefix(final int[] members)
+        {
+            this.members = members;
+            this.lastSteps = new CompiledExpression[members.length];
+            this.lastStepStrings = new String[members.length];
+            Step[] parentSteps = null;
+            for(int i=0;i<members.length;i++)
+            {
+                final Step[] steps = ((LocationPath) impl(members[i])
+                    .getParsedExpression()).getSteps();
+                final LocationPath last = new LocationPath(false,
+                    new Step[]{steps[steps.length - 1]});
+                lastStepStrings[i] = last.toString();
+                lastSteps[i] = new JXPathCompiledExpression(lastStepStrings[i], last);
+                if (parentSteps==null)
+                {
+                    parentSteps = new Step[steps.length - 1];
+                    System.arraycopy(steps, 0, parentSteps, 0, parentSteps.length);
+                }
+            }
+            final LocationPath parent = new LocationPath(true, parentSteps);
+            this.xpathString = parent.toString();
+            this.compiled = new JXPathCompiledExpression(xpathString, parent);
+        }
+
+        void evaluate(final Object item, final JXPathContext ctx, final Object[] results)
+            throws XPathExpressionException
+        {
+            Pointer single = null;
+            try
+            {
+                final Iterator iter = compiled.iteratePointers(ctx);
+                if (iter.hasNext())
+                {
+                    final Pointer first = (Pointer) iter.next();
+                    if (!iter.hasNext()) single = first;
+                }
+            }
+            catch (JXPathException e)
+            {
+                throw new XPathExpressionException(e);
+            }
+            if (single==null)
+            {
+                // none or many parent nodes, nothing to share
+                for(int i=0;i<members.length;i++)
+                {
+                    final int index = members[i];
+                    results[index] = impl(index).evaluateInContext(item, ctx, returnTypes[index]);
+                }
+                return;
+            }
+            final JXPathContext relative = ctx.getRelativeContext(single);
+            for(int i=0;i<members.length;i++)
+            {
+                final int index = members[i];
+                results[index] = impl(index).evaluateRelative(
+                    lastSteps[i], lastStepStrings[i], relative, returnTypes[index]);
+            }
+        }
+    }
+
+    private XPathExpressionImpl impl(final int index)
+    {
+        return (XPathExpressionImpl) expressions[index];
+    }
+
+    /**
+     * Returns the text of the parent path of an absolute
+     * location path with at least two steps, null for
+     * other expressions or when the last step can depend
+     * on the context node for namespace prefixes.
+     */
+    private static String getPrefix(final Expression expression)
+    {
+        if (!(expression instanceof LocationPath)) return null;
+        final LocationPath path = (LocationPath) expression;
+        final Step[] steps = path.getSteps();
+        if (!path.isAbsolute() || steps==null || steps.length<2) return null;
+        // JXPath resolves prefixes not registered on the context
+        // with the declarations in scope of the context node,
+        // that changes in the relative context.
+        final boolean[] prefixed = new boolean[1];
+        new ExpressionWalker()
+        {
+            protected void visitStep(final Step step)
+            {
+                if (step.getNodeTest() instanceof NodeNameTest
+                    && ((NodeNameTest)step.getNodeTest()).getNodeName().getPrefix()!=null)
+                {
+                    prefixed[0] = true;
+                }
+            }
+        }.walk(new LocationPath(false, new Step[]{steps[steps.length - 1]}));
+        if (prefixed[0]) return null;
+        final Step[] parent = new Step[steps.length - 1];
+        System.arraycopy(steps, 0, parent, 0, parent.length);
+        return new LocationPath(true, parent).toString();
+    }
+}
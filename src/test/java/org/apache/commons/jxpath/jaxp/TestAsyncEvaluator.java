@@ -0,0 +1,274 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link AsyncEvaluator}.
+ *
+ * @author mik
+ *
+ */
+public class TestAsyncEvaluator extends TestCase
+{
+    private ExecutorService executor;
+
+    protected void setUp() throws Exception
+    {
+        executor = Executors.newCachedThreadPool();
+    }
+    protected void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+    }
+
+    public void testEvaluate() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile("count(//i)");
+        final AsyncEvaluator async = new AsyncEvaluator(executor);
+        final List futures = new ArrayList();
+        for(int i=0;i<20;i++) futures.add(async.evaluate(expr, source(i), XPathConstants.NUMBER));
+        for(int i=0;i<20;i++)
+        {
+            assertEquals(new Double(i), ((Future)futures.get(i)).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(0, async.getWaitingCount());
+    }
+    public void testBounded() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile("count(//i)");
+        final AsyncEvaluator async = new AsyncEvaluator(executor, 2, 1);
+        final Results results = new Results(30);
+        for(int i=0;i<30;i++) async.evaluate(expr, source(i), XPathConstants.NUMBER, results);
+        assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        assertEquals(30, results.completed);
+        assertEquals(0, results.failed);
+    }
+    public void testBackpressure() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile("count(//i)");
+        final AsyncEvaluator async = new AsyncEvaluator(executor, 1, 1);
+        final BlockingStream blocked = new BlockingStream();
+        final Future first = async.evaluate(expr, new InputSource(blocked), XPathConstants.NUMBER);
+        final CountDownLatch started = new CountDownLatch(1);
+        final Future[] second = new Future[1];
+        final Thread caller = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    second[0] = async.evaluate(expr, source(3), XPathConstants.NUMBER);
+                    started.countDown();
+                }
+                catch(InterruptedException e)
+                {
+                    // ends the thread
+                }
+            }
+        };
+        caller.start();
+        // waits for the parsing of the first input
+        assertFalse(started.await(200, TimeUnit.MILLISECONDS));
+        blocked.release();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(new Double(1), first.get(5, TimeUnit.SECONDS));
+        assertEquals(new Double(3), second[0].get(5, TimeUnit.SECONDS));
+    }
+    public void testCancel() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile("count(//i)");
+        final AsyncEvaluator async = new AsyncEvaluator(executor, 1, 1);
+        final BlockingStream blocked = new BlockingStream();
+        final Results results = new Results(1);
+        final Future future = async.evaluate(expr, new InputSource(blocked),
+            XPathConstants.NUMBER, results);
+        assertTrue(blocked.reading.await(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        // the stream is closed and not read again
+        assertTrue(blocked.closed);
+        assertEquals(1, results.failed);
+        // the parsing permit is released
+        assertEquals(new Double(2), async.evaluate(expr, source(2), XPathConstants.NUMBER)
+            .get(5, TimeUnit.SECONDS));
+        assertEquals(1, blocked.reads);
+        try
+        {
+            future.get();
+            fail();
+        }
+        catch(CancellationException e)
+        {
+            // expected
+        }
+    }
+    public void testInterrupt() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile("count(//i)");
+        final AsyncEvaluator async = new AsyncEvaluator(executor, 1, 0);
+        final BlockingStream blocked = new BlockingStream();
+        blocked.ignoreClose = true;
+        final Future future = async.evaluate(expr, new InputSource(blocked), XPathConstants.NUMBER);
+        assertTrue(blocked.reading.await(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+        assertEquals(new Double(1), async.evaluate(expr, source(1), XPathConstants.NUMBER)
+            .get(5, TimeUnit.SECONDS));
+    }
+    public void testFailure() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile("count(//i)");
+        final AsyncEvaluator async = new AsyncEvaluator(executor, 1, 1);
+        final Future future = async.evaluate(expr, new InputSource(new StringReader("<a>")),
+            XPathConstants.NUMBER);
+        try
+        {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        }
+        catch(ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof XPathExpressionException);
+        }
+        executor.shutdown();
+        final Results results = new Results(1);
+        async.evaluate(expr, source(1), XPathConstants.NUMBER, results);
+        assertEquals(1, results.failed);
+    }
+    public void testSystemId() throws Exception
+    {
+        final File file = File.createTempFile("jxpath", ".xml");
+        try
+        {
+            final FileWriter w = new FileWriter(file);
+            w.write("<x><i/><i/></x>");
+            w.close();
+            final JXPathXPathFactory f = new JXPathXPathFactory();
+            f.setFeature(JXPathXPathFactory.FEATURE_DOCUMENT_CACHE, true);
+            final XPathExpression expr = f.newXPath().compile("count(//i)");
+            final AsyncEvaluator async = new AsyncEvaluator(executor, 1, 1);
+            for(int i=0;i<3;i++)
+            {
+                // a plain path, not an URL
+                assertEquals(new Double(2), async.evaluate(expr, new InputSource(file.getPath()),
+                    XPathConstants.NUMBER).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, f.getDocumentCache().getMissCount());
+            assertEquals(2, f.getDocumentCache().getHitCount());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+    public void testNodeSet() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile("/x/i");
+        final NodeList nodes = (NodeList) new AsyncEvaluator(executor, 1, 1).evaluate(
+            expr, source(3), XPathConstants.NODESET).get(5, TimeUnit.SECONDS);
+        // read by the evaluation task
+        assertTrue(((LazyNodeList)nodes).isComplete());
+        assertEquals(3, nodes.getLength());
+    }
+
+    private static InputSource source(final int items)
+    {
+        final StringBuffer xml = new StringBuffer("<x>");
+        for(int i=0;i<items;i++) xml.append("<i/>");
+        return new InputSource(new StringReader(xml.append("</x>").toString()));
+    }
+
+    private static final class Results implements EvaluationCallback
+    {
+        final CountDownLatch done;
+        volatile int completed;
+        volatile int failed;
+
+        Results(final int count)
+        {
+            done = new CountDownLatch(count);
+        }
+        public synchronized void completed(InputSource source, Object result)
+        {
+            completed++;
+            done.countDown();
+        }
+        public synchronized void failed(InputSource source, Throwable error)
+        {
+            failed++;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Returns the start of a document, then
+     * waits to be released or closed.
+     */
+    private static final class BlockingStream extends InputStream
+    {
+        private final InputStream head = new ByteArrayInputStream("<x><i/>".getBytes());
+        private final InputStream tail = new ByteArrayInputStream("</x>".getBytes());
+        final CountDownLatch reading = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        volatile boolean closed;
+        volatile boolean ignoreClose;
+        /**
+         * Reads after the start.
+         */
+        volatile int reads;
+
+        public int read() throws IOException
+        {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1)<0 ? -1 : b[0];
+        }
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            final int read = head.read(b, off, len);
+            if (read>0) return read;
+            reads++;
+            reading.countDown();
+            try
+            {
+                released.await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new IOException("Interrupted");
+            }
+            return tail.read(b, off, len);
+        }
+        public void close()
+        {
+            if (ignoreClose) return;
+            closed = true;
+            released.countDown();
+        }
+        void release()
+        {
+            released.countDown();
+        }
+    }
+}
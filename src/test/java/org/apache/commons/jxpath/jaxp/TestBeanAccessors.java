@@ -0,0 +1,198 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link BeanAccessors}.
+ *
+ * @author mik
+ *
+ */
+public class TestBeanAccessors extends TestCase
+{
+    private static final String[] EXPRESSIONS = {
+        "name", "count(orders)", "sum(orders/total)", "orders[total>10]/id",
+        "orders[2]/lines/sku", "count(//sku)", "attributes/region", "code",
+        "orders[1]/customer/name", "boolean(missing)", "count(*)", "name(*[1])",
+        "orders[last()]/lines[1]/qty", "tags[2]", ".",
+    };
+
+    public void testSameResults() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        assertTrue(f.getFeature(JXPathXPathFactory.FEATURE_BEAN_ACCESSORS));
+        final XPath fast = f.newXPath();
+        final JXPathXPathFactory plain = new JXPathXPathFactory();
+        plain.setFeature(JXPathXPathFactory.FEATURE_BEAN_ACCESSORS, false);
+        final XPath slow = plain.newXPath();
+        final Customer customer = newCustomer();
+        for(int i=0;i<EXPRESSIONS.length;i++)
+        {
+            assertEquals(EXPRESSIONS[i], slow.evaluate(EXPRESSIONS[i], customer),
+                fast.evaluate(EXPRESSIONS[i], customer));
+            assertEquals(EXPRESSIONS[i],
+                slow.evaluate(EXPRESSIONS[i], customer, XPathConstants.NUMBER),
+                fast.evaluate(EXPRESSIONS[i], customer, XPathConstants.NUMBER));
+        }
+        assertEquals(new Double(3), fast.evaluate("count(orders)", customer, XPathConstants.NUMBER));
+        assertEquals("c1", fast.evaluate("orders[1]/customer/name", customer));
+        // Customer, Order, Line, the atomic classes
+        assertTrue(f.getBeanAccessors().size()>=3);
+        assertEquals(0, plain.getBeanAccessors().size());
+    }
+    public void testNotPublic() throws Exception
+    {
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        // read through the public interface
+        assertEquals("hidden", xp.evaluate("code", new Hidden()));
+    }
+    public void testFailure() throws Exception
+    {
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        try
+        {
+            xp.evaluate("broken", new Broken());
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            // expected
+        }
+    }
+    public void testSize() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        final BeanAccessors accessors = f.getBeanAccessors();
+        final XPath xp = f.newXPath();
+        accessors.setMaxSize(2);
+        xp.evaluate("name", newCustomer());
+        xp.evaluate("code", new Hidden());
+        xp.evaluate("orders/lines/sku", newCustomer());
+        assertTrue(accessors.size()<=2);
+        assertTrue(accessors.getEvictionCount()>0);
+        accessors.clear(getClass().getClassLoader());
+        assertEquals("c1", xp.evaluate("name", newCustomer()));
+        accessors.clear();
+        assertEquals(0, accessors.size());
+        accessors.setMaxSize(0);
+        assertEquals("c1", xp.evaluate("name", newCustomer()));
+        assertEquals(0, accessors.size());
+    }
+
+    private static Customer newCustomer()
+    {
+        final Customer customer = new Customer("c1");
+        for(int i=1;i<=3;i++)
+        {
+            final Order order = new Order(i, customer);
+            for(int j=1;j<=i;j++) order.lines.add(new Line("s" + j, i * j));
+            customer.orders.add(order);
+        }
+        customer.attributes.put("region", "north");
+        return customer;
+    }
+
+    public static class Customer
+    {
+        private final String name;
+        private final List orders = new ArrayList();
+        private final Map attributes = new HashMap();
+
+        Customer(final String name)
+        {
+            this.name = name;
+        }
+        public String getName()
+        {
+            return name;
+        }
+        public List getOrders()
+        {
+            return orders;
+        }
+        public Map getAttributes()
+        {
+            return attributes;
+        }
+        public String[] getTags()
+        {
+            return new String[]{"a", "b"};
+        }
+    }
+    public static class Order
+    {
+        private final int id;
+        private final Customer customer;
+        final List lines = new ArrayList();
+
+        Order(final int id, final Customer customer)
+        {
+            this.id = id;
+            this.customer = customer;
+        }
+        public int getId()
+        {
+            return id;
+        }
+        public Customer getCustomer()
+        {
+            return customer;
+        }
+        public Line[] getLines()
+        {
+            return (Line[]) lines.toArray(new Line[lines.size()]);
+        }
+        public double getTotal()
+        {
+            double total = 0;
+            for(int i=0;i<lines.size();i++) total += ((Line)lines.get(i)).getQty() * 2.5;
+            return total;
+        }
+    }
+    public static class Line
+    {
+        private final String sku;
+        private final int qty;
+
+        Line(final String sku, final int qty)
+        {
+            this.sku = sku;
+            this.qty = qty;
+        }
+        public String getSku()
+        {
+            return sku;
+        }
+        public int getQty()
+        {
+            return qty;
+        }
+    }
+    public interface Coded
+    {
+        String getCode();
+    }
+    private static class Hidden implements Coded
+    {
+        public String getCode()
+        {
+            return "hidden";
+        }
+    }
+    public static class Broken
+    {
+        public String getBroken()
+        {
+            throw new IllegalStateException("broken");
+        }
+    }
+}
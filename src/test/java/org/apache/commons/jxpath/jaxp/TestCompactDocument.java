@@ -0,0 +1,191 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link CompactDocument}.
+ *
+ * @author mik
+ *
+ */
+public class TestCompactDocument extends TestCase
+{
+    private static final String XML = "<?pi first?><shop xmlns:x='urn:x' name='s'>"
+        + "<!-- items --><item id='a' x:kind='k'><price>1</price> one </item>"
+        + "<box xmlns:y='urn:y'><item id='b'><price>2</price></item><x:item id='c'>c<![CDATA[d]]>e</x:item></box>"
+        + "<item id='b' xml:space='preserve'><price> 3 </price></item>"
+        + "<?pi second one?><item><price>4</price></item></shop>";
+
+    private static final String[] EXPRESSIONS = {
+        "/shop", "//item", "count(//item)", "sum(//price)", "//item[@id='b']",
+        "//item[2]", "//item[last()]/price", "//price/text()", "//x:item",
+        "//item/@x:kind", "//@*", "//comment()", "//processing-instruction()",
+        "//processing-instruction('pi')", "/shop/node()", "//box/*", "string(//item[1])",
+        "string(//item[3])", "//price[. > 1]", "//price/..", "//price/ancestor::*",
+        "//item[@id='c']/preceding-sibling::*", "//box/following::item",
+        "//item[@id='b']/preceding::price", "name(//x:item)", "local-name(//x:item)",
+        "namespace-uri(//x:item)", "/shop/@name", "//x:item/text()", "//missing",
+        "/", "//item[price=2]/@id", "/shop/item[1]/following-sibling::node()",
+        "count(//box/namespace::*)", "string(//x:item/namespace::y)",
+        "boolean(//*/namespace::*)", "name(//box/item/namespace::*[last()])",
+        "count(/shop/item/@id/namespace::*)", "count(//price/namespace::*[.='urn:x'])",
+    };
+    private static final QName[] TYPES = {
+        XPathConstants.STRING, XPathConstants.NUMBER, XPathConstants.BOOLEAN,
+        XPathConstants.NODE, XPathConstants.NODESET,
+    };
+
+    public void testSameResults() throws Exception
+    {
+        final Document dom = JXPathXPathFactory.getDocument(
+            new InputSource(new StringReader(XML)), false);
+        final Document compact = parse(XML).getDocument();
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        for(int i=0;i<EXPRESSIONS.length;i++)
+        {
+            for(int j=0;j<TYPES.length;j++)
+            {
+                // a number is not a node
+                if (!EXPRESSIONS[i].startsWith("/") && j>2) continue;
+                final String msg = EXPRESSIONS[i] + " " + TYPES[j];
+                assertEquals(msg, result(xp.evaluate(EXPRESSIONS[i], dom, TYPES[j])),
+                    result(xp.evaluate(EXPRESSIONS[i], compact, TYPES[j])));
+            }
+        }
+    }
+    public void testNamespaceAxis() throws Exception
+    {
+        final Document compact = parse(XML).getDocument();
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        assertEquals("urn:y", xp.evaluate("string(//x:item/namespace::y)", compact));
+        assertEquals("y", xp.evaluate("name(//box/namespace::*[last()])", compact));
+        assertEquals("true", xp.evaluate("boolean(//*/namespace::*)", compact));
+    }
+    public void testNodes() throws Exception
+    {
+        final CompactDocument doc = parse(XML);
+        final Document document = doc.getDocument();
+        assertSame(document, doc.getDocument());
+        final Element shop = document.getDocumentElement();
+        assertEquals("shop", shop.getTagName());
+        assertSame(document, shop.getParentNode());
+        assertSame(document, shop.getOwnerDocument());
+        assertEquals("s", shop.getAttribute("name"));
+        assertEquals("", shop.getAttribute("missing"));
+        assertEquals(4, shop.getElementsByTagName("item").getLength());
+        assertEquals(1, document.getElementsByTagNameNS("urn:x", "*").getLength());
+        assertEquals("x", shop.lookupPrefix("urn:x"));
+        assertEquals("urn:x", shop.lookupNamespaceURI("x"));
+        final Element item = (Element) shop.getElementsByTagName("item").item(0);
+        assertEquals(item, shop.getChildNodes().item(1));
+        assertTrue(item.isSameNode(shop.getFirstChild().getNextSibling()));
+        assertEquals("k", item.getAttributeNS("urn:x", "kind"));
+        final Attr kind = item.getAttributeNodeNS("urn:x", "kind");
+        assertEquals("x:kind", kind.getName());
+        assertEquals(item, kind.getOwnerElement());
+        assertNull(kind.getParentNode());
+        assertEquals(2, item.getAttributes().getLength());
+        assertEquals("1 one ", item.getTextContent());
+        assertEquals(Node.COMMENT_NODE, item.getPreviousSibling().getNodeType());
+        assertEquals(Node.DOCUMENT_POSITION_CONTAINED_BY | Node.DOCUMENT_POSITION_FOLLOWING,
+            shop.compareDocumentPosition(item));
+        assertEquals(Node.DOCUMENT_POSITION_PRECEDING,
+            shop.getLastChild().compareDocumentPosition(item));
+        assertEquals("cde", document.getElementsByTagNameNS("urn:x", "item")
+            .item(0).getFirstChild().getNodeValue());
+        assertTrue(item.isEqualNode(JXPathXPathFactory.getDocument(new InputSource(
+            new StringReader(XML)), false).getElementsByTagName("item").item(0)));
+        item.setUserData("k", "v", null);
+        assertEquals("v", shop.getFirstChild().getNextSibling().getUserData("k"));
+        assertTrue(doc.getNodeCount()>20);
+    }
+    public void testReadOnly() throws Exception
+    {
+        final Document document = parse(XML).getDocument();
+        try
+        {
+            document.getDocumentElement().setAttribute("a", "b");
+            fail();
+        }
+        catch(DOMException e)
+        {
+            assertEquals(DOMException.NO_MODIFICATION_ALLOWED_ERR, e.code);
+        }
+        try
+        {
+            document.getDocumentElement().appendChild(document.createElement("a"));
+            fail();
+        }
+        catch(DOMException e)
+        {
+            assertEquals(DOMException.NO_MODIFICATION_ALLOWED_ERR, e.code);
+        }
+    }
+    public void testFeature() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        assertFalse(f.getFeature(JXPathXPathFactory.FEATURE_COMPACT_DOCUMENT));
+        f.setFeature(JXPathXPathFactory.FEATURE_COMPACT_DOCUMENT, true);
+        final XPathExpression expr = f.newXPath().compile("//item[@id='b']");
+        final NodeList items = (NodeList) expr.evaluate(
+            new InputSource(new StringReader(XML)), XPathConstants.NODESET);
+        assertEquals(2, items.getLength());
+        assertTrue(items.item(0) instanceof CompactNode);
+        assertEquals("2", items.item(0).getTextContent());
+        // not in secure mode
+        f.setFeature(javax.xml.XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        assertFalse(f.newXPath().compile("/shop").evaluate(
+            new InputSource(new StringReader(XML)), XPathConstants.NODE)
+            instanceof CompactNode);
+    }
+    public void testMalformed() throws Exception
+    {
+        try
+        {
+            parse("<a>");
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            // expected
+        }
+    }
+
+    private static CompactDocument parse(String xml) throws Exception
+    {
+        return CompactDocument.parse(new InputSource(new StringReader(xml)));
+    }
+    private static String result(Object value)
+    {
+        // DOM elements can also be node lists
+        if (value instanceof Node)
+        {
+            final Node node = (Node) value;
+            return node.getNodeType() + ":" + node.getNodeName() + "=" + node.getTextContent();
+        }
+        if (value instanceof NodeList)
+        {
+            final NodeList list = (NodeList) value;
+            final StringBuffer buf = new StringBuffer();
+            for(int i=0;i<list.getLength();i++) buf.append(result(list.item(i))).append(',');
+            return buf.toString();
+        }
+        return String.valueOf(value);
+    }
+}
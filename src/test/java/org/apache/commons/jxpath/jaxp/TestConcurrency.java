@@ -0,0 +1,199 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionException;
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Stress tests for expressions shared between threads
+ * and for {@link ParallelEvaluator}.
+ *
+ * @author mik
+ *
+ */
+public class TestConcurrency extends TestCase
+{
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 200;
+    private static final int DOCUMENTS = 16;
+
+    private static final String[] EXPRESSIONS = {
+        "count(//line)", "sum(//line/@amount)", "//customer",
+        "//line[@amount > $min]/@sku", "f:upper(//customer)",
+        "boolean(//line[@sku = 'S3'])"};
+    private static final QName[] TYPES = {
+        XPathConstants.NUMBER, XPathConstants.NUMBER, XPathConstants.STRING,
+        XPathConstants.NODESET, XPathConstants.STRING, XPathConstants.BOOLEAN};
+
+    public void testSharedExpressions() throws Exception
+    {
+        final XPathExpression[] exprs = compile();
+        // each thread reads its own copy of the documents
+        final Object[][] expected = new Object[DOCUMENTS][];
+        for(int d=0;d<DOCUMENTS;d++) expected[d] = evaluateAll(exprs, parse(xml(d)));
+        final Throwable[] failure = new Throwable[1];
+        final Thread[] threads = new Thread[THREADS];
+        for(int t=0;t<THREADS;t++)
+        {
+            final int seed = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        final Object[] docs = new Object[DOCUMENTS];
+                        for(int d=0;d<DOCUMENTS;d++) docs[d] = parse(xml(d));
+                        for(int r=0;r<ROUNDS;r++)
+                        {
+                            final int d = (r * 7 + seed) % DOCUMENTS;
+                            assertTrue(Arrays.equals(expected[d], evaluateAll(exprs, docs[d])));
+                        }
+                    }
+                    catch(Throwable e)
+                    {
+                        synchronized(failure)
+                        {
+                            if (failure[0]==null) failure[0] = e;
+                        }
+                    }
+                }
+            };
+        }
+        for(int t=0;t<THREADS;t++) threads[t].start();
+        for(int t=0;t<THREADS;t++) threads[t].join();
+        if (failure[0]!=null)
+        {
+            failure[0].printStackTrace();
+            fail(failure[0].toString());
+        }
+    }
+    public void testParallelEvaluator() throws Exception
+    {
+        final XPathExpression expr = compile()[1];
+        final List items = new ArrayList();
+        final Object[] expected = new Object[DOCUMENTS * 4];
+        for(int i=0;i<expected.length;i++)
+        {
+            final String xml = xml(i % DOCUMENTS);
+            expected[i] = expr.evaluate(parse(xml), XPathConstants.NUMBER);
+            // documents and input sources
+            items.add(i % 2==0 ? (Object) parse(xml) : new InputSource(new StringReader(xml)));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try
+        {
+            final Object[] results = ParallelEvaluator.evaluate(expr, items,
+                XPathConstants.NUMBER, executor, THREADS);
+            assertTrue(Arrays.equals(expected, results));
+            assertEquals(0, ParallelEvaluator.evaluate(expr, new ArrayList(),
+                XPathConstants.NUMBER, executor).length);
+        }
+        finally
+        {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+    public void testParallelEvaluatorError() throws Exception
+    {
+        final XPathExpression expr = compile()[4];
+        final List items = new ArrayList();
+        for(int i=0;i<DOCUMENTS;i++) items.add(parse(i==5 ? "<order/>" : xml(i)));
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            ParallelEvaluator.evaluate(expr, items, XPathConstants.STRING, executor);
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            // expected, no customer in the 6th document
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static Object[] evaluateAll(XPathExpression[] exprs, Object doc)
+        throws XPathExpressionException
+    {
+        final Object[] results = new Object[exprs.length];
+        for(int i=0;i<exprs.length;i++)
+        {
+            final Object result = exprs[i].evaluate(doc, TYPES[i]);
+            if (result instanceof NodeList)
+            {
+                // compare the values, nodes are different for each copy
+                final NodeList list = (NodeList) result;
+                final StringBuffer buf = new StringBuffer();
+                for(int j=0;j<list.getLength();j++) buf.append(list.item(j).getNodeValue()).append(',');
+                results[i] = buf.toString();
+            }
+            else results[i] = result;
+        }
+        return results;
+    }
+    private static XPathExpression[] compile() throws XPathExpressionException
+    {
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        xp.setXPathVariableResolver(new XPathVariableResolver()
+        {
+            public Object resolveVariable(QName name)
+            {
+                return new Double(20);
+            }
+        });
+        xp.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args) throws XPathFunctionException
+                    {
+                        final NodeList list = (NodeList) args.get(0);
+                        if (list.getLength()==0) throw new XPathFunctionException("No node");
+                        return list.item(0).getTextContent().toUpperCase();
+                    }
+                };
+            }
+        });
+        final XPathExpression[] exprs = new XPathExpression[EXPRESSIONS.length];
+        for(int i=0;i<exprs.length;i++) exprs[i] = xp.compile(EXPRESSIONS[i]);
+        return exprs;
+    }
+    private static String xml(int n)
+    {
+        final StringBuffer buf = new StringBuffer("<order><customer>c").append(n).append("</customer>");
+        for(int i=0;i<=n;i++)
+        {
+            buf.append("<line sku='S").append(i).append("' amount='").append(i * 5).append("'/>");
+        }
+        return buf.append("</order>").toString();
+    }
+    private static Object parse(String xml) throws XPathExpressionException
+    {
+        return JXPathXPathFactory.getDocument(new InputSource(new StringReader(xml)), false);
+    }
+}
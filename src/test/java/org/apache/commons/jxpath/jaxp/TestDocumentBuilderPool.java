@@ -0,0 +1,70 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link DocumentBuilderPool}.
+ * 
+ * @author mik
+ *
+ */
+public class TestDocumentBuilderPool extends TestCase
+{
+    public void testSeparatePools()
+    {
+        final DocumentBuilderPool secure = DocumentBuilderPool.getInstance(true);
+        final DocumentBuilderPool normal = DocumentBuilderPool.getInstance(false);
+        assertNotSame(secure, normal);
+        assertTrue(secure.isSecure());
+        assertFalse(normal.isSecure());
+        assertSame(secure, DocumentBuilderPool.getInstance(true));
+    }
+    public void testReuse() throws Exception
+    {
+        final DocumentBuilderPool pool = DocumentBuilderPool.getInstance(false);
+        final DocumentBuilder builder = pool.acquire();
+        assertTrue(builder.isNamespaceAware());
+        pool.release(builder);
+        final long hits = pool.getHitCount();
+        assertSame(builder, pool.acquire());
+        assertEquals(hits + 1, pool.getHitCount());
+        pool.release(builder);
+    }
+    public void testEvaluateUsesPool() throws Exception
+    {
+        final XPathFactory f = new JXPathXPathFactory();
+        f.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        final XPath xpath = f.newXPath();
+        final DocumentBuilderPool pool = DocumentBuilderPool.getInstance(true);
+        assertEquals("a", xpath.evaluate("/x", new InputSource(new StringReader("<x>a</x>"))));
+        final long hits = pool.getHitCount();
+        final long misses = pool.getMissCount();
+        assertEquals("b", xpath.evaluate("/x", new InputSource(new StringReader("<x>b</x>"))));
+        assertEquals(hits + 1, pool.getHitCount());
+        assertEquals(misses, pool.getMissCount());
+    }
+    public void testMaxIdle()
+    {
+        final DocumentBuilderPool pool = DocumentBuilderPool.getInstance(false);
+        final int max = pool.getMaxIdle();
+        try
+        {
+            pool.setMaxIdle(0);
+            pool.release(pool.acquire());
+            assertEquals(0, pool.getIdleCount());
+        }
+        finally
+        {
+            pool.setMaxIdle(max);
+        }
+    }
+}
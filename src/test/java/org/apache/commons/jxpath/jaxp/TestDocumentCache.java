@@ -0,0 +1,134 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.io.Writer;
+
+import javax.xml.XMLConstants;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link DocumentCache}.
+ *
+ * @author mik
+ *
+ */
+public class TestDocumentCache extends TestCase
+{
+    private File dir;
+
+    protected void setUp() throws Exception
+    {
+        dir = File.createTempFile("jxpath", "cache");
+        dir.delete();
+        dir.mkdir();
+    }
+    protected void tearDown() throws Exception
+    {
+        final File[] files = dir.listFiles();
+        for(int i=0;i<files.length;i++) files[i].delete();
+        dir.delete();
+    }
+
+    public void testHit() throws Exception
+    {
+        final File file = write("a.xml", "<x><c>1</c></x>");
+        final JXPathXPathFactory f = factory();
+        final XPath xpath = f.newXPath();
+        assertEquals("1", xpath.evaluate("/x/c", new InputSource(file.getPath())));
+        assertEquals("1", xpath.evaluate("/x/c", new InputSource(file.toURI().toString())));
+        assertEquals(new Double(1), xpath.compile("count(/x/c)").evaluate(
+            new InputSource(file.getPath()), XPathConstants.NUMBER));
+        final DocumentCache cache = f.getDocumentCache();
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.size());
+        assertEquals(file.length(), cache.getBytes());
+    }
+    public void testChangedFile() throws Exception
+    {
+        final File file = write("a.xml", "<x>1</x>");
+        final JXPathXPathFactory f = factory();
+        final XPath xpath = f.newXPath();
+        assertEquals("1", xpath.evaluate("/x", new InputSource(file.getPath())));
+        write("a.xml", "<x>22</x>");
+        assertEquals("22", xpath.evaluate("/x", new InputSource(file.getPath())));
+        final DocumentCache cache = f.getDocumentCache();
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getInvalidationCount());
+        assertEquals(1, cache.size());
+    }
+    public void testSecureIsPartOfKey() throws Exception
+    {
+        final File file = write("a.xml", "<x>1</x>");
+        final JXPathXPathFactory f = factory();
+        assertEquals("1", f.newXPath().evaluate("/x", new InputSource(file.getPath())));
+        f.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        assertEquals("1", f.newXPath().evaluate("/x", new InputSource(file.getPath())));
+        assertEquals(2, f.getDocumentCache().getMissCount());
+        assertEquals(2, f.getDocumentCache().size());
+    }
+    public void testLimits() throws Exception
+    {
+        final JXPathXPathFactory f = factory();
+        final DocumentCache cache = f.getDocumentCache();
+        cache.setMaxSize(2);
+        final XPath xpath = f.newXPath();
+        for(int i=0;i<3;i++)
+        {
+            xpath.evaluate("/x", new InputSource(write(i + ".xml", "<x>" + i + "</x>").getPath()));
+        }
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        cache.setMaxBytes(cache.getBytes() / 2);
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getEvictionCount());
+        xpath.evaluate("/x", new InputSource(write("big.xml", "<x>" + 1234567890 + "</x>").getPath()));
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.getBytes());
+    }
+    public void testNotCached() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        assertFalse(f.getFeature(JXPathXPathFactory.FEATURE_DOCUMENT_CACHE));
+        final File file = write("a.xml", "<x>1</x>");
+        assertEquals("1", f.newXPath().evaluate("/x", new InputSource(file.getPath())));
+        f.setFeature(JXPathXPathFactory.FEATURE_DOCUMENT_CACHE, true);
+        final InputSource reader = new InputSource(new StringReader("<x>2</x>"));
+        reader.setSystemId(file.getPath());
+        assertEquals("2", f.newXPath().evaluate("/x", reader));
+        assertEquals(0, f.getDocumentCache().getMissCount());
+        assertEquals(0, f.getDocumentCache().size());
+    }
+
+    private static JXPathXPathFactory factory() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        f.setFeature(JXPathXPathFactory.FEATURE_DOCUMENT_CACHE, true);
+        return f;
+    }
+    private File write(String name, String xml) throws Exception
+    {
+        final File file = new File(dir, name);
+        final long previous = file.lastModified();
+        final Writer w = new FileWriter(file);
+        try
+        {
+            w.write(xml);
+        }
+        finally
+        {
+            w.close();
+        }
+        // coarse file system clocks
+        if (previous!=0) file.setLastModified(previous + 2000);
+        return file;
+    }
+}
@@ -0,0 +1,128 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link DocumentIndex}.
+ *
+ * @author mik
+ *
+ */
+public class TestDocumentIndex extends TestCase
+{
+    private static final String XML = "<shop xmlns:x='urn:x'>"
+        + "<item id='a'><price>1</price></item>"
+        + "<box><item id='b'><price>2</price></item><x:item id='c'/></box>"
+        + "<item id='b' kind='k'><price>3</price></item>"
+        + "<item><price>4</price></item></shop>";
+
+    private static final String[] EXPRESSIONS = {
+        "//item", "/descendant::item", "count(//item)", "//price",
+        "//item[@id='b']", "/descendant::item[@id='b']", "//item['b'=@id]",
+        "//item[@kind='k']", "//item[@id='z']",
+        "//item[@id='a']/price", "//item[@id='b']/price", "//item[@id='z']/price",
+        "count(//item[@id='b'])", "//missing",
+    };
+    private static final QName[] TYPES = {
+        XPathConstants.STRING, XPathConstants.NUMBER, XPathConstants.BOOLEAN,
+        XPathConstants.NODE, XPathConstants.NODESET,
+    };
+
+    public void testCompile() throws Exception
+    {
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        assertNotNull(indexed(xp, "//item"));
+        assertNotNull(indexed(xp, "//item[@id='b']/price/text()"));
+        assertNotNull(indexed(xp, "count(/descendant::item[@id='b'])"));
+        assertNull(indexed(xp, "//*"));
+        assertNull(indexed(xp, "//item[1]"));
+        assertNull(indexed(xp, "//item[@id=1]"));
+        assertNull(indexed(xp, "/shop//item"));
+        assertNull(indexed(xp, "count(//item/price)"));
+    }
+    public void testSameResults() throws Exception
+    {
+        final Document plain = parse(XML);
+        final Document indexed = parse(XML);
+        DocumentIndex.attach(indexed, new String[]{"id"});
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        for(int i=0;i<EXPRESSIONS.length;i++)
+        {
+            for(int j=0;j<TYPES.length;j++)
+            {
+                // a number is not a node
+                if (EXPRESSIONS[i].startsWith("count") && j>2) continue;
+                final String msg = EXPRESSIONS[i] + " " + TYPES[j];
+                assertEquals(msg, result(xp.evaluate(EXPRESSIONS[i], plain, TYPES[j])),
+                    result(xp.evaluate(EXPRESSIONS[i], indexed, TYPES[j])));
+            }
+        }
+        assertEquals(1, DocumentIndex.get(indexed).getBuildCount());
+    }
+    public void testMutation() throws Exception
+    {
+        final Document doc = parse(XML);
+        final DocumentIndex index = DocumentIndex.attach(doc, new String[]{"id"});
+        assertFalse(index.isValid());
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        assertEquals(4, count(xp, "count(//item)", doc));
+        assertTrue(index.isValid());
+        final Element item = doc.createElement("item");
+        item.setAttribute("id", "d");
+        doc.getDocumentElement().appendChild(item);
+        assertFalse(index.isValid());
+        assertEquals(5, count(xp, "count(//item)", doc));
+        assertEquals(1, count(xp, "count(//item[@id='d'])", doc));
+        item.setAttribute("id", "e");
+        assertEquals(0, count(xp, "count(//item[@id='d'])", doc));
+        assertEquals(3, index.getBuildCount());
+        DocumentIndex.detach(doc);
+        assertNull(DocumentIndex.get(doc));
+        assertEquals(1, count(xp, "count(//item[@id='e'])", doc));
+    }
+
+    private static int count(XPath xp, String expression, Document doc) throws Exception
+    {
+        return ((Double)xp.evaluate(expression, doc, XPathConstants.NUMBER)).intValue();
+    }
+    private static IndexedPath indexed(XPath xp, String expression) throws Exception
+    {
+        return IndexedPath.compile(((JXPathXPathFactory.XPathExpressionImpl)
+            xp.compile(expression)).getParsedExpression());
+    }
+    private static String result(Object value)
+    {
+        if (value instanceof NodeList)
+        {
+            final NodeList list = (NodeList) value;
+            final StringBuffer buf = new StringBuffer();
+            for(int i=0;i<list.getLength();i++) buf.append(result(list.item(i))).append(',');
+            return buf.toString();
+        }
+        if (value instanceof Node)
+        {
+            final Node node = (Node) value;
+            return node.getNodeName() + "=" + node.getTextContent();
+        }
+        return String.valueOf(value);
+    }
+    private static Document parse(String xml) throws Exception
+    {
+        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        return dbf.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+}
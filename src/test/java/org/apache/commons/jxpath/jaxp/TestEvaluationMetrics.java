@@ -0,0 +1,224 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionException;
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link EvaluationMetrics}.
+ *
+ * @author mik
+ *
+ */
+public class TestEvaluationMetrics extends TestCase
+{
+    private static final String XML = "<x><i/><i/><i/></x>";
+
+    public void testMetrics() throws Exception
+    {
+        final EvaluationMetrics metrics = new EvaluationMetrics();
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        f.setEvaluationListener(metrics);
+        assertSame(metrics, f.getEvaluationListener());
+        final XPath xpath = f.newXPath();
+        xpath.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args)
+                    {
+                        return Boolean.TRUE;
+                    }
+                };
+            }
+        });
+        xpath.setXPathVariableResolver(new XPathVariableResolver()
+        {
+            public Object resolveVariable(QName name)
+            {
+                return new Double(1);
+            }
+        });
+        final XPathExpression nodes = xpath.compile("//i[f(.)]");
+        final XPathExpression count = xpath.compile("count(//i) + $v");
+        assertEquals(2, metrics.getCompileCount());
+        final Document doc = JXPathXPathFactory.getDocument(
+            new InputSource(new StringReader(XML)), false);
+        assertEquals(3, ((NodeList)nodes.evaluate(doc, XPathConstants.NODESET)).getLength());
+        assertEquals(new Double(4), count.evaluate(doc, XPathConstants.NUMBER));
+        assertEquals(4.0, ((JXPathExpression)count).evaluateDouble(doc), 0);
+        assertEquals(new Double(4), xpath.evaluate("count(//i) + $v",
+            new InputSource(new ByteArrayInputStream(XML.getBytes("UTF-8"))),
+            XPathConstants.NUMBER));
+        try
+        {
+            xpath.evaluate("//i[g(1, 2", doc);
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            // ok
+        }
+        assertEquals(4, metrics.getEvaluationCount());
+        assertEquals(0, metrics.getFailureCount());
+        assertEquals(1, metrics.getParseCount());
+        assertEquals(XML.length(), metrics.getParsedBytes());
+        assertEquals(1, metrics.getFunctionResolutions());
+        assertEquals(3, metrics.getFunctionInvocations());
+        assertEquals(3, metrics.getVariableResolutions());
+        assertEquals(1, metrics.getNodeSetCount());
+        assertEquals(3, metrics.getNodeSetNodes());
+        assertEquals(3, metrics.getMaxNodeSetSize());
+        assertEquals(metrics.getHistogramBounds().length + 1,
+            metrics.getLatencyHistogram().length);
+        assertEquals(4, sum(metrics.getLatencyHistogram()));
+        assertEquals(3, sum(metrics.getExpressionHistogram("count(//i) + $v")));
+        assertNull(metrics.getExpressionHistogram("//x"));
+        assertEquals(2, metrics.getExpressionStatistics().length);
+        metrics.reset();
+        assertEquals(0, metrics.getEvaluationCount());
+        assertEquals(0, metrics.getExpressionStatistics().length);
+    }
+    public void testFailure() throws Exception
+    {
+        final EvaluationMetrics metrics = new EvaluationMetrics();
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        f.setEvaluationListener(metrics);
+        final XPathExpression expr = f.newXPath().compile("missing(1)");
+        try
+        {
+            expr.evaluate(JXPathXPathFactory.getDocument(
+                new InputSource(new StringReader(XML)), false));
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            // ok
+        }
+        assertEquals(1, metrics.getEvaluationCount());
+        assertEquals(1, metrics.getFailureCount());
+    }
+    public void testLazyNodeSet() throws Exception
+    {
+        final EvaluationMetrics metrics = new EvaluationMetrics();
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        f.setEvaluationListener(metrics);
+        final XPath xpath = f.newXPath();
+        xpath.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args) throws XPathFunctionException
+                    {
+                        final String id = ((Element)((NodeList)args.get(0)).item(0)).getAttribute("id");
+                        if (id.equals("fail")) throw new XPathFunctionException("failed");
+                        try
+                        {
+                            Thread.sleep(20);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            throw new XPathFunctionException(e);
+                        }
+                        return Boolean.TRUE;
+                    }
+                };
+            }
+        });
+        final Document doc = JXPathXPathFactory.getDocument(
+            new InputSource(new StringReader("<x><i/><i/><i/><i id='fail'/></x>")), false);
+        // the whole list is evaluated within the time
+        assertEquals(3, ((NodeList)xpath.evaluate("/x/i[f(.)]", JXPathXPathFactory.getDocument(
+            new InputSource(new StringReader(XML)), false), XPathConstants.NODESET)).getLength());
+        assertTrue(metrics.getEvaluationTime() >= 60000000L);
+        assertEquals(3, metrics.getNodeSetNodes());
+        // a failure after the first node is thrown by the evaluation
+        try
+        {
+            xpath.evaluate("/x/i[f(.)]", doc, XPathConstants.NODESET);
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            // ok
+        }
+        assertEquals(2, metrics.getEvaluationCount());
+        assertEquals(1, metrics.getFailureCount());
+    }
+    public void testStreaming() throws Exception
+    {
+        final EvaluationMetrics metrics = new EvaluationMetrics();
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        f.setFeature(JXPathXPathFactory.FEATURE_STREAMING, true);
+        f.setEvaluationListener(metrics);
+        assertEquals(new Double(3), f.newXPath().evaluate("count(/x/i)",
+            new InputSource(new StringReader(XML)), XPathConstants.NUMBER));
+        assertEquals(1, metrics.getEvaluationCount());
+        assertEquals(0, metrics.getParseCount());
+    }
+    public void testDisabled() throws Exception
+    {
+        final EvaluationMetrics metrics = new EvaluationMetrics();
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        final XPath before = f.newXPath();
+        f.setEvaluationListener(metrics);
+        f.setEvaluationListener(null);
+        assertEquals(new Double(3), f.newXPath().evaluate("count(//i)",
+            new InputSource(new StringReader(XML)), XPathConstants.NUMBER));
+        assertEquals(new Double(3), before.evaluate("count(//i)",
+            new InputSource(new StringReader(XML)), XPathConstants.NUMBER));
+        assertEquals(0, metrics.getEvaluationCount());
+        assertEquals(0, metrics.getParseCount());
+    }
+    public void testMBean() throws Exception
+    {
+        final EvaluationMetrics metrics = new EvaluationMetrics();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(
+            "org.apache.commons.jxpath.jaxp:type=EvaluationMetrics,name=test");
+        server.registerMBean(metrics, name);
+        try
+        {
+            final JXPathXPathFactory f = new JXPathXPathFactory();
+            f.setEvaluationListener(metrics);
+            f.newXPath().evaluate("1", JXPathXPathFactory.getDocument(
+                new InputSource(new StringReader(XML)), false));
+            assertEquals(new Long(1), server.getAttribute(name, "EvaluationCount"));
+        }
+        finally
+        {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private static long sum(long[] counts)
+    {
+        long sum = 0;
+        for(int i=0;i<counts.length;i++) sum += counts[i];
+        return sum;
+    }
+}
@@ -0,0 +1,91 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathVariableResolver;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link ExpressionCache}.
+ * 
+ * @author mik
+ *
+ */
+public class TestExpressionCache extends TestCase
+{
+    public void testHit() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        final XPath xpath = f.newXPath();
+        final Document doc = parse("<x><c>1</c><c>2</c></x>");
+        assertEquals("1", xpath.evaluate("/x/c", doc));
+        assertEquals(new Double(2), xpath.evaluate("count(/x/c)", doc, XPathConstants.NUMBER));
+        assertEquals("1", xpath.evaluate("/x/c", doc));
+        final ExpressionCache cache = f.getExpressionCache();
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.size());
+    }
+    public void testSetupIsPartOfKey() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        final XPath xpath = f.newXPath();
+        final Document doc = parse("<x/>");
+        xpath.setXPathVariableResolver(new ConstantResolver("a"));
+        assertEquals("a", xpath.evaluate("$v", doc));
+        xpath.setXPathVariableResolver(new ConstantResolver("b"));
+        assertEquals("b", xpath.evaluate("$v", doc));
+        assertEquals(2, f.getExpressionCache().getMissCount());
+    }
+    public void testEviction() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        f.getExpressionCache().setMaxSize(2);
+        final XPath xpath = f.newXPath();
+        final Document doc = parse("<x/>");
+        xpath.evaluate("1", doc);
+        xpath.evaluate("2", doc);
+        xpath.evaluate("1", doc);
+        xpath.evaluate("3", doc);
+        final ExpressionCache cache = f.getExpressionCache();
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        xpath.evaluate("1", doc);
+        assertEquals(2, cache.getHitCount());
+    }
+    public void testDisabled() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        assertTrue(f.getFeature(JXPathXPathFactory.FEATURE_EXPRESSION_CACHE));
+        f.setFeature(JXPathXPathFactory.FEATURE_EXPRESSION_CACHE, false);
+        assertFalse(f.getFeature(JXPathXPathFactory.FEATURE_EXPRESSION_CACHE));
+        final XPath xpath = f.newXPath();
+        assertEquals("a", xpath.evaluate("/x", parse("<x>a</x>")));
+        assertEquals(0, f.getExpressionCache().getMissCount());
+        assertEquals(0, f.getExpressionCache().size());
+    }
+
+    private static class ConstantResolver implements XPathVariableResolver
+    {
+        private final Object value;
+        ConstantResolver(Object value)
+        {
+            this.value = value;
+        }
+        public Object resolveVariable(QName name)
+        {
+            return value;
+        }
+    }
+    private Document parse(String xml) throws Exception
+    {
+        return JXPathXPathFactory.getDocument(new InputSource(new StringReader(xml)), false);
+    }
+}
@@ -0,0 +1,215 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionException;
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.jxpath.jaxp.ExpressionProfile.Entry;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link ExpressionProfiler}.
+ *
+ * @author mik
+ *
+ */
+public class TestExpressionProfiler extends TestCase
+{
+    private static final String XML = "<root>"
+        + "<item qty='1'/><item qty='3'/><item qty='5'/><other/>"
+        + "<group><item qty='7'/></group></root>";
+
+    public void testResults() throws Exception
+    {
+        final XPath xpath = new JXPathXPathFactory().newXPath();
+        final Document doc = parse(XML);
+        final String[] exprs = {"count(//item[@qty > 2])", "/root/item[2]/@qty",
+            "(//item)[last()]/@qty", "sum(/root/item/@qty)", "//item[@qty > 2]"};
+        final QName[] types = {XPathConstants.NUMBER, XPathConstants.STRING,
+            XPathConstants.STRING, XPathConstants.NUMBER, XPathConstants.NODESET};
+        for(int i=0;i<exprs.length;i++)
+        {
+            final XPathExpression expr = xpath.compile(exprs[i]);
+            final Object expected = expr.evaluate(doc, types[i]);
+            final Object result = new ExpressionProfiler(expr).profile(doc, types[i]).getResult();
+            if (expected instanceof NodeList)
+            {
+                assertEquals(exprs[i], ((NodeList)expected).getLength(), ((NodeList)result).getLength());
+            }
+            else
+            {
+                assertEquals(exprs[i], expected, result);
+            }
+        }
+    }
+    public void testSteps() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile(
+            "count(/root/item[@qty > 2])");
+        final ExpressionProfiler profiler = new ExpressionProfiler(expr);
+        final ExpressionProfile profile = profiler.profile(parse(XML), XPathConstants.NUMBER);
+        assertEquals(new Double(2), profile.getResult());
+        final Entry root = entry(profile, Entry.STEP, "child::root");
+        assertEquals(1, root.getVisited());
+        assertEquals(1, root.getPassed());
+        final Entry item = entry(profile, Entry.STEP, "child::item");
+        assertEquals(1, item.getVisited());
+        assertEquals(3, item.getPassed());
+        final Entry predicate = entry(profile, Entry.PREDICATE, "[@qty > 2]");
+        assertEquals(3, predicate.getVisited());
+        assertEquals(2, predicate.getPassed());
+        assertEquals(0, item.getDepth());
+        assertEquals(1, predicate.getDepth());
+        final Entry qty = entry(profile, Entry.STEP, "attribute::qty");
+        assertEquals(2, qty.getDepth());
+        assertEquals(3, qty.getVisited());
+        // counters are reset for each evaluation
+        final ExpressionProfile again = profiler.profile(parse(XML), XPathConstants.NUMBER);
+        assertEquals(3, entry(again, Entry.STEP, "child::item").getPassed());
+        assertEquals(0, again.getParseTime());
+        assertTrue(again.getEvaluationTime() > 0);
+    }
+    public void testFirstMatch() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile(
+            "(//item)[2]/@qty");
+        final ExpressionProfile profile = new ExpressionProfiler(expr).profile(parse(XML),
+            XPathConstants.STRING);
+        assertEquals("3", profile.getResult());
+        assertEquals(1, entry(profile, Entry.PREDICATE, "[2]").getPassed());
+        assertEquals(1, entry(profile, Entry.STEP, "attribute::qty").getPassed());
+    }
+    public void testCalls() throws Exception
+    {
+        final XPath xpath = new JXPathXPathFactory().newXPath();
+        xpath.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args)
+                    {
+                        return Boolean.TRUE;
+                    }
+                };
+            }
+        });
+        xpath.setXPathVariableResolver(new XPathVariableResolver()
+        {
+            public Object resolveVariable(QName name)
+            {
+                return new Double(2);
+            }
+        });
+        final XPathExpression expr = xpath.compile("count(//item[ext:f(.) and @qty > $min])");
+        final ExpressionProfile profile = new ExpressionProfiler(expr).profile(parse(XML),
+            XPathConstants.NUMBER);
+        assertEquals(new Double(3), profile.getResult());
+        assertEquals(4, entry(profile, Entry.FUNCTION, "ext:f(.)").getCalls());
+        assertEquals(4, entry(profile, Entry.VARIABLE, "$min").getCalls());
+        assertNull(entry(profile, Entry.VARIABLE, "$min").getPath());
+    }
+    public void testLazyError() throws Exception
+    {
+        // the function fails after the first matches, read lazily
+        final XPath xpath = new JXPathXPathFactory().newXPath();
+        xpath.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args) throws XPathFunctionException
+                    {
+                        final Element item = (Element) ((NodeList)args.get(0)).item(0);
+                        if (item.getAttribute("qty").equals("5")) throw new XPathFunctionException("at 5");
+                        return Boolean.TRUE;
+                    }
+                };
+            }
+        });
+        final XPathExpression expr = xpath.compile("/root/item[ext:f(.)]");
+        try
+        {
+            new ExpressionProfiler(expr).profile(parse(XML), XPathConstants.NODESET);
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            // thrown as checked
+        }
+    }
+    public void testInputSource() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile("count(//item)");
+        final ExpressionProfile profile = new ExpressionProfiler(expr).profile(
+            new InputSource(new StringReader(XML)), XPathConstants.NUMBER);
+        assertEquals(new Double(4), profile.getResult());
+        assertTrue(profile.getParseTime() > 0);
+    }
+    public void testToString() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile(
+            "/root/item[@qty > 2]");
+        final ExpressionProfile profile = new ExpressionProfiler(expr).profile(parse(XML),
+            XPathConstants.NODESET);
+        final String text = profile.toString();
+        assertTrue(text, text.startsWith("/root/item[@qty > 2] as NODESET"));
+        assertTrue(text, text.indexOf("child::item") > 0);
+        assertTrue(text, text.indexOf("[@qty > 2]") > 0);
+        assertTrue(text, text.indexOf("other") > 0);
+        assertTrue(profile.getOtherTime() >= 0);
+        try
+        {
+            profile.getEntries().clear();
+            fail();
+        }
+        catch(UnsupportedOperationException e)
+        {
+        }
+    }
+    public void testNotJXPath() throws Exception
+    {
+        try
+        {
+            new ExpressionProfiler(XPathFactory.newInstance().newXPath().compile("/root"));
+            fail();
+        }
+        catch(IllegalArgumentException e)
+        {
+        }
+    }
+
+    private static Entry entry(final ExpressionProfile profile, final String kind,
+        final String text)
+    {
+        final List entries = profile.getEntries();
+        for(int i=0, len=entries.size();i<len;i++)
+        {
+            final Entry entry = (Entry) entries.get(i);
+            if (entry.getKind().equals(kind) && entry.getText().equals(text)) return entry;
+        }
+        fail("No " + kind + " " + text + " in:\n" + profile);
+        return null;
+    }
+    private static Document parse(final String xml) throws Exception
+    {
+        return JXPathXPathFactory.getDocument(new InputSource(new StringReader(xml)), false);
+    }
+}
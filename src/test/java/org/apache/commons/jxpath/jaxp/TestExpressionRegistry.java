@@ -0,0 +1,133 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Properties;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionResolver;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link ExpressionRegistry}.
+ *
+ * @author mik
+ *
+ */
+public class TestExpressionRegistry extends TestCase
+{
+    private static final String CONFIG =
+        "ns.o=urn:orders\n"
+        + "expr.total=sum(//o:order/@amount)\n"
+        + "type.total=number\n"
+        + "expr.first=//o:order[1]\n"
+        + "type.first=node\n"
+        + "expr.customer=//o:order[1]/@customer\n"
+        + "sample.1=<o:orders xmlns:o='urn:orders'><o:order amount='1' customer='c'/></o:orders>\n"
+        + "sample.2=<o:orders xmlns:o='urn:orders'/>\n";
+
+    public void testRegistry() throws Exception
+    {
+        final ExpressionRegistry registry = new JXPathXPathFactory().newExpressionRegistry(load(CONFIG));
+        assertEquals(3, registry.getNames().length);
+        assertEquals("customer", registry.getNames()[0]);
+        assertEquals(6, registry.getWarmupEvaluations());
+        assertTrue(registry.getWarmupTime()>=registry.getCompileTime());
+        assertEquals(XPathConstants.NUMBER, registry.getReturnType("total"));
+        assertEquals(XPathConstants.STRING, registry.getReturnType("customer"));
+        assertNull(registry.get("missing"));
+        final Document doc = JXPathXPathFactory.getDocument(new InputSource(new StringReader(
+            "<o:orders xmlns:o='urn:orders'><o:order amount='2' customer='x'/>"
+            + "<o:order amount='3'/></o:orders>")), false);
+        assertEquals(new Double(5), registry.evaluate("total", doc));
+        assertEquals("x", registry.evaluate("customer", doc));
+        assertEquals("x", ((Element)registry.evaluate("first", doc)).getAttribute("customer"));
+        assertEquals(5.0, registry.get("total").evaluateDouble(doc), 0);
+        try
+        {
+            registry.evaluate("missing", doc);
+            fail();
+        }
+        catch(IllegalArgumentException e)
+        {
+            // ok
+        }
+    }
+    public void testNodeSetWarmup() throws Exception
+    {
+        final int[] calls = new int[1];
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        f.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args)
+                    {
+                        calls[0]++;
+                        return Boolean.TRUE;
+                    }
+                };
+            }
+        });
+        // the node set is read lazily, the warm up reads it all
+        f.newExpressionRegistry(load("ns.f=urn:f\nexpr.items=/x/i[f:g(.)]\n"
+            + "type.items=nodeset\nsample.1=<x><i/><i/><i/><i/></x>\n"));
+        assertEquals(4, calls[0]);
+    }
+    public void testErrors() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        assertError(f, "expr.bad=//[\n", "Cannot compile bad");
+        assertError(f, "expr.a=/x\nsample.s=<x>\n", "Cannot parse sample s");
+        try
+        {
+            f.newExpressionRegistry(load("expr.a=/x\ntype.a=date\n"));
+            fail();
+        }
+        catch(IllegalArgumentException e)
+        {
+            assertEquals("Unknown type date of a", e.getMessage());
+        }
+        try
+        {
+            f.newExpressionRegistry(load("exp.a=/x\n"));
+            fail();
+        }
+        catch(IllegalArgumentException e)
+        {
+            assertEquals("Unknown property:exp.a", e.getMessage());
+        }
+        assertEquals(0, f.newExpressionRegistry(load("expr.a=/x\n")).getWarmupEvaluations());
+    }
+
+    private static void assertError(JXPathXPathFactory f, String config, String msg) throws Exception
+    {
+        try
+        {
+            f.newExpressionRegistry(load(config));
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            assertEquals(msg, e.getMessage());
+            assertNotNull(e.getCause());
+        }
+    }
+    private static Properties load(String config) throws Exception
+    {
+        final Properties props = new Properties();
+        props.load(new ByteArrayInputStream(config.getBytes("ISO-8859-1")));
+        return props;
+    }
+}
@@ -0,0 +1,79 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionResolver;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link FunctionCache}.
+ * 
+ * @author mik
+ *
+ */
+public class TestFunctionCache extends TestCase
+{
+    public void testGetPut()
+    {
+        final FunctionCache cache = new FunctionCache();
+        final Object f1 = new Object();
+        final Object f2 = new Object();
+        assertNull(cache.get(null, "f", 1));
+        cache.put(null, "f", 1, f1);
+        cache.put("ns", "f", 1, f2);
+        cache.put("ns", "f", 2, FunctionCache.NOT_FOUND);
+        assertSame(f1, cache.get(null, "f", 1));
+        assertSame(f2, cache.get("ns", "f", 1));
+        assertSame(FunctionCache.NOT_FOUND, cache.get("ns", "f", 2));
+        assertNull(cache.get("ns", "g", 1));
+        assertEquals(3, cache.size());
+    }
+    public void testGrow()
+    {
+        final FunctionCache cache = new FunctionCache();
+        for(int i=0;i<100;i++)
+        {
+            cache.put("ns", "f" + i, i % 3, new Integer(i));
+        }
+        assertEquals(100, cache.size());
+        for(int i=0;i<100;i++)
+        {
+            assertEquals(new Integer(i), cache.get("ns", "f" + i, i % 3));
+        }
+    }
+    public void testResolvedOnce() throws Exception
+    {
+        final int[] calls = new int[1];
+        final XPath xpath = new JXPathXPathFactory().newXPath();
+        xpath.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                calls[0]++;
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args)
+                    {
+                        return Boolean.TRUE;
+                    }
+                };
+            }
+        });
+        final XPathExpression expr = xpath.compile("count(//i[f(.)])");
+        final Document doc = JXPathXPathFactory.getDocument(
+            new InputSource(new StringReader("<x><i/><i/><i/></x>")), false);
+        assertEquals(new Double(3), expr.evaluate(doc, XPathConstants.NUMBER));
+        assertEquals(new Double(3), expr.evaluate(doc, XPathConstants.NUMBER));
+        assertEquals(1, calls[0]);
+    }
+}
@@ -1,16 +1,26 @@
 package org.apache.commons.jxpath.jaxp;
 
 import java.io.StringReader;
+import java.util.List;
 
+import javax.xml.namespace.QName;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.jxpath.CompiledExpression;
+import org.apache.commons.jxpath.JXPathContext;
+import org.apache.commons.jxpath.NodeSet;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 
 /**
@@ -75,7 +85,150 @@ public class TestJXPathJaxp extends TestCase
         
         
     }
-    
+    public void testAPI_XPath_ResolverChange() throws Exception
+    {
+        XPath xp = getXPath();
+        Object doc = JXPathXPathFactory.getDocument(new InputSource(new StringReader("<xml/>")), false);
+        xp.setXPathVariableResolver(new Resolver("a"));
+        assertEquals("a", xp.evaluate("$v", doc));
+        XPathExpression compiled = xp.compile("$v");
+        xp.setXPathVariableResolver(new Resolver("b"));
+        assertEquals("b", xp.evaluate("$v", doc));
+        // compiled expressions keep the resolvers of compile time
+        assertEquals("a", compiled.evaluate(doc));
+        xp.setXPathFunctionResolver(new Resolver("c"));
+        assertEquals("c", xp.evaluate("f(1)", doc));
+        xp.reset();
+        xp.setXPathVariableResolver(new Resolver("d"));
+        assertEquals("d", xp.evaluate("$v", doc));
+    }
+
+    public void testAPI_XPath_FunctionArguments() throws Exception
+    {
+        XPath xp = getXPath();
+        Object doc = JXPathXPathFactory.getDocument(new InputSource(new StringReader("<xml><c>1</c><c>2</c></xml>")), false);
+        xp.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                if (name.getLocalPart().equals("raw")) return new RawXPathFunction()
+                {
+                    public Object evaluateRaw(Object[] args)
+                    {
+                        return String.valueOf(((NodeSet)args[0]).getPointers().size());
+                    }
+                    public Object evaluate(List args)
+                    {
+                        throw new IllegalStateException();
+                    }
+                };
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args)
+                    {
+                        NodeList list = (NodeList) args.get(0);
+                        return list.getLength() + list.item(1).getTextContent() + args.get(1) + args.size();
+                    }
+                };
+            }
+        });
+        assertEquals("22x2", xp.evaluate("f(//c, 'x')", doc));
+        assertEquals("2", xp.evaluate("raw(//c)", doc));
+    }
+
+    public void testAPI_XPath_BoundVariables() throws Exception
+    {
+        XPath xp = getXPath();
+        Object doc = JXPathXPathFactory.getDocument(new InputSource(new StringReader(
+            "<xml><o c='a' r='x'/><o c='a' r='y'/><o c='b' r='x'/></xml>")), false);
+        final int[] calls = new int[1];
+        xp.setXPathVariableResolver(new XPathVariableResolver()
+        {
+            public Object resolveVariable(QName name)
+            {
+                calls[0]++;
+                return name.getLocalPart().equals("c") ? "a" : "x";
+            }
+        });
+        JXPathExpression expr = (JXPathExpression) xp.compile("count(//o[@c=$c or @r=$r])");
+        String[] names = expr.getVariableNames();
+        assertEquals(2, names.length);
+        assertEquals("c", names[0]);
+        assertEquals("r", names[1]);
+        assertEquals(new Double(3), expr.evaluate(doc, XPathConstants.NUMBER));
+        // one call for each variable, not one for each node
+        assertEquals(2, calls[0]);
+        assertEquals(new Double(2), expr.evaluate(doc, XPathConstants.NUMBER, new Object[]{"b", null}));
+        assertEquals(3, calls[0]);
+        assertEquals(new Double(0), expr.evaluate(doc, XPathConstants.NUMBER, new Object[]{"z", "z"}));
+        assertEquals(3, calls[0]);
+        try
+        {
+            expr.evaluate(doc, XPathConstants.NUMBER, new Object[1]);
+            fail();
+        }
+        catch(IllegalArgumentException e)
+        {
+            // ok
+        }
+    }
+
+    public void testAPI_XPath_ScalarValues() throws Exception
+    {
+        XPath xp = getXPath();
+        Object doc = JXPathXPathFactory.getDocument(new InputSource(new StringReader(
+            "<xml><c n='2'> 1 </c><c n='x'>2</c><e/></xml>")), false);
+        String[] exprs = {"count(//c)", "sum(//c)", "boolean(//e)", "boolean(//f)",
+            "string(//c)", "//c", "//c/@n", "//f", "'a'", "1 div 0", "//c[2] > 1",
+            "concat(//c, 'x')", "-//c[2]", "//c | //e", "number(//c/@n)"};
+        QName[] types = {XPathConstants.STRING, XPathConstants.NUMBER, XPathConstants.BOOLEAN};
+        for(int i=0;i<exprs.length;i++)
+        {
+            JXPathExpression expr = (JXPathExpression) xp.compile(exprs[i]);
+            JXPathContext ctx = JXPathContext.newContext(doc);
+            ctx.setLenient(true);
+            CompiledExpression compiled = JXPathContext.compile(exprs[i]);
+            for(int j=0;j<types.length;j++)
+            {
+                // as the pointer evaluation
+                assertEquals(exprs[i] + " " + types[j],
+                    JXPathXPathFactory.XPathExpressionImpl.evaluateCompiled(
+                        compiled, exprs[i], ctx, types[j]),
+                    expr.evaluate(doc, types[j]));
+            }
+            assertEquals(exprs[i], expr.evaluate(doc, XPathConstants.BOOLEAN),
+                Boolean.valueOf(expr.evaluateBoolean(doc)));
+            assertEquals(exprs[i], expr.evaluate(doc, XPathConstants.NUMBER),
+                new Double(expr.evaluateDouble(doc)));
+        }
+        assertTrue(JXPathXPathFactory.XPathExpressionImpl.isScalar(
+            ((JXPathXPathFactory.XPathExpressionImpl)xp.compile("count(//c)")).getParsedExpression()));
+        assertFalse(JXPathXPathFactory.XPathExpressionImpl.isScalar(
+            ((JXPathXPathFactory.XPathExpressionImpl)xp.compile("//c | //e")).getParsedExpression()));
+    }
+
+    private static class Resolver implements XPathVariableResolver, XPathFunctionResolver
+    {
+        private final String value;
+        Resolver(String value)
+        {
+            this.value = value;
+        }
+        public Object resolveVariable(QName name)
+        {
+            return value;
+        }
+        public XPathFunction resolveFunction(QName name, int arity)
+        {
+            return new XPathFunction()
+            {
+                public Object evaluate(List args)
+                {
+                    return value;
+                }
+            };
+        }
+    }
 
     private Object selectSingle(String expr, String xml) throws Exception
     {
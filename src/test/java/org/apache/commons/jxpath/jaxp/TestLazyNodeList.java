@@ -0,0 +1,125 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionException;
+import javax.xml.xpath.XPathFunctionResolver;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link LazyNodeList}.
+ * 
+ * @author mik
+ *
+ */
+public class TestLazyNodeList extends TestCase
+{
+    private static final String XML = "<x><r>1</r><r>2</r><r>3</r></x>";
+
+    public void testLazy() throws Exception
+    {
+        final LazyNodeList list = select("//r");
+        assertFalse(list.isComplete());
+        assertEquals("1", list.item(0).getTextContent());
+        assertFalse(list.isComplete());
+        assertEquals(3, list.getLength());
+        assertTrue(list.isComplete());
+        assertEquals("3", list.item(2).getTextContent());
+        assertNull(list.item(3));
+        assertNull(list.item(-1));
+    }
+    public void testEmpty() throws Exception
+    {
+        final LazyNodeList list = select("//none");
+        assertNull(list.item(0));
+        assertEquals(0, list.getLength());
+    }
+    public void testIterator() throws Exception
+    {
+        final LazyNodeList list = select("//r");
+        assertEquals("1", list.item(0).getTextContent());
+        final Iterator iter = list.iterator();
+        final StringBuffer buf = new StringBuffer();
+        while(iter.hasNext())
+        {
+            buf.append(((Node)iter.next()).getTextContent());
+        }
+        assertEquals("123", buf.toString());
+        assertNotNull(list.item(0));
+        try
+        {
+            list.item(1);
+            fail();
+        }
+        catch(IllegalStateException e)
+        {
+            // ok, already consumed
+        }
+    }
+    public void testErrors() throws Exception
+    {
+        final Document doc = JXPathXPathFactory.getDocument(new InputSource(new StringReader(XML)), false);
+        final JXPathXPathFactory factory = new JXPathXPathFactory();
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        try
+        {
+            // fails before the first match
+            factory.newXPath().evaluate("//r[f:g(.)]", doc, XPathConstants.NODESET);
+            fail();
+        }
+        catch(XPathFunctionException e)
+        {
+            // ok, secure mode
+        }
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        xp.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args) throws XPathFunctionException
+                    {
+                        final String text = ((Node)((NodeList)args.get(0)).item(0)).getTextContent();
+                        if (text.equals("3")) throw new XPathFunctionException("at 3");
+                        return Boolean.TRUE;
+                    }
+                };
+            }
+        });
+        final LazyNodeList list = (LazyNodeList) xp.evaluate("/x/r[f:g(.)]", doc, XPathConstants.NODESET);
+        assertEquals("1", list.item(0).getTextContent());
+        try
+        {
+            list.getLength();
+            fail();
+        }
+        catch(LazyNodeList.EvaluationException e)
+        {
+            assertNotNull(e.getXPathException());
+        }
+    }
+
+    private LazyNodeList select(String expr) throws Exception
+    {
+        final Document doc = JXPathXPathFactory.getDocument(new InputSource(new StringReader(XML)), false);
+        final XPathExpression xpe = new JXPathXPathFactory().newXPath().compile(expr);
+        final NodeList list = (NodeList) xpe.evaluate(doc, XPathConstants.NODESET);
+        assertTrue(list instanceof LazyNodeList);
+        return (LazyNodeList) list;
+    }
+}
@@ -0,0 +1,101 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link MappedInput}.
+ *
+ * @author mik
+ *
+ */
+public class TestMappedInput extends TestCase
+{
+    public void testFile() throws Exception
+    {
+        final File dir = File.createTempFile("jxpath", "mapped");
+        dir.delete();
+        dir.mkdir();
+        final File file = new File(dir, "doc.xml");
+        final File dtd = new File(dir, "doc.dtd");
+        try
+        {
+            write(dtd, "<!ENTITY who 'world'>".getBytes("ASCII"));
+            write(file, ("<?xml version='1.0' encoding='ISO-8859-1'?>"
+                + "<!DOCTYPE x SYSTEM 'doc.dtd'><x><c>h\u00e9llo &who;</c><c/></x>")
+                .getBytes("ISO-8859-1"));
+            final XPath xpath = new JXPathXPathFactory().newXPath();
+            assertEquals("h\u00e9llo world", MappedInput.evaluate(xpath.compile("/x/c"),
+                file, XPathConstants.STRING));
+            assertEquals(new Double(2), MappedInput.evaluate(xpath.compile("count(/x/c)"),
+                file, XPathConstants.NUMBER));
+        }
+        finally
+        {
+            file.delete();
+            dtd.delete();
+            dir.delete();
+        }
+    }
+    public void testBuffer() throws Exception
+    {
+        final XPathExpression expr = new JXPathXPathFactory().newXPath().compile("/x");
+        final byte[] utf16 = "\ufeff<x>\u20ac</x>".getBytes("UTF-16BE");
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(utf16.length + 2);
+        buffer.put((byte)'?').put(utf16).put((byte)'?');
+        buffer.position(1);
+        buffer.limit(buffer.capacity() - 1);
+        assertEquals("\u20ac", MappedInput.evaluate(expr, buffer, XPathConstants.STRING));
+        assertEquals(1, buffer.position());
+        final ByteBuffer latin = ByteBuffer.wrap("<x>\u00e9</x>".getBytes("ISO-8859-1"));
+        assertEquals("\u00e9", expr.evaluate(
+            MappedInput.newInputSource(latin, "ISO-8859-1"), XPathConstants.STRING));
+    }
+    public void testStream() throws Exception
+    {
+        final InputStream in = new ByteBufferInputStream(ByteBuffer.wrap(new byte[]{1, 2, (byte)255, 4, 5}));
+        assertEquals(5, in.available());
+        assertEquals(1, in.read());
+        in.mark(0);
+        final byte[] b = new byte[10];
+        assertEquals(4, in.read(b, 1, 9));
+        assertEquals(255, b[2] & 0xFF);
+        assertEquals(-1, in.read(b, 0, 1));
+        assertEquals(-1, in.read());
+        in.reset();
+        assertEquals(2, in.skip(2));
+        assertEquals(4, in.read());
+        try
+        {
+            new ByteBufferInputStream(ByteBuffer.allocate(1)).reset();
+            fail();
+        }
+        catch(IOException e)
+        {
+            // no mark
+        }
+    }
+
+    private static void write(File file, byte[] bytes) throws Exception
+    {
+        final OutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(bytes);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
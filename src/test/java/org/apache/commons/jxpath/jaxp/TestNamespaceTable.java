@@ -0,0 +1,154 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFunction;
+import javax.xml.xpath.XPathFunctionResolver;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory.ResolversSupport.NamespaceTable;
+import org.apache.commons.jxpath.jaxp.JXPathXPathFactory.XPathExpressionImpl;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for the prefixes resolved at compile time,
+ * see {@link NamespaceTable}.
+ *
+ * @author mik
+ *
+ */
+public class TestNamespaceTable extends TestCase
+{
+    private static final String XML = "<a:root xmlns:a='urn:a' xmlns:b='urn:b'>"
+        + "<a:item a:id='1'/><a:item a:id='2'/><b:item/></a:root>";
+
+    public void testCollect() throws Exception
+    {
+        final XPathExpressionImpl expr = (XPathExpressionImpl) xpath().compile(
+            "/x:root/x:item[y:f(@x:id) and z:item]/y:item[1]");
+        final NamespaceTable table = expr.getNamespaces();
+        assertEquals(2, table.size());
+        assertEquals("x", table.getPrefix(0));
+        assertEquals("urn:a", table.getURI("x"));
+        assertEquals("urn:b", table.getURI("y"));
+        // not bound by the namespace context
+        assertNull(table.getURI("z"));
+        assertNull(table.getURI(null));
+        assertSame(NamespaceTable.EMPTY, ((XPathExpressionImpl)xpath().compile("/root/item"))
+            .getNamespaces());
+        assertSame(NamespaceTable.EMPTY, ((XPathExpressionImpl)new JXPathXPathFactory()
+            .newXPath().compile("/x:root")).getNamespaces());
+    }
+    public void testSteps() throws Exception
+    {
+        final XPath xpath = xpath();
+        final Document doc = parse(XML);
+        assertEquals(new Double(2), xpath.evaluate("count(/x:root/x:item)", doc, XPathConstants.NUMBER));
+        assertEquals(new Double(1), xpath.evaluate("count(/x:root/y:item)", doc, XPathConstants.NUMBER));
+        assertEquals(new Double(3), xpath.evaluate("count(//x:item | //y:item)", doc, XPathConstants.NUMBER));
+        assertEquals("2", xpath.evaluate("/x:root/x:item[@x:id='2']/@x:id", doc));
+        // the namespace context wins over the declarations of the document
+        assertEquals(new Double(0), xpath.evaluate("count(/y:root)", doc, XPathConstants.NUMBER));
+    }
+    public void testUnboundFromDocument() throws Exception
+    {
+        // prefixes not bound by the namespace context
+        // are still resolved from the document
+        final Document doc = parse(XML);
+        assertEquals(new Double(2), xpath().evaluate("count(/a:root/a:item)", doc, XPathConstants.NUMBER));
+        assertEquals(new Double(2), new JXPathXPathFactory().newXPath().evaluate(
+            "count(/a:root/a:item)", doc, XPathConstants.NUMBER));
+    }
+    public void testCompactDocument() throws Exception
+    {
+        final JXPathXPathFactory factory = new JXPathXPathFactory();
+        factory.setFeature(JXPathXPathFactory.FEATURE_COMPACT_DOCUMENT, true);
+        final XPath xpath = factory.newXPath();
+        xpath.setNamespaceContext(new Context());
+        final XPathExpression expr = xpath.compile("count(/x:root/x:item[@x:id='1'] | /x:root/y:item)");
+        assertEquals(new Double(2), expr.evaluate(new InputSource(new StringReader(XML)),
+            XPathConstants.NUMBER));
+    }
+    public void testFunction() throws Exception
+    {
+        final XPath xpath = xpath();
+        final QName[] resolved = new QName[1];
+        xpath.setXPathFunctionResolver(new XPathFunctionResolver()
+        {
+            public XPathFunction resolveFunction(QName name, int arity)
+            {
+                resolved[0] = name;
+                return new XPathFunction()
+                {
+                    public Object evaluate(List args)
+                    {
+                        return Boolean.TRUE;
+                    }
+                };
+            }
+        });
+        final Document doc = parse(XML);
+        assertEquals(new Double(2), xpath.evaluate("count(//x:item[y:f(.)])", doc, XPathConstants.NUMBER));
+        assertEquals(new QName("urn:b", "f"), resolved[0]);
+    }
+    public void testBatch() throws Exception
+    {
+        final XPath xpath = xpath();
+        final XPathBatch batch = new XPathBatch(new XPathExpression[]{
+            xpath.compile("count(/x:root/x:item)"), xpath.compile("count(/x:root/y:item)"),
+            xpath.compile("count(/x:root/*)")},
+            new QName[]{XPathConstants.NUMBER, XPathConstants.NUMBER, XPathConstants.NUMBER});
+        final Object[] results = batch.evaluate(parse(XML));
+        assertEquals(new Double(2), results[0]);
+        assertEquals(new Double(1), results[1]);
+        assertEquals(new Double(3), results[2]);
+    }
+
+    private static XPath xpath()
+    {
+        final XPath xpath = new JXPathXPathFactory().newXPath();
+        xpath.setNamespaceContext(new Context());
+        return xpath;
+    }
+    private static Document parse(final String xml) throws Exception
+    {
+        return JXPathXPathFactory.getDocument(new InputSource(new StringReader(xml)), false);
+    }
+
+    /**
+     * Binds <code>x</code> to <code>urn:a</code>
+     * and <code>y</code> to <code>urn:b</code>.
+     */
+    private static final class Context implements NamespaceContext
+    {
+        public String getNamespaceURI(String prefix)
+        {
+            if ("x".equals(prefix)) return "urn:a";
+            if ("y".equals(prefix)) return "urn:b";
+            return XMLConstants.NULL_NS_URI;
+        }
+        public String getPrefix(String uri)
+        {
+            if ("urn:a".equals(uri)) return "x";
+            if ("urn:b".equals(uri)) return "y";
+            return null;
+        }
+        public Iterator getPrefixes(String uri)
+        {
+            final String prefix = getPrefix(uri);
+            return prefix==null ? Collections.EMPTY_LIST.iterator()
+                : Collections.singleton(prefix).iterator();
+        }
+    }
+}
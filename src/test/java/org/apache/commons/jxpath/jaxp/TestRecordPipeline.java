@@ -0,0 +1,273 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link RecordPipeline}.
+ *
+ * @author mik
+ *
+ */
+public class TestRecordPipeline extends TestCase
+{
+    private static final int RECORDS = 200;
+
+    public void testRun() throws Exception
+    {
+        final List lines = new ArrayList();
+        final long count = new RecordPipeline("/feed/records/record", batch()).run(
+            source(xml(RECORDS)), collector(lines));
+        assertEquals(RECORDS, count);
+        assertEquals(expected(RECORDS), lines);
+    }
+    public void testRecordName() throws Exception
+    {
+        final List lines = new ArrayList();
+        final String xml = "<a><record id='1'><v>x</v><record id='nested'/></record>"
+            + "<b><record id='2'><v>y</v></record></b></a>";
+        final long count = new RecordPipeline("record", batch()).run(source(xml), collector(lines));
+        assertEquals(2, count);
+        assertEquals("0:1:x:0.0", lines.get(0));
+        assertEquals("1:2:y:0.0", lines.get(1));
+    }
+    public void testWorkers() throws Exception
+    {
+        final List lines = Collections.synchronizedList(new ArrayList());
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            final long count = new RecordPipeline("/feed/records/record", batch()).run(
+                source(xml(RECORDS)), collector(lines), executor, 4, 8);
+            assertEquals(RECORDS, count);
+            final List sorted = new ArrayList(lines);
+            Collections.sort(sorted, new Comparator()
+            {
+                public int compare(Object o1, Object o2)
+                {
+                    return index(o1) - index(o2);
+                }
+            });
+            assertEquals(expected(RECORDS), sorted);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    public void testHandlerError() throws Exception
+    {
+        final RecordHandler failing = new RecordHandler()
+        {
+            public void record(long index, Element record, Object[] results)
+                throws XPathExpressionException
+            {
+                if (index==3) throw new XPathExpressionException("stop at 3");
+            }
+        };
+        final RecordPipeline pipeline = new RecordPipeline("/feed/records/record", batch());
+        try
+        {
+            pipeline.run(source(xml(RECORDS)), failing);
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            assertEquals("stop at 3", e.getMessage());
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            pipeline.run(source(xml(RECORDS)), failing, executor, 2, 2);
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            assertEquals("stop at 3", e.getMessage());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        try
+        {
+            pipeline.run(source("<feed><records><record>"), failing);
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            // not well formed
+        }
+    }
+    public void testWorkerErrorFullQueue() throws Exception
+    {
+        // the only worker fails while the parsing waits on a full queue
+        final RecordHandler failing = new RecordHandler()
+        {
+            public void record(long index, Element record, Object[] results)
+            {
+                throw new IllegalStateException("failed at " + index);
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        try
+        {
+            new RecordPipeline("/feed/records/record", batch()).run(
+                source(xml(RECORDS)), failing, executor, 1, 1);
+            fail();
+        }
+        catch(IllegalStateException e)
+        {
+            assertEquals("failed at 0", e.getMessage());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    public void testStreamError() throws Exception
+    {
+        // the stream fails after some records, the workers must end
+        final byte[] head = ("<feed><records><record id='0'><v>v0</v></record>"
+            + "<record id='1'><v>v1</v></record>").getBytes("UTF-8");
+        final InputStream in = new ByteArrayInputStream(head)
+        {
+            public synchronized int read(byte[] b, int off, int len)
+            {
+                final int n = super.read(b, off, len);
+                if (n<0) throw new IllegalStateException("broken stream");
+                return n;
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            new RecordPipeline("/feed/records/record", batch()).run(
+                new InputSource(in), collector(Collections.synchronizedList(new ArrayList())),
+                executor, 2, 1);
+            fail();
+        }
+        catch(IllegalStateException e)
+        {
+            assertEquals("broken stream", e.getMessage());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+    public void testSecure() throws Exception
+    {
+        final File file = File.createTempFile("jxpath", ".txt");
+        try
+        {
+            final FileWriter w = new FileWriter(file);
+            w.write("secret");
+            w.close();
+            final String xml = "<!DOCTYPE feed [<!ENTITY ext SYSTEM '" + file.toURI()
+                + "'>]><feed><record><v>&ext;</v></record></feed>";
+            final List lines = new ArrayList();
+            new RecordPipeline("record", batch(false)).run(source(xml), collector(lines));
+            assertEquals("0::secret:0.0", lines.get(0));
+            lines.clear();
+            new RecordPipeline("record", batch(true)).run(source(xml), collector(lines));
+            assertEquals("0:::0.0", lines.get(0));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private static int index(Object line)
+    {
+        final String s = (String) line;
+        return Integer.parseInt(s.substring(0, s.indexOf(':')));
+    }
+    private static RecordHandler collector(final List lines)
+    {
+        return new RecordHandler()
+        {
+            public void record(long index, Element record, Object[] results)
+            {
+                assertEquals("record", record.getLocalName());
+                lines.add(index + ":" + results[0] + ":" + results[1] + ":" + results[2]);
+            }
+        };
+    }
+    private static XPathBatch batch() throws Exception
+    {
+        return batch(false);
+    }
+    private static XPathBatch batch(boolean secure) throws Exception
+    {
+        final JXPathXPathFactory factory = new JXPathXPathFactory();
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, secure);
+        final XPath xp = factory.newXPath();
+        xp.setNamespaceContext(new NamespaceContext()
+        {
+            public String getNamespaceURI(String prefix)
+            {
+                return "urn:ext";
+            }
+            public String getPrefix(String uri)
+            {
+                return "e";
+            }
+            public Iterator getPrefixes(String uri)
+            {
+                return Collections.singleton("e").iterator();
+            }
+        });
+        return new XPathBatch(new XPathExpression[]{
+            xp.compile("@id"), xp.compile("v"), xp.compile("count(//e:flag)")},
+            new QName[]{XPathConstants.STRING, XPathConstants.STRING, XPathConstants.NUMBER});
+    }
+    private static List expected(int records)
+    {
+        final List lines = new ArrayList();
+        for(int i=0;i<records;i++) lines.add(i + ":" + i + ":v" + i + ":" + (i % 2==0 ? "1.0" : "0.0"));
+        return lines;
+    }
+    private static String xml(int records)
+    {
+        final StringBuffer buf = new StringBuffer(
+            "<feed xmlns:e='urn:ext'><header><record id='no'/></header><records>");
+        for(int i=0;i<records;i++)
+        {
+            buf.append("<record id='").append(i).append("'><v>v").append(i).append("</v>");
+            if (i % 2==0) buf.append("<e:flag/>");
+            buf.append("</record>");
+        }
+        return buf.append("</records></feed>").toString();
+    }
+    private static InputSource source(String xml)
+    {
+        return new InputSource(new StringReader(xml));
+    }
+}
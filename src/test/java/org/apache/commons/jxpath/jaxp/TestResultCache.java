@@ -0,0 +1,120 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathVariableResolver;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link ResultCache}.
+ *
+ * @author mik
+ *
+ */
+public class TestResultCache extends TestCase
+{
+    private static final String XML = "<x><i n='1'/><i n='2'/><i n='3'/></x>";
+
+    public void testMutation() throws Exception
+    {
+        final JXPathXPathFactory f = newFactory();
+        final ResultCache cache = f.getResultCache();
+        final XPathExpression expr = f.newXPath().compile("//i");
+        final Document doc = parse(XML);
+        final NodeList first = (NodeList) expr.evaluate(doc, XPathConstants.NODESET);
+        assertEquals(3, first.getLength());
+        assertSame(first, expr.evaluate(doc, XPathConstants.NODESET));
+        assertEquals(new Double(3), f.newXPath().compile("count(//i)")
+            .evaluate(doc, XPathConstants.NUMBER));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        doc.getDocumentElement().appendChild(doc.createElement("i"));
+        assertEquals(4, ((NodeList)expr.evaluate(doc, XPathConstants.NODESET)).getLength());
+        assertEquals(1, cache.getInvalidationCount());
+        // other context node, other return type
+        expr.evaluate(doc.getDocumentElement(), XPathConstants.NODESET);
+        assertEquals(4, cache.getMissCount());
+        assertEquals(Boolean.TRUE, expr.evaluate(doc, XPathConstants.BOOLEAN));
+        assertTrue(((JXPathExpression)expr).evaluateBoolean(doc));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getDocumentCount());
+        cache.clear();
+        assertEquals(0, cache.getDocumentCount());
+    }
+    public void testVersion() throws Exception
+    {
+        final JXPathXPathFactory f = newFactory();
+        final ResultCache cache = f.getResultCache();
+        final XPathExpression expr = f.newXPath().compile("count(//i)");
+        final Document doc = parse(XML);
+        cache.setVersion(doc, 1);
+        assertEquals(new Double(3), expr.evaluate(doc, XPathConstants.NUMBER));
+        doc.getDocumentElement().appendChild(doc.createElement("i"));
+        // mutations are ignored with a version
+        assertEquals(new Double(3), expr.evaluate(doc, XPathConstants.NUMBER));
+        cache.setVersion(doc, 2);
+        assertEquals(new Double(4), expr.evaluate(doc, XPathConstants.NUMBER));
+        cache.invalidate(doc);
+        assertEquals(2, cache.getInvalidationCount());
+    }
+    public void testVariables() throws Exception
+    {
+        final JXPathXPathFactory f = newFactory();
+        final ResultCache cache = f.getResultCache();
+        final XPath xpath = f.newXPath();
+        final double[] value = {1};
+        xpath.setXPathVariableResolver(new XPathVariableResolver()
+        {
+            public Object resolveVariable(QName name)
+            {
+                return new Double(value[0]);
+            }
+        });
+        final JXPathExpression expr = (JXPathExpression) xpath.compile("//i[@n=$n]/@n");
+        final Document doc = parse(XML);
+        assertEquals("1", expr.evaluate(doc));
+        value[0] = 2;
+        // resolved variables are not cached
+        assertEquals("2", expr.evaluate(doc));
+        assertEquals(0, cache.getMissCount());
+        assertEquals("3", expr.evaluate(doc, XPathConstants.STRING, new Object[]{new Double(3)}));
+        assertEquals("3", expr.evaluate(doc, XPathConstants.STRING, new Object[]{new Double(3)}));
+        assertEquals("1", expr.evaluate(doc, XPathConstants.STRING, new Object[]{new Double(1)}));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+    public void testDisabled() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        assertFalse(f.getFeature(JXPathXPathFactory.FEATURE_RESULT_CACHE));
+        final XPathExpression expr = f.newXPath().compile("//i");
+        final Document doc = parse(XML);
+        assertNotSame(expr.evaluate(doc, XPathConstants.NODESET),
+            expr.evaluate(doc, XPathConstants.NODESET));
+        assertEquals(0, f.getResultCache().getMissCount());
+        f.getResultCache().setMaxSize(0);
+        f.setFeature(JXPathXPathFactory.FEATURE_RESULT_CACHE, true);
+        f.newXPath().evaluate("//i", doc);
+        assertEquals(0, f.getResultCache().getMissCount());
+    }
+
+    private static JXPathXPathFactory newFactory() throws Exception
+    {
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        f.setFeature(JXPathXPathFactory.FEATURE_RESULT_CACHE, true);
+        return f;
+    }
+    private static Document parse(String xml) throws Exception
+    {
+        return JXPathXPathFactory.getDocument(new InputSource(new StringReader(xml)), false);
+    }
+}
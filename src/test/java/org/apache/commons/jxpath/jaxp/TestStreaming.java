@@ -0,0 +1,114 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.jxpath.ri.Parser;
+import org.apache.commons.jxpath.ri.compiler.Expression;
+import org.apache.commons.jxpath.ri.compiler.TreeCompiler;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link StreamingExpression}, results
+ * must be the same of the DOM evaluation.
+ *
+ * @author mik
+ *
+ */
+public class TestStreaming extends TestCase
+{
+    private static final String XML = "<feed xmlns:n='urn:n'>"
+        + "<header><id> H1 </id></header>"
+        + "<item type='a' price='10'><name> first <!-- c --> item </name><item price='x'/></item>"
+        + "<item type='b' price='2.5'><name xml:space='preserve'> second </name></item>"
+        + "<n:item type='a' price='100'/>"
+        + "<group><item type='a' price='1'><name>third</name></item></group>"
+        + "<empty/>"
+        + "</feed>";
+
+    private static final String[] SUPPORTED = {
+        "/feed/header/id", "count(//item)", "count(/feed/item)", "sum(//item/@price)",
+        "sum(//item[@type='a']/@price)", "string(//item/name)", "string(/feed/item[2]/name)",
+        "string(//item[@type = 'b']/name)", "boolean(//item[@price > 5])", "boolean(//missing)",
+        "//item[@type='a' and @price < 5]/name", "count(//item[@type != 'a'])",
+        "count(//item[@price])", "count(/feed/*)", "//@type", "count(//*[@type='a' or 3 > @price])",
+        "/feed/descendant::name", "sum(//name)", "count(/feed//item)", "/feed/empty",
+        "/feed/item/@price", "count(//item[@price = 10])", "string(/feed)", "/feed"};
+
+    public void testCompile()
+    {
+        final String[] unsupported = {"/feed/item[2]", "//n:item", "count(item)",
+            "//item/..", "concat(/a, /b)", "/feed/item[name='x']", "//item/@*",
+            "/feed/item[@type=$t]", "//text()", "/"};
+        for(int i=0;i<unsupported.length;i++)
+        {
+            assertNull(unsupported[i], StreamingExpression.compile(parse(unsupported[i])));
+        }
+        for(int i=0;i<SUPPORTED.length;i++)
+        {
+            if (SUPPORTED[i].indexOf("[2]")>=0) continue;
+            assertNotNull(SUPPORTED[i], StreamingExpression.compile(parse(SUPPORTED[i])));
+        }
+    }
+    public void testSameResults() throws Exception
+    {
+        final XPath dom = newXPath(false);
+        final XPath sax = newXPath(true);
+        final QName[] types = {XPathConstants.STRING, XPathConstants.NUMBER, XPathConstants.BOOLEAN};
+        for(int i=0;i<SUPPORTED.length;i++)
+        {
+            for(int t=0;t<types.length;t++)
+            {
+                final Object expected = dom.evaluate(SUPPORTED[i], source(XML), types[t]);
+                final Object actual = sax.evaluate(SUPPORTED[i], source(XML), types[t]);
+                assertEquals(SUPPORTED[i] + " " + types[t], expected, actual);
+            }
+        }
+    }
+    public void testEarlyStop() throws Exception
+    {
+        final String xml = "<a><b>1</b><b>2</b><broken></a>";
+        assertEquals("1", newXPath(true).evaluate("/a/b", source(xml)));
+        try
+        {
+            newXPath(true).evaluate("count(/a/b)", source(xml));
+            fail();
+        }
+        catch(XPathExpressionException e)
+        {
+            // the whole document is read
+        }
+    }
+    public void testFeature() throws Exception
+    {
+        final XPathFactory factory = new JXPathXPathFactory();
+        assertFalse(factory.getFeature(JXPathXPathFactory.FEATURE_STREAMING));
+        factory.setFeature(JXPathXPathFactory.FEATURE_STREAMING, true);
+        assertTrue(factory.getFeature(JXPathXPathFactory.FEATURE_STREAMING));
+        // node results are not streamed
+        assertEquals(2, ((org.w3c.dom.NodeList) factory.newXPath().evaluate(
+            "/a/b", source("<a><b/><b/></a>"), XPathConstants.NODESET)).getLength());
+    }
+
+    private static XPath newXPath(boolean streaming) throws Exception
+    {
+        final XPathFactory factory = new JXPathXPathFactory();
+        factory.setFeature(JXPathXPathFactory.FEATURE_STREAMING, streaming);
+        return factory.newXPath();
+    }
+    private static InputSource source(String xml)
+    {
+        return new InputSource(new StringReader(xml));
+    }
+    private static Expression parse(String xpath)
+    {
+        return (Expression) Parser.parseExpression(xpath, new TreeCompiler());
+    }
+}
@@ -0,0 +1,168 @@
+package org.apache.commons.jxpath.jaxp;
+
+import java.io.StringReader;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathVariableResolver;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link XPathBatch}.
+ *
+ * @author mik
+ *
+ */
+public class TestXPathBatch extends TestCase
+{
+    private static final String XML = "<orders><order><id> 7 </id><total>10.5</total>"
+        + "<line>a</line><line>b</line></order></orders>";
+
+    private static final String[] EXPRESSIONS = {
+        "/orders/order/id", "/orders/order/total", "/orders/order/line",
+        "/orders/order/line[2]", "count(//line)", "/orders/order/missing"};
+    private static final QName[] TYPES = {
+        XPathConstants.STRING, XPathConstants.NUMBER, XPathConstants.NODESET,
+        XPathConstants.NODE, XPathConstants.NUMBER, XPathConstants.STRING};
+
+    public void testSameResults() throws Exception
+    {
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        final XPathExpression[] exprs = compile(xp, EXPRESSIONS);
+        final Document doc = parse(XML);
+        final Object[] plain = new XPathBatch(exprs, TYPES).evaluate(doc);
+        final Object[] grouped = new XPathBatch(exprs, TYPES, true).evaluate(doc);
+        for(int i=0;i<exprs.length;i++)
+        {
+            final Object expected = exprs[i].evaluate(doc, TYPES[i]);
+            assertResult(expected, plain[i], EXPRESSIONS[i]);
+            assertResult(expected, grouped[i], EXPRESSIONS[i]);
+        }
+        assertEquals(" 7 ", grouped[0]);
+        assertEquals(new Double(10.5), grouped[1]);
+        assertEquals(2, ((NodeList)grouped[2]).getLength());
+        assertEquals("b", ((Node)grouped[3]).getTextContent());
+        assertEquals("", grouped[5]);
+    }
+    public void testManyParents() throws Exception
+    {
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        final String[] texts = {"/x/r/a", "/x/r/b", "/x/s/a"};
+        final QName[] types = {XPathConstants.STRING, XPathConstants.NODESET, XPathConstants.STRING};
+        final Document doc = parse("<x><r><b>1</b></r><r><a>2</a><b>3</b></r><s/></x>");
+        final Object[] results = new XPathBatch(compile(xp, texts), types, true).evaluate(doc);
+        assertEquals("2", results[0]);
+        assertEquals(2, ((NodeList)results[1]).getLength());
+        assertEquals("", results[2]);
+    }
+    public void testVariablesResolvedOnce() throws Exception
+    {
+        final XPath xp = new JXPathXPathFactory().newXPath();
+        final int[] calls = new int[1];
+        xp.setXPathVariableResolver(new XPathVariableResolver()
+        {
+            public Object resolveVariable(QName name)
+            {
+                calls[0]++;
+                return "b";
+            }
+        });
+        final XPathExpression[] exprs = compile(xp, new String[]{
+            "count(//line[. = $v])", "//line[. = $v]", "$w"});
+        final XPathBatch batch = new XPathBatch(exprs, new QName[]{
+            XPathConstants.NUMBER, XPathConstants.STRING, XPathConstants.STRING});
+        final Object[] results = batch.evaluate(new InputSource(new StringReader(XML)));
+        assertEquals(new Double(1), results[0]);
+        assertEquals("b", results[1]);
+        assertEquals("b", results[2]);
+        assertEquals(2, calls[0]);
+    }
+    public void testOtherImplementation() throws Exception
+    {
+        final XPathExpression other = new XPathExpression()
+        {
+            public Object evaluate(Object item, QName returnType)
+            {
+                return "other";
+            }
+            public String evaluate(Object item)
+            {
+                return "other";
+            }
+            public Object evaluate(InputSource source, QName returnType)
+            {
+                return "other";
+            }
+            public String evaluate(InputSource source)
+            {
+                return "other";
+            }
+        };
+        final XPathExpression own = new JXPathXPathFactory().newXPath().compile("/orders/order/id");
+        final Object[] results = new XPathBatch(new XPathExpression[]{other, own},
+            new QName[]{XPathConstants.STRING, XPathConstants.STRING}).evaluate(parse(XML));
+        assertEquals("other", results[0]);
+        assertEquals(" 7 ", results[1]);
+        try
+        {
+            new XPathBatch(new XPathExpression[]{own}, new QName[0]);
+            fail();
+        }
+        catch(IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+    public void testFactoryFeatures() throws Exception
+    {
+        final EvaluationMetrics metrics = new EvaluationMetrics();
+        final JXPathXPathFactory f = new JXPathXPathFactory();
+        f.setEvaluationListener(metrics);
+        f.setFeature(JXPathXPathFactory.FEATURE_COMPACT_DOCUMENT, true);
+        final XPathBatch batch = new XPathBatch(compile(f.newXPath(), EXPRESSIONS), TYPES, true);
+        // grouped paths are reported too
+        batch.evaluate(parse(XML));
+        assertEquals(EXPRESSIONS.length, metrics.getEvaluationCount());
+        final Document indexed = parse(XML);
+        DocumentIndex.attach(indexed, new String[]{"id"});
+        batch.evaluate(indexed);
+        assertEquals(1, DocumentIndex.get(indexed).getBuildCount());
+        // parsed as by the expressions
+        final Object[] results = batch.evaluate(new InputSource(new StringReader(XML)));
+        assertTrue(results[3] instanceof CompactNode);
+        assertEquals(1, metrics.getParseCount());
+    }
+
+    private static void assertResult(Object expected, Object actual, String expr)
+    {
+        if (expected instanceof NodeList)
+        {
+            final NodeList e = (NodeList) expected;
+            final NodeList a = (NodeList) actual;
+            assertEquals(expr, e.getLength(), a.getLength());
+            for(int i=0;i<e.getLength();i++) assertSame(expr, e.item(i), a.item(i));
+        }
+        else if (expected instanceof Node) assertSame(expr, expected, actual);
+        else assertEquals(expr, expected, actual);
+    }
+    private static XPathExpression[] compile(XPath xp, String[] texts)
+        throws XPathExpressionException
+    {
+        final XPathExpression[] exprs = new XPathExpression[texts.length];
+        for(int i=0;i<texts.length;i++) exprs[i] = xp.compile(texts[i]);
+        return exprs;
+    }
+    private static Document parse(String xml) throws XPathExpressionException
+    {
+        return JXPathXPathFactory.getDocument(new InputSource(new StringReader(xml)), false);
+    }
+}